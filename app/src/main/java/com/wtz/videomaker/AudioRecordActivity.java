@@ -21,6 +21,8 @@ import com.wtz.ffmpegapi.WAVSaver;
 import com.wtz.ffmpegapi.WePlayer;
 import com.wtz.libmp3util.WeMp3Encoder;
 import com.wtz.libnaudiorecord.WeNAudioRecorder;
+import com.wtz.libvideomaker.audio.PcmFormatConverter;
+import com.wtz.libvideomaker.audio.VoiceActivityDetector;
 import com.wtz.libvideomaker.recorder.WeJAudioRecorder;
 import com.wtz.libvideomaker.utils.LogUtils;
 import com.wtz.videomaker.utils.DateTimeUtil;
@@ -329,10 +331,17 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
                 mWeJAudioRecorder.getChannelNums(),
                 mWeJAudioRecorder.getBitsPerSample(),
                 0, new File(mCurrentWavPathName));
-        mWeMp3Encoder.startEncodePCMBuffer(
+        mPcmToShortConverter = new PcmFormatConverter(
+                mWeJAudioRecorder.getBitsPerSample(), mWeJAudioRecorder.getChannelNums(),
+                PcmFormatConverter.FORMAT_PCM_16BIT, mWeJAudioRecorder.getChannelNums());
+        mVoiceDetector = new VoiceActivityDetector(
+                mWeJAudioRecorder.getSampleRate(), mWeJAudioRecorder.getChannelNums());
+        mVoiceDetector.setMode(MP3_SILENCE_MODE);
+        mWeMp3Encoder.startEncodePCMBufferAsync(
                 mWeJAudioRecorder.getSampleRate(),
                 mWeJAudioRecorder.getChannelNums(),
-                mWeJAudioRecorder.getBitsPerSample(), mCurrentMp3PathName);
+                PcmFormatConverter.FORMAT_PCM_16BIT, mCurrentMp3PathName,
+                WeMp3Encoder.DEFAULT_ASYNC_QUEUE_DEPTH, WeMp3Encoder.QueueFullPolicy.DROP);
         mWeJAudioRecorder.startRecord();
         mJavaRecordButton.setText("停止录音");
         startUpdateRecordInfo();
@@ -348,10 +357,17 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
                 mWeNAudioRecorder.getChannelNums(),
                 mWeNAudioRecorder.getBitsPerSample(),
                 0, new File(mCurrentWavPathName));
-        mWeMp3Encoder.startEncodePCMBuffer(
+        mPcmToShortConverter = new PcmFormatConverter(
+                mWeNAudioRecorder.getBitsPerSample(), mWeNAudioRecorder.getChannelNums(),
+                PcmFormatConverter.FORMAT_PCM_16BIT, mWeNAudioRecorder.getChannelNums());
+        mVoiceDetector = new VoiceActivityDetector(
+                mWeNAudioRecorder.getSampleRate(), mWeNAudioRecorder.getChannelNums());
+        mVoiceDetector.setMode(MP3_SILENCE_MODE);
+        mWeMp3Encoder.startEncodePCMBufferAsync(
                 mWeNAudioRecorder.getSampleRate(),
                 mWeNAudioRecorder.getChannelNums(),
-                mWeNAudioRecorder.getBitsPerSample(), mCurrentMp3PathName);
+                PcmFormatConverter.FORMAT_PCM_16BIT, mCurrentMp3PathName,
+                WeMp3Encoder.DEFAULT_ASYNC_QUEUE_DEPTH, WeMp3Encoder.QueueFullPolicy.DROP);
         mWeNAudioRecorder.startRecord();
         mNativeRecordButton.setText("停止录音");
 
@@ -362,7 +378,10 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
         mWeJAudioRecorder.stopRecord();
         mJavaRecordButton.setText("开始录音");
         mWAVSaver.stop();
+        LogUtils.d(TAG, "mp3 encode queue " + mWeMp3Encoder.getPCMBufferQueueStats());
         mWeMp3Encoder.stopEncodePCMBuffer();
+        LogUtils.d(TAG, "mp3 encoded speech frames " + mVoiceDetector.getSpeechFrames()
+                + "/" + mVoiceDetector.getTotalFrames());
         audioBuffer = null;
         notifyScanMedia(mCurrentWavPathName);
         notifyScanMedia(mCurrentMp3PathName);
@@ -373,7 +392,10 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
         mWeNAudioRecorder.stopRecord();
         mNativeRecordButton.setText("开始录音");
         mWAVSaver.stop();
+        LogUtils.d(TAG, "mp3 encode queue " + mWeMp3Encoder.getPCMBufferQueueStats());
         mWeMp3Encoder.stopEncodePCMBuffer();
+        LogUtils.d(TAG, "mp3 encoded speech frames " + mVoiceDetector.getSpeechFrames()
+                + "/" + mVoiceDetector.getTotalFrames());
         audioBuffer = null;
         notifyScanMedia(mCurrentWavPathName);
         notifyScanMedia(mCurrentMp3PathName);
@@ -408,22 +430,35 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
     }
 
     private short[] audioBuffer = null;
+    // MP3 编码器按 16 位 short 输入，录音退回到 8 位时也要先转换
+    private PcmFormatConverter mPcmToShortConverter;
+    // 语音备忘录式的长时间录音大部分是静音，默认只标记、完整编码；
+    // 改为 MODE_DROP 时 MP3 只编码有语音的部分，WAV 仍然保存完整录音
+    private VoiceActivityDetector mVoiceDetector;
+    private static final int MP3_SILENCE_MODE = VoiceActivityDetector.MODE_MARK;
+
+    private void encodeMp3(byte[] data, int size) {
+        if (mWeMp3Encoder == null) {
+            return;
+        }
+        int shortSize = mPcmToShortConverter.getDstBytes(size) / 2;
+        if (audioBuffer == null || audioBuffer.length < shortSize) {
+            audioBuffer = new short[shortSize];
+        }
+        shortSize = mPcmToShortConverter.convertToShorts(data, 0, size, audioBuffer, 0);
+        shortSize = mVoiceDetector.gate(audioBuffer, 0, shortSize);
+        if (shortSize > 0) {
+            mWeMp3Encoder.encodeFromPCMBuffer(audioBuffer, shortSize);
+        }
+    }
+
     private WeJAudioRecorder.OnAudioRecordDataListener mJAudioListener = new WeJAudioRecorder.OnAudioRecordDataListener() {
         @Override
         public void onAudioRecordData(byte[] data, int size) {
             if (mWAVSaver != null) {
                 mWAVSaver.encode(data, size);
             }
-            if (mWeMp3Encoder != null) {
-                int shortSize = size / 2;
-                if (audioBuffer == null || audioBuffer.length < shortSize) {
-                    audioBuffer = new short[shortSize];
-                }
-                for (int i = 0; i < shortSize; i++) {
-                    audioBuffer[i] = (short) ((data[i * 2] & 0xff) | (data[i * 2 + 1] & 0xff) << 8);
-                }
-                mWeMp3Encoder.encodeFromPCMBuffer(audioBuffer, shortSize);
-            }
+            encodeMp3(data, size);
         }
     };
 
@@ -433,16 +468,7 @@ public class AudioRecordActivity extends AppCompatActivity implements View.OnCli
             if (mWAVSaver != null) {
                 mWAVSaver.encode(data, size);
             }
-            if (mWeMp3Encoder != null) {
-                int shortSize = size / 2;
-                if (audioBuffer == null || audioBuffer.length < shortSize) {
-                    audioBuffer = new short[shortSize];
-                }
-                for (int i = 0; i < shortSize; i++) {
-                    audioBuffer[i] = (short) ((data[i * 2] & 0xff) | (data[i * 2 + 1] & 0xff) << 8);
-                }
-                mWeMp3Encoder.encodeFromPCMBuffer(audioBuffer, shortSize);
-            }
+            encodeMp3(data, size);
         }
     };
 
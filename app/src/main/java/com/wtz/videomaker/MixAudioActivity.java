@@ -25,8 +25,11 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.wtz.ffmpegapi.WAVSaver;
 import com.wtz.ffmpegapi.WePlayer;
 import com.wtz.libnaudiorecord.WeNAudioRecorder;
+import com.wtz.libvideomaker.audio.ClockDriftCompensator;
+import com.wtz.libvideomaker.audio.PcmMixer;
+import com.wtz.libvideomaker.audio.PolyphaseResampler;
+import com.wtz.libvideomaker.audio.PcmRingBuffer;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.videomaker.utils.AudioUtils;
 import com.wtz.videomaker.utils.DateTimeUtil;
 import com.wtz.videomaker.utils.FileChooser;
 import com.wtz.videomaker.utils.PermissionChecker;
@@ -35,8 +38,8 @@ import com.wtz.videomaker.utils.PermissionHandler;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
 
 
 public class MixAudioActivity extends AppCompatActivity implements PermissionHandler.PermissionHandleListener,
@@ -79,7 +82,21 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
             1.0f
     };
     private byte[][] mMultiTrackAudioBytes = null;
-    private LinkedBlockingQueue<Byte> mPCMBytesQueue = new LinkedBlockingQueue<>();
+    private byte[] mMixOutBytes = null;
+    private PcmMixer mPcmMixer;
+    // WePlayer 回调的 PCM 固定为 44100Hz、双声道、16bit
+    private static final int MUSIC_SAMPLE_RATE = 44100;
+    // 录音使用设备原生的 48000Hz，音乐先重采样到录音采样率再混音
+    private static final WeNAudioRecorder.SampleRate RECORD_SAMPLE_RATE = WeNAudioRecorder.SampleRate.SR_48000;
+    private PolyphaseResampler mMusicResampler;
+    private byte[] mResampledMusicBytes;
+    // 缓存约 1 秒 48000Hz、双声道、16bit 的音乐 PCM 数据
+    private static final int PCM_BUFFER_CAPACITY = 48000 * 2 * 2;
+    private PcmRingBuffer mPCMBytesQueue = new PcmRingBuffer(PCM_BUFFER_CAPACITY);
+    // 音乐与录音各自的时钟有细微漂移，通过微调音乐的重采样比例把缓冲延迟稳定在目标值附近
+    private static final int MIX_TARGET_LATENCY_MILLS = 100;
+    private static final int MIX_MAX_LATENCY_MILLS = 400;
+    private ClockDriftCompensator mDriftCompensator;
 
     private static final int MSG_UPDATE_RECORD_INFO = 0;
     private static final int MSG_UPDATE_MUSIC_TIME = 1;
@@ -223,12 +240,20 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
     }
 
     private void initAudioRecord() {
-        // 为了方便混音：保证与 WePlayer 播放的采样率 44100Hz、通道数 2、编码 16bit 保持一致
+        // 为了方便混音：通道数 2、编码 16bit 与 WePlayer 播放保持一致，采样率不一致时对音乐重采样
         mWeNAudioRecorder = new WeNAudioRecorder(
-                WeNAudioRecorder.SampleRate.SR_44100,
+                RECORD_SAMPLE_RATE,
                 WeNAudioRecorder.ChannelLayout.STEREO,
                 WeNAudioRecorder.EncodingBits.PCM_16BIT);
         mWeNAudioRecorder.setOnAudioRecordDataListener(mNAudioListener);
+        // 采样率相同时也要经过重采样器，用于时钟漂移的变比微调
+        mMusicResampler = new PolyphaseResampler(MUSIC_SAMPLE_RATE, RECORD_SAMPLE_RATE.getNativeValue(), 2);
+        mDriftCompensator = new ClockDriftCompensator(RECORD_SAMPLE_RATE.getNativeValue(), 2 * 2,
+                MIX_TARGET_LATENCY_MILLS, MIX_MAX_LATENCY_MILLS);
+
+        mPcmMixer = new PcmMixer(2);
+        mPcmMixer.setStrategy(PcmMixer.STRATEGY_AVERAGE);
+        mPcmMixer.setTrackGains(mMultiTrackMixRatios);
         mWAVSaver = new WAVSaver();
         isInitSuccess = true;
     }
@@ -246,24 +271,22 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
             if (mMultiTrackAudioBytes == null || mMultiTrackAudioBytes[0].length < size) {
                 // 尽可能避免频繁创建和释放内存造成内存抖动
                 mMultiTrackAudioBytes = new byte[2][size];
+                mMixOutBytes = new byte[size];
             }
-            for (int i = 0; i < size; i++) {
-                mMultiTrackAudioBytes[0][i] = data[i];
-                try {
-                    mMultiTrackAudioBytes[1][i] = mPCMBytesQueue.take();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+            System.arraycopy(data, 0, mMultiTrackAudioBytes[0], 0, size);
+            // 不阻塞录音线程：音乐数据预填充到目标延迟之前，或者音乐停止供数据时，音乐音轨用静音代替
+            if (mDriftCompensator.checkConsume(mPCMBytesQueue.available(), size)) {
+                mPCMBytesQueue.read(mMultiTrackAudioBytes[1], 0, size);
+            } else {
+                Arrays.fill(mMultiTrackAudioBytes[1], 0, size, (byte) 0);
             }
 
-            // WeNAudioRecorder 录制 与 WePlayer 播放的采样率 44100Hz、通道数 2、编码 16bit 保持一致
-            // 所以可以使用下边简单的混音方法
-            byte[] mixOut = AudioUtils.linearMix16bitAudioBytes(mMultiTrackAudioBytes, size,
-                    mMultiTrackMixRatios);
+            // 音乐已经重采样到录音采样率，且通道数 2、编码 16bit 保持一致，所以可以使用下边简单的混音方法
+            int mixSize = mPcmMixer.mix(mMultiTrackAudioBytes, size, mMixOutBytes);
 
             if (mWAVSaver != null) {
                 try {
-                    mWAVSaver.encode(mixOut, mixOut.length);
+                    mWAVSaver.encode(mMixOutBytes, mixSize);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -284,13 +307,20 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
                 return;
             }
         }
-        for (byte data : bytes) {
-            try {
-                mPCMBytesQueue.put(data);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        writeMusicToMixQueue(bytes, size);
+    }
+
+    private void writeMusicToMixQueue(byte[] bytes, int size) {
+        mMusicResampler.setRatioCorrection(mDriftCompensator.getRatioCorrection());
+        int maxBytes = mMusicResampler.getMaxOutputBytes(size);
+        if (mResampledMusicBytes == null || mResampledMusicBytes.length < maxBytes) {
+            // 尽可能避免频繁创建和释放内存造成内存抖动
+            mResampledMusicBytes = new byte[maxBytes];
         }
+        int resampledSize = mMusicResampler.process(bytes, 0, size, mResampledMusicBytes, 0);
+        // 超过延迟上限的部分直接丢弃，不阻塞音乐解码线程
+        int writeSize = mDriftCompensator.checkProduce(mPCMBytesQueue.available(), resampledSize);
+        mPCMBytesQueue.write(mResampledMusicBytes, 0, writeSize);
     }
 
     @Override
@@ -540,6 +570,7 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
                 0, new File(mCurrentPathName));
 
         mPCMBytesQueue.clear();
+        mDriftCompensator.reset();
         openOrStartMusic();
         if (mWePlayer != null) {
             mWePlayer.setVolume(0);
@@ -629,15 +660,7 @@ public class MixAudioActivity extends AppCompatActivity implements PermissionHan
             mPermissionHandler = null;
         }
 
-        // 避免录音线程一直取数据阻塞无法退出
-        while (isMixing) {
-            LogUtils.w(TAG, "onDestroy isMixing...");
-            try {
-                mPCMBytesQueue.put((byte) 0);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        // 录音线程取音乐数据不会阻塞，直接清空即可
         mPCMBytesQueue.clear();
         LogUtils.w(TAG, "onDestroy mPCMBytesQueue clear finished");
 
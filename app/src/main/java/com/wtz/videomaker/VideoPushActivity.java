@@ -33,13 +33,16 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.wtz.ffmpegapi.WePlayer;
 import com.wtz.libnaudiorecord.WeNAudioRecorder;
+import com.wtz.libvideomaker.audio.ClockDriftCompensator;
+import com.wtz.libvideomaker.audio.PcmMixer;
+import com.wtz.libvideomaker.audio.PcmRingBuffer;
+import com.wtz.libvideomaker.audio.PolyphaseResampler;
 import com.wtz.libvideomaker.camera.WeCameraView;
 import com.wtz.libvideomaker.push.WeVideoPusher;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
 import com.wtz.libvideomaker.renderer.filters.WatermarkRenderer;
 import com.wtz.libvideomaker.utils.LogUtils;
 import com.wtz.libvideomaker.utils.ScreenUtils;
-import com.wtz.videomaker.utils.AudioUtils;
 import com.wtz.videomaker.utils.DateTimeUtil;
 import com.wtz.videomaker.utils.FileChooser;
 import com.wtz.videomaker.utils.PermissionChecker;
@@ -47,8 +50,8 @@ import com.wtz.videomaker.utils.PermissionHandler;
 
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
 
 
 public class VideoPushActivity extends AppCompatActivity implements PermissionHandler.PermissionHandleListener,
@@ -91,7 +94,19 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
             1.0f
     };
     private byte[][] mMultiTrackAudioBytes = null;
-    private LinkedBlockingQueue<Byte> mPCMBytesQueue = new LinkedBlockingQueue<>();
+    private byte[] mMixOutBytes = null;
+    private PcmMixer mPcmMixer;
+    // 缓存约 1 秒 44100Hz、双声道、16bit 的音乐 PCM 数据
+    private static final int PCM_BUFFER_CAPACITY = 44100 * 2 * 2;
+    private PcmRingBuffer mPCMBytesQueue = new PcmRingBuffer(PCM_BUFFER_CAPACITY);
+    // 录音与音乐名义采样率都是 44100Hz，重采样只用于时钟漂移的变比微调
+    private static final int MUSIC_SAMPLE_RATE = 44100;
+    private PolyphaseResampler mMusicResampler;
+    private byte[] mResampledMusicBytes;
+    // 音乐与录音各自的时钟有细微漂移，通过微调音乐的重采样比例把缓冲延迟稳定在目标值附近
+    private static final int MIX_TARGET_LATENCY_MILLS = 100;
+    private static final int MIX_MAX_LATENCY_MILLS = 400;
+    private ClockDriftCompensator mDriftCompensator;
 
     private WePlayer mWePlayer;
     private int mSelectMusicRequestCode;
@@ -177,6 +192,9 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
         mWeVideoPusher = new WeVideoPusher(this);
         mWeVideoPusher.setPushUrl(mPushUrl);
         mWeVideoPusher.setConnectTimeout(7);
+        mWeVideoPusher.setQueueLimits(2 * 1024 * 1024, 3000);// 上行网络变差时最多积压 2MB 或约 3 秒视频
+        mWeVideoPusher.setAdaptiveBitrate(500 * 1000, 4 * 1000 * 1000);// 根据上行网络情况动态调整视频码率
+        mWeVideoPusher.setRenderTargetHost(mWeCameraView);// 在预览渲染线程上逐帧绘制编码画面，不再单独开渲染线程
 
         mPermissionHandler = new PermissionHandler(this, this);
         mPermissionHandler.handleCommonPermission(Manifest.permission.CAMERA);
@@ -330,6 +348,15 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
                 WeNAudioRecorder.ChannelLayout.STEREO,
                 WeNAudioRecorder.EncodingBits.PCM_16BIT);
         mWeNAudioRecorder.setOnAudioRecordDataListener(mNAudioListener);
+
+        mPcmMixer = new PcmMixer(2);
+        mPcmMixer.setStrategy(PcmMixer.STRATEGY_AVERAGE);
+        mPcmMixer.setTrackGains(mMultiTrackMixRatios);
+
+        int recordRate = mWeNAudioRecorder.getSampleRate();
+        mMusicResampler = new PolyphaseResampler(MUSIC_SAMPLE_RATE, recordRate, 2);
+        mDriftCompensator = new ClockDriftCompensator(recordRate, 2 * 2,
+                MIX_TARGET_LATENCY_MILLS, MIX_MAX_LATENCY_MILLS);
     }
 
     private WeNAudioRecorder.OnAudioRecordDataListener mNAudioListener = new WeNAudioRecorder.OnAudioRecordDataListener() {
@@ -348,22 +375,21 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
                 if (mMultiTrackAudioBytes == null || mMultiTrackAudioBytes[0].length < size) {
                     // 尽可能避免频繁创建和释放内存造成内存抖动
                     mMultiTrackAudioBytes = new byte[2][size];
+                    mMixOutBytes = new byte[size];
                 }
-                for (int i = 0; i < size; i++) {
-                    mMultiTrackAudioBytes[0][i] = data[i];
-                    try {
-                        mMultiTrackAudioBytes[1][i] = mPCMBytesQueue.take();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                System.arraycopy(data, 0, mMultiTrackAudioBytes[0], 0, size);
+                // 不阻塞录音线程：音乐数据预填充到目标延迟之前，或者音乐停止供数据时，音乐音轨用静音代替
+                if (mDriftCompensator.checkConsume(mPCMBytesQueue.available(), size)) {
+                    mPCMBytesQueue.read(mMultiTrackAudioBytes[1], 0, size);
+                } else {
+                    Arrays.fill(mMultiTrackAudioBytes[1], 0, size, (byte) 0);
                 }
 
                 // WeNAudioRecorder 录制 与 WePlayer 播放的采样率 44100Hz、通道数 2、编码 16bit 保持一致
                 // 所以可以使用下边简单的混音方法
-                byte[] mixOut = AudioUtils.linearMix16bitAudioBytes(mMultiTrackAudioBytes, size,
-                        mMultiTrackMixRatios);
+                int mixSize = mPcmMixer.mix(mMultiTrackAudioBytes, size, mMixOutBytes);
 
-                putAudioToVideoPusher(mixOut, size);
+                putAudioToVideoPusher(mMixOutBytes, mixSize);
 
                 synchronized (VideoPushActivity.this) {
                     isMixing = false;
@@ -715,6 +741,7 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
 
             case AUDIO_SRC_TYPE_MIC_MUSIC:
                 mPCMBytesQueue.clear();
+                mDriftCompensator.reset();
                 if (isMusicPrepared) {
                     startMusic();
                     mWeNAudioRecorder.startRecord();
@@ -757,18 +784,25 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
                     return;
                 }
             }
-            for (byte data : bytes) {
-                try {
-                    mPCMBytesQueue.put(data);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+            writeMusicToMixQueue(bytes, size);
         } else {
             putAudioToVideoPusher(bytes, size);
         }
     }
 
+    private void writeMusicToMixQueue(byte[] bytes, int size) {
+        mMusicResampler.setRatioCorrection(mDriftCompensator.getRatioCorrection());
+        int maxBytes = mMusicResampler.getMaxOutputBytes(size);
+        if (mResampledMusicBytes == null || mResampledMusicBytes.length < maxBytes) {
+            // 尽可能避免频繁创建和释放内存造成内存抖动
+            mResampledMusicBytes = new byte[maxBytes];
+        }
+        int resampledSize = mMusicResampler.process(bytes, 0, size, mResampledMusicBytes, 0);
+        // 超过延迟上限的部分直接丢弃，不阻塞音乐解码线程
+        int writeSize = mDriftCompensator.checkProduce(mPCMBytesQueue.available(), resampledSize);
+        mPCMBytesQueue.write(mResampledMusicBytes, 0, writeSize);
+    }
+
     private void stopRecord() {
         isRecording = false;
         startEncodeOnPrepared = false;
@@ -959,15 +993,7 @@ public class VideoPushActivity extends AppCompatActivity implements PermissionHa
             mPermissionHandler = null;
         }
 
-        // 避免录音线程一直取数据阻塞无法退出
-        while (isMixing) {
-            LogUtils.w(TAG, "onDestroy isMixing...");
-            try {
-                mPCMBytesQueue.put((byte) 0);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        // 录音线程取音乐数据不会阻塞，直接清空即可
         mPCMBytesQueue.clear();
         LogUtils.w(TAG, "onDestroy mPCMBytesQueue clear finished");
 
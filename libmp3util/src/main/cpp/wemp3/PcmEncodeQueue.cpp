@@ -0,0 +1,164 @@
+//
+// Created by WTZ on 2020/5/12.
+//
+
+#include <string.h>
+#include <time.h>
+#include "PcmEncodeQueue.h"
+#include "AndroidLog.h"
+
+PcmEncodeQueue::PcmEncodeQueue(int slotCount, int samplesPerSlot, int policy) {
+    this->slotCount = slotCount < 2 ? 2 : slotCount;
+    this->samplesPerSlot = samplesPerSlot;
+    this->policy = policy == POLICY_DROP ? POLICY_DROP : POLICY_BLOCK;
+    slots = new short[this->slotCount * samplesPerSlot];
+    slotSamples = new int[this->slotCount];
+    slotPutNanos = new int64_t[this->slotCount];
+    memset(slotSamples, 0, this->slotCount * sizeof(int));
+    memset(slotPutNanos, 0, this->slotCount * sizeof(int64_t));
+    pthread_mutex_init(&mutex, NULL);
+    pthread_cond_init(&notEmptyCondition, NULL);
+    pthread_cond_init(&notFullCondition, NULL);
+}
+
+PcmEncodeQueue::~PcmEncodeQueue() {
+    setAllowOperation(false);
+    pthread_cond_destroy(&notFullCondition);
+    pthread_cond_destroy(&notEmptyCondition);
+    pthread_mutex_destroy(&mutex);
+    delete[] slots;
+    slots = NULL;
+    delete[] slotSamples;
+    slotSamples = NULL;
+    delete[] slotPutNanos;
+    slotPutNanos = NULL;
+}
+
+int64_t PcmEncodeQueue::getNowNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+int PcmEncodeQueue::put(const short *pcm, int samples) {
+    int written = 0;
+    while (written < samples) {
+        pthread_mutex_lock(&mutex);
+        if (writeCount - readCount >= (uint32_t) slotCount && allowOperation) {
+            if (policy == POLICY_DROP) {
+                droppedSamples += samples - written;
+                pthread_mutex_unlock(&mutex);
+                if (LOG_REPEAT_DEBUG) {
+                    LOGW(LOG_TAG, "queue is full, drop %d samples", samples - written);
+                }
+                break;
+            }
+            int64_t blockStart = getNowNanos();
+            blockedCount++;
+            while (writeCount - readCount >= (uint32_t) slotCount && allowOperation) {
+                pthread_cond_wait(&notFullCondition, &mutex);
+            }
+            blockedNanos += getNowNanos() - blockStart;
+        }
+        if (!allowOperation) {
+            pthread_mutex_unlock(&mutex);
+            break;
+        }
+        uint32_t write = writeCount;
+        pthread_mutex_unlock(&mutex);
+
+        // 只有一个生产者，空槽在写计数增加之前不会被消费者访问，复制不需要持有锁
+        int index = write % slotCount;
+        int count = samples - written;
+        if (count > samplesPerSlot) {
+            count = samplesPerSlot;
+        }
+        memcpy(slots + index * samplesPerSlot, pcm + written, count * sizeof(short));
+        slotSamples[index] = count;
+        slotPutNanos[index] = getNowNanos();
+        written += count;
+
+        pthread_mutex_lock(&mutex);
+        writeCount = write + 1;
+        putSamples += count;
+        int filled = writeCount - readCount;
+        if (filled > highWaterMark) {
+            highWaterMark = filled;
+        }
+        pthread_cond_signal(&notEmptyCondition);
+        pthread_mutex_unlock(&mutex);
+    }
+    return written;
+}
+
+const short *PcmEncodeQueue::peekRead(int *samples) {
+    *samples = 0;
+    pthread_mutex_lock(&mutex);
+    // 循环是为了在队列为空导致阻塞等待后被唤醒时继续判断
+    while (allowOperation && writeCount == readCount && !productDataComplete) {
+        pthread_cond_wait(&notEmptyCondition, &mutex);
+    }
+    if (!allowOperation || writeCount == readCount) {
+        pthread_mutex_unlock(&mutex);
+        return NULL;
+    }
+    int index = readCount % slotCount;
+    int64_t latency = getNowNanos() - slotPutNanos[index];
+    latencyNanosSum += latency;
+    latencyCount++;
+    if (latency > maxLatencyNanos) {
+        maxLatencyNanos = latency;
+    }
+    pthread_mutex_unlock(&mutex);
+
+    *samples = slotSamples[index];
+    return slots + index * samplesPerSlot;
+}
+
+void PcmEncodeQueue::releaseRead() {
+    pthread_mutex_lock(&mutex);
+    if (writeCount != readCount) {
+        readCount++;
+        pthread_cond_signal(&notFullCondition);
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+void PcmEncodeQueue::setProductDataComplete(bool complete) {
+    pthread_mutex_lock(&mutex);
+    if (LOG_DEBUG) {
+        LOGD(LOG_TAG, "setProductDataComplete: %d", complete);
+    }
+    productDataComplete = complete;
+    if (complete) {
+        pthread_cond_signal(&notEmptyCondition);
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+void PcmEncodeQueue::setAllowOperation(bool allow) {
+    pthread_mutex_lock(&mutex);
+    allowOperation = allow;
+    if (!allow) {
+        pthread_cond_broadcast(&notEmptyCondition);
+        pthread_cond_broadcast(&notFullCondition);
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+void PcmEncodeQueue::getStats(PcmEncodeQueueStats *stats) {
+    pthread_mutex_lock(&mutex);
+    stats->filledSlots = writeCount - readCount;
+    stats->highWaterMark = highWaterMark;
+    stats->putSamples = putSamples;
+    stats->droppedSamples = droppedSamples;
+    stats->blockedCount = blockedCount;
+    stats->blockedMicros = blockedNanos / 1000;
+    stats->avgLatencyMicros = latencyCount > 0 ? (int) (latencyNanosSum / latencyCount / 1000) : 0;
+    stats->maxLatencyMicros = (int) (maxLatencyNanos / 1000);
+    pthread_mutex_unlock(&mutex);
+}
+
+int PcmEncodeQueue::getSamplesPerSlot() {
+    return samplesPerSlot;
+}
@@ -3,6 +3,11 @@
 //
 
 #include <AndroidLog.h>
+#include <fcntl.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 #include "WeMp3Encoder.h"
 
 WeMp3Encoder::WeMp3Encoder(OnEncodeProgressListener *listener) {
@@ -59,7 +64,8 @@ void WeMp3Encoder::setOutQuality(int quality) {
     this->outQuality = quality;
 }
 
-lame_t WeMp3Encoder::initLame(int inSampleRate, int inChannelNum) {
+lame_t WeMp3Encoder::initLame(int inSampleRate, int inChannelNum, bool independentFrames,
+                              bool writeLameTag) {
     lame_t lame = lame_init();
     if (lame == NULL) {
         LOGE(LOG_TAG, "lame_init return NULL");
@@ -116,6 +122,14 @@ lame_t WeMp3Encoder::initLame(int inSampleRate, int inChannelNum) {
         return NULL;
     }
 
+    if (independentFrames) {
+        // 不使用比特池，每帧的主数据都在本帧内，帧之间没有依赖，不同 lame 实例编码的帧可以直接拼接
+        lame_set_disable_reservoir(lame, 1);
+        // VBR/Info 标签帧和 ID3 标签只描述单个实例的数据，拼接后没有意义，由调用者为整个文件生成标签帧
+        lame_set_bWriteVbrTag(lame, writeLameTag ? 1 : 0);
+        lame_set_write_id3tag_automatic(lame, 0);
+    }
+
     if (lame_init_params(lame) == -1) {
         LOGE(LOG_TAG, "lame_init_params failed");
         lame_close(lame);
@@ -138,7 +152,7 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
     lame_t lame = initLame(inSampleRate, inChannelNum);
     if (lame == NULL) {
         if (onEncodeProgressListener != NULL) {
-            onEncodeProgressListener->callback(3, savePath, 0, true);
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
         }
         return;
     }
@@ -148,20 +162,21 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
         LOGE(LOG_TAG, "encodeFromPCMFile but pcm file open failed: %s", pcmFilePath);
         lame_close(lame);
         if (onEncodeProgressListener != NULL) {
-            onEncodeProgressListener->callback(3, savePath, 0, true);
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
         }
         return;
     }
     if (hasWavHead) {
-        fseek(inFile, 4*1024, SEEK_CUR);// wav 格式的文件要跳过文件头
+        fseek(inFile, WAV_HEAD_SKIP_BYTES, SEEK_CUR);// wav 格式的文件要跳过文件头
     }
 
-    FILE *outFile = fopen(savePath, "wb");//只写方式打开一个二进制文件，不存在会创建，存在会覆盖
+    // 读写方式打开，不存在会创建，存在会覆盖；写 LAME 标签时 lame 要读回文件开头检查 ID3 标签
+    FILE *outFile = fopen(savePath, "w+b");
     if (outFile == NULL) {
         LOGE(LOG_TAG, "encodeFromPCMFile but save file open failed: %s", savePath);
         lame_close(lame);
         if (onEncodeProgressListener != NULL) {
-            onEncodeProgressListener->callback(3, savePath, 0, true);
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
         }
         return;
     }
@@ -177,7 +192,7 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
     int readMaxPcmElemCount = sizeof(short int) * PCM_BUFFER_SIZE / readBytesPerPcmElem;
     int readPcmElemCount = 0;
     int readPcmBytes = 0;
-    int totalPcmBytesSize = 0;// 已有多少原始数据被编码
+    int64_t totalPcmBytesSize = 0;// 已有多少原始数据被编码，可能超过 2GB
     int encodeSize = 0;
 
     LOGW(LOG_TAG, "encodeFromPCMFile start! source: %s", pcmFilePath);
@@ -192,12 +207,14 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
 
         // 把 PCM 编码为 MP3
         numSamplesPerChannel = readPcmBytes / bytesPerSample / inChannelNum;
-//            encodeSize = lame_encode_buffer(lame, pcmBuf, NULL, numSamplesPerChannel, mp3Buf,
-//                                            MP3_BUFFER_SIZE);
-        encodeSize = lame_encode_buffer_interleaved(lame, pcmBuf, numSamplesPerChannel, mp3Buf,
-                                                    MP3_BUFFER_SIZE);
+        encodeSize = encodePcm(lame, inChannelNum, pcmBuf, numSamplesPerChannel, mp3Buf,
+                               MP3_BUFFER_SIZE);
         // 把编码的 MP3 数据写到文件里
-        fwrite(mp3Buf, 1, encodeSize, outFile);
+        if (encodeSize > 0) {
+            fwrite(mp3Buf, 1, encodeSize, outFile);
+        } else if (encodeSize < 0) {
+            LOGE(LOG_TAG, "encodeFromPCMFile lame_encode_buffer failed! ret=%d", encodeSize);
+        }
 
         if (stopEncodeFromPCMFile) {
             break;
@@ -207,6 +224,8 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
     // 最后把缓冲区的数据也写入文件
     encodeSize = lame_encode_flush(lame, mp3Buf, MP3_BUFFER_SIZE);
     fwrite(mp3Buf, 1, encodeSize, outFile);
+    // 用帧数、字节数、delay 和 padding 填写文件开头预留的 Xing/Info 标签帧，播放器据此无缝播放和计算时长
+    lame_mp3_tags_fid(lame, outFile);
 
     // 释放资源
     fclose(outFile);
@@ -219,23 +238,555 @@ void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate,
     }
 }
 
+struct Mp3Segment {
+    int64_t startFrame;// 第一个保留的 MP3 帧在整个文件中的序号
+    int frameCount;// 保留的 MP3 帧数，最后一个分段为 -1，表示保留到结束
+    int64_t pcmBytes;// 对应的输入字节数，用于上报进度
+    unsigned char *data;
+    int size;
+    bool isDone;
+    bool isFailed;
+};
+
+struct ParallelEncodeTask {
+    WeMp3Encoder *encoder;
+    const short *pcm;// 第一个采样，已跳过文件头
+    int64_t totalSamplesPerChannel;
+    int sampleRate;
+    int channelNum;
+    int samplesPerFrame;// 每个 MP3 帧每声道的采样个数，MPEG1 是 1152，MPEG2/2.5 是 576
+
+    Mp3Segment *segments;
+    int segmentCount;
+    int nextSegment;// 下一个待编码的分段，在 mutex 保护下递增
+    bool isAborted;// 写文件失败或者有分段编码失败时不再编码后续分段
+
+    pthread_mutex_t mutex;
+    pthread_cond_t segmentDoneCondition;
+};
+
+void *parallelEncodeThreadCall(void *data) {
+    ParallelEncodeTask *task = static_cast<ParallelEncodeTask *>(data);
+    task->encoder->_loopParallelEncode(task);
+    pthread_exit(NULL);
+}
+
+void WeMp3Encoder::encodeFromPCMFile(const char *pcmFilePath, int inSampleRate, int inChannelNum,
+                                     int bitsPerSample, bool hasWavHead, const char *savePath,
+                                     int threadCount) {
+    if (threadCount <= 1 || bitsPerSample != 16) {
+        encodeFromPCMFile(pcmFilePath, inSampleRate, inChannelNum, bitsPerSample, hasWavHead,
+                          savePath);
+        return;
+    }
+    if (stopEncodeFromPCMFile) {
+        LOGE(LOG_TAG, "invoke encodeFromPCMFile but stopEncodeFromPCMFile == true");
+        return;
+    }
+    if (threadCount > PARALLEL_MAX_THREADS) {
+        threadCount = PARALLEL_MAX_THREADS;
+    }
+
+    // 先用一个实例确认参数可用，并取得每帧的采样个数
+    lame_t lame = initLame(inSampleRate, inChannelNum, true);
+    if (lame == NULL) {
+        if (onEncodeProgressListener != NULL) {
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
+        }
+        return;
+    }
+    int samplesPerFrame = lame_get_framesize(lame);
+    int encoderDelay = lame_get_encoder_delay(lame);
+    lame_close(lame);
+
+    int inFd = open(pcmFilePath, O_RDONLY);
+    if (inFd < 0) {
+        LOGE(LOG_TAG, "encodeFromPCMFile but pcm file open failed: %s", pcmFilePath);
+        if (onEncodeProgressListener != NULL) {
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
+        }
+        return;
+    }
+    struct stat inStat;
+    int64_t headBytes = hasWavHead ? WAV_HEAD_SKIP_BYTES : 0;
+    int64_t fileBytes = fstat(inFd, &inStat) == 0 ? inStat.st_size : 0;
+    void *mapped = MAP_FAILED;
+    if (fileBytes > headBytes) {
+        mapped = mmap(NULL, fileBytes, PROT_READ, MAP_PRIVATE, inFd, 0);
+    }
+    close(inFd);// 映射建立后就不再需要文件描述符
+    if (mapped == MAP_FAILED) {
+        LOGE(LOG_TAG, "encodeFromPCMFile parallel but mmap failed, size=%lld: %s",
+             (long long) fileBytes, pcmFilePath);
+        encodeFromPCMFile(pcmFilePath, inSampleRate, inChannelNum, bitsPerSample, hasWavHead,
+                          savePath);
+        return;
+    }
+    madvise(mapped, fileBytes, MADV_WILLNEED);
+
+    FILE *outFile = fopen(savePath, "wb");
+    if (outFile == NULL) {
+        LOGE(LOG_TAG, "encodeFromPCMFile but save file open failed: %s", savePath);
+        munmap(mapped, fileBytes);
+        if (onEncodeProgressListener != NULL) {
+            onEncodeProgressListener->callback(3, savePath, (int64_t) 0, true);
+        }
+        return;
+    }
+    setvbuf(outFile, NULL, _IOFBF, OUT_FILE_BUFFER_SIZE);
+
+    // 各分段的实例都不写标签，由这里在文件开头预留一帧，编码完成后按整个文件的数据填写，
+    // 否则播放器不知道 delay 和 padding，无法无缝播放，VBR/ABR 的时长也会算错
+    unsigned char lameTag[LAME_TAG_MAX_FRAME_SIZE];
+    int lameTagSize = createLameTagTemplate(inSampleRate, inChannelNum, samplesPerFrame, lameTag,
+                                            sizeof(lameTag));
+    if (lameTagSize > 0 && fwrite(lameTag, 1, lameTagSize, outFile) != (size_t) lameTagSize) {
+        LOGE(LOG_TAG, "encodeFromPCMFile parallel write lame tag failed: %s", savePath);
+        lameTagSize = 0;
+    }
+    std::vector<uint16_t> frameSizes;
+    int64_t audioBytes = 0;
+    uint16_t musicCrc = 0;
+
+    ParallelEncodeTask task;
+    task.encoder = this;
+    task.pcm = (const short *) ((const unsigned char *) mapped + headBytes);
+    task.totalSamplesPerChannel = (fileBytes - headBytes) / (sizeof(short) * inChannelNum);
+    task.sampleRate = inSampleRate;
+    task.channelNum = inChannelNum;
+    task.samplesPerFrame = samplesPerFrame;
+    task.nextSegment = 0;
+    task.isAborted = false;
+    pthread_mutex_init(&task.mutex, NULL);
+    pthread_cond_init(&task.segmentDoneCondition, NULL);
+
+    // 按 MP3 帧切分，每个分段的起点都是帧边界，最后一个分段编码到文件结束
+    int64_t totalFrames = (task.totalSamplesPerChannel + samplesPerFrame - 1) / samplesPerFrame;
+    int64_t segmentFrames = (totalFrames + threadCount * PARALLEL_SEGMENTS_PER_THREAD - 1)
+                            / (threadCount * PARALLEL_SEGMENTS_PER_THREAD);
+    if (segmentFrames < PARALLEL_MIN_SEGMENT_FRAMES) {
+        segmentFrames = PARALLEL_MIN_SEGMENT_FRAMES;
+    }
+    task.segmentCount = (int) ((totalFrames + segmentFrames - 1) / segmentFrames);
+    if (task.segmentCount < 1) {
+        task.segmentCount = 1;
+    }
+    task.segments = new Mp3Segment[task.segmentCount];
+    int64_t bytesPerFrame = (int64_t) samplesPerFrame * inChannelNum * sizeof(short);
+    for (int i = 0; i < task.segmentCount; i++) {
+        Mp3Segment *segment = &task.segments[i];
+        segment->startFrame = i * segmentFrames;
+        bool isLast = i == task.segmentCount - 1;
+        segment->frameCount = isLast ? -1 : (int) segmentFrames;
+        segment->pcmBytes = isLast ? (fileBytes - headBytes) - segment->startFrame * bytesPerFrame
+                                   : segmentFrames * bytesPerFrame;
+        segment->data = NULL;
+        segment->size = 0;
+        segment->isDone = false;
+        segment->isFailed = false;
+    }
+    if (threadCount > task.segmentCount) {
+        threadCount = task.segmentCount;
+    }
+
+    frameSizes.reserve(totalFrames + PARALLEL_POSTROLL_FRAMES);
+    LOGW(LOG_TAG, "encodeFromPCMFile parallel start! threads=%d segments=%d frames=%lld source: %s",
+         threadCount, task.segmentCount, (long long) totalFrames, pcmFilePath);
+    pthread_t threads[PARALLEL_MAX_THREADS];
+    int startedThreads = 0;
+    for (int i = 0; i < threadCount; i++) {
+        if (pthread_create(&threads[i], NULL, parallelEncodeThreadCall, &task) == 0) {
+            startedThreads++;
+        } else {
+            LOGE(LOG_TAG, "encodeFromPCMFile create encode thread %d failed!", i);
+            break;
+        }
+    }
+
+    // 调用线程按顺序等待各分段编码完成并写入文件，写完立即释放，内存只保留乱序完成的分段
+    int64_t totalPcmBytesSize = 0;
+    bool isCompleted = startedThreads > 0;
+    for (int i = 0; i < task.segmentCount && isCompleted; i++) {
+        Mp3Segment *segment = &task.segments[i];
+        pthread_mutex_lock(&task.mutex);
+        while (!segment->isDone) {
+            pthread_cond_wait(&task.segmentDoneCondition, &task.mutex);
+        }
+        pthread_mutex_unlock(&task.mutex);
+
+        if (segment->isFailed || stopEncodeFromPCMFile) {
+            isCompleted = false;
+            break;
+        }
+        if (segment->size > 0 && fwrite(segment->data, 1, segment->size, outFile) != (size_t) segment->size) {
+            LOGE(LOG_TAG, "encodeFromPCMFile parallel write failed: %s", savePath);
+            isCompleted = false;
+            break;
+        }
+        // 分段数据都是 encodeSegment 校验过的完整帧，记录各帧大小用于生成标签的 TOC
+        for (int offset = 0; offset < segment->size;) {
+            int length = getMp3FrameLength(segment->data + offset);
+            frameSizes.push_back((uint16_t) length);
+            offset += length;
+        }
+        audioBytes += segment->size;
+        musicCrc = updateCrc16(musicCrc, segment->data, segment->size);
+        delete[] segment->data;
+        segment->data = NULL;
+
+        totalPcmBytesSize += segment->pcmBytes;
+        if (onEncodeProgressListener != NULL) {
+            onEncodeProgressListener->callback(3, savePath, totalPcmBytesSize, false);
+        }
+    }
+
+    pthread_mutex_lock(&task.mutex);
+    task.isAborted = !isCompleted;
+    pthread_mutex_unlock(&task.mutex);
+    for (int i = 0; i < startedThreads; i++) {
+        pthread_join(threads[i], NULL);// 阻塞等待编码线程结束
+    }
+    for (int i = 0; i < task.segmentCount; i++) {
+        delete[] task.segments[i].data;
+    }
+    delete[] task.segments;
+    pthread_cond_destroy(&task.segmentDoneCondition);
+    pthread_mutex_destroy(&task.mutex);
+
+    if (isCompleted && lameTagSize > 0) {
+        int64_t encoderPadding = (int64_t) frameSizes.size() * samplesPerFrame - encoderDelay
+                                 - task.totalSamplesPerChannel;
+        if (encoderPadding < 0 || encoderPadding > LAME_TAG_MAX_PADDING) {
+            LOGE(LOG_TAG, "encodeFromPCMFile parallel unexpected padding=%lld frames=%d",
+                 (long long) encoderPadding, (int) frameSizes.size());
+            encoderPadding = encoderPadding < 0 ? 0 : LAME_TAG_MAX_PADDING;
+        }
+        if (!fillLameTag(lameTag, lameTagSize, frameSizes, audioBytes, encoderDelay,
+                         (int) encoderPadding, musicCrc)) {
+            LOGE(LOG_TAG, "encodeFromPCMFile parallel lame tag not found in template");
+        } else if (fseek(outFile, 0, SEEK_SET) != 0
+                   || fwrite(lameTag, 1, lameTagSize, outFile) != (size_t) lameTagSize) {
+            LOGE(LOG_TAG, "encodeFromPCMFile parallel rewrite lame tag failed: %s", savePath);
+        }
+    }
+
+    fclose(outFile);
+    munmap(mapped, fileBytes);
+
+    LOGW(LOG_TAG, "encodeFromPCMFile parallel %s! save: %s", isCompleted ? "complete" : "aborted",
+         savePath);
+    if (onEncodeProgressListener != NULL) {
+        onEncodeProgressListener->callback(3, savePath, totalPcmBytesSize, true);
+    }
+}
+
+void WeMp3Encoder::_loopParallelEncode(ParallelEncodeTask *task) {
+    while (true) {
+        pthread_mutex_lock(&task->mutex);
+        if (task->isAborted || task->nextSegment >= task->segmentCount) {
+            pthread_mutex_unlock(&task->mutex);
+            break;
+        }
+        Mp3Segment *segment = &task->segments[task->nextSegment++];
+        pthread_mutex_unlock(&task->mutex);
+
+        bool success = !stopEncodeFromPCMFile && encodeSegment(task, segment);
+
+        pthread_mutex_lock(&task->mutex);
+        segment->isFailed = !success;
+        segment->isDone = true;
+        if (!success) {
+            task->isAborted = true;
+        }
+        // 写文件的线程等待的是特定分段，用广播确保它能被唤醒
+        pthread_cond_broadcast(&task->segmentDoneCondition);
+        pthread_mutex_unlock(&task->mutex);
+    }
+}
+
+bool WeMp3Encoder::encodeSegment(ParallelEncodeTask *task, Mp3Segment *segment) {
+    lame_t lame = initLame(task->sampleRate, task->channelNum, true);
+    if (lame == NULL) {
+        return false;
+    }
+
+    // 从前面第 preroll 帧开始喂数据，lame 的编码延迟对每个实例都一样，所以输出帧与串行编码的帧边界对齐
+    const int frameSamples = task->samplesPerFrame;
+    int prerollFrames = segment->startFrame < PARALLEL_PREROLL_FRAMES
+                        ? (int) segment->startFrame : PARALLEL_PREROLL_FRAMES;
+    int64_t inputStart = (segment->startFrame - prerollFrames) * frameSamples;
+    int64_t inputEnd = task->totalSamplesPerChannel;
+    if (segment->frameCount >= 0) {
+        int64_t end = (segment->startFrame + segment->frameCount + PARALLEL_POSTROLL_FRAMES)
+                      * frameSamples;
+        if (end < inputEnd) {
+            inputEnd = end;
+        }
+    }
+
+    // 每次送 8 帧的数据，输出缓冲区按 lame.h 中最坏情况的估计：1.25 * num_samples + 7200
+    const int chunkSamples = frameSamples * 8;
+    const int mp3ChunkSize = chunkSamples * 5 / 4 + 7200;
+    int capacity = (int) ((inputEnd - inputStart) / frameSamples + 8) * 1024 + mp3ChunkSize;
+    unsigned char *output = new unsigned char[capacity];
+    int outputSize = 0;
+    int encodeSize = 0;
+
+    const short *pcm = task->pcm + inputStart * task->channelNum;
+    int64_t position = inputStart;
+    while (position < inputEnd) {
+        int count = inputEnd - position < chunkSamples ? (int) (inputEnd - position) : chunkSamples;
+        if (outputSize + mp3ChunkSize > capacity) {
+            // 尽可能避免频繁创建和释放内存造成内存抖动，按当前大小成倍扩容
+            capacity = capacity * 2;
+            unsigned char *newOutput = new unsigned char[capacity];
+            memcpy(newOutput, output, outputSize);
+            delete[] output;
+            output = newOutput;
+        }
+        encodeSize = encodePcm(lame, task->channelNum, pcm, count, output + outputSize,
+                               mp3ChunkSize);
+        if (encodeSize < 0) {
+            LOGE(LOG_TAG, "encodeSegment lame_encode_buffer failed! ret=%d", encodeSize);
+            delete[] output;
+            lame_close(lame);
+            return false;
+        }
+        outputSize += encodeSize;
+        pcm += count * task->channelNum;
+        position += count;
+        if (stopEncodeFromPCMFile) {
+            delete[] output;
+            lame_close(lame);
+            return false;
+        }
+    }
+    if (outputSize + mp3ChunkSize > capacity) {
+        capacity = outputSize + mp3ChunkSize;
+        unsigned char *newOutput = new unsigned char[capacity];
+        memcpy(newOutput, output, outputSize);
+        delete[] output;
+        output = newOutput;
+    }
+    encodeSize = lame_encode_flush(lame, output + outputSize, mp3ChunkSize);
+    lame_close(lame);
+    if (encodeSize < 0) {
+        LOGE(LOG_TAG, "encodeSegment lame_encode_flush failed! ret=%d", encodeSize);
+        delete[] output;
+        return false;
+    }
+    outputSize += encodeSize;
+
+    // 没有比特池时每帧都是完整独立的，按帧头解析帧长，去掉前面的 preroll 帧和后面多编码的帧
+    int offset = 0;
+    int frameIndex = 0;
+    int keepStart = -1;
+    int keepEnd = outputSize;
+    while (offset + 4 <= outputSize) {
+        int length = getMp3FrameLength(output + offset);
+        if (length <= 0 || offset + length > outputSize) {
+            LOGE(LOG_TAG, "encodeSegment invalid mp3 frame at %d, length=%d", offset, length);
+            delete[] output;
+            return false;
+        }
+        if (frameIndex == prerollFrames) {
+            keepStart = offset;
+        }
+        if (segment->frameCount >= 0 && frameIndex == prerollFrames + segment->frameCount) {
+            keepEnd = offset;
+            break;
+        }
+        offset += length;
+        frameIndex++;
+    }
+    if (keepStart < 0 || (segment->frameCount >= 0 && keepEnd == outputSize
+                          && frameIndex != prerollFrames + segment->frameCount)) {
+        LOGE(LOG_TAG, "encodeSegment not enough frames: %d, preroll=%d need=%d", frameIndex,
+             prerollFrames, segment->frameCount);
+        delete[] output;
+        return false;
+    }
+
+    segment->size = keepEnd - keepStart;
+    segment->data = new unsigned char[segment->size > 0 ? segment->size : 1];
+    memcpy(segment->data, output + keepStart, segment->size);
+    delete[] output;
+    return true;
+}
+
+int WeMp3Encoder::createLameTagTemplate(int inSampleRate, int inChannelNum, int samplesPerFrame,
+                                        unsigned char *buffer, int size) {
+    lame_t lame = initLame(inSampleRate, inChannelNum, true, true);
+    if (lame == NULL) {
+        return 0;
+    }
+    // 至少编码一帧之后 lame 才会生成标签帧，这一帧静音的编码结果直接丢弃
+    short *silence = new short[samplesPerFrame * inChannelNum]();
+    const int mp3Size = samplesPerFrame * 5 / 4 + 7200;
+    unsigned char *mp3 = new unsigned char[mp3Size];
+    int encodeSize = encodePcm(lame, inChannelNum, silence, samplesPerFrame, mp3, mp3Size);
+    if (encodeSize >= 0) {
+        encodeSize = lame_encode_flush(lame, mp3, mp3Size);
+    }
+    size_t tagSize = encodeSize >= 0 ? lame_get_lametag_frame(lame, buffer, size) : 0;
+    delete[] mp3;
+    delete[] silence;
+    lame_close(lame);
+    if (tagSize == 0 || tagSize > (size_t) size) {
+        LOGE(LOG_TAG, "createLameTagTemplate failed! encodeSize=%d tagSize=%d", encodeSize,
+             (int) tagSize);
+        return 0;
+    }
+    return (int) tagSize;
+}
+
+static void putBigEndian(unsigned char *out, uint32_t value, int bytes) {
+    for (int i = bytes - 1; i >= 0; i--) {
+        out[i] = (unsigned char) (value & 0xff);
+        value >>= 8;
+    }
+}
+
+bool WeMp3Encoder::fillLameTag(unsigned char *tag, int tagSize,
+                               const std::vector<uint16_t> &frameSizes, int64_t audioBytes,
+                               int encoderDelay, int encoderPadding, uint16_t musicCrc) {
+    // 标签紧跟在帧头和边信息之后，位置由 MPEG 版本和声道数决定，直接在模板中查找
+    int xing = -1;
+    for (int i = 4; i < LAME_TAG_MAX_SEARCH && i + LAME_TAG_BYTES <= tagSize; i++) {
+        if (memcmp(tag + i, "Xing", 4) == 0 || memcmp(tag + i, "Info", 4) == 0) {
+            xing = i;
+            break;
+        }
+    }
+    if (xing < 0) {
+        return false;
+    }
+    unsigned char *p = tag + xing;
+    int64_t frames = (int64_t) frameSizes.size();
+    uint32_t streamBytes = (uint32_t) (audioBytes + tagSize);// 包括标签帧本身
+
+    // Xing 部分：4 字节标识 + 4 字节标志 + 帧数 + 字节数 + 100 字节 TOC + 质量
+    putBigEndian(p + 8, (uint32_t) frames, 4);
+    putBigEndian(p + 12, streamBytes, 4);
+    // TOC 第 i 项：第 i% 时长处的帧在音频数据中的起始位置，按音频总字节数的 1/256 量化
+    int64_t offset = 0;
+    int64_t frame = 0;
+    for (int i = 0; i < 100; i++) {
+        int64_t target = frames * i / 100;
+        while (frame < target) {
+            offset += frameSizes[frame++];
+        }
+        int64_t value = audioBytes > 0 ? offset * 256 / audioBytes : 0;
+        p[16 + i] = (unsigned char) (value > 255 ? 255 : value);
+    }
+
+    // LAME 扩展部分从 p + 120 开始，delay 和 padding 各 12 位
+    p[141] = (unsigned char) (encoderDelay >> 4);
+    p[142] = (unsigned char) (((encoderDelay & 0x0f) << 4) | ((encoderPadding >> 8) & 0x0f));
+    p[143] = (unsigned char) (encoderPadding & 0xff);
+    putBigEndian(p + 148, streamBytes, 4);
+    putBigEndian(p + 152, musicCrc, 2);
+    // 标签 CRC 覆盖从帧头到标签 CRC 之前的所有字节
+    putBigEndian(p + 154, updateCrc16(0, tag, xing + 154), 2);
+    return true;
+}
+
+uint16_t WeMp3Encoder::updateCrc16(uint16_t crc, const unsigned char *data, int size) {
+    // 与 lame VbrTag.c 中的 CRC_update_lookup 相同：CRC-16，多项式 0x8005 的反序 0xA001
+    for (int i = 0; i < size; i++) {
+        crc ^= data[i];
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 1) ? (uint16_t) ((crc >> 1) ^ 0xA001) : (uint16_t) (crc >> 1);
+        }
+    }
+    return crc;
+}
+
+int WeMp3Encoder::getMp3FrameLength(const unsigned char *header) {
+    static const int BITRATES_MPEG1[16] = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224,
+                                           256, 320, -1};
+    static const int BITRATES_MPEG2[16] = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+                                           160, -1};
+    static const int SAMPLE_RATES[4][3] = {{11025, 12000, 8000},// MPEG2.5
+                                           {0,     0,     0},// 保留
+                                           {22050, 24000, 16000},// MPEG2
+                                           {44100, 48000, 32000}};// MPEG1
+    // 11 位同步字 + 2 位版本 + 2 位层（01 是 Layer III）
+    if (header[0] != 0xff || (header[1] & 0xe0) != 0xe0 || ((header[1] >> 1) & 0x03) != 1) {
+        return -1;
+    }
+    int version = (header[1] >> 3) & 0x03;
+    int bitrateIndex = (header[2] >> 4) & 0x0f;
+    int sampleRateIndex = (header[2] >> 2) & 0x03;
+    int padding = (header[2] >> 1) & 0x01;
+    if (version == 1 || sampleRateIndex == 3) {
+        return -1;
+    }
+    int bitrate = version == 3 ? BITRATES_MPEG1[bitrateIndex] : BITRATES_MPEG2[bitrateIndex];
+    if (bitrate <= 0) {
+        return -1;// 不支持 free format
+    }
+    int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+    // MPEG1 每帧 1152 个采样，MPEG2/2.5 每帧 576 个采样
+    int coefficient = version == 3 ? 144000 : 72000;
+    return coefficient * bitrate / sampleRate + padding;
+}
+
 bool WeMp3Encoder::startEncodePCMBuffer(int inSampleRate, int inChannelNum, int bitsPerSample,
                                         const char *savePath) {
+    return startEncodePCMBuffer(inSampleRate, inChannelNum, bitsPerSample, savePath, 0,
+                                PcmEncodeQueue::POLICY_BLOCK);
+}
+
+void *asyncEncodeThreadCall(void *data) {
+    WeMp3Encoder *encoder = static_cast<WeMp3Encoder *>(data);
+    if (LOG_DEBUG) {
+        LOGW("asyncEncodeThreadCall", "asyncEncodeThread run...");
+    }
+    encoder->_loopAsyncEncode();
+
+    if (LOG_DEBUG) {
+        LOGW("asyncEncodeThreadCall", "asyncEncodeThread exit...");
+    }
+    pthread_exit(NULL);
+}
+
+bool WeMp3Encoder::startEncodePCMBuffer(int inSampleRate, int inChannelNum, int bitsPerSample,
+                                        const char *savePath, int queueDepth, int policy) {
     this->inChannelNumForPCMBuf = inChannelNum;
     lameForPCMBuf = initLame(inSampleRate, inChannelNum);
     if (lameForPCMBuf == NULL) {
         return false;
     }
 
-    outFileForPCMBuf = fopen(savePath, "wb");
+    outFileForPCMBuf = fopen(savePath, "w+b");// 停止时要读回文件开头写 LAME 标签
     if (outFileForPCMBuf == NULL) {
         LOGE(LOG_TAG, "startEncodePCMBuffer but save file open failed: %s", savePath);
         stopEncodePCMBuffer();
         return false;
     }
+    // 默认的文件缓冲区只有几 KB，每编码一块数据就可能触发一次 write 系统调用
+    setvbuf(outFileForPCMBuf, NULL, _IOFBF, OUT_FILE_BUFFER_SIZE);
 
-    mp3BufForPCMBuf = new unsigned char[MP3_BUFFER_SIZE * inChannelNum];
     bytesPerSampleForPCMBuf = bitsPerSample / 8;
+    if (queueDepth <= 0) {
+        mp3BufSizeForPCMBuf = MP3_BUFFER_SIZE * inChannelNum;
+        mp3BufForPCMBuf = new unsigned char[mp3BufSizeForPCMBuf];
+        return true;
+    }
+
+    // 按 lame.h 中最坏情况的估计：1.25 * num_samples + 7200
+    mp3BufSizeForPCMBuf = ASYNC_SAMPLES_PER_CHANNEL * 5 / 4 + 7200;
+    mp3BufForPCMBuf = new unsigned char[mp3BufSizeForPCMBuf];
+    asyncQueue = new PcmEncodeQueue(queueDepth, ASYNC_SAMPLES_PER_CHANNEL * inChannelNum, policy);
+    isAsyncEncodeThreadStarted = pthread_create(&asyncEncodeThread, NULL, asyncEncodeThreadCall,
+                                                this) == 0;
+    if (!isAsyncEncodeThreadStarted) {
+        LOGE(LOG_TAG, "startEncodePCMBuffer create asyncEncodeThread failed!");
+        stopEncodePCMBuffer();
+        return false;
+    }
+    LOGW(LOG_TAG, "startEncodePCMBuffer async queueDepth=%d policy=%d", queueDepth, policy);
     return true;
 }
 
@@ -245,6 +796,23 @@ void WeMp3Encoder::encodeFromPCMBuffer(short *pcmBuffer, int bufferSize) {
         return;
     }
 
+    if (asyncQueue != NULL) {
+        asyncQueue->put(pcmBuffer, bufferSize);
+    } else {
+        encodeAndWritePCMBuffer(pcmBuffer, bufferSize);
+    }
+}
+
+void WeMp3Encoder::_loopAsyncEncode() {
+    const short *pcm = NULL;
+    int samples = 0;
+    while ((pcm = asyncQueue->peekRead(&samples)) != NULL) {
+        encodeAndWritePCMBuffer(pcm, samples);
+        asyncQueue->releaseRead();
+    }
+}
+
+void WeMp3Encoder::encodeAndWritePCMBuffer(const short *pcmBuffer, int bufferSize) {
     int pcmBytes = sizeof(short) * bufferSize;
     int numSamplesPerChannel = pcmBytes / bytesPerSampleForPCMBuf / inChannelNumForPCMBuf;
     // return code  number of bytes output in mp3buf. Can be 0
@@ -252,33 +820,71 @@ void WeMp3Encoder::encodeFromPCMBuffer(short *pcmBuffer, int bufferSize) {
     //        -2:  malloc() problem
     //        -3:  lame_init_params() not called
     //        -4:  psycho acoustic problems
-    int encodeSize = lame_encode_buffer_interleaved(lameForPCMBuf, pcmBuffer, numSamplesPerChannel,
-                                                    mp3BufForPCMBuf, MP3_BUFFER_SIZE);
+    int encodeSize = encodePcm(lameForPCMBuf, inChannelNumForPCMBuf, pcmBuffer,
+                               numSamplesPerChannel, mp3BufForPCMBuf, mp3BufSizeForPCMBuf);
     if (encodeSize > 0) {
         fwrite(mp3BufForPCMBuf, 1, encodeSize, outFileForPCMBuf);
     } else if (encodeSize < 0) {
-        LOGE(LOG_TAG, "lame_encode_buffer_interleaved failed! ret=%d", encodeSize);
+        LOGE(LOG_TAG, "lame_encode_buffer failed! ret=%d", encodeSize);
     }
 }
 
+int WeMp3Encoder::encodePcm(lame_t lame, int channelNum, const short *pcm, int samplesPerChannel,
+                            unsigned char *mp3Buf, int mp3BufSize) {
+    if (channelNum == 1) {
+        // lame_encode_buffer_interleaved 固定按双声道交错读取 2 * samplesPerChannel 个采样，
+        // 单声道会越界读取并且只编码偶数位置的采样，要用非交错的接口
+        return lame_encode_buffer(lame, pcm, pcm, samplesPerChannel, mp3Buf, mp3BufSize);
+    }
+    return lame_encode_buffer_interleaved(lame, (short *) pcm, samplesPerChannel, mp3Buf,
+                                          mp3BufSize);
+}
+
 void WeMp3Encoder::stopEncodePCMBuffer() {
     if (lameForPCMBuf == NULL) {
         LOGW(LOG_TAG, "stopEncodePCMBuffer but lame == NULL");
         return;
     }
-    int encodeSize = lame_encode_flush(lameForPCMBuf, mp3BufForPCMBuf, MP3_BUFFER_SIZE);
-    if (encodeSize > 0) {
-        fwrite(mp3BufForPCMBuf, 1, encodeSize, outFileForPCMBuf);
-    } else if (encodeSize < 0) {
-        LOGE(LOG_TAG, "lame_encode_flush failed! ret=%d", encodeSize);
+    if (asyncQueue != NULL) {
+        // 不会再有新数据，编码线程把队列中剩余的数据编码完后退出
+        asyncQueue->setProductDataComplete(true);
+        if (isAsyncEncodeThreadStarted) {
+            pthread_join(asyncEncodeThread, NULL);// 阻塞等待编码线程结束
+            isAsyncEncodeThreadStarted = false;
+        }
+        PcmEncodeQueueStats stats;
+        asyncQueue->getStats(&stats);
+        LOGW(LOG_TAG, "stopEncodePCMBuffer async highWaterMark=%d dropped=%lld blocked=%lld"
+                " latency avg=%dus max=%dus", stats.highWaterMark, (long long) stats.droppedSamples,
+             (long long) stats.blockedCount, stats.avgLatencyMicros, stats.maxLatencyMicros);
+        delete asyncQueue;
+        asyncQueue = NULL;
     }
 
-    delete mp3BufForPCMBuf;
-    mp3BufForPCMBuf = NULL;
+    if (outFileForPCMBuf != NULL) {
+        int encodeSize = lame_encode_flush(lameForPCMBuf, mp3BufForPCMBuf, mp3BufSizeForPCMBuf);
+        if (encodeSize > 0) {
+            fwrite(mp3BufForPCMBuf, 1, encodeSize, outFileForPCMBuf);
+        } else if (encodeSize < 0) {
+            LOGE(LOG_TAG, "lame_encode_flush failed! ret=%d", encodeSize);
+        }
+        lame_mp3_tags_fid(lameForPCMBuf, outFileForPCMBuf);// 填写文件开头预留的 Xing/Info 标签帧
+        fclose(outFileForPCMBuf);
+        outFileForPCMBuf = NULL;
+    }
 
-    fclose(outFileForPCMBuf);
-    outFileForPCMBuf = NULL;
+    delete[] mp3BufForPCMBuf;
+    mp3BufForPCMBuf = NULL;
+    mp3BufSizeForPCMBuf = 0;
 
     lame_close(lameForPCMBuf);
     lameForPCMBuf = NULL;
 }
+
+bool WeMp3Encoder::getPCMBufferQueueStats(PcmEncodeQueueStats *stats) {
+    if (asyncQueue == NULL) {
+        return false;
+    }
+    asyncQueue->getStats(stats);
+    return true;
+}
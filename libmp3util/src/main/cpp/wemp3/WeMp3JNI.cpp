@@ -147,7 +147,8 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeEncodeFromPCMFile(JNIEnv *env, jobjec
                                                              jint in_channel_num,
                                                              jint bits_per_sample,
                                                              jboolean has_wav_head,
-                                                             jstring save_path) {
+                                                             jstring save_path,
+                                                             jint thread_count) {
     WeMp3Encoder *pWeMp3Encoder = findEncoder(objKey);
     if (pWeMp3Encoder == NULL) {
         LOGE(LOG_TAG, "invoke nativeEncodeFromPCMFile but pWeMp3Encoder == NULL");
@@ -158,7 +159,7 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeEncodeFromPCMFile(JNIEnv *env, jobjec
     const char *cSavePath = env->GetStringUTFChars(save_path, NULL);
 
     pWeMp3Encoder->encodeFromPCMFile(cPcmPath, in_sample_rate, in_channel_num, bits_per_sample,
-                                     has_wav_head, cSavePath);
+                                     has_wav_head, cSavePath, thread_count);
 
     env->ReleaseStringUTFChars(pcm_file_path, cPcmPath);
     env->ReleaseStringUTFChars(save_path, cSavePath);
@@ -172,7 +173,9 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeStartEncodePCMBuffer(JNIEnv *env, job
                                                                 jint in_sample_rate,
                                                                 jint in_channel_num,
                                                                 jint bits_per_sample,
-                                                                jstring save_path) {
+                                                                jstring save_path,
+                                                                jint queue_depth,
+                                                                jint queue_policy) {
     WeMp3Encoder *pWeMp3Encoder = findEncoder(objKey);
     if (pWeMp3Encoder == NULL) {
         LOGE(LOG_TAG, "invoke nativeStartEncodePCMBuffer but pWeMp3Encoder == NULL");
@@ -182,7 +185,7 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeStartEncodePCMBuffer(JNIEnv *env, job
     const char *cSavePath = env->GetStringUTFChars(save_path, NULL);
 
     bool ret = pWeMp3Encoder->startEncodePCMBuffer(in_sample_rate, in_channel_num, bits_per_sample,
-                                                   cSavePath);
+                                                   cSavePath, queue_depth, queue_policy);
 
     env->ReleaseStringUTFChars(save_path, cSavePath);
     return ret;
@@ -203,7 +206,8 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeEncodeFromPCMBuffer(JNIEnv *env, jobj
     jshort *pArray = env->GetShortArrayElements(pcm_buffer, NULL);
     // 可以直接用 jshort，因为 typedef short jshort;
     pWeMp3Encoder->encodeFromPCMBuffer(pArray, buffer_size);
-    env->ReleaseShortArrayElements(pcm_buffer, pArray, 0);
+    // 数据只读不写，不需要复制回 Java 数组
+    env->ReleaseShortArrayElements(pcm_buffer, pArray, JNI_ABORT);
 }
 
 extern "C"
@@ -219,6 +223,37 @@ Java_com_wtz_libmp3util_WeMp3Encoder_nativeStopEncodePCMBuffer(JNIEnv *env, jobj
     pWeMp3Encoder->stopEncodePCMBuffer();
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_wtz_libmp3util_WeMp3Encoder_nativeGetPCMBufferQueueStats(JNIEnv *env, jobject thiz,
+                                                                  jint objKey,
+                                                                  jlongArray stats) {
+    WeMp3Encoder *pWeMp3Encoder = findEncoder(objKey);
+    if (pWeMp3Encoder == NULL) {
+        LOGE(LOG_TAG, "invoke nativeGetPCMBufferQueueStats but pWeMp3Encoder == NULL");
+        return false;
+    }
+
+    PcmEncodeQueueStats queueStats;
+    if (!pWeMp3Encoder->getPCMBufferQueueStats(&queueStats)) {
+        return false;
+    }
+
+    // 顺序与 Java 层 WeMp3Encoder.PCMBufferQueueStats 一致
+    jlong values[8];
+    values[0] = queueStats.filledSlots;
+    values[1] = queueStats.highWaterMark;
+    values[2] = queueStats.putSamples;
+    values[3] = queueStats.droppedSamples;
+    values[4] = queueStats.blockedCount;
+    values[5] = queueStats.blockedMicros;
+    values[6] = queueStats.avgLatencyMicros;
+    values[7] = queueStats.maxLatencyMicros;
+    int length = env->GetArrayLength(stats);
+    env->SetLongArrayRegion(stats, 0, length < 8 ? length : 8, values);
+    return true;
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_wtz_libmp3util_WeMp3Encoder_nativeReleaseMp3Encoder(JNIEnv *env, jobject thiz,
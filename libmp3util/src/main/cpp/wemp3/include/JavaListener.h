@@ -8,6 +8,8 @@
 #include <jni.h>
 #include <unistd.h>
 #include <stdarg.h>
+#include <stdint.h>
+#include <pthread.h>
 
 class JavaListener {
 
@@ -17,32 +19,63 @@ private:
     JavaVM *_jvm;
     JNIEnv *_mainEnv;
     jobject _globalObj;
-    jmethodID _methodID = NULL;// 若不初始化，则值为非空；置空用于后边判断一次性懒加载
-    bool needDetach = false;
+    const char *_methodName;
+    jmethodID _methodID = NULL;// 在构造方法中解析，之后只读，多个线程回调不需要同步
+
+    // 回调局部帧容量，持续 attach 的线程不会返回 Java 层，局部引用要靠局部帧释放
+    static const int LOCAL_FRAME_CAPACITY = 16;
+
+    // 每回调多少次打印一次耗时统计
+    static const int CALLBACK_STATS_LOG_INTERVAL = 500;
+
+    // 回调耗时统计，从获取 env 开始到 Java 方法返回为止
+    pthread_mutex_t statsMutex;
+    int64_t callbackCount = 0;
+    int64_t callbackTotalMicros = 0;
+    int64_t callbackMaxMicros = 0;
 
 public:
     /**
      * 此构造方法需要在 C++ 主线程中调用，即直接从 java 层调用下来的线程
      *
      * @param jvm
-     * @param mainEnv C++ 主线程 env
+     * @param mainEnv         C++ 主线程 env
      * @param obj
+     * @param methodName      回调的 Java 方法名，需要是字符串常量
+     * @param methodSignature 回调的 Java 方法签名
      */
-    JavaListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj);
+    JavaListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj, const char *methodName,
+                 const char *methodSignature);
 
     virtual ~JavaListener();
 
     void callback(int argCount, ...);
 
-private:
-    JNIEnv *initCallbackEnv();
+    int64_t getCallbackCount();
+
+    int64_t getCallbackAvgMicros();
+
+    int64_t getCallbackMaxMicros();
+
+    void resetCallbackStats();
 
-    void releaseCallbackEnv();
+private:
+    void updateCallbackStats(int64_t costMicros);
 
 protected:
-    virtual const char *getMethodName() = 0;
+    /**
+     * C++ 子线程第一次调用时 attach 到 JVM，之后一直保持，线程退出时才自动 detach
+     */
+    JNIEnv *initCallbackEnv();
+
+    /**
+     * 回调以外的一次性调用（例如析构时释放全局引用）获取 env，不会让当前线程一直保持 attach
+     *
+     * @param isAttached 返回是否为此次调用临时 attach，为 true 时用完要调用 releaseTemporaryEnv
+     */
+    JNIEnv *getTemporaryEnv(bool *isAttached);
 
-    virtual const char *getMethodSignature() = 0;
+    void releaseTemporaryEnv(bool isAttached);
 
     virtual void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) = 0;
 
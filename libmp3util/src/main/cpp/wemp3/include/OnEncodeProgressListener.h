@@ -10,27 +10,19 @@ class OnEncodeProgressListener : public JavaListener {
 
 public:
     OnEncodeProgressListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj)
-    : JavaListener(jvm, mainEnv, obj) {
+    : JavaListener(jvm, mainEnv, obj, "onNativeEncodeProgressChanged", "(Ljava/lang/String;JZ)V") {
     }
 
     ~OnEncodeProgressListener() {
     };
 
-    const char *getMethodName() {
-        return "onNativeEncodeProgressChanged";
-    }
-
-    const char *getMethodSignature() {
-        return "(Ljava/lang/String;IZ)V";
-    }
-
     void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) {
         const char *savePath = va_arg(args, const char *);
-        int size = va_arg(args, int);
+        int64_t size = va_arg(args, int64_t);// 调用者必须传 int64_t，包括字面量 0
         bool complete = va_arg(args, bool);
 
         jstring jStrUtfPath = env->NewStringUTF(savePath);
-        env->CallVoidMethod(obj, methodId, jStrUtfPath, size, complete);
+        env->CallVoidMethod(obj, methodId, jStrUtfPath, (jlong) size, complete);
         env->DeleteLocalRef(jStrUtfPath);
     }
 
@@ -0,0 +1,120 @@
+//
+// Created by WTZ on 2020/5/12.
+//
+
+#ifndef VIDEOMAKER_PCMENCODEQUEUE_H
+#define VIDEOMAKER_PCMENCODEQUEUE_H
+
+#include <pthread.h>
+#include <stdint.h>
+
+typedef struct PcmEncodeQueueStats {
+    int filledSlots;// 当前已写入未编码的槽个数
+    int highWaterMark;// 已写入未编码的槽个数的最高值
+    int64_t putSamples;// 累计送入的采样个数，包含所有声道
+    int64_t droppedSamples;// 队列满时累计丢弃的采样个数
+    int64_t blockedCount;// 队列满时生产者阻塞等待的次数
+    int64_t blockedMicros;// 生产者累计阻塞等待的时长
+    int avgLatencyMicros;// 数据从入队到开始编码的平均等待时长
+    int maxLatencyMicros;// 数据从入队到开始编码的最长等待时长
+} PcmEncodeQueueStats;
+
+/**
+ * 边录音边编码 MP3 时，采集线程与编码线程之间的 PCM 队列
+ * 由固定个数、固定大小的槽组成，内存在创建时一次分配，运行中不再申请和释放；
+ * 只支持一个生产者和一个消费者，数据复制在锁外进行，锁只保护读写计数
+ */
+class PcmEncodeQueue {
+
+private:
+    const char *LOG_TAG = "PcmEncodeQueue";
+
+    int slotCount;
+    int samplesPerSlot;
+    int policy;
+    short *slots = NULL;
+    int *slotSamples = NULL;
+    int64_t *slotPutNanos = NULL;
+
+    // 单调递增的读写计数，取模得到槽下标，差值就是已写入未读取的个数
+    uint32_t writeCount = 0;
+    uint32_t readCount = 0;
+    bool productDataComplete = false;
+    bool allowOperation = true;
+
+    pthread_mutex_t mutex;
+    pthread_cond_t notEmptyCondition;
+    pthread_cond_t notFullCondition;
+
+    int highWaterMark = 0;
+    int64_t putSamples = 0;
+    int64_t droppedSamples = 0;
+    int64_t blockedCount = 0;
+    int64_t blockedNanos = 0;
+    int64_t latencyNanosSum = 0;
+    int64_t latencyCount = 0;
+    int64_t maxLatencyNanos = 0;
+
+public:
+    /**
+     * 队列满时生产者阻塞等待编码线程腾出空槽，不丢数据，但采集线程可能被拖慢
+     */
+    static const int POLICY_BLOCK = 0;
+
+    /**
+     * 队列满时直接丢弃新数据，采集线程永远不会被阻塞
+     */
+    static const int POLICY_DROP = 1;
+
+public:
+    /**
+     * @param slotCount      槽个数，至少为 2
+     * @param samplesPerSlot 每个槽的 short 个数，应是声道数的整数倍
+     */
+    PcmEncodeQueue(int slotCount, int samplesPerSlot, int policy);
+
+    ~PcmEncodeQueue();
+
+    /**
+     * 生产者调用，数据超过槽大小时拆成多个槽写入
+     *
+     * @param samples short 个数，包含所有声道
+     * @return 实际写入的 short 个数，DROP 策略下队列满时小于 samples
+     */
+    int put(const short *pcm, int samples);
+
+    /**
+     * 消费者调用，取最早写入的一个槽，数据在 releaseRead 之前一直有效
+     * 队列为空时阻塞等待，直到有新数据，或者生产者已结束、队列被停止
+     *
+     * @param samples 输出这个槽的 short 个数
+     * @return 生产者已结束并且数据全部取完，或者队列被停止时返回 NULL
+     */
+    const short *peekRead(int *samples);
+
+    /**
+     * 消费者调用，释放 peekRead 取到的槽，让生产者可以再次写入
+     */
+    void releaseRead();
+
+    /**
+     * 生产者通知不会再有数据，消费者取完剩余数据后退出
+     */
+    void setProductDataComplete(bool complete);
+
+    /**
+     * 不允许再操作队列，阻塞中的生产者和消费者都立即返回，剩余数据不再编码
+     */
+    void setAllowOperation(bool allow);
+
+    void getStats(PcmEncodeQueueStats *stats);
+
+    int getSamplesPerSlot();
+
+private:
+    static int64_t getNowNanos();
+
+};
+
+
+#endif //VIDEOMAKER_PCMENCODEQUEUE_H
@@ -5,8 +5,11 @@
 #ifndef VIDEOMAKER_WEMP3ENCODER_H
 #define VIDEOMAKER_WEMP3ENCODER_H
 
+#include <pthread.h>
+#include <vector>
 #include "lame.h"
 #include "OnEncodeProgressListener.h"
+#include "PcmEncodeQueue.h"
 
 /**
  * lame.h: lame_encode_buffer:
@@ -26,6 +29,53 @@
  */
 #define MP3_BUFFER_SIZE 8192
 
+/**
+ * 异步编码时队列每个槽的每声道采样个数，44.1kHz 时约 93ms
+ */
+#define ASYNC_SAMPLES_PER_CHANNEL 4096
+
+/**
+ * 边录音边编码时 MP3 输出文件的缓冲区大小，减少 write 系统调用的次数，
+ * 磁盘偶尔变慢时也能先写在内存里
+ */
+#define OUT_FILE_BUFFER_SIZE (256 * 1024)
+
+/**
+ * WAV 文件编码时跳过的文件头字节数
+ */
+#define WAV_HEAD_SKIP_BYTES (4 * 1024)
+
+/**
+ * 并行编码文件时每个分段前后多编码的 MP3 帧数，前面的用于让心理声学模型和 MDCT 的历史数据就绪，
+ * 后面的用于让分段最后一帧能看到后续数据，这些帧编码后丢弃
+ */
+#define PARALLEL_PREROLL_FRAMES 3
+#define PARALLEL_POSTROLL_FRAMES 3
+
+/**
+ * 并行编码文件时每个分段最少的 MP3 帧数，44.1kHz 时约 13 秒，分段太小时前后多编码的帧占比太高
+ */
+#define PARALLEL_MIN_SEGMENT_FRAMES 512
+
+/**
+ * 并行编码文件时每个线程平均分到的分段个数，分段多一些各线程负载更均衡
+ */
+#define PARALLEL_SEGMENTS_PER_THREAD 4
+
+#define PARALLEL_MAX_THREADS 16
+
+/**
+ * 并行编码时自己填写的 Xing/Info 标签帧：帧长不超过 MP3 帧的最大长度，标签位于帧头和边信息之后，
+ * 从 "Xing"/"Info" 标识到标签 CRC 结束共 156 字节，padding 只有 12 位
+ */
+#define LAME_TAG_MAX_FRAME_SIZE 2880
+#define LAME_TAG_MAX_SEARCH 48
+#define LAME_TAG_BYTES 156
+#define LAME_TAG_MAX_PADDING 4095
+
+struct ParallelEncodeTask;
+struct Mp3Segment;
+
 class WeMp3Encoder {
 
 private:
@@ -46,8 +96,14 @@ private:
     int bytesPerSampleForPCMBuf = 0;
     lame_t lameForPCMBuf = NULL;
     unsigned char *mp3BufForPCMBuf = NULL;
+    int mp3BufSizeForPCMBuf = 0;
     FILE *outFileForPCMBuf = NULL;
 
+    // 异步编码：采集线程只把数据复制到队列，由编码线程调用 lame 编码和写文件
+    PcmEncodeQueue *asyncQueue = NULL;
+    pthread_t asyncEncodeThread;
+    bool isAsyncEncodeThreadStarted = false;
+
 public:
     WeMp3Encoder(OnEncodeProgressListener *listener);
 
@@ -84,12 +140,34 @@ public:
     void encodeFromPCMFile(const char *pcmFilePath, int inSampleRate, int inChannelNum,
                            int bitsPerSample, bool hasWavHead, const char *savePath);
 
+    /**
+     * 并行编码 PCM 文件：输入文件映射到内存，按 MP3 帧边界切成若干分段，每个分段用独立的 lame 实例在线程池中编码，
+     * 调用线程按顺序把各分段的结果写入文件，并汇总上报进度
+     * 为了各分段能直接拼接，所有帧都不使用比特池（bit reservoir），每帧的数据都在本帧内；
+     * 各分段从同样对齐的位置开始编码，帧与串行编码一一对应，输出的总帧数与串行编码相同
+     *
+     * @param threadCount 编码线程数，小于等于 1 或者不是 16 位采样时按串行方式编码
+     */
+    void encodeFromPCMFile(const char *pcmFilePath, int inSampleRate, int inChannelNum,
+                           int bitsPerSample, bool hasWavHead, const char *savePath,
+                           int threadCount);
+
     /**
      * ！！！注意：从 PCMBuffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行
      */
     bool startEncodePCMBuffer(int inSampleRate, int inChannelNum, int bitsPerSample,
                               const char *savePath);
 
+    /**
+     * ！！！注意：从 PCMBuffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行
+     * 异步模式：encodeFromPCMBuffer 只把数据复制到队列，编码和写文件在单独的编码线程中进行
+     *
+     * @param queueDepth 队列槽个数，每个槽 ASYNC_SAMPLES_PER_CHANNEL 个采样；小于等于 0 时为同步模式
+     * @param policy     队列满时的处理：PcmEncodeQueue::POLICY_BLOCK 或 PcmEncodeQueue::POLICY_DROP
+     */
+    bool startEncodePCMBuffer(int inSampleRate, int inChannelNum, int bitsPerSample,
+                              const char *savePath, int queueDepth, int policy);
+
     /**
      * ！！！注意：从 PCMBuffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行
      * @param pcmBuffer
@@ -102,8 +180,55 @@ public:
      */
     void stopEncodePCMBuffer();
 
+    /**
+     * 异步模式下队列的统计数据，同步模式下返回 false
+     */
+    bool getPCMBufferQueueStats(PcmEncodeQueueStats *stats);
+
+    void _loopAsyncEncode();
+
+    void _loopParallelEncode(ParallelEncodeTask *task);
+
 private:
-    lame_t initLame(int inSampleRate, int inChannelNum);
+    /**
+     * @param independentFrames true 表示不使用比特池、不写 ID3 标签，每一帧都可以单独拼接
+     * @param writeLameTag      independentFrames 为 true 时是否在输出开头预留 Xing/Info 标签帧
+     */
+    lame_t initLame(int inSampleRate, int inChannelNum, bool independentFrames = false,
+                    bool writeLameTag = false);
+
+    /**
+     * 生成与并行编码参数一致的 Xing/Info 标签帧模板，帧头、编码器版本、低通、质量等由 lame 填写
+     *
+     * @return 标签帧的字节数，失败时返回 0
+     */
+    int createLameTagTemplate(int inSampleRate, int inChannelNum, int samplesPerFrame,
+                              unsigned char *buffer, int size);
+
+    bool encodeSegment(ParallelEncodeTask *task, Mp3Segment *segment);
+
+    static int getMp3FrameLength(const unsigned char *header);
+
+    /**
+     * 按整个文件实际的帧数、字节数、各帧大小、delay 和 padding 改写标签帧模板中的对应字段，并重新计算 CRC
+     *
+     * @return 模板中找不到 Xing/Info 标签时返回 false
+     */
+    static bool fillLameTag(unsigned char *tag, int tagSize, const std::vector<uint16_t> &frameSizes,
+                            int64_t audioBytes, int encoderDelay, int encoderPadding,
+                            uint16_t musicCrc);
+
+    static uint16_t updateCrc16(uint16_t crc, const unsigned char *data, int size);
+
+    /**
+     * 编码一块 16 位 PCM，单声道用非交错的接口，双声道按左右交错读取
+     *
+     * @return 与 lame_encode_buffer 相同，写入 mp3Buf 的字节数，小于 0 表示失败
+     */
+    static int encodePcm(lame_t lame, int channelNum, const short *pcm, int samplesPerChannel,
+                         unsigned char *mp3Buf, int mp3BufSize);
+
+    void encodeAndWritePCMBuffer(const short *pcmBuffer, int bufferSize);
 
 };
 
@@ -18,6 +18,8 @@ import com.wtz.libmp3util.utlis.LogUtils;
  * 从 PCM buffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行。
  * 适用场景：一边录音一边保存 MP3。
  * 支持多线程操作。
+ * 可选异步模式：encodeFromPCMBuffer 只把数据复制到 native 队列，编码和写文件在 native 编码线程中进行，
+ * 不会因为编码耗时或者磁盘变慢拖慢录音线程。
  * <p>
  * 以上方法没有新开线程，是耗时操作，调用者根据需要创建线程调用
  */
@@ -50,16 +52,19 @@ public class WeMp3Encoder {
      * 每个 PCM 文件独立编码，可以多线程多任务多文件操作
      * 此方法没有新开线程，是耗时操作，调用者根据需要创建线程调用
      *
-     * @param hasWavHead true 表示在 PCM 文件上加了 WAV 头
+     * @param hasWavHead  true 表示在 PCM 文件上加了 WAV 头
+     * @param threadCount 大于 1 时把文件切成多个分段并行编码，只支持 16 位采样
      */
     private native void nativeEncodeFromPCMFile(int objKey, String pcmFilePath, int inSampleRate, int inChannelNum,
-                                                int bitsPerSample, boolean hasWavHead, String savePath);
+                                                int bitsPerSample, boolean hasWavHead, String savePath,
+                                                int threadCount);
 
     /**
      * 从 PCM buffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行
      */
     private native boolean nativeStartEncodePCMBuffer(int objKey, int inSampleRate, int inChannelNum,
-                                                      int bitsPerSample, String savePath);
+                                                      int bitsPerSample, String savePath,
+                                                      int queueDepth, int queuePolicy);
 
     /**
      * 从 PCM buffer 取数据编码的方法分成了多步操作，涉及状态切换，适合单任务执行
@@ -72,6 +77,8 @@ public class WeMp3Encoder {
      */
     private native void nativeStopEncodePCMBuffer(int objKey);
 
+    private native boolean nativeGetPCMBufferQueueStats(int objKey, long[] stats);
+
     private native void nativeReleaseMp3Encoder(int objKey);
 
     public enum ChannelMode {
@@ -125,8 +132,59 @@ public class WeMp3Encoder {
         }
     }
 
+    /**
+     * 异步模式下编码队列满时的处理策略
+     */
+    public enum QueueFullPolicy {
+        /**
+         * 阻塞调用 encodeFromPCMBuffer 的线程，等编码线程腾出空间，不丢数据
+         */
+        BLOCK(0),
+        /**
+         * 丢弃新数据，调用 encodeFromPCMBuffer 的线程永远不会被阻塞
+         */
+        DROP(1);
+
+        private int nativeValue;
+
+        QueueFullPolicy(int nativeValue) {
+            this.nativeValue = nativeValue;
+        }
+
+        public int getNativeValue() {
+            return nativeValue;
+        }
+    }
+
+    /**
+     * 异步模式默认的队列深度，每个槽每声道 4096 个采样，44.1kHz 时共约 1.5 秒
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_DEPTH = 16;
+
+    /**
+     * 异步模式下 native 编码队列的统计数据
+     */
+    public static class PCMBufferQueueStats {
+        public int filledSlots;// 当前已写入未编码的槽个数
+        public int highWaterMark;// 已写入未编码的槽个数的最高值
+        public long putSamples;// 累计送入的采样个数，包含所有声道
+        public long droppedSamples;// 队列满时累计丢弃的采样个数
+        public long blockedCount;// 队列满时调用线程阻塞等待的次数
+        public long blockedMicros;// 调用线程累计阻塞等待的时长
+        public int avgLatencyMicros;// 数据从入队到开始编码的平均等待时长
+        public int maxLatencyMicros;// 数据从入队到开始编码的最长等待时长
+
+        @Override
+        public String toString() {
+            return "PCMBufferQueueStats{filled=" + filledSlots + ", highWaterMark=" + highWaterMark
+                    + ", put=" + putSamples + ", dropped=" + droppedSamples
+                    + ", blocked=" + blockedCount + "/" + blockedMicros + "us"
+                    + ", latencyAvg=" + avgLatencyMicros + "us, latencyMax=" + maxLatencyMicros + "us}";
+        }
+    }
+
     public interface EncodeProgressListener {
-        void onEncodeProgressChanged(String saveFilePath, int totalBytes, boolean isComplete);
+        void onEncodeProgressChanged(String saveFilePath, long totalBytes, boolean isComplete);
     }
 
     public void setEncodeListener(EncodeProgressListener listener) {
@@ -160,16 +218,39 @@ public class WeMp3Encoder {
     public void encodeFromPCMFile(String pcmFilePath, int inSampleRate, int inChannelNum,
                                   int bitsPerSample, String savePath) {
         nativeEncodeFromPCMFile(mObjKey, pcmFilePath, inSampleRate, inChannelNum, bitsPerSample,
-                false, savePath);
+                false, savePath, 1);
     }
 
     public void encodeFromWAVFile(String pcmFilePath, int inSampleRate, int inChannelNum,
                                   int bitsPerSample, String savePath) {
         nativeEncodeFromPCMFile(mObjKey, pcmFilePath, inSampleRate, inChannelNum, bitsPerSample,
-                true, savePath);
+                true, savePath, 1);
     }
 
-    private void onNativeEncodeProgressChanged(String saveFilePath, int totalBytes, boolean isComplete) {
+    /**
+     * 并行编码：输入文件按 MP3 帧边界切成多个分段，每个分段用独立的编码器在 native 线程池中编码后按顺序拼接，
+     * 进度按已写入文件的分段汇总回调。为了分段可以直接拼接，编码时不使用比特池，同码率下音质略有损失
+     * 此方法没有新开线程，是耗时操作，调用者根据需要创建线程调用
+     *
+     * @param threadCount 编码线程数，可以参考 Runtime.getRuntime().availableProcessors()，
+     *                    小于等于 1 或者不是 16 位采样时按串行方式编码
+     */
+    public void encodeFromPCMFileParallel(String pcmFilePath, int inSampleRate, int inChannelNum,
+                                          int bitsPerSample, String savePath, int threadCount) {
+        nativeEncodeFromPCMFile(mObjKey, pcmFilePath, inSampleRate, inChannelNum, bitsPerSample,
+                false, savePath, threadCount);
+    }
+
+    /**
+     * @see #encodeFromPCMFileParallel
+     */
+    public void encodeFromWAVFileParallel(String pcmFilePath, int inSampleRate, int inChannelNum,
+                                          int bitsPerSample, String savePath, int threadCount) {
+        nativeEncodeFromPCMFile(mObjKey, pcmFilePath, inSampleRate, inChannelNum, bitsPerSample,
+                true, savePath, threadCount);
+    }
+
+    private void onNativeEncodeProgressChanged(String saveFilePath, long totalBytes, boolean isComplete) {
         if (mEncodeListener != null) {
             mEncodeListener.onEncodeProgressChanged(saveFilePath, totalBytes, isComplete);
         }
@@ -177,15 +258,40 @@ public class WeMp3Encoder {
 
     public boolean startEncodePCMBuffer(int inSampleRate, int inChannelNum,
                                         int bitsPerSample, String savePath) {
+        return startEncodePCMBuffer(inSampleRate, inChannelNum, bitsPerSample, savePath,
+                0, QueueFullPolicy.BLOCK);
+    }
+
+    /**
+     * 异步模式，encodeFromPCMBuffer 只复制数据，编码和写文件在 native 编码线程中进行
+     *
+     * @param queueDepth 队列槽个数，每个槽每声道 4096 个采样，参考 DEFAULT_ASYNC_QUEUE_DEPTH
+     * @param policy     队列满时的处理策略
+     */
+    public boolean startEncodePCMBufferAsync(int inSampleRate, int inChannelNum,
+                                             int bitsPerSample, String savePath,
+                                             int queueDepth, QueueFullPolicy policy) {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("startEncodePCMBufferAsync queueDepth is illegal: "
+                    + queueDepth);
+        }
+        return startEncodePCMBuffer(inSampleRate, inChannelNum, bitsPerSample, savePath,
+                queueDepth, policy);
+    }
+
+    private boolean startEncodePCMBuffer(int inSampleRate, int inChannelNum, int bitsPerSample,
+                                         String savePath, int queueDepth, QueueFullPolicy policy) {
         LogUtils.e(TAG, "startEncodePCMBuffer " + inSampleRate + "Hz "
-                + inChannelNum + "Channels " + bitsPerSample + "bits save:" + savePath);
+                + inChannelNum + "Channels " + bitsPerSample + "bits save:" + savePath
+                + " queueDepth:" + queueDepth + " policy:" + policy);
         synchronized (this) {
             if (isPcmBufEncoderStarted) {// 检查重复初始化
                 LogUtils.e(TAG, "No need to startEncodePCMBuffer because it's already started! ");
                 return true;
             }
             // 此处放在 synchronized 内部是为了与 stopEncodePCMBuffer 同步
-            isPcmBufEncoderStarted = nativeStartEncodePCMBuffer(mObjKey, inSampleRate, inChannelNum, bitsPerSample, savePath);
+            isPcmBufEncoderStarted = nativeStartEncodePCMBuffer(mObjKey, inSampleRate, inChannelNum,
+                    bitsPerSample, savePath, queueDepth, policy.getNativeValue());
         }
         return isPcmBufEncoderStarted;
     }
@@ -206,6 +312,29 @@ public class WeMp3Encoder {
         isPcmBufEncoding = false;// 工作完成后把工作标志置true
     }
 
+    /**
+     * 获取异步模式下 native 编码队列的统计数据，没有开始编码或者是同步模式时各项为 0
+     */
+    public PCMBufferQueueStats getPCMBufferQueueStats() {
+        PCMBufferQueueStats stats = new PCMBufferQueueStats();
+        long[] values = new long[8];
+        synchronized (this) {
+            // 与 stopEncodePCMBuffer 同步，避免读取时 native 队列被释放
+            if (!isPcmBufEncoderStarted || !nativeGetPCMBufferQueueStats(mObjKey, values)) {
+                return stats;
+            }
+        }
+        stats.filledSlots = (int) values[0];
+        stats.highWaterMark = (int) values[1];
+        stats.putSamples = values[2];
+        stats.droppedSamples = values[3];
+        stats.blockedCount = values[4];
+        stats.blockedMicros = values[5];
+        stats.avgLatencyMicros = (int) values[6];
+        stats.maxLatencyMicros = (int) values[7];
+        return stats;
+    }
+
     public void stopEncodePCMBuffer() {
         LogUtils.w(TAG, "stopEncodePCMBuffer...isPcmBufEncoderStarted=" + isPcmBufEncoderStarted);
         synchronized (this) {
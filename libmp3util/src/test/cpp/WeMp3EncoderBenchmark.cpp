@@ -0,0 +1,150 @@
+//
+// 并行编码 PCM/WAV 文件的加速比：同一个 WAV 文件分别用 1、2、4 和 CPU 核数个线程编码，
+// 打印耗时、实时倍数和相对单线程的加速比；不带参数时生成 60 秒 44.1kHz 双声道的 WAV
+//   we_mp3_encoder_benchmark [input.wav]
+//
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <string>
+#include <vector>
+#include "WeMp3Encoder.h"
+
+static const int SAMPLE_RATE = 44100;
+static const int CHANNELS = 2;
+static const int SECONDS = 60;
+
+static int64_t nowMicros() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000 + now.tv_nsec / 1000;
+}
+
+static void writeLittleEndian(unsigned char *p, uint32_t value, int bytes) {
+    for (int i = 0; i < bytes; i++) {
+        p[i] = (unsigned char) (value >> (8 * i));
+    }
+}
+
+static bool writeWavFile(const char *path) {
+    const int SAMPLES = SAMPLE_RATE * SECONDS;
+    std::vector<short> pcm(SAMPLES * CHANNELS);
+    unsigned int seed = 1;
+    for (int i = 0; i < SAMPLES; i++) {
+        // 扫频正弦加少量噪声，接近真实录音的编码负载
+        double t = (double) i / SAMPLE_RATE;
+        double tone = sin(2 * M_PI * (200 + 40 * t) * t) * 8000;
+        for (int c = 0; c < CHANNELS; c++) {
+            seed = seed * 1103515245 + 12345;
+            pcm[i * CHANNELS + c] = (short) (tone / (c + 1) + (int) ((seed >> 16) % 512) - 256);
+        }
+    }
+    uint32_t dataBytes = pcm.size() * sizeof(short);
+    unsigned char head[44];
+    memcpy(head, "RIFF", 4);
+    writeLittleEndian(head + 4, 36 + dataBytes, 4);
+    memcpy(head + 8, "WAVEfmt ", 8);
+    writeLittleEndian(head + 16, 16, 4);
+    writeLittleEndian(head + 20, 1, 2);
+    writeLittleEndian(head + 22, CHANNELS, 2);
+    writeLittleEndian(head + 24, SAMPLE_RATE, 4);
+    writeLittleEndian(head + 28, SAMPLE_RATE * CHANNELS * 2, 4);
+    writeLittleEndian(head + 32, CHANNELS * 2, 2);
+    writeLittleEndian(head + 34, 16, 2);
+    memcpy(head + 36, "data", 4);
+    writeLittleEndian(head + 40, dataBytes, 4);
+
+    FILE *file = fopen(path, "wb");
+    if (file == NULL) {
+        return false;
+    }
+    bool ok = fwrite(head, 1, sizeof(head), file) == sizeof(head)
+              && fwrite(pcm.data(), sizeof(short), pcm.size(), file) == pcm.size();
+    fclose(file);
+    return ok;
+}
+
+/**
+ * 按 WAV 头中的格式编码一次，返回耗时
+ */
+static int64_t encode(const char *wavPath, int sampleRate, int channels, int bitsPerSample,
+                      const char *savePath, int threadCount) {
+    WeMp3Encoder *encoder = new WeMp3Encoder(NULL);
+    encoder->setOutChannelMode(channels == 1 ? 1 : 0);
+    encoder->setOutBitrateMode(0, 128);
+    int64_t start = nowMicros();
+    encoder->encodeFromPCMFile(wavPath, sampleRate, channels, bitsPerSample, true, savePath,
+                               threadCount);
+    int64_t elapsed = nowMicros() - start;
+    delete encoder;
+    return elapsed;
+}
+
+int main(int argc, char *argv[]) {
+    std::string wavPath;
+    bool isGenerated = false;
+    if (argc > 1) {
+        wavPath = argv[1];
+    } else {
+        char path[] = "/tmp/we_mp3_bench_XXXXXX";
+        int fd = mkstemp(path);
+        close(fd);
+        wavPath = path;
+        isGenerated = true;
+        if (!writeWavFile(path)) {
+            fprintf(stderr, "write %s failed\n", path);
+            return 1;
+        }
+    }
+
+    unsigned char head[44];
+    FILE *file = fopen(wavPath.c_str(), "rb");
+    if (file == NULL || fread(head, 1, sizeof(head), file) != sizeof(head)
+        || memcmp(head, "RIFF", 4) != 0 || memcmp(head + 8, "WAVE", 4) != 0) {
+        fprintf(stderr, "%s is not a wav file\n", wavPath.c_str());
+        if (file != NULL) {
+            fclose(file);
+        }
+        return 1;
+    }
+    fseek(file, 0, SEEK_END);
+    long fileBytes = ftell(file);
+    fclose(file);
+    int channels = head[22] | (head[23] << 8);
+    int sampleRate = head[24] | (head[25] << 8) | (head[26] << 16) | (head[27] << 24);
+    int bitsPerSample = head[34] | (head[35] << 8);
+    double audioSeconds = (double) (fileBytes - 44) / (sampleRate * channels * bitsPerSample / 8);
+
+    int cpus = (int) sysconf(_SC_NPROCESSORS_ONLN);
+    std::vector<int> threadCounts;
+    threadCounts.push_back(1);
+    threadCounts.push_back(2);
+    threadCounts.push_back(4);
+    if (cpus > 4) {
+        threadCounts.push_back(cpus);
+    }
+
+    printf("%s: %dHz %d channels %d bits, %.1f s, %d cpus\n", wavPath.c_str(), sampleRate,
+           channels, bitsPerSample, audioSeconds, cpus);
+    std::string savePath = wavPath + "_bench.mp3";
+    int64_t serialMicros = 0;
+    for (size_t i = 0; i < threadCounts.size(); i++) {
+        int64_t elapsed = encode(wavPath.c_str(), sampleRate, channels, bitsPerSample,
+                                 savePath.c_str(), threadCounts[i]);
+        if (i == 0) {
+            serialMicros = elapsed;
+        }
+        printf("threads=%-3d %8.1f ms  %6.1fx realtime  speedup %.2f\n", threadCounts[i],
+               elapsed / 1000.0, audioSeconds * 1000000 / elapsed, (double) serialMicros / elapsed);
+    }
+
+    unlink(savePath.c_str());
+    if (isGenerated) {
+        unlink(wavPath.c_str());
+    }
+    return 0;
+}
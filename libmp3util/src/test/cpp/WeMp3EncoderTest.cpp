@@ -0,0 +1,450 @@
+//
+// WeMp3Encoder 的主机测试：并行编码的 Xing/Info/LAME 标签与串行编码一致，可以无缝播放；
+// 单声道的各条编码路径与直接调用 lame 的结果一致；PcmEncodeQueue 在远超实时的送入速度下
+// BLOCK 模式不丢数据，DROP 模式丢弃的数据计数准确
+//
+
+#include <math.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <string>
+#include <vector>
+#include "WeTest.h"
+#include "WeMp3Encoder.h"
+#include "lame.h"
+
+static const int SAMPLE_RATE = 44100;
+
+typedef struct LameTagInfo {
+    bool isFound;
+    bool isVbr;// "Xing" 为 true，"Info" 为 false
+    int64_t frames;
+    int64_t streamBytes;
+    int delay;
+    int padding;
+    int64_t musicLength;
+    uint16_t musicCrc;
+    uint16_t tagCrc;
+    int tagFrameSize;
+    int xingOffset;
+} LameTagInfo;
+
+static uint16_t crc16(uint16_t crc, const unsigned char *data, size_t size) {
+    for (size_t i = 0; i < size; i++) {
+        crc ^= data[i];
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 1) ? (uint16_t) ((crc >> 1) ^ 0xA001) : (uint16_t) (crc >> 1);
+        }
+    }
+    return crc;
+}
+
+static uint32_t readBigEndian(const unsigned char *p, int bytes) {
+    uint32_t value = 0;
+    for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | p[i];
+    }
+    return value;
+}
+
+/**
+ * MPEG1/2/2.5 Layer III 的帧长，不是合法帧头时返回 -1
+ */
+static int frameLength(const unsigned char *h) {
+    static const int BITRATES_MPEG1[16] = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224,
+                                           256, 320, -1};
+    static const int BITRATES_MPEG2[16] = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144,
+                                           160, -1};
+    static const int SAMPLE_RATES[4][3] = {{11025, 12000, 8000},
+                                           {0,     0,     0},
+                                           {22050, 24000, 16000},
+                                           {44100, 48000, 32000}};
+    if (h[0] != 0xff || (h[1] & 0xe0) != 0xe0 || ((h[1] >> 1) & 0x03) != 1) {
+        return -1;
+    }
+    int version = (h[1] >> 3) & 0x03;
+    int sampleRateIndex = (h[2] >> 2) & 0x03;
+    if (version == 1 || sampleRateIndex == 3) {
+        return -1;
+    }
+    int bitrateIndex = (h[2] >> 4) & 0x0f;
+    int bitrate = version == 3 ? BITRATES_MPEG1[bitrateIndex] : BITRATES_MPEG2[bitrateIndex];
+    if (bitrate <= 0) {
+        return -1;
+    }
+    int coefficient = version == 3 ? 144000 : 72000;
+    return coefficient * bitrate / SAMPLE_RATES[version][sampleRateIndex] + ((h[2] >> 1) & 0x01);
+}
+
+static std::vector<unsigned char> readFile(const char *path) {
+    std::vector<unsigned char> data;
+    FILE *file = fopen(path, "rb");
+    if (file == NULL) {
+        return data;
+    }
+    unsigned char buffer[64 * 1024];
+    size_t count;
+    while ((count = fread(buffer, 1, sizeof(buffer), file)) > 0) {
+        data.insert(data.end(), buffer, buffer + count);
+    }
+    fclose(file);
+    return data;
+}
+
+static LameTagInfo parseLameTag(const std::vector<unsigned char> &mp3) {
+    LameTagInfo info;
+    memset(&info, 0, sizeof(info));
+    if (mp3.size() < 4 || frameLength(&mp3[0]) <= 0) {
+        return info;
+    }
+    info.tagFrameSize = frameLength(&mp3[0]);
+    for (int i = 4; i < 48; i++) {
+        if (memcmp(&mp3[i], "Xing", 4) == 0 || memcmp(&mp3[i], "Info", 4) == 0) {
+            info.xingOffset = i;
+            break;
+        }
+    }
+    if (info.xingOffset == 0) {
+        return info;
+    }
+    const unsigned char *p = &mp3[info.xingOffset];
+    info.isFound = true;
+    info.isVbr = memcmp(p, "Xing", 4) == 0;
+    info.frames = readBigEndian(p + 8, 4);
+    info.streamBytes = readBigEndian(p + 12, 4);
+    info.delay = (p[141] << 4) | (p[142] >> 4);
+    info.padding = ((p[142] & 0x0f) << 8) | p[143];
+    info.musicLength = readBigEndian(p + 148, 4);
+    info.musicCrc = (uint16_t) readBigEndian(p + 152, 2);
+    info.tagCrc = (uint16_t) readBigEndian(p + 154, 2);
+    return info;
+}
+
+static bool writePcmFile(const char *path, int channels, int samplesPerChannel) {
+    FILE *file = fopen(path, "wb");
+    if (file == NULL) {
+        return false;
+    }
+    std::vector<short> pcm(samplesPerChannel * channels);
+    unsigned int seed = 1;
+    for (int i = 0; i < samplesPerChannel; i++) {
+        // 扫频正弦加少量噪声，让 VBR 各帧的码率有变化
+        double t = (double) i / SAMPLE_RATE;
+        double tone = sin(2 * M_PI * (200 + 40 * t) * t) * 8000;
+        for (int c = 0; c < channels; c++) {
+            seed = seed * 1103515245 + 12345;
+            pcm[i * channels + c] = (short) (tone * (c + 1) / channels + (int) ((seed >> 16) % 512) - 256);
+        }
+    }
+    bool ok = fwrite(pcm.data(), sizeof(short), pcm.size(), file) == pcm.size();
+    fclose(file);
+    return ok;
+}
+
+/**
+ * 检查标签的各个字段与文件实际内容一致
+ */
+static void checkTagMatchesFile(const std::vector<unsigned char> &mp3, const LameTagInfo &tag,
+                                int64_t samplesPerChannel) {
+    WE_CHECK(tag.isFound);
+    if (!tag.isFound) {
+        return;
+    }
+    int64_t frames = 0;
+    size_t offset = tag.tagFrameSize;
+    while (offset + 4 <= mp3.size()) {
+        int length = frameLength(&mp3[offset]);
+        if (length <= 0) {
+            break;
+        }
+        offset += length;
+        frames++;
+    }
+    WE_CHECK_EQ(mp3.size(), offset);
+    WE_CHECK_EQ(frames, tag.frames);
+    WE_CHECK_EQ(mp3.size(), tag.streamBytes);
+    WE_CHECK_EQ(mp3.size(), tag.musicLength);
+    WE_CHECK_EQ(crc16(0, &mp3[tag.tagFrameSize], mp3.size() - tag.tagFrameSize), tag.musicCrc);
+    WE_CHECK_EQ(crc16(0, &mp3[0], tag.xingOffset + 154), tag.tagCrc);
+    // 解码器去掉 delay 和 padding 之后正好是原始的采样个数
+    WE_CHECK_EQ(samplesPerChannel, tag.frames * 1152 - tag.delay - tag.padding);
+
+    const unsigned char *toc = &mp3[tag.xingOffset + 16];
+    for (int i = 1; i < 100; i++) {
+        WE_CHECK(toc[i] >= toc[i - 1]);
+    }
+}
+
+static void checkParallelTag(int channels, int bitrateMode) {
+    const int SAMPLES = SAMPLE_RATE * 70 + 123;// 70 秒多一点，分成多个分段，最后一帧不满
+    char pcmPath[] = "/tmp/we_mp3_test_XXXXXX";
+    int fd = mkstemp(pcmPath);
+    close(fd);
+    std::string serialPath = std::string(pcmPath) + "_serial.mp3";
+    std::string parallelPath = std::string(pcmPath) + "_parallel.mp3";
+    WE_CHECK(writePcmFile(pcmPath, channels, SAMPLES));
+
+    WeMp3Encoder *encoder = new WeMp3Encoder(NULL);
+    encoder->setOutChannelMode(channels == 1 ? 1 : 0);
+    encoder->setOutBitrateMode(bitrateMode, 128);
+    encoder->encodeFromPCMFile(pcmPath, SAMPLE_RATE, channels, 16, false, serialPath.c_str());
+    encoder->encodeFromPCMFile(pcmPath, SAMPLE_RATE, channels, 16, false, parallelPath.c_str(), 4);
+    delete encoder;
+
+    std::vector<unsigned char> serial = readFile(serialPath.c_str());
+    std::vector<unsigned char> parallel = readFile(parallelPath.c_str());
+    LameTagInfo serialTag = parseLameTag(serial);
+    LameTagInfo parallelTag = parseLameTag(parallel);
+    printf("    channels=%d mode=%d serial frames=%lld delay=%d padding=%d,"
+           " parallel frames=%lld delay=%d padding=%d\n", channels, bitrateMode,
+           (long long) serialTag.frames, serialTag.delay, serialTag.padding,
+           (long long) parallelTag.frames, parallelTag.delay, parallelTag.padding);
+
+    checkTagMatchesFile(serial, serialTag, SAMPLES);
+    checkTagMatchesFile(parallel, parallelTag, SAMPLES);
+    WE_CHECK_EQ(serialTag.isVbr, parallelTag.isVbr);
+    WE_CHECK_EQ(bitrateMode != 0, parallelTag.isVbr);
+    WE_CHECK_EQ(serialTag.frames, parallelTag.frames);
+    WE_CHECK_EQ(serialTag.delay, parallelTag.delay);
+    WE_CHECK_EQ(serialTag.padding, parallelTag.padding);
+
+    unlink(pcmPath);
+    unlink(serialPath.c_str());
+    unlink(parallelPath.c_str());
+}
+
+static void testParallelTagStereoVbr() {
+    checkParallelTag(2, 2);
+}
+
+static void testParallelTagStereoCbr() {
+    checkParallelTag(2, 0);
+}
+
+static void testParallelTagMonoAbr() {
+    checkParallelTag(1, 1);
+}
+
+static std::vector<short> createMonoPcm(int samples) {
+    std::vector<short> pcm(samples);
+    for (int i = 0; i < samples; i++) {
+        // 相邻采样差别明显，按双声道交错读取时只取偶数位置的采样，结果会完全不同
+        double t = (double) i / SAMPLE_RATE;
+        pcm[i] = (short) (sin(2 * M_PI * 440 * t) * 6000 + sin(2 * M_PI * 9000 * t) * 3000);
+    }
+    return pcm;
+}
+
+/**
+ * 不经过 WeMp3Encoder，直接用 lame 的非交错接口编码单声道 CBR，作为对照
+ */
+static std::vector<unsigned char> encodeMonoReference(const std::vector<short> &pcm, const char *path) {
+    lame_t lame = lame_init();
+    lame_set_in_samplerate(lame, SAMPLE_RATE);
+    lame_set_out_samplerate(lame, SAMPLE_RATE);
+    lame_set_num_channels(lame, 1);
+    lame_set_mode(lame, MONO);
+    lame_set_VBR(lame, vbr_off);
+    lame_set_brate(lame, 128);
+    lame_set_quality(lame, 5);
+    lame_init_params(lame);
+    FILE *file = fopen(path, "w+b");
+    std::vector<unsigned char> mp3(MP3_BUFFER_SIZE * 4);
+    for (size_t offset = 0; offset < pcm.size(); offset += 1152) {
+        int count = pcm.size() - offset < 1152 ? (int) (pcm.size() - offset) : 1152;
+        int size = lame_encode_buffer(lame, &pcm[offset], &pcm[offset], count, mp3.data(), mp3.size());
+        fwrite(mp3.data(), 1, size, file);
+    }
+    int size = lame_encode_flush(lame, mp3.data(), mp3.size());
+    fwrite(mp3.data(), 1, size, file);
+    lame_mp3_tags_fid(lame, file);
+    fclose(file);
+    lame_close(lame);
+    return readFile(path);
+}
+
+static std::vector<unsigned char> encodeMonoPcmBuffer(const std::vector<short> &pcm, const char *path,
+                                                      int queueDepth) {
+    WeMp3Encoder *encoder = new WeMp3Encoder(NULL);
+    encoder->setOutChannelMode(MONO);
+    encoder->setOutBitrateMode(0, 128);
+    WE_CHECK(encoder->startEncodePCMBuffer(SAMPLE_RATE, 1, 16, path, queueDepth,
+                                           PcmEncodeQueue::POLICY_BLOCK));
+    // 每次送入的个数不是槽大小的整数倍，数据会跨槽
+    const int CHUNK_SAMPLES = 1000;
+    std::vector<short> chunk(CHUNK_SAMPLES);
+    for (size_t offset = 0; offset < pcm.size(); offset += CHUNK_SAMPLES) {
+        int count = pcm.size() - offset < CHUNK_SAMPLES ? (int) (pcm.size() - offset) : CHUNK_SAMPLES;
+        memcpy(chunk.data(), &pcm[offset], count * sizeof(short));
+        encoder->encodeFromPCMBuffer(chunk.data(), count);
+    }
+    encoder->stopEncodePCMBuffer();
+    delete encoder;
+    return readFile(path);
+}
+
+static void testMonoMatchesReference() {
+    const int SAMPLES = SAMPLE_RATE * 10 + 77;
+    char pcmPath[] = "/tmp/we_mp3_mono_XXXXXX";
+    int fd = mkstemp(pcmPath);
+    close(fd);
+    std::string referencePath = std::string(pcmPath) + "_reference.mp3";
+    std::string asyncPath = std::string(pcmPath) + "_async.mp3";
+    std::string syncPath = std::string(pcmPath) + "_sync.mp3";
+    std::string filePath = std::string(pcmPath) + "_file.mp3";
+
+    std::vector<short> pcm = createMonoPcm(SAMPLES);
+    FILE *file = fopen(pcmPath, "wb");
+    fwrite(pcm.data(), sizeof(short), pcm.size(), file);
+    fclose(file);
+
+    std::vector<unsigned char> reference = encodeMonoReference(pcm, referencePath.c_str());
+    // PcmEncodeQueue 异步编码和同步编码
+    std::vector<unsigned char> async = encodeMonoPcmBuffer(pcm, asyncPath.c_str(), 4);
+    std::vector<unsigned char> sync = encodeMonoPcmBuffer(pcm, syncPath.c_str(), 0);
+    // 串行编码 PCM 文件
+    WeMp3Encoder *encoder = new WeMp3Encoder(NULL);
+    encoder->setOutChannelMode(MONO);
+    encoder->setOutBitrateMode(0, 128);
+    encoder->encodeFromPCMFile(pcmPath, SAMPLE_RATE, 1, 16, false, filePath.c_str());
+    delete encoder;
+    std::vector<unsigned char> serial = readFile(filePath.c_str());
+
+    printf("    reference=%d async=%d sync=%d file=%d bytes\n", (int) reference.size(),
+           (int) async.size(), (int) sync.size(), (int) serial.size());
+    WE_CHECK(reference.size() > 0);
+    WE_CHECK(async == reference);
+    WE_CHECK(sync == reference);
+    WE_CHECK(serial == reference);
+    checkTagMatchesFile(async, parseLameTag(async), SAMPLES);
+
+    unlink(pcmPath);
+    unlink(referencePath.c_str());
+    unlink(asyncPath.c_str());
+    unlink(syncPath.c_str());
+    unlink(filePath.c_str());
+}
+
+static int64_t nowMicros() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000 + now.tv_nsec / 1000;
+}
+
+typedef struct FeedResult {
+    std::vector<unsigned char> mp3;
+    int64_t feedMicros;
+    bool hasStats;
+    PcmEncodeQueueStats stats;
+} FeedResult;
+
+// 送入速度是实时的多少倍
+static const int FEED_SPEED = 200;
+
+/**
+ * 按一次录音回调的大小、以 FEED_SPEED 倍实时的节奏送入全部数据，在停止之前读取队列统计；
+ * 按绝对截止时间等待，编码线程在送入间隙运行，编码跟不上时 BLOCK 模式的送入速度降到编码速度
+ */
+static FeedResult feedPcmBuffer(const std::vector<short> &pcm, int channels, const char *path,
+                                int queueDepth, int policy) {
+    FeedResult result;
+    memset(&result.stats, 0, sizeof(result.stats));
+    WeMp3Encoder *encoder = new WeMp3Encoder(NULL);
+    encoder->setOutChannelMode(0);
+    encoder->setOutBitrateMode(0, 128);
+    WE_CHECK(encoder->startEncodePCMBuffer(SAMPLE_RATE, channels, 16, path, queueDepth, policy));
+    const int CHUNK_SAMPLES = 1024 * channels;
+    std::vector<short> chunk(CHUNK_SAMPLES);
+    const double CHUNK_MICROS = 1024 * 1000000.0 / SAMPLE_RATE / FEED_SPEED;
+    int64_t start = nowMicros();
+    int chunks = 0;
+    for (size_t offset = 0; offset < pcm.size(); offset += CHUNK_SAMPLES) {
+        int count = pcm.size() - offset < CHUNK_SAMPLES ? (int) (pcm.size() - offset) : CHUNK_SAMPLES;
+        memcpy(chunk.data(), &pcm[offset], count * sizeof(short));
+        encoder->encodeFromPCMBuffer(chunk.data(), count);
+        int64_t wait = start + (int64_t) (++chunks * CHUNK_MICROS) - nowMicros();
+        if (wait > 0) {
+            usleep((useconds_t) wait);
+        }
+    }
+    result.feedMicros = nowMicros() - start;
+    result.hasStats = encoder->getPCMBufferQueueStats(&result.stats);
+    encoder->stopEncodePCMBuffer();
+    delete encoder;
+    result.mp3 = readFile(path);
+    return result;
+}
+
+/**
+ * 60 秒的双声道数据以 FEED_SPEED 倍实时的速度送入：
+ * BLOCK 模式的输出与同步编码逐字节一致，DROP 模式送入和丢弃的个数加起来等于输入，延迟统计有效
+ */
+static void testAsyncQueueFasterThanRealtime() {
+    const int CHANNELS = 2;
+    const int SECONDS = 60;
+    const int SAMPLES = SAMPLE_RATE * SECONDS;
+    std::vector<short> pcm(SAMPLES * CHANNELS);
+    unsigned int seed = 1;
+    for (int i = 0; i < SAMPLES; i++) {
+        double t = (double) i / SAMPLE_RATE;
+        double tone = sin(2 * M_PI * 440 * t) * 8000;
+        for (int c = 0; c < CHANNELS; c++) {
+            seed = seed * 1103515245 + 12345;
+            pcm[i * CHANNELS + c] = (short) (tone / (c + 1) + (int) ((seed >> 16) % 512) - 256);
+        }
+    }
+    char basePath[] = "/tmp/we_mp3_queue_XXXXXX";
+    int fd = mkstemp(basePath);
+    close(fd);
+    std::string syncPath = std::string(basePath) + "_sync.mp3";
+    std::string blockPath = std::string(basePath) + "_block.mp3";
+    std::string dropPath = std::string(basePath) + "_drop.mp3";
+
+    FeedResult sync = feedPcmBuffer(pcm, CHANNELS, syncPath.c_str(), 0, PcmEncodeQueue::POLICY_BLOCK);
+    FeedResult block = feedPcmBuffer(pcm, CHANNELS, blockPath.c_str(), 4, PcmEncodeQueue::POLICY_BLOCK);
+    FeedResult drop = feedPcmBuffer(pcm, CHANNELS, dropPath.c_str(), 4, PcmEncodeQueue::POLICY_DROP);
+
+    double audioMicros = SECONDS * 1000000.0;
+    printf("    sync feed %.1fx, block feed %.1fx blocked=%lld avgLatency=%dus maxLatency=%dus,"
+           " drop feed %.1fx put=%lld dropped=%lld avgLatency=%dus maxLatency=%dus\n",
+           audioMicros / sync.feedMicros, audioMicros / block.feedMicros,
+           (long long) block.stats.blockedCount, block.stats.avgLatencyMicros, block.stats.maxLatencyMicros,
+           audioMicros / drop.feedMicros, (long long) drop.stats.putSamples,
+           (long long) drop.stats.droppedSamples, drop.stats.avgLatencyMicros,
+           drop.stats.maxLatencyMicros);
+
+    WE_CHECK(!sync.hasStats);
+    WE_CHECK(block.hasStats);
+    WE_CHECK(drop.hasStats);
+    // DROP 模式不等待编码，送入速度必须超过 100 倍实时
+    WE_CHECK(drop.feedMicros * 100 < SECONDS * 1000000LL);
+
+    WE_CHECK(sync.mp3.size() > 0);
+    WE_CHECK(block.mp3 == sync.mp3);
+    WE_CHECK_EQ(pcm.size(), block.stats.putSamples);
+    WE_CHECK_EQ(0, block.stats.droppedSamples);
+    WE_CHECK(block.stats.avgLatencyMicros > 0);
+    WE_CHECK(block.stats.maxLatencyMicros >= block.stats.avgLatencyMicros);
+
+    WE_CHECK_EQ(pcm.size(), drop.stats.putSamples + drop.stats.droppedSamples);
+    WE_CHECK_EQ(0, drop.stats.blockedCount);
+    WE_CHECK(drop.stats.avgLatencyMicros > 0);
+    WE_CHECK(drop.stats.maxLatencyMicros >= drop.stats.avgLatencyMicros);
+    WE_CHECK(drop.stats.highWaterMark <= 4);
+
+    unlink(basePath);
+    unlink(syncPath.c_str());
+    unlink(blockPath.c_str());
+    unlink(dropPath.c_str());
+}
+
+int main() {
+    WE_RUN(testParallelTagStereoVbr);
+    WE_RUN(testParallelTagStereoCbr);
+    WE_RUN(testParallelTagMonoAbr);
+    WE_RUN(testMonoMatchesReference);
+    WE_RUN(testAsyncQueueFasterThanRealtime);
+    return WE_RESULT();
+}
@@ -0,0 +1,37 @@
+//
+// 主机测试用的最小断言，失败时打印位置并计数，main 根据失败数返回
+//
+
+#ifndef VIDEOMAKER_WETEST_H
+#define VIDEOMAKER_WETEST_H
+
+#include <stdio.h>
+
+static int weTestFailures = 0;
+
+#define WE_CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+        weTestFailures++; \
+    } \
+} while (0)
+
+#define WE_CHECK_EQ(expected, actual) do { \
+    long long weExpected = (long long) (expected); \
+    long long weActual = (long long) (actual); \
+    if (weExpected != weActual) { \
+        fprintf(stderr, "%s:%d: CHECK_EQ failed: %s=%lld, %s=%lld\n", __FILE__, __LINE__, \
+                #expected, weExpected, #actual, weActual); \
+        weTestFailures++; \
+    } \
+} while (0)
+
+#define WE_RUN(test) do { \
+    int weBefore = weTestFailures; \
+    test(); \
+    printf("%s %s\n", weTestFailures == weBefore ? "[  OK  ]" : "[FAILED]", #test); \
+} while (0)
+
+#define WE_RESULT() (weTestFailures == 0 ? 0 : 1)
+
+#endif //VIDEOMAKER_WETEST_H
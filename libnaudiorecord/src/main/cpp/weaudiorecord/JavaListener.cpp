@@ -2,18 +2,45 @@
  * Created by WTZ on 2019/11/8.
  */
 
+#include <time.h>
 #include "JavaListener.h"
 #include "AndroidLog.h"
 
 
+static pthread_key_t detachKey;
+static pthread_once_t detachKeyOnce = PTHREAD_ONCE_INIT;
+
+/**
+ * 被 attach 过的线程退出时由 pthread 调用，value 是 attach 时保存的 JavaVM
+ */
+static void detachOnThreadExit(void *value) {
+    JavaVM *jvm = static_cast<JavaVM *>(value);
+    if (jvm != NULL) {
+        jvm->DetachCurrentThread();
+    }
+}
+
+static void createDetachKey() {
+    pthread_key_create(&detachKey, detachOnThreadExit);
+}
+
+static int64_t getNowMicros() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000 + now.tv_nsec / 1000;
+}
+
 /**
  * 此构造方法需要在 C++ 主线程中调用，即直接从 java 层调用下来的线程
  *
  * @param jvm
- * @param mainEnv C++ 主线程 env
+ * @param mainEnv         C++ 主线程 env
  * @param obj
+ * @param methodName      回调的 Java 方法名，需要是字符串常量
+ * @param methodSignature 回调的 Java 方法签名
  */
-JavaListener::JavaListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj) {
+JavaListener::JavaListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj, const char *methodName,
+                           const char *methodSignature) {
     _mainTid = gettid();
 
     _jvm = jvm;
@@ -21,16 +48,58 @@ JavaListener::JavaListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj) {
 
     // Fix: JNI ERROR (app bug): accessed stale local reference
     _globalObj = _mainEnv->NewGlobalRef(obj);
+
+    // 在主线程中一次解析好，回调线程只读，不需要同步
+    _methodName = methodName;
+    jclass clazz = _mainEnv->GetObjectClass(obj);
+    _methodID = _mainEnv->GetMethodID(clazz, methodName, methodSignature);
+    _mainEnv->DeleteLocalRef(clazz);
+    if (_mainEnv->ExceptionCheck()) {
+        // 异常留给调用构造方法的 Java 层处理，之后的回调都直接忽略
+        LOGE(LOG_TAG, "GetMethodID exception! method: %s %s", methodName, methodSignature);
+        _methodID = NULL;
+    }
+
+    pthread_mutex_init(&statsMutex, NULL);
 }
 
 JavaListener::~JavaListener() {
-    JNIEnv *env = initCallbackEnv();
-    env->DeleteGlobalRef(_globalObj);// 回收 GlobalReference
-    releaseCallbackEnv();
+    bool isAttached = false;
+    JNIEnv *env = getTemporaryEnv(&isAttached);
+    if (env != NULL) {
+        env->DeleteGlobalRef(_globalObj);// 回收 GlobalReference
+        releaseTemporaryEnv(isAttached);
+    }
+    pthread_mutex_destroy(&statsMutex);
+}
+
+JNIEnv *JavaListener::getTemporaryEnv(bool *isAttached) {
+    *isAttached = false;
+    if (gettid() == _mainTid) {
+        return _mainEnv;
+    }
+
+    JNIEnv *env;
+    if (_jvm->GetEnv(reinterpret_cast<void **> (&env), JNI_VERSION_1_6) == JNI_OK) {
+        // Java 线程或者回调时已经持续 attach 的子线程，不能在这里 detach
+        return env;
+    }
+
+    if (_jvm->AttachCurrentThread(&env, 0) != JNI_OK) {
+        LOGE(LOG_TAG, "getTemporaryEnv AttachCurrentThread exception! currentTid: %d", gettid());
+        return NULL;
+    }
+    *isAttached = true;
+    return env;
+}
+
+void JavaListener::releaseTemporaryEnv(bool isAttached) {
+    if (isAttached) {
+        _jvm->DetachCurrentThread();
+    }
 }
 
 JNIEnv *JavaListener::initCallbackEnv() {
-    needDetach = false;
     pid_t currentTid = gettid();
     if (currentTid == _mainTid) {
         // 在 C++ 主线程中直接使用主线程 env
@@ -39,41 +108,38 @@ JNIEnv *JavaListener::initCallbackEnv() {
 
     JNIEnv *env1;
     if (_jvm->GetEnv(reinterpret_cast<void **> (&env1), JNI_VERSION_1_6) == JNI_OK) {
-        // 虽然切换了线程，能 GetEnv 成功，说明这是直接从 Java 层切换的线程
+        // 虽然切换了线程，能 GetEnv 成功，说明这是直接从 Java 层切换的线程，或者是之前已经 attach 过的子线程
         return env1;
     }
 
-    // 到这里，说明是在 C++ 中开启的子线程，此时需要用 AttachCurrentThread 来获取 env，
+    // 到这里，说明是在 C++ 中开启的子线程第一次回调，此时需要用 AttachCurrentThread 来获取 env，
     // 否则会报错 JNI ERROR: non-VM thread making JNI call
     JNIEnv *env2;
     if (_jvm->AttachCurrentThread(&env2, 0) != JNI_OK) {
         LOGE(LOG_TAG, "AttachCurrentThread exception! currentTid: %d", currentTid);
         return NULL;
     }
-    needDetach = true;
+
+    // 不再每次回调后 detach，例如 OpenSL 的录音回调线程每个 buffer 都要回调一次，
+    // 改为在线程退出时由 pthread key 的析构函数 detach
+    pthread_once(&detachKeyOnce, createDetachKey);
+    pthread_setspecific(detachKey, _jvm);
     return env2;
 }
 
-void JavaListener::releaseCallbackEnv() {
-    pid_t currentTid = gettid();
-    if (currentTid == _mainTid || !needDetach) {
+void JavaListener::callback(int argCount, ...) {
+    int64_t startMicros = getNowMicros();
+    if (_methodID == NULL) {
         return;
     }
-
-    _jvm->DetachCurrentThread();
-    needDetach = false;
-}
-
-void JavaListener::callback(int argCount, ...) {
     JNIEnv *env = initCallbackEnv();
-    if (_methodID == NULL) {
-        _methodID = env->GetMethodID(env->GetObjectClass(_globalObj), getMethodName(),
-                                     getMethodSignature());
-        if (env->ExceptionCheck()) {
-            LOGE(LOG_TAG, "GetMethodID exception! method: %s %s", getMethodName(), getMethodSignature());
-            env->Throw(env->ExceptionOccurred());
-            return;
-        }
+    if (env == NULL) {
+        return;
+    }
+
+    if (env->PushLocalFrame(LOCAL_FRAME_CAPACITY) != JNI_OK) {
+        LOGE(LOG_TAG, "PushLocalFrame exception! method: %s", _methodName);
+        return;
     }
 
     va_list args;
@@ -82,5 +148,51 @@ void JavaListener::callback(int argCount, ...) {
     reallyCallback(env, _globalObj, _methodID, args);
 
     va_end(args);
-    releaseCallbackEnv();
+    env->PopLocalFrame(NULL);
+
+    updateCallbackStats(getNowMicros() - startMicros);
+}
+
+void JavaListener::updateCallbackStats(int64_t costMicros) {
+    pthread_mutex_lock(&statsMutex);
+    callbackCount++;
+    callbackTotalMicros += costMicros;
+    if (costMicros > callbackMaxMicros) {
+        callbackMaxMicros = costMicros;
+    }
+    if (LOG_DEBUG && callbackCount % CALLBACK_STATS_LOG_INTERVAL == 0) {
+        LOGD(LOG_TAG, "%s callback count=%lld avg=%lldus max=%lldus", _methodName,
+             (long long) callbackCount, (long long) (callbackTotalMicros / callbackCount),
+             (long long) callbackMaxMicros);
+    }
+    pthread_mutex_unlock(&statsMutex);
+}
+
+int64_t JavaListener::getCallbackCount() {
+    pthread_mutex_lock(&statsMutex);
+    int64_t count = callbackCount;
+    pthread_mutex_unlock(&statsMutex);
+    return count;
+}
+
+int64_t JavaListener::getCallbackAvgMicros() {
+    pthread_mutex_lock(&statsMutex);
+    int64_t avg = callbackCount > 0 ? callbackTotalMicros / callbackCount : 0;
+    pthread_mutex_unlock(&statsMutex);
+    return avg;
+}
+
+int64_t JavaListener::getCallbackMaxMicros() {
+    pthread_mutex_lock(&statsMutex);
+    int64_t max = callbackMaxMicros;
+    pthread_mutex_unlock(&statsMutex);
+    return max;
+}
+
+void JavaListener::resetCallbackStats() {
+    pthread_mutex_lock(&statsMutex);
+    callbackCount = 0;
+    callbackTotalMicros = 0;
+    callbackMaxMicros = 0;
+    pthread_mutex_unlock(&statsMutex);
 }
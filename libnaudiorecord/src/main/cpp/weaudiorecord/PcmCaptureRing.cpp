@@ -0,0 +1,75 @@
+//
+// Created by WTZ on 2020/5/11.
+//
+
+#include <string.h>
+#include "PcmCaptureRing.h"
+
+PcmCaptureRing::PcmCaptureRing(int slotCount, int bytesPerSlot) {
+    this->slotCount = slotCount < 2 ? 2 : slotCount;
+    this->bytesPerSlot = bytesPerSlot;
+    slots = new uint8_t[this->slotCount * bytesPerSlot];
+    slotSizes = new int[this->slotCount];
+    memset(slotSizes, 0, this->slotCount * sizeof(int));
+}
+
+PcmCaptureRing::~PcmCaptureRing() {
+    delete[] slots;
+    slots = NULL;
+    delete[] slotSizes;
+    slotSizes = NULL;
+}
+
+bool PcmCaptureRing::write(const void *data, int size) {
+    if (size <= 0 || size > bytesPerSlot) {
+        return false;
+    }
+    // 读计数由消费者写，要用 acquire 保证看到的空闲槽确实已经被读完
+    uint32_t read = __atomic_load_n(&readCount, __ATOMIC_ACQUIRE);
+    uint32_t write = writeCount;
+    if (write - read >= (uint32_t) slotCount) {
+        return false;
+    }
+
+    int index = write % slotCount;
+    memcpy(slots + index * bytesPerSlot, data, size);
+    slotSizes[index] = size;
+    // release 保证消费者看到新的写计数时，槽里的数据已经写完
+    __atomic_store_n(&writeCount, write + 1, __ATOMIC_RELEASE);
+    return true;
+}
+
+const uint8_t *PcmCaptureRing::peekRead(int *size) {
+    uint32_t write = __atomic_load_n(&writeCount, __ATOMIC_ACQUIRE);
+    uint32_t read = readCount;
+    if (write == read) {
+        *size = 0;
+        return NULL;
+    }
+
+    int index = read % slotCount;
+    *size = slotSizes[index];
+    return slots + index * bytesPerSlot;
+}
+
+void PcmCaptureRing::releaseRead() {
+    uint32_t read = readCount;
+    if (__atomic_load_n(&writeCount, __ATOMIC_ACQUIRE) == read) {
+        return;
+    }
+    __atomic_store_n(&readCount, read + 1, __ATOMIC_RELEASE);
+}
+
+int PcmCaptureRing::getFilledCount() {
+    uint32_t write = __atomic_load_n(&writeCount, __ATOMIC_ACQUIRE);
+    uint32_t read = __atomic_load_n(&readCount, __ATOMIC_ACQUIRE);
+    return (int) (write - read);
+}
+
+int PcmCaptureRing::getSlotCount() {
+    return slotCount;
+}
+
+int PcmCaptureRing::getBytesPerSlot() {
+    return bytesPerSlot;
+}
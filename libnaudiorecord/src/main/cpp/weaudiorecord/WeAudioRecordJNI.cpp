@@ -76,13 +76,14 @@ Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeGetBitsPerSample(JNIEnv *env
 
 extern "C"
 JNIEXPORT jboolean JNICALL
-Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeStartRecord(JNIEnv *env, jobject thiz) {
+Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeStartRecord(JNIEnv *env, jobject thiz,
+                                                                 jint ringSlotCount) {
     if (pWeAudioRecorder == NULL) {
         LOGE(LOG_TAG, "Invoke nativeStartRecord but pWeAudioRecorder is NULL!");
         return false;
     }
 
-    return pWeAudioRecorder->start();
+    return pWeAudioRecorder->start(ringSlotCount);
 }
 
 extern "C"
@@ -129,4 +130,38 @@ Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeReleaseRecorder(JNIEnv *env,
     pWeAudioRecorder->release();
     delete pWeAudioRecorder;
     pWeAudioRecorder = NULL;
-}
\ No newline at end of file
+}
+
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeGetCallbackStats(JNIEnv *env, jobject thiz) {
+    if (pWeAudioRecorder == NULL) {
+        LOGE(LOG_TAG, "Invoke nativeGetCallbackStats but pWeAudioRecorder is NULL!");
+        return NULL;
+    }
+
+    int64_t count, avgMicros, maxMicros;
+    pWeAudioRecorder->getCallbackStats(&count, &avgMicros, &maxMicros);
+    jlong stats[] = {count, avgMicros, maxMicros};
+    jlongArray result = env->NewLongArray(3);
+    if (result != NULL) {
+        env->SetLongArrayRegion(result, 0, 3, stats);
+    }
+    return result;
+}
+
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_com_wtz_libnaudiorecord_WeNAudioRecorder_nativeGetCaptureStats(JNIEnv *env, jobject thiz) {
+    if (pWeAudioRecorder == NULL) {
+        LOGE(LOG_TAG, "Invoke nativeGetCaptureStats but pWeAudioRecorder is NULL!");
+        return NULL;
+    }
+
+    jlong stats[] = {pWeAudioRecorder->getOverrunCount(), pWeAudioRecorder->getUnderrunCount()};
+    jlongArray result = env->NewLongArray(2);
+    if (result != NULL) {
+        env->SetLongArrayRegion(result, 0, 2, stats);
+    }
+    return result;
+}
@@ -3,6 +3,7 @@
 //
 
 #include <AndroidLog.h>
+#include <time.h>
 #include "WeAudioRecorder.h"
 
 WeAudioRecorder::WeAudioRecorder(OnPCMDataCall *onPcmDataCall) {
@@ -53,9 +54,22 @@ int WeAudioRecorder::getBitsPerSample() {
     return bitsPerSample;
 }
 
-bool WeAudioRecorder::start() {
+void *consumerThreadCall(void *data) {
+    WeAudioRecorder *recorder = static_cast<WeAudioRecorder *>(data);
     if (LOG_DEBUG) {
-        LOGW(LOG_TAG, "start initOpenSLSuccess=%d", initOpenSLSuccess);
+        LOGW("consumerThreadCall", "consumerThread run...");
+    }
+    recorder->_loopConsume();
+
+    if (LOG_DEBUG) {
+        LOGW("consumerThreadCall", "consumerThread exit...");
+    }
+    pthread_exit(NULL);
+}
+
+bool WeAudioRecorder::start(int ringSlotCount) {
+    if (LOG_DEBUG) {
+        LOGW(LOG_TAG, "start initOpenSLSuccess=%d ringSlotCount=%d", initOpenSLSuccess, ringSlotCount);
     }
     _initOpenSL();
     if (!initOpenSLSuccess) {
@@ -66,13 +80,29 @@ bool WeAudioRecorder::start() {
         return false;
     }
 
-    isRecording = true;
-    recordBuffer = new DoubleBuffer(VIDMK_DOUBLE_BUFFER_ELEM_COUNT);
-    if (!enqueueReceiveBuffer()) {
-        isRecording = false;
+    bytesPerCaptureBuffer = VIDMK_CAPTURE_BUFFER_ELEM_COUNT * sizeof(short);
+    if (!_startConsumer(ringSlotCount)) {
+        stop();
         return false;
     }
 
+    isRecording = true;
+    queuedHead = 0;
+    queuedCount = 0;
+    pendingEnqueueIndex = -1;
+    for (int i = 0; i < VIDMK_CAPTURE_BUFFER_COUNT; i++) {
+        captureBuffers[i] = new short[VIDMK_CAPTURE_BUFFER_ELEM_COUNT];
+    }
+    // 所有 buffer 一开始都交给 OpenSL，回调处理当前 buffer 时 OpenSL 仍有 buffer 可写
+    for (int i = 0; i < VIDMK_CAPTURE_BUFFER_COUNT; i++) {
+        if (!_enqueueCaptureBuffer(i)) {
+            // 消费线程已经启动，前面的 buffer 可能已经交给 OpenSL 并回调写入环形队列：
+            // 由 stop 按顺序停止录音、清空队列，再停止并 join 消费线程，释放环形队列和 buffer
+            stop();
+            return false;
+        }
+    }
+
     return true;
 }
 
@@ -89,8 +119,10 @@ bool WeAudioRecorder::resume() {
     }
 
     isRecording = true;
-    if (enqueueFailed) {
-        if (!enqueueReceiveBuffer()) {
+    if (pendingEnqueueIndex >= 0) {
+        int index = pendingEnqueueIndex;
+        pendingEnqueueIndex = -1;
+        if (!_enqueueCaptureBuffer(index)) {
             isRecording = false;
             return false;
         }
@@ -99,27 +131,138 @@ bool WeAudioRecorder::resume() {
     return true;
 }
 
-bool WeAudioRecorder::enqueueReceiveBuffer() {
+bool WeAudioRecorder::_enqueueCaptureBuffer(int index) {
     SLresult result;
-    result = (*bufferQueueItf)->Enqueue(
-            bufferQueueItf, recordBuffer->getFreeBuffer(), recordBuffer->getBytesSizePerBuffer());
+    result = (*bufferQueueItf)->Enqueue(bufferQueueItf, captureBuffers[index], bytesPerCaptureBuffer);
     if (SL_RESULT_SUCCESS != result) {
-        LOGE(LOG_TAG, "enqueueReceiveBuffer failed: %d", result);
-        enqueueFailed = true;
+        LOGE(LOG_TAG, "_enqueueCaptureBuffer failed: %d", result);
+        pendingEnqueueIndex = index;
         return false;
     }
 
-    enqueueFailed = false;
+    queuedIndexes[(queuedHead + queuedCount) % VIDMK_CAPTURE_BUFFER_COUNT] = index;
+    queuedCount++;
+    return true;
+}
+
+void WeAudioRecorder::onCaptureBufferFilled() {
+    if (queuedCount <= 0) {
+        LOGE(LOG_TAG, "onCaptureBufferFilled but no buffer queued");
+        return;
+    }
+    int index = queuedIndexes[queuedHead];
+    queuedHead = (queuedHead + 1) % VIDMK_CAPTURE_BUFFER_COUNT;
+    queuedCount--;
+
+    if (!isRecording) {
+        // 暂停时丢弃数据，buffer 照常归还，恢复录音后继续使用
+        LOGW(LOG_TAG, "onCaptureBufferFilled isRecording=false")
+        _enqueueCaptureBuffer(index);
+        return;
+    }
+
+    if (queuedCount == 0) {
+        // 其它 buffer 都已写满，OpenSL 在这次回调之前可能已经没有地方写数据
+        __atomic_add_fetch(&underrunCount, 1, __ATOMIC_RELAXED);
+    }
+
+    if (captureRing->write(captureBuffers[index], bytesPerCaptureBuffer)) {
+        sem_post(&captureDataSem);
+    } else {
+        int64_t overrun = __atomic_add_fetch(&overrunCount, 1, __ATOMIC_RELAXED);
+        if (LOG_REPEAT_DEBUG) {
+            LOGW(LOG_TAG, "capture ring is full, drop buffer! overrunCount=%lld", (long long) overrun);
+        }
+    }
+
+    // 复制完立即归还给 OpenSL，不等 Java 层处理
+    _enqueueCaptureBuffer(index);
+}
+
+bool WeAudioRecorder::_startConsumer(int ringSlotCount) {
+    if (ringSlotCount < 2) {
+        ringSlotCount = VIDMK_CAPTURE_RING_DEFAULT_SLOTS;
+    }
+    captureRing = new PcmCaptureRing(ringSlotCount, bytesPerCaptureBuffer);
+    __atomic_store_n(&overrunCount, 0, __ATOMIC_RELAXED);
+    __atomic_store_n(&underrunCount, 0, __ATOMIC_RELAXED);
+    sem_init(&captureDataSem, 0, 0);
+
+    isConsumerShouldExit = false;
+    isConsumerThreadStarted = pthread_create(&consumerThread, NULL, consumerThreadCall, this) == 0;
+    if (!isConsumerThreadStarted) {
+        LOGE(LOG_TAG, "create consumerThread failed!");
+        _stopConsumer();
+        return false;
+    }
     return true;
 }
 
-void WeAudioRecorder::callbackData() {
-    if (onPCMDataCall != NULL) {
-        onPCMDataCall->callback(2, recordBuffer->getDataBuffer(),
-                                recordBuffer->getBytesSizePerBuffer());
+void WeAudioRecorder::_loopConsume() {
+    int size = 0;
+    while (!isConsumerShouldExit) {
+        struct timespec timeout;
+        clock_gettime(CLOCK_REALTIME, &timeout);
+        timeout.tv_nsec += CONSUMER_WAIT_TIMEOUT_MILLS * 1000000L;
+        timeout.tv_sec += timeout.tv_nsec / 1000000000L;
+        timeout.tv_nsec %= 1000000000L;
+        if (sem_timedwait(&captureDataSem, &timeout) != 0) {
+            continue;// 超时或者被信号打断，回去检查退出标志
+        }
+        if (isConsumerShouldExit) {
+            break;
+        }
+
+        const uint8_t *data = captureRing->peekRead(&size);
+        if (data == NULL) {
+            continue;
+        }
+        if (onPCMDataCall != NULL) {
+            onPCMDataCall->callback(2, data, size);
+        }
+        captureRing->releaseRead();
     }
 }
 
+void WeAudioRecorder::_stopConsumer() {
+    isConsumerShouldExit = true;
+    if (isConsumerThreadStarted) {
+        sem_post(&captureDataSem);// 唤醒等待中的消费线程
+        pthread_join(consumerThread, NULL);
+        isConsumerThreadStarted = false;
+    }
+    if (captureRing != NULL) {
+        if (LOG_DEBUG) {
+            LOGW(LOG_TAG, "stop consumer: remain=%d overrun=%lld underrun=%lld",
+                 captureRing->getFilledCount(), (long long) getOverrunCount(),
+                 (long long) getUnderrunCount());
+        }
+        sem_destroy(&captureDataSem);
+        delete captureRing;
+        captureRing = NULL;
+    }
+}
+
+void WeAudioRecorder::getCallbackStats(int64_t *count, int64_t *avgMicros, int64_t *maxMicros) {
+    if (onPCMDataCall == NULL) {
+        *count = 0;
+        *avgMicros = 0;
+        *maxMicros = 0;
+        return;
+    }
+    *count = onPCMDataCall->getCallbackCount();
+    *avgMicros = onPCMDataCall->getCallbackAvgMicros();
+    *maxMicros = onPCMDataCall->getCallbackMaxMicros();
+}
+
+int64_t WeAudioRecorder::getOverrunCount() {
+    return __atomic_load_n(&overrunCount, __ATOMIC_RELAXED);
+}
+
+int64_t WeAudioRecorder::getUnderrunCount() {
+    return __atomic_load_n(&underrunCount, __ATOMIC_RELAXED);
+}
+
 void WeAudioRecorder::pause() {
     if (LOG_DEBUG) {
         LOGW(LOG_TAG, "pause initOpenSLSuccess=%d", initOpenSLSuccess);
@@ -159,9 +302,16 @@ void WeAudioRecorder::stop() {
         }
     }
 
+    // OpenSL 已停止并清空队列，不会再有回调写入环形队列，这时再停止消费线程
+    _stopConsumer();
+
     _destroyOpenSL();
-    delete recordBuffer;
-    recordBuffer = NULL;
+    for (int i = 0; i < VIDMK_CAPTURE_BUFFER_COUNT; i++) {
+        delete[] captureBuffers[i];
+        captureBuffers[i] = NULL;
+    }
+    queuedCount = 0;
+    pendingEnqueueIndex = -1;
 }
 
 void WeAudioRecorder::release() {
@@ -178,14 +328,9 @@ void recordCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
         LOGE("_WeAudioRecorder", "recordCallback cast context to WeAudioRecorder result is NULL")
         return;
     }
-    if (!recorder->isRecording) {
-        LOGW("_WeAudioRecorder", "recordCallback recorder isRecording=false")
-        return;
-    }
-
+    // 即使 isRecording=false 也要交给 recorder 处理，以便按顺序归还 buffer
     recorder->workFinished = false;
-    recorder->callbackData();
-    recorder->enqueueReceiveBuffer();
+    recorder->onCaptureBufferFilled();
     recorder->workFinished = true;
 }
 
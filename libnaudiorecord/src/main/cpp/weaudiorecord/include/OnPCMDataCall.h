@@ -7,6 +7,7 @@
 
 
 #include "JavaListener.h"
+#include "AndroidLog.h"
 
 class OnPCMDataCall : public JavaListener {
 
@@ -15,30 +16,25 @@ private:
 
 public:
     OnPCMDataCall(JavaVM *jvm, JNIEnv *mainEnv, jobject obj)
-            : JavaListener(jvm, mainEnv, obj) {
+            : JavaListener(jvm, mainEnv, obj, "onNativePCMDataCall", "([BI)V") {
     }
 
     ~OnPCMDataCall() {
     };
 
-    const char *getMethodName() {
-        return "onNativePCMDataCall";
-    }
-
-    const char *getMethodSignature() {
-        return "([BI)V";
-    }
-
     void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) {
         void *data = va_arg(args, void *);
         int size = va_arg(args, int);
 
-        jbyteArray jbyteBuffer = env->NewByteArray(size);
-
-        env->SetByteArrayRegion(jbyteBuffer, 0, size, static_cast<const jbyte *>(data));
-        env->CallVoidMethod(obj, methodId, jbyteBuffer, size);
-
-        env->DeleteLocalRef(jbyteBuffer);
+        // 每次回调都用新的数组，回调线程切换或者 Java 层异步保留数组时不会被下一次数据覆盖；
+        // 局部引用在 JavaListener::callback 的 PopLocalFrame 中统一释放
+        jbyteArray pcmArray = env->NewByteArray(size);
+        if (pcmArray == NULL) {
+            LOGE(LOG_TAG, "NewByteArray failed! size=%d", size);
+            return;
+        }
+        env->SetByteArrayRegion(pcmArray, 0, size, static_cast<const jbyte *>(data));
+        env->CallVoidMethod(obj, methodId, pcmArray, size);
     }
 
 };
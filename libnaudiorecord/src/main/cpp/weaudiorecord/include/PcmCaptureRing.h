@@ -0,0 +1,69 @@
+//
+// Created by WTZ on 2020/5/11.
+//
+
+#ifndef VIDEOMAKER_PCMCAPTURERING_H
+#define VIDEOMAKER_PCMCAPTURERING_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+/**
+ * 单生产者单消费者的无锁 PCM 环形队列，由固定个数、固定大小的槽组成
+ * 生产者是 OpenSL 录音回调线程，只复制数据不阻塞，队列满时直接丢弃；消费者是把数据回调给 Java 层的线程
+ * 读写下标只通过原子操作读写，不依赖任何平台接口，可以在 Linux 上直接编译测试
+ */
+class PcmCaptureRing {
+
+private:
+    int slotCount;
+    int bytesPerSlot;
+    uint8_t *slots = NULL;
+    int *slotSizes = NULL;
+
+    // 单调递增的读写计数，取模得到槽下标，差值就是已写入未读取的个数
+    uint32_t writeCount = 0;// 只在生产者线程写
+    uint32_t readCount = 0;// 只在消费者线程写
+
+public:
+    /**
+     * @param slotCount    槽个数，至少为 2
+     * @param bytesPerSlot 每个槽的字节数，即每次写入的最大字节数
+     */
+    PcmCaptureRing(int slotCount, int bytesPerSlot);
+
+    ~PcmCaptureRing();
+
+    /**
+     * 生产者调用，复制一块数据到下一个空闲槽
+     *
+     * @return 队列满或者 size 超过槽大小时返回 false，数据被丢弃
+     */
+    bool write(const void *data, int size);
+
+    /**
+     * 消费者调用，取最早写入的一个槽，数据在 releaseRead 之前一直有效
+     *
+     * @param size 输出这个槽的数据字节数
+     * @return 队列空时返回 NULL
+     */
+    const uint8_t *peekRead(int *size);
+
+    /**
+     * 消费者调用，释放 peekRead 取到的槽，让生产者可以再次写入
+     */
+    void releaseRead();
+
+    /**
+     * 当前已写入未读取的槽个数，任意线程都可以调用，结果只是一个瞬时值
+     */
+    int getFilledCount();
+
+    int getSlotCount();
+
+    int getBytesPerSlot();
+
+};
+
+
+#endif //VIDEOMAKER_PCMCAPTURERING_H
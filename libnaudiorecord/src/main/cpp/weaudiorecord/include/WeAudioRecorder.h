@@ -7,8 +7,10 @@
 
 
 #include <stddef.h>
+#include <pthread.h>
+#include <semaphore.h>
 #include "OnPCMDataCall.h"
-#include "DoubleBuffer.h"
+#include "PcmCaptureRing.h"
 
 extern "C"
 {
@@ -16,7 +18,10 @@ extern "C"
 #include <SLES/OpenSLES_Android.h>
 }
 
-#define VIDMK_DOUBLE_BUFFER_ELEM_COUNT 4096
+#define VIDMK_CAPTURE_BUFFER_ELEM_COUNT 4096
+// 同时交给 OpenSL 的录音 buffer 个数，与 SLDataLocator_AndroidSimpleBufferQueue 的队列个数一致
+#define VIDMK_CAPTURE_BUFFER_COUNT 2
+#define VIDMK_CAPTURE_RING_DEFAULT_SLOTS 8
 
 class WeAudioRecorder {
 
@@ -44,8 +49,24 @@ private:
 
     // 用于注册接收数据回调和传入接收数据 buffer 的队列接口
     SLAndroidSimpleBufferQueueItf bufferQueueItf = NULL;
-    // 用于接收数据的 buffer
-    DoubleBuffer *recordBuffer = NULL;
+    // 用于接收数据的 buffer，按入队顺序依次被填满
+    short *captureBuffers[VIDMK_CAPTURE_BUFFER_COUNT] = {NULL};
+    int bytesPerCaptureBuffer = 0;
+    int queuedIndexes[VIDMK_CAPTURE_BUFFER_COUNT];// 已交给 OpenSL 的 buffer 下标，先进先出
+    int queuedHead = 0;
+    int queuedCount = 0;
+    int pendingEnqueueIndex = -1;// 入队失败、等待 resume 时再入队的 buffer 下标
+
+    // 录音回调只把数据复制到环形队列，由消费线程回调给 Java 层，避免 Java 层处理慢时 OpenSL 没有 buffer 可用
+    PcmCaptureRing *captureRing = NULL;
+    static const int CONSUMER_WAIT_TIMEOUT_MILLS = 100;// 消费线程等待数据的超时时间，超时后检查退出标志
+    sem_t captureDataSem;
+    pthread_t consumerThread;
+    bool isConsumerThreadStarted = false;
+    bool isConsumerShouldExit = false;
+
+    int64_t overrunCount = 0;// 环形队列满丢弃的 buffer 个数，只通过原子操作读写
+    int64_t underrunCount = 0;// 录音回调时 OpenSL 已经没有可用 buffer 的次数，只通过原子操作读写
 
 public:
     const char *LOG_TAG = "_WeAudioRecorder";
@@ -67,13 +88,25 @@ public:
 
     int getBitsPerSample();
 
-    bool start();
+    /**
+     * @param ringSlotCount 环形队列槽个数，小于 2 时使用默认值
+     */
+    bool start(int ringSlotCount);
 
     bool resume();
 
-    bool enqueueReceiveBuffer();
+    void onCaptureBufferFilled();
+
+    void _loopConsume();
+
+    /**
+     * PCM 数据回调到 Java 层的耗时统计，耗时单位：微秒
+     */
+    void getCallbackStats(int64_t *count, int64_t *avgMicros, int64_t *maxMicros);
+
+    int64_t getOverrunCount();
 
-    void callbackData();
+    int64_t getUnderrunCount();
 
     void pause();
 
@@ -98,6 +131,12 @@ private:
 
     bool _setRecordState(SLuint32 state);
 
+    bool _enqueueCaptureBuffer(int index);
+
+    bool _startConsumer(int ringSlotCount);
+
+    void _stopConsumer();
+
     /**
      * 确保在退出应用时销毁所有对象。
      * 对象应按照与创建时相反的顺序销毁，因为销毁具有依赖对象的对象并不安全。
@@ -0,0 +1,230 @@
+package com.wtz.libnaudiorecord;
+
+/**
+ * PCM 音量表：在滑动窗口内统计峰值和均方根（RMS），换算为分贝供界面显示
+ * <p>
+ * 替代每次回调都把整块数据用 Math.abs 累加成 double、再调用 Math.log10 的做法：
+ * 1. 窗口按固定时长切成若干小段，每段只用整数累加平方和、记录最大绝对值，
+ * 一段结束时整窗口平方和加上新段、减去最旧的段，不需要重新扫描整个窗口；
+ * 2. 分贝换算用查表：取最高位得到 log2 的整数部分，尾数高 8 位查表得到小数部分，误差小于 0.01dB；
+ * 3. 每段结束时把 RMS 和峰值分贝打包成一个 long 写入 volatile 字段，界面线程无锁读取，读到的两个值总是同一次发布的。
+ * <p>
+ * 分贝值以 16 位采样的 1 为 0dB，满幅约 90.3dB，与原来按平均振幅计算的取值范围一致，静音为 0。
+ * 注意：update/reset 只能在采集线程调用，getXXXDecibels 可以在任意线程调用。
+ * <p>
+ * libvideomaker 的 WeJAudioRecorder 也依赖本模块使用此类，不要再复制一份。
+ */
+public class PcmLevelMeter {
+
+    /**
+     * 默认窗口时长，与界面刷新间隔相当
+     */
+    public static final int DEFAULT_WINDOW_MILLS = 300;
+
+    /**
+     * 每段时长，也是分贝值的发布间隔
+     */
+    private static final int SEGMENT_MILLS = 10;
+
+    // log2(1 + i / 256)，放大 2^16 倍的定点数
+    private static final int MANTISSA_BITS = 8;
+    private static final int LOG2_FRAC_BITS = 16;
+    private static final int[] LOG2_MANTISSA_TABLE = new int[(1 << MANTISSA_BITS) + 1];
+    // 10 * log10(2) 放大 2^16 倍
+    private static final long DB_PER_LOG2 = Math.round(10 * Math.log10(2) * (1 << LOG2_FRAC_BITS));
+    // 分贝值打包时放大 100 倍
+    private static final int PACK_SCALE = 100;
+
+    static {
+        for (int i = 0; i <= (1 << MANTISSA_BITS); i++) {
+            LOG2_MANTISSA_TABLE[i] = (int) Math.round(Math.log(1 + (double) i / (1 << MANTISSA_BITS))
+                    / Math.log(2) * (1 << LOG2_FRAC_BITS));
+        }
+    }
+
+    private final int mBitsPerSample;
+    private final int mSamplesPerSegment;// 每段包含的单声道采样个数，所有声道一起统计
+
+    private final long[] mSegmentSquareSums;
+    private final int[] mSegmentPeaks;
+    private final int[] mSegmentCounts;
+    private int mSegmentIndex;
+    private int mFilledSegments;
+
+    // 当前正在累加的段
+    private long mSquareSum;
+    private int mPeak;
+    private int mCount;
+
+    // 整个窗口内已完成各段的合计
+    private long mWindowSquareSum;
+    private long mWindowCount;
+
+    // 高 32 位是 RMS 分贝 * 100，低 32 位是峰值分贝 * 100
+    private volatile long mPackedLevel;
+
+    public PcmLevelMeter(int sampleRate, int channelNums, int bitsPerSample) {
+        this(sampleRate, channelNums, bitsPerSample, DEFAULT_WINDOW_MILLS);
+    }
+
+    /**
+     * @param bitsPerSample 只支持 8 位无符号和 16 位有符号小端
+     */
+    public PcmLevelMeter(int sampleRate, int channelNums, int bitsPerSample, int windowMills) {
+        if (sampleRate <= 0 || channelNums <= 0 || (bitsPerSample != 8 && bitsPerSample != 16)) {
+            throw new IllegalArgumentException("PcmLevelMeter params is illegal: " + sampleRate
+                    + "Hz " + channelNums + "Channels " + bitsPerSample + "bit");
+        }
+        mBitsPerSample = bitsPerSample;
+        mSamplesPerSegment = Math.max(1, sampleRate * channelNums * SEGMENT_MILLS / 1000);
+        int segments = Math.max(1, windowMills / SEGMENT_MILLS);
+        mSegmentSquareSums = new long[segments];
+        mSegmentPeaks = new int[segments];
+        mSegmentCounts = new int[segments];
+    }
+
+    /**
+     * 采集线程调用，送入一块交错的 PCM 数据，不满一个采样的尾部字节忽略
+     */
+    public void update(byte[] pcmData, int offset, int size) {
+        if (mBitsPerSample == 16) {
+            update16(pcmData, offset, size / 2);
+        } else {
+            update8(pcmData, offset, size);
+        }
+    }
+
+    private void update16(byte[] pcmData, int offset, int samples) {
+        int index = offset;
+        while (samples > 0) {
+            // 每次最多处理到当前段结束，内层循环不用判断段边界
+            int count = Math.min(samples, mSamplesPerSegment - mCount);
+            long squareSum = 0;
+            // 分别记录最大值和最小值，循环里只有 max/min，没有求绝对值和分支
+            int max = 0;
+            int min = 0;
+            int value;
+            for (int end = index + count * 2; index < end; index += 2) {
+                value = (short) ((pcmData[index] & 0xff) | (pcmData[index + 1] << 8));
+                squareSum += value * value;
+                max = Math.max(max, value);
+                min = Math.min(min, value);
+            }
+            appendToSegment(squareSum, Math.max(mPeak, Math.max(max, -min)), count);
+            samples -= count;
+        }
+    }
+
+    private void update8(byte[] pcmData, int offset, int samples) {
+        int index = offset;
+        while (samples > 0) {
+            int count = Math.min(samples, mSamplesPerSegment - mCount);
+            long squareSum = 0;
+            int max = 0;
+            int min = 0;
+            int value;
+            for (int end = index + count; index < end; index++) {
+                // 8 位无符号，以 128 为零点，放大到 16 位的范围
+                value = ((pcmData[index] & 0xff) - 128) << 8;
+                squareSum += value * value;
+                max = Math.max(max, value);
+                min = Math.min(min, value);
+            }
+            appendToSegment(squareSum, Math.max(mPeak, Math.max(max, -min)), count);
+            samples -= count;
+        }
+    }
+
+    private void appendToSegment(long squareSum, int peak, int count) {
+        mSquareSum += squareSum;
+        mPeak = peak;
+        mCount += count;
+        if (mCount == mSamplesPerSegment) {
+            finishSegment();
+            mSquareSum = 0;
+            mPeak = 0;
+            mCount = 0;
+        }
+    }
+
+    private void finishSegment() {
+        final int index = mSegmentIndex;
+        if (mFilledSegments == mSegmentSquareSums.length) {
+            // 窗口已满，减去最旧的一段，它正好在将要写入的位置
+            mWindowSquareSum -= mSegmentSquareSums[index];
+            mWindowCount -= mSegmentCounts[index];
+        } else {
+            mFilledSegments++;
+        }
+        mSegmentSquareSums[index] = mSquareSum;
+        mSegmentPeaks[index] = mPeak;
+        mSegmentCounts[index] = mCount;
+        mWindowSquareSum += mSquareSum;
+        mWindowCount += mCount;
+        mSegmentIndex = index + 1 == mSegmentSquareSums.length ? 0 : index + 1;
+
+        int windowPeak = 0;
+        for (int i = 0; i < mFilledSegments; i++) {
+            if (mSegmentPeaks[i] > windowPeak) {
+                windowPeak = mSegmentPeaks[i];
+            }
+        }
+        // 均方值的分贝是 10 * log10，峰值的分贝是 20 * log10，即峰值平方的 10 * log10
+        int rmsDb = powerToDecibels100(mWindowSquareSum / mWindowCount);
+        int peakDb = powerToDecibels100((long) windowPeak * windowPeak);
+        mPackedLevel = ((long) rmsDb << 32) | (peakDb & 0xffffffffL);
+    }
+
+    /**
+     * 10 * log10(power) * 100，power 小于 1 时返回 0
+     */
+    static int powerToDecibels100(long power) {
+        if (power < 1) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(power);
+        // 把最高位移到第 24 位，其后 8 位是尾数下标，再往后 16 位用于相邻表项之间线性插值
+        long normalized = exponent >= 24 ? power >>> (exponent - 24) : power << (24 - exponent);
+        int mantissa = (int) (normalized >>> 16) & ((1 << MANTISSA_BITS) - 1);
+        int fraction = (int) normalized & 0xffff;
+        int low = LOG2_MANTISSA_TABLE[mantissa];
+        int high = LOG2_MANTISSA_TABLE[mantissa + 1];
+        long log2 = ((long) exponent << LOG2_FRAC_BITS) + low + (((long) (high - low) * fraction) >> 16);
+        // 四舍五入到 0.01dB
+        return (int) ((log2 * DB_PER_LOG2 * PACK_SCALE + (1L << (2 * LOG2_FRAC_BITS - 1))) >> (2 * LOG2_FRAC_BITS));
+    }
+
+    /**
+     * 窗口内均方根的分贝值，任意线程调用
+     */
+    public double getRmsDecibels() {
+        return (double) (int) (mPackedLevel >> 32) / PACK_SCALE;
+    }
+
+    /**
+     * 窗口内峰值的分贝值，任意线程调用
+     */
+    public double getPeakDecibels() {
+        return (double) (int) mPackedLevel / PACK_SCALE;
+    }
+
+    /**
+     * 清空窗口和已发布的分贝值，只能在采集线程或者采集停止后调用
+     */
+    public void reset() {
+        for (int i = 0; i < mSegmentSquareSums.length; i++) {
+            mSegmentSquareSums[i] = 0;
+            mSegmentPeaks[i] = 0;
+            mSegmentCounts[i] = 0;
+        }
+        mSegmentIndex = 0;
+        mFilledSegments = 0;
+        mSquareSum = 0;
+        mPeak = 0;
+        mCount = 0;
+        mWindowSquareSum = 0;
+        mWindowCount = 0;
+        mPackedLevel = 0;
+    }
+
+}
@@ -25,7 +25,7 @@ public class WeNAudioRecorder {
 
     private native int nativeGetBitsPerSample();
 
-    private native boolean nativeStartRecord();
+    private native boolean nativeStartRecord(int ringSlotCount);
 
     private native boolean nativeResumeRecord();
 
@@ -35,6 +35,10 @@ public class WeNAudioRecorder {
 
     private native void nativeReleaseRecorder();
 
+    private native long[] nativeGetCallbackStats();
+
+    private native long[] nativeGetCaptureStats();
+
     private boolean constructHasParams;
 
     private SampleRate mSampleRate;
@@ -46,8 +50,12 @@ public class WeNAudioRecorder {
     private int mAudioBytesPerSecond;
     private long mAudioPts = 0;
     private long mRecordTimeMills;
-    private double mAmplitudeAvg = 0;// 当前播放声音振幅平均值，即当前所有采样值大小平均值
-    private double mSoundDecibels = 0;// 当前播放声音分贝值，单位：dB
+    private PcmLevelMeter mLevelMeter;// 回调线程更新，界面线程读取当前声音分贝值
+    private static final int CALLBACK_STATS_UPDATE_INTERVAL = 100;// 每回调多少次更新一次回调耗时统计
+    private int mCallbackCountSinceStatsUpdate;
+    private volatile long[] mPcmCallbackStats;
+    private volatile long[] mCaptureStats;
+    private int mCaptureRingSlotCount;// 小于 2 时使用 native 默认值
 
     // 接口调度线程
     private HandlerThread mWorkThread;
@@ -64,6 +72,9 @@ public class WeNAudioRecorder {
     private static final int HANDLE_RELEASE = 5;
 
     public interface OnAudioRecordDataListener {
+        /**
+         * @param data 每次回调都是新的数组，可以直接保留
+         */
         void onAudioRecordData(byte[] data, int size);
     }
 
@@ -182,6 +193,9 @@ public class WeNAudioRecorder {
             mAudioBytesPerSecond = mSampleRateInHz * mChannelNum * mBitsPerSample / 8;
             LogUtils.w(TAG, "init success! " + mSampleRateInHz + "Hz " + mChannelNum
                     + "Channels " + mBitsPerSample + "bit");
+            if (mBitsPerSample == 8 || mBitsPerSample == 16) {
+                mLevelMeter = new PcmLevelMeter(mSampleRateInHz, mChannelNum, mBitsPerSample);
+            }
         }
     }
 
@@ -218,7 +232,7 @@ public class WeNAudioRecorder {
         }
         isRecording = true;
 
-        boolean success = nativeStartRecord();
+        boolean success = nativeStartRecord(mCaptureRingSlotCount);
         if (!success) {
             LogUtils.e(TAG, "Start native recorder failed!");
         }
@@ -260,8 +274,9 @@ public class WeNAudioRecorder {
     private void onNativePCMDataCall(byte[] pcmData, int size) {
         if (pcmData == null || size <= 0 || pcmData.length < size) {
             LogUtils.e(TAG, "onNativePCMDataCall but pcmData=" + pcmData + ";size=" + size);
-            mAmplitudeAvg = 0;
-            mSoundDecibels = 0;
+            if (mLevelMeter != null) {
+                mLevelMeter.reset();
+            }
             return;
         }
 
@@ -270,40 +285,19 @@ public class WeNAudioRecorder {
         mRecordTimeMills = mAudioPts / 1000;
 
         // 更新声响
-        updateSoundDecibels(pcmData, size);
+        if (mLevelMeter != null) {
+            mLevelMeter.update(pcmData, 0, size);
+        }
 
         if (mOnAudioRecordDataListener != null) {
             mOnAudioRecordDataListener.onAudioRecordData(pcmData, size);
         }
-    }
 
-    private void updateSoundDecibels(byte[] pcmData, int size) {
-        double amplitudeSum = 0;// 采样值加和
-        switch (mBitsPerSample) {
-            case 8:
-                for (int i = 0; i < size; i++) {
-                    amplitudeSum += Math.abs(pcmData[i]);// 把这段时间的所有采样值加和
-                }
-                // 更新振幅平均值
-                mAmplitudeAvg = amplitudeSum / size;// 除数是 8 位采样点个数
-                break;
-
-            case 16:
-                // 针对 16 位编码，要先把两个 8 位转成 16 位的数据再计算振幅
-                short amplitudeShort = 0;// 16bit 采样值
-                for (int i = 0; i < size; i += 2) {
-                    amplitudeShort = (short) ((pcmData[i] & 0xff) | ((pcmData[i + 1] & 0xff) << 8));
-                    amplitudeSum += Math.abs(amplitudeShort);// 把这段时间的所有采样值加和
-                }
-                // 更新振幅平均值
-                mAmplitudeAvg = amplitudeSum / (size / 2);// 除数是 16 位采样点个数
-                break;
-        }
-        // 更新分贝值：分贝 = 20 * log10(振幅)
-        if (mAmplitudeAvg > 0) {
-            mSoundDecibels = 20 * Math.log10(mAmplitudeAvg);
-        } else {
-            mSoundDecibels = 0;
+        // 回调线程中 native 对象一定还没释放，在这里顺便更新统计
+        if (++mCallbackCountSinceStatsUpdate >= CALLBACK_STATS_UPDATE_INTERVAL) {
+            mCallbackCountSinceStatsUpdate = 0;
+            mPcmCallbackStats = nativeGetCallbackStats();
+            mCaptureStats = nativeGetCaptureStats();
         }
     }
 
@@ -315,10 +309,51 @@ public class WeNAudioRecorder {
     }
 
     /**
-     * 获取当前播放声音分贝值，单位：dB
+     * 获取当前声音分贝值，即最近一段时间的均方根分贝，单位：dB
      */
     public double getSoundDecibels() {
-        return mSoundDecibels;
+        PcmLevelMeter meter = mLevelMeter;
+        return meter != null ? meter.getRmsDecibels() : 0;
+    }
+
+    /**
+     * 获取当前声音峰值分贝值，即最近一段时间的最大振幅分贝，单位：dB
+     */
+    public double getSoundPeakDecibels() {
+        PcmLevelMeter meter = mLevelMeter;
+        return meter != null ? meter.getPeakDecibels() : 0;
+    }
+
+    /**
+     * 获取 native 层 PCM 数据回调到 Java 层的耗时统计：{回调次数, 平均耗时, 最大耗时}，耗时单位：微秒
+     * 包括获取 JNIEnv、复制数据和 Java 层处理数据的时间，每 100 次回调以及停止录音时更新一次，还没有数据时为 null
+     */
+    public long[] getPcmCallbackStats() {
+        return mPcmCallbackStats;
+    }
+
+    /**
+     * 设置 native 录音环形队列的槽个数，每个槽存放一次 OpenSL 回调的数据，下次开始录音时生效
+     * Java 层处理数据慢时，最多可以积压这么多个回调的数据而不丢失，小于 2 时使用默认值 8
+     */
+    public void setCaptureRingSlotCount(int slotCount) {
+        this.mCaptureRingSlotCount = slotCount;
+    }
+
+    /**
+     * 获取本次录音因为环形队列满而丢弃的数据块个数，更新时机同 {@link #getPcmCallbackStats()}
+     */
+    public long getCaptureOverrunCount() {
+        long[] stats = mCaptureStats;
+        return stats != null ? stats[0] : 0;
+    }
+
+    /**
+     * 获取本次录音时 OpenSL 回调到来时已经没有空闲 buffer 的次数，大于 0 说明录音回调被耽误过，可能丢失了声音
+     */
+    public long getCaptureUnderrunCount() {
+        long[] stats = mCaptureStats;
+        return stats != null ? stats[1] : 0;
     }
 
     public void pauseRecord() {
@@ -362,6 +397,9 @@ public class WeNAudioRecorder {
         mRecordTimeMills = 0;
 
         nativeStopRecord();
+        mPcmCallbackStats = nativeGetCallbackStats();
+        mCaptureStats = nativeGetCaptureStats();
+        mCallbackCountSinceStatsUpdate = 0;
     }
 
     public void release() {
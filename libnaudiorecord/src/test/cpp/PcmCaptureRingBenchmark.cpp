@@ -0,0 +1,145 @@
+//
+// PcmCaptureRing 的吞吐量和延迟基准，生产者、消费者按 WeAudioRecorder 的方式用信号量配合：
+// 1. 吞吐量：生产者不停写入，队列满时让出 CPU 重试，统计每秒传递的字节数；
+// 2. 延迟：生产者按固定周期写入带时间戳的块，统计从写入到消费者取到的时长分布
+//   pcm_capture_ring_benchmark [periodMicros]
+//
+
+#include <pthread.h>
+#include <sched.h>
+#include <semaphore.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <algorithm>
+#include <vector>
+#include "PcmCaptureRing.h"
+
+// 与 WeAudioRecorder 默认的槽个数和每次回调的字节数（4096 个 16 位采样）一致
+static const int SLOT_COUNT = 8;
+static const int BYTES_PER_SLOT = 4096 * 2;
+
+static const int64_t THROUGHPUT_BYTES = 1024LL * 1024 * 1024;
+static const int LATENCY_BLOCKS = 2000;
+
+static int64_t nowNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+typedef struct BenchContext {
+    PcmCaptureRing *ring;
+    sem_t dataSem;
+    int blocks;
+    int periodMicros;// 小于等于 0 时不停写入
+    int64_t fullRetries;
+    std::vector<int64_t> latencies;
+} BenchContext;
+
+static void *produce(void *arg) {
+    BenchContext *context = (BenchContext *) arg;
+    std::vector<uint8_t> block(BYTES_PER_SLOT, 0x5a);
+    int64_t start = nowNanos();
+    for (int i = 0; i < context->blocks; i++) {
+        if (context->periodMicros > 0) {
+            int64_t wait = start + (int64_t) i * context->periodMicros * 1000 - nowNanos();
+            if (wait > 0) {
+                usleep((useconds_t) (wait / 1000));
+            }
+        }
+        int64_t stamp = nowNanos();
+        memcpy(block.data(), &stamp, sizeof(stamp));
+        while (!context->ring->write(block.data(), BYTES_PER_SLOT)) {
+            context->fullRetries++;
+            sched_yield();
+        }
+        sem_post(&context->dataSem);
+    }
+    return NULL;
+}
+
+static void *consume(void *arg) {
+    BenchContext *context = (BenchContext *) arg;
+    // 模拟回调给 Java 层时的一次复制
+    std::vector<uint8_t> sink(BYTES_PER_SLOT);
+    int size = 0;
+    for (int i = 0; i < context->blocks; i++) {
+        sem_wait(&context->dataSem);
+        const uint8_t *data = context->ring->peekRead(&size);
+        if (data == NULL) {
+            i--;
+            continue;
+        }
+        int64_t stamp;
+        memcpy(&stamp, data, sizeof(stamp));
+        if (context->periodMicros > 0) {
+            context->latencies.push_back(nowNanos() - stamp);
+        }
+        memcpy(sink.data(), data, size);
+        context->ring->releaseRead();
+    }
+    return NULL;
+}
+
+static int64_t run(BenchContext *context) {
+    PcmCaptureRing ring(SLOT_COUNT, BYTES_PER_SLOT);
+    context->ring = &ring;
+    context->fullRetries = 0;
+    context->latencies.clear();
+    context->latencies.reserve(context->blocks);
+    sem_init(&context->dataSem, 0, 0);
+    int64_t start = nowNanos();
+    pthread_t producer;
+    pthread_t consumer;
+    pthread_create(&consumer, NULL, consume, context);
+    pthread_create(&producer, NULL, produce, context);
+    pthread_join(producer, NULL);
+    pthread_join(consumer, NULL);
+    int64_t elapsed = nowNanos() - start;
+    sem_destroy(&context->dataSem);
+    context->ring = NULL;
+    return elapsed;
+}
+
+static double percentileMicros(std::vector<int64_t> &sorted, double percentile) {
+    size_t index = (size_t) (percentile / 100 * (sorted.size() - 1));
+    return sorted[index] / 1000.0;
+}
+
+int main(int argc, char *argv[]) {
+    int periodMicros = argc > 1 ? atoi(argv[1]) : 1000;
+    if (periodMicros <= 0) {
+        fprintf(stderr, "periodMicros params is illegal: %s\n", argv[1]);
+        return 1;
+    }
+    printf("slots=%d bytesPerSlot=%d cpus=%d\n", SLOT_COUNT, BYTES_PER_SLOT,
+           (int) sysconf(_SC_NPROCESSORS_ONLN));
+
+    BenchContext context;
+    context.blocks = (int) (THROUGHPUT_BYTES / BYTES_PER_SLOT);
+    context.periodMicros = 0;
+    int64_t elapsed = run(&context);
+    printf("throughput: %lld bytes in %.1f ms, %.1f MB/s, %.0f blocks/s, fullRetries=%lld\n",
+           (long long) THROUGHPUT_BYTES, elapsed / 1000000.0,
+           THROUGHPUT_BYTES / 1048576.0 / (elapsed / 1000000000.0),
+           context.blocks / (elapsed / 1000000000.0), (long long) context.fullRetries);
+
+    context.blocks = LATENCY_BLOCKS;
+    context.periodMicros = periodMicros;
+    run(&context);
+    std::vector<int64_t> &latencies = context.latencies;
+    std::sort(latencies.begin(), latencies.end());
+    int64_t sum = 0;
+    for (size_t i = 0; i < latencies.size(); i++) {
+        sum += latencies[i];
+    }
+    printf("latency: %d blocks every %d us, avg %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us,"
+           " fullRetries=%lld\n", (int) latencies.size(), periodMicros,
+           sum / 1000.0 / latencies.size(), percentileMicros(latencies, 50),
+           percentileMicros(latencies, 99), latencies.back() / 1000.0,
+           (long long) context.fullRetries);
+    return 0;
+}
@@ -0,0 +1,192 @@
+//
+// PcmCaptureRing 的顺序、满/空边界和单生产者单消费者并发测试
+//
+
+#include <pthread.h>
+#include <string.h>
+#include <unistd.h>
+#include "WeTest.h"
+#include "PcmCaptureRing.h"
+
+static const int BYTES_PER_SLOT = 256;
+
+/**
+ * 每块数据的每个 int 都写入块序号，消费端据此检查顺序和内容完整
+ */
+static void fillBlock(int *block, int ints, int sequence) {
+    for (int i = 0; i < ints; i++) {
+        block[i] = sequence;
+    }
+}
+
+static bool checkBlock(const uint8_t *data, int size, int sequence) {
+    int value;
+    for (int offset = 0; offset + 4 <= size; offset += 4) {
+        memcpy(&value, data + offset, 4);
+        if (value != sequence) {
+            return false;
+        }
+    }
+    return true;
+}
+
+static void testFifoAndSizes() {
+    PcmCaptureRing ring(4, BYTES_PER_SLOT);
+    WE_CHECK_EQ(4, ring.getSlotCount());
+    WE_CHECK_EQ(BYTES_PER_SLOT, ring.getBytesPerSlot());
+
+    int block[BYTES_PER_SLOT / 4];
+    for (int i = 0; i < 3; i++) {
+        fillBlock(block, BYTES_PER_SLOT / 4, i);
+        WE_CHECK(ring.write(block, 64 * (i + 1)));
+    }
+    WE_CHECK_EQ(3, ring.getFilledCount());
+
+    int size = 0;
+    for (int i = 0; i < 3; i++) {
+        const uint8_t *data = ring.peekRead(&size);
+        WE_CHECK(data != NULL);
+        WE_CHECK_EQ(64 * (i + 1), size);
+        WE_CHECK(checkBlock(data, size, i));
+        // releaseRead 之前再次 peek 还是同一个槽
+        WE_CHECK(ring.peekRead(&size) == data);
+        ring.releaseRead();
+    }
+    WE_CHECK(ring.peekRead(&size) == NULL);
+    WE_CHECK_EQ(0, size);
+    WE_CHECK_EQ(0, ring.getFilledCount());
+}
+
+static void testFullAndIllegalWrites() {
+    PcmCaptureRing ring(3, BYTES_PER_SLOT);
+    uint8_t block[BYTES_PER_SLOT + 1];
+    memset(block, 0, sizeof(block));
+
+    WE_CHECK(!ring.write(block, 0));
+    WE_CHECK(!ring.write(block, -1));
+    WE_CHECK(!ring.write(block, BYTES_PER_SLOT + 1));
+    WE_CHECK_EQ(0, ring.getFilledCount());
+
+    for (int i = 0; i < 3; i++) {
+        WE_CHECK(ring.write(block, BYTES_PER_SLOT));
+    }
+    // 满了直接丢弃，不覆盖未读的槽
+    WE_CHECK(!ring.write(block, BYTES_PER_SLOT));
+    WE_CHECK_EQ(3, ring.getFilledCount());
+
+    int size;
+    ring.peekRead(&size);
+    ring.releaseRead();
+    WE_CHECK(ring.write(block, BYTES_PER_SLOT));
+    WE_CHECK_EQ(3, ring.getFilledCount());
+}
+
+static void testEmptyReleaseAndMinSlots() {
+    PcmCaptureRing ring(1, BYTES_PER_SLOT);
+    WE_CHECK_EQ(2, ring.getSlotCount());
+
+    // 空队列上 releaseRead 不能让读计数超过写计数
+    ring.releaseRead();
+    ring.releaseRead();
+    WE_CHECK_EQ(0, ring.getFilledCount());
+
+    int block[BYTES_PER_SLOT / 4];
+    fillBlock(block, BYTES_PER_SLOT / 4, 7);
+    WE_CHECK(ring.write(block, BYTES_PER_SLOT));
+    WE_CHECK(ring.write(block, BYTES_PER_SLOT));
+    WE_CHECK(!ring.write(block, BYTES_PER_SLOT));
+    int size;
+    WE_CHECK(checkBlock(ring.peekRead(&size), size, 7));
+}
+
+struct StressContext {
+    PcmCaptureRing *ring;
+    int total;
+    volatile bool isProducerDone;
+    int written;
+    int dropped;
+    int consumed;
+    int outOfOrder;
+    int corrupted;
+};
+
+static void *producerRun(void *data) {
+    StressContext *context = static_cast<StressContext *>(data);
+    int block[BYTES_PER_SLOT / 4];
+    for (int i = 0; i < context->total; i++) {
+        fillBlock(block, BYTES_PER_SLOT / 4, i);
+        if (context->ring->write(block, BYTES_PER_SLOT)) {
+            context->written++;
+        } else {
+            context->dropped++;
+        }
+        if (i % 12 == 11) {
+            usleep(20);// 大致按录音回调的节奏成批写入，消费者卡顿时才会写满
+        }
+    }
+    __atomic_store_n(&context->isProducerDone, true, __ATOMIC_RELEASE);
+    return NULL;
+}
+
+static void *consumerRun(void *data) {
+    StressContext *context = static_cast<StressContext *>(data);
+    int last = -1;
+    int size;
+    while (true) {
+        const uint8_t *block = context->ring->peekRead(&size);
+        if (block == NULL) {
+            if (__atomic_load_n(&context->isProducerDone, __ATOMIC_ACQUIRE)
+                && context->ring->getFilledCount() == 0) {
+                break;
+            }
+            continue;
+        }
+        int sequence;
+        memcpy(&sequence, block, 4);
+        if (sequence <= last) {
+            context->outOfOrder++;
+        }
+        if (size != BYTES_PER_SLOT || !checkBlock(block, size, sequence)) {
+            context->corrupted++;
+        }
+        last = sequence;
+        context->consumed++;
+        if (context->consumed % 5000 == 0) {
+            usleep(2000);// 模拟 Java 层偶尔的卡顿
+        }
+        context->ring->releaseRead();
+    }
+    return NULL;
+}
+
+/**
+ * 录音回调线程写、Java 回调线程读：读到的块按顺序、内容完整，写入成功的块一个不少
+ */
+static void testConcurrentProducerConsumer() {
+    PcmCaptureRing ring(16, BYTES_PER_SLOT);
+    StressContext context;
+    memset(&context, 0, sizeof(context));
+    context.ring = &ring;
+    context.total = 200000;
+
+    pthread_t producer;
+    pthread_t consumer;
+    pthread_create(&consumer, NULL, consumerRun, &context);
+    pthread_create(&producer, NULL, producerRun, &context);
+    pthread_join(producer, NULL);
+    pthread_join(consumer, NULL);
+
+    printf("    written=%d dropped=%d consumed=%d\n", context.written, context.dropped, context.consumed);
+    WE_CHECK_EQ(context.total, context.written + context.dropped);
+    WE_CHECK_EQ(context.written, context.consumed);
+    WE_CHECK_EQ(0, context.outOfOrder);
+    WE_CHECK_EQ(0, context.corrupted);
+}
+
+int main() {
+    WE_RUN(testFifoAndSizes);
+    WE_RUN(testFullAndIllegalWrites);
+    WE_RUN(testEmptyReleaseAndMinSlots);
+    WE_RUN(testConcurrentProducerConsumer);
+    return WE_RESULT();
+}
@@ -0,0 +1,90 @@
+package com.wtz.libnaudiorecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PcmLevelMeter 与原来每次回调都扫描整块数据、调用 Math.log10 计算分贝的耗时对比，
+ * 每次调用送入一次回调的数据，在开发机的 JVM 上运行 main
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PcmLevelMeterBenchmark {
+
+    // 4096 是 44.1kHz 双声道 16 位一次回调约 23ms 的数据
+    @Param({"1024", "4096", "16384"})
+    public int size;
+
+    private byte[] mPcm;
+    private PcmLevelMeter mMeter;
+    private double mAmplitudeAvg;
+    private double mSoundDecibels;
+
+    @Setup
+    public void setup() {
+        mPcm = new byte[size];
+        new Random(1).nextBytes(mPcm);
+        mMeter = new PcmLevelMeter(44100, 2, 16);
+    }
+
+    /**
+     * 原 WeJAudioRecorder/WeNAudioRecorder 的 updateSoundDecibels 16 位分支
+     */
+    @Benchmark
+    public double oldUpdateSoundDecibels() {
+        final byte[] pcmData = mPcm;
+        double amplitudeSum = 0;
+        short amplitudeShort;
+        for (int i = 0; i < size; i += 2) {
+            amplitudeShort = (short) ((pcmData[i] & 0xff) | ((pcmData[i + 1] & 0xff) << 8));
+            amplitudeSum += Math.abs(amplitudeShort);
+        }
+        mAmplitudeAvg = amplitudeSum / (size / 2);
+        if (mAmplitudeAvg > 0) {
+            mSoundDecibels = 20 * Math.log10(mAmplitudeAvg);
+        } else {
+            mSoundDecibels = 0;
+        }
+        return mSoundDecibels;
+    }
+
+    @Benchmark
+    public double meterUpdate() {
+        mMeter.update(mPcm, 0, size);
+        return mMeter.getRmsDecibels();
+    }
+
+    /**
+     * 界面线程读取的开销
+     */
+    @Benchmark
+    public double meterRead() {
+        return mMeter.getRmsDecibels() + mMeter.getPeakDecibels();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PcmLevelMeterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
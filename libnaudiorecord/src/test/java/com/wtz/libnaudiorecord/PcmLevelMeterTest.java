@@ -0,0 +1,103 @@
+package com.wtz.libnaudiorecord;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmLevelMeterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static byte[] sine16(double amplitude, int samples, int channelNums) {
+        byte[] bytes = new byte[samples * channelNums * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE));
+            for (int c = 0; c < channelNums; c++) {
+                int index = (i * channelNums + c) * 2;
+                bytes[index] = (byte) value;
+                bytes[index + 1] = (byte) (value >> 8);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 查表换算与 Math.log10 相比误差小于 0.01dB
+     */
+    @Test
+    public void decibelTableMatchesLog10() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            long power = (long) Math.pow(2, random.nextDouble() * 62);
+            if (power < 1) {
+                continue;
+            }
+            double expected = 10 * Math.log10(power);
+            double actual = PcmLevelMeter.powerToDecibels100(power) / 100.0;
+            assertTrue("power " + power + " diff " + (actual - expected), Math.abs(actual - expected) < 0.01);
+        }
+        assertEquals(0, PcmLevelMeter.powerToDecibels100(0));
+    }
+
+    /**
+     * 半幅正弦：峰值为 20 * log10(16384)，RMS 比峰值低 3.01dB
+     */
+    @Test
+    public void sineRmsAndPeak() {
+        PcmLevelMeter meter = new PcmLevelMeter(SAMPLE_RATE, 2, 16);
+        byte[] data = sine16(16384, SAMPLE_RATE / 2, 2);
+        // 分成大小不一的块送入，段边界不会和块边界对齐
+        int offset = 0;
+        int step = 1234;
+        while (offset < data.length) {
+            int size = Math.min(step, data.length - offset);
+            meter.update(data, offset, size);
+            offset += size;
+            step = step == 1234 ? 98 : 1234;
+        }
+        double peak = 20 * Math.log10(16384);
+        assertEquals(peak, meter.getPeakDecibels(), 0.02);
+        assertEquals(peak - 10 * Math.log10(2), meter.getRmsDecibels(), 0.02);
+    }
+
+    /**
+     * 只统计最近一个窗口：大声之后安静一个窗口以上，读数回到安静时的值
+     */
+    @Test
+    public void windowForgetsOldSegments() {
+        PcmLevelMeter meter = new PcmLevelMeter(SAMPLE_RATE, 1, 16, 100);
+        byte[] loud = sine16(30000, SAMPLE_RATE / 5, 1);
+        meter.update(loud, 0, loud.length);
+        byte[] quiet = sine16(100, SAMPLE_RATE / 5, 1);
+        meter.update(quiet, 0, quiet.length);
+        assertEquals(20 * Math.log10(100), meter.getPeakDecibels(), 0.1);
+    }
+
+    @Test
+    public void silenceIsZero() {
+        PcmLevelMeter meter8 = new PcmLevelMeter(SAMPLE_RATE, 1, 8);
+        byte[] silence8 = new byte[SAMPLE_RATE / 10];
+        Arrays.fill(silence8, (byte) 128);
+        meter8.update(silence8, 0, silence8.length);
+        assertEquals(0, meter8.getRmsDecibels(), 0);
+        assertEquals(0, meter8.getPeakDecibels(), 0);
+
+        PcmLevelMeter meter16 = new PcmLevelMeter(SAMPLE_RATE, 1, 16);
+        byte[] loud = sine16(8000, SAMPLE_RATE / 10, 1);
+        meter16.update(loud, 0, loud.length);
+        assertTrue(meter16.getRmsDecibels() > 0);
+        meter16.reset();
+        assertEquals(0, meter16.getRmsDecibels(), 0);
+        assertEquals(0, meter16.getPeakDecibels(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedBits() {
+        new PcmLevelMeter(SAMPLE_RATE, 1, 24);
+    }
+
+}
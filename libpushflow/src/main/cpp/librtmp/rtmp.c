@@ -32,6 +32,10 @@
 #include "rtmp_sys.h"
 #include "log.h"
 
+#if !defined(_WIN32) && !defined(CRYPTO)
+#include <sys/uio.h>
+#endif
+
 #ifdef CRYPTO
 #ifdef USE_POLARSSL
 #include <polarssl/havege.h>
@@ -4117,6 +4121,218 @@ RTMP_SendPacket(RTMP *r, RTMPPacket *packet, int queue)
   return TRUE;
 }
 
+/* Send a header and a body slice with one system call when possible,
+ * so TCP_NODELAY does not turn every chunk header into its own segment.
+ */
+static int
+WriteChunk(RTMP *r, const char *header, int hSize, const char *body, int bSize)
+{
+#if !defined(_WIN32) && !defined(CRYPTO)
+  struct iovec iov[2], *v = iov;
+  int cnt = 0;
+
+  if (r->Link.protocol & RTMP_FEATURE_HTTP)
+    return (hSize == 0 || WriteN(r, header, hSize))
+      && (bSize == 0 || WriteN(r, body, bSize));
+
+  if (hSize > 0)
+    {
+      iov[cnt].iov_base = (void *)header;
+      iov[cnt].iov_len = hSize;
+      cnt++;
+    }
+  if (bSize > 0)
+    {
+      iov[cnt].iov_base = (void *)body;
+      iov[cnt].iov_len = bSize;
+      cnt++;
+    }
+
+  while (cnt > 0)
+    {
+      ssize_t nBytes = writev(r->m_sb.sb_socket, v, cnt);
+
+      if (nBytes < 0)
+	{
+	  int sockerr = GetSockError();
+	  RTMP_Log(RTMP_LOGERROR, "%s, RTMP send error %d (%d bytes)", __FUNCTION__,
+	      sockerr, hSize + bSize);
+
+	  if (sockerr == EINTR && !RTMP_ctrlC)
+	    continue;
+
+	  RTMP_Close(r);
+	  return FALSE;
+	}
+
+      if (nBytes == 0)
+	return FALSE;
+
+      while (cnt > 0 && nBytes >= (ssize_t)v->iov_len)
+	{
+	  nBytes -= v->iov_len;
+	  v++;
+	  cnt--;
+	}
+      if (cnt > 0)
+	{
+	  v->iov_base = (char *)v->iov_base + nBytes;
+	  v->iov_len -= nBytes;
+	}
+    }
+  return TRUE;
+#else
+  return (hSize == 0 || WriteN(r, header, hSize))
+    && (bSize == 0 || WriteN(r, body, bSize));
+#endif
+}
+
+/* Like RTMP_SendPacket(r, packet, FALSE), but neither the packet nor its body
+ * is modified: chunk headers are built in local buffers instead of in front
+ * of each body slice. So one packet can be sent by several connections at
+ * the same time. The message stream id is always r->m_stream_id, the
+ * packet's m_nInfoField2 is ignored. Meant for audio/video data only,
+ * remote method calls are not tracked.
+ */
+int
+RTMP_SendSharedPacket(RTMP *r, const RTMPPacket *packet)
+{
+  const RTMPPacket *prevPacket;
+  uint32_t last = 0;
+  uint32_t t;
+  int headerType = packet->m_headerType;
+  int nSize, hSize, cSize = 0, ccSize;
+  char hbuf[RTMP_MAX_HEADER_SIZE], cbuf[8], *hptr, c;
+  const char *buffer, *header;
+  int nChunkSize, nRemain, nSend;
+
+  if (packet->m_nChannel >= r->m_channelsAllocatedOut)
+    {
+      int n = packet->m_nChannel + 10;
+      RTMPPacket **packets = realloc(r->m_vecChannelsOut, sizeof(RTMPPacket*) * n);
+      if (!packets) {
+        free(r->m_vecChannelsOut);
+        r->m_vecChannelsOut = NULL;
+        r->m_channelsAllocatedOut = 0;
+        return FALSE;
+      }
+      r->m_vecChannelsOut = packets;
+      memset(r->m_vecChannelsOut + r->m_channelsAllocatedOut, 0, sizeof(RTMPPacket*) * (n - r->m_channelsAllocatedOut));
+      r->m_channelsAllocatedOut = n;
+    }
+
+  prevPacket = r->m_vecChannelsOut[packet->m_nChannel];
+  if (prevPacket && headerType != RTMP_PACKET_SIZE_LARGE)
+    {
+      /* compress a bit by using the prev packet's attributes */
+      if (prevPacket->m_nBodySize == packet->m_nBodySize
+	  && prevPacket->m_packetType == packet->m_packetType
+	  && headerType == RTMP_PACKET_SIZE_MEDIUM)
+	headerType = RTMP_PACKET_SIZE_SMALL;
+
+      if (prevPacket->m_nTimeStamp == packet->m_nTimeStamp
+	  && headerType == RTMP_PACKET_SIZE_SMALL)
+	headerType = RTMP_PACKET_SIZE_MINIMUM;
+      last = prevPacket->m_nTimeStamp;
+    }
+
+  if (headerType > 3)	/* sanity */
+    {
+      RTMP_Log(RTMP_LOGERROR, "sanity failed!! trying to send header of type: 0x%02x.",
+	  (unsigned char)headerType);
+      return FALSE;
+    }
+
+  nSize = packetSize[headerType];
+  t = packet->m_nTimeStamp - last;
+
+  if (packet->m_nChannel > 319)
+    cSize = 2;
+  else if (packet->m_nChannel > 63)
+    cSize = 1;
+
+  /* the first chunk header */
+  hptr = hbuf;
+  c = headerType << 6;
+  switch (cSize)
+    {
+    case 0:
+      c |= packet->m_nChannel;
+      break;
+    case 1:
+      break;
+    case 2:
+      c |= 1;
+      break;
+    }
+  *hptr++ = c;
+  if (cSize)
+    {
+      int tmp = packet->m_nChannel - 64;
+      *hptr++ = tmp & 0xff;
+      if (cSize == 2)
+	*hptr++ = tmp >> 8;
+    }
+
+  if (nSize > 1)
+    hptr = AMF_EncodeInt24(hptr, hbuf + sizeof(hbuf), t > 0xffffff ? 0xffffff : t);
+
+  if (nSize > 4)
+    {
+      hptr = AMF_EncodeInt24(hptr, hbuf + sizeof(hbuf), packet->m_nBodySize);
+      *hptr++ = packet->m_packetType;
+    }
+
+  if (nSize > 8)
+    hptr += EncodeInt32LE(hptr, r->m_stream_id);
+
+  if (t >= 0xffffff)
+    {
+      RTMP_Log(RTMP_LOGWARNING, "Larger timestamp than 24-bit: 0x%x", t);
+      hptr = AMF_EncodeInt32(hptr, hbuf + sizeof(hbuf), t);
+    }
+  hSize = hptr - hbuf;
+
+  /* the header of the following chunks */
+  hptr = cbuf;
+  *hptr++ = (0xc0 | c);
+  if (cSize)
+    {
+      int tmp = packet->m_nChannel - 64;
+      *hptr++ = tmp & 0xff;
+      if (cSize == 2)
+	*hptr++ = tmp >> 8;
+    }
+  if (t >= 0xffffff)
+    hptr = AMF_EncodeInt32(hptr, cbuf + sizeof(cbuf), t);
+  ccSize = hptr - cbuf;
+
+  header = hbuf;
+  buffer = packet->m_body;
+  nRemain = packet->m_nBodySize;
+  nChunkSize = r->m_outChunkSize;
+
+  RTMP_Log(RTMP_LOGDEBUG2, "%s: fd=%d, size=%d", __FUNCTION__, r->m_sb.sb_socket,
+      nRemain);
+  while (nRemain + hSize)
+    {
+      nSend = nRemain < nChunkSize ? nRemain : nChunkSize;
+      if (!WriteChunk(r, header, hSize, buffer, nSend))
+	return FALSE;
+
+      nRemain -= nSend;
+      buffer += nSend;
+      header = cbuf;
+      hSize = nRemain > 0 ? ccSize : 0;
+    }
+
+  if (!r->m_vecChannelsOut[packet->m_nChannel])
+    r->m_vecChannelsOut[packet->m_nChannel] = malloc(sizeof(RTMPPacket));
+  memcpy(r->m_vecChannelsOut[packet->m_nChannel], packet, sizeof(RTMPPacket));
+  r->m_vecChannelsOut[packet->m_nChannel]->m_headerType = headerType;
+  return TRUE;
+}
+
 int
 RTMP_Serve(RTMP *r)
 {
@@ -0,0 +1,352 @@
+//
+// Created by WTZ on 2020/5/9.
+//
+
+#include <stdlib.h>
+#include <string.h>
+#include "FlvFileSink.h"
+#include "RtmpPacketQueue.h"
+
+FlvFileSink::FlvFileSink() {
+    pthread_mutex_init(&mutex, NULL);
+}
+
+FlvFileSink::~FlvFileSink() {
+    close();
+    pthread_mutex_destroy(&mutex);
+}
+
+bool FlvFileSink::open(const char *path, bool hasVideo, bool hasAudio) {
+    pthread_mutex_lock(&mutex);
+    closeLocked();
+
+    file = fopen(path, "wb");
+    if (file == NULL) {
+        LOGE(LOG_TAG, "open file failed: %s", path);
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+    fileBuffer = static_cast<char *>(malloc(FILE_BUFFER_SIZE));
+    if (fileBuffer != NULL) {
+        setvbuf(file, fileBuffer, _IOFBF, FILE_BUFFER_SIZE);
+    }
+
+    unsigned char header[FLV_HEADER_SIZE + FLV_PREVIOUS_TAG_SIZE] = {
+            'F', 'L', 'V',
+            0x01,// version
+            0x00,// 5bit(reserved) + 1bit(audio) + 1bit(reserved) + 1bit(video)
+            0x00, 0x00, 0x00, FLV_HEADER_SIZE,// header size
+            0x00, 0x00, 0x00, 0x00// PreviousTagSize0 总是 0
+    };
+    header[4] = (hasAudio ? 0x04 : 0x00) | (hasVideo ? 0x01 : 0x00);
+    if (fwrite(header, 1, sizeof(header), file) != sizeof(header)) {
+        LOGE(LOG_TAG, "write flv header failed: %s", path);
+        closeLocked();
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+
+    this->hasVideo = hasVideo;
+    this->hasAudio = hasAudio;
+    isHeaderWritten = false;
+    isWaitingKeyframe = hasVideo;
+    isAudioConfigPending = !audioConfig.empty();
+    needRebase = true;
+    baseTimestamp = 0;
+    timestampOffset = 0;
+    lastTimestamp = 0;
+    lastRawTimestamp = 0;
+    lastVideoTimestamp = 0;
+    videoInterval = 0;
+    isResyncing = false;
+    durationValuePosition = -1;
+    fileSizeValuePosition = -1;
+    tagCount = 0;
+    fileBytes = sizeof(header);
+    if (LOG_DEBUG) {
+        LOGD(LOG_TAG, "open: %s video=%d audio=%d", path, hasVideo, hasAudio);
+    }
+    pthread_mutex_unlock(&mutex);
+    return true;
+}
+
+bool FlvFileSink::isOpened() {
+    pthread_mutex_lock(&mutex);
+    bool opened = file != NULL;
+    pthread_mutex_unlock(&mutex);
+    return opened;
+}
+
+bool FlvFileSink::isAacSequenceHeader(RTMPPacket *packet) {
+    return packet->m_packetType == RTMP_PACKET_TYPE_AUDIO && packet->m_nBodySize >= 2
+           && ((packet->m_body[0] >> 4) & 0x0f) == FLV_SOUND_FORMAT_AAC && packet->m_body[1] == 0x00;
+}
+
+bool FlvFileSink::writePacket(RTMPPacket *packet) {
+    if (packet == NULL) {
+        return false;
+    }
+    int kind = RtmpPacketQueue::getPacketKind(packet);
+    if (kind == RtmpPacketQueue::PACKET_KIND_OTHER) {
+        return false;
+    }
+
+    pthread_mutex_lock(&mutex);
+    if (file == NULL) {
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+
+    bool isConfig = kind == RtmpPacketQueue::PACKET_KIND_VIDEO_CONFIG;
+    bool isAudioConfig = !isConfig && isAacSequenceHeader(packet);
+    if (isConfig || isAudioConfig) {
+        // 序列头的时间戳推流时固定为 0，这里保存一份，跟随前后的数据写入
+        std::vector<char> &config = isConfig ? videoConfig : audioConfig;
+        config.assign(packet->m_body, packet->m_body + packet->m_nBodySize);
+        bool success = false;
+        if (isHeaderWritten && !isWaitingKeyframe) {
+            success = writeTag(packet->m_packetType, packet->m_body, packet->m_nBodySize, lastTimestamp);
+        } else if (isAudioConfig) {
+            isAudioConfigPending = true;
+        }
+        pthread_mutex_unlock(&mutex);
+        return success;
+    }
+
+    if (isResyncing && packet->m_nTimeStamp < resyncMinTimestamp) {
+        // 另一条发送路径上已经写过的数据
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+    if (isWaitingKeyframe
+        && (kind != RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME || videoConfig.empty())) {
+        // 关键帧之前的视频无法解码，音频也一起丢掉，保证音视频从同一时刻开始
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+    isResyncing = false;
+
+    if (needRebase) {
+        needRebase = false;
+        baseTimestamp = packet->m_nTimeStamp;
+    }
+    uint32_t timestamp;
+    if (packet->m_nTimeStamp >= baseTimestamp) {
+        timestamp = timestampOffset + (packet->m_nTimeStamp - baseTimestamp);
+    } else {
+        timestamp = lastTimestamp;
+    }
+
+    bool success = true;
+    if (!isHeaderWritten) {
+        success = isHeaderWritten = writeMetaData();
+    }
+    if (success && isWaitingKeyframe) {
+        success = writeTag(RTMP_PACKET_TYPE_VIDEO, videoConfig.data(), videoConfig.size(), timestamp);
+        isWaitingKeyframe = !success;
+    }
+    if (success && isAudioConfigPending) {
+        success = writeTag(RTMP_PACKET_TYPE_AUDIO, audioConfig.data(), audioConfig.size(), timestamp);
+        isAudioConfigPending = !success;
+    }
+    if (success) {
+        success = writeTag(packet->m_packetType, packet->m_body, packet->m_nBodySize, timestamp);
+    }
+    if (success) {
+        lastTimestamp = timestamp;
+        lastRawTimestamp = packet->m_nTimeStamp;
+        if (packet->m_packetType == RTMP_PACKET_TYPE_VIDEO) {
+            if (timestamp > lastVideoTimestamp) {
+                videoInterval = timestamp - lastVideoTimestamp;
+            }
+            lastVideoTimestamp = timestamp;
+        }
+    }
+    pthread_mutex_unlock(&mutex);
+    return success;
+}
+
+static char *encodeNamedNumber(char *output, char *outend, const char *name, double value) {
+    AVal av = {const_cast<char *>(name), (int) strlen(name)};
+    return AMF_EncodeNamedNumber(output, outend, &av, value);
+}
+
+static char *encodeNamedBoolean(char *output, char *outend, const char *name, bool value) {
+    AVal av = {const_cast<char *>(name), (int) strlen(name)};
+    return AMF_EncodeNamedBoolean(output, outend, &av, value);
+}
+
+bool FlvFileSink::writeMetaData() {
+    static const int SAMPLE_RATES[13] = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050,
+                                         16000, 12000, 11025, 8000, 7350};
+
+    char body[256];
+    char *end = body + sizeof(body);
+    AVal name = {const_cast<char *>("onMetaData"), 10};
+    char *p = AMF_EncodeString(body, end, &name);
+    *p++ = AMF_ECMA_ARRAY;
+    char *countPosition = p;
+    p += 4;
+    int count = 0;
+
+    // duration 和 filesize 先写 0，关闭文件时回填，数值是 8 字节 double，在每一项的最后
+    p = encodeNamedNumber(p, end, "duration", 0);
+    int64_t durationOffset = p - 8 - body;
+    count++;
+    p = encodeNamedNumber(p, end, "filesize", 0);
+    int64_t fileSizeOffset = p - 8 - body;
+    count++;
+    if (hasVideo) {
+        p = encodeNamedNumber(p, end, "videocodecid", 7);// AVC
+        count++;
+    }
+    if (hasAudio) {
+        p = encodeNamedNumber(p, end, "audiocodecid", FLV_SOUND_FORMAT_AAC);
+        count++;
+        if (audioConfig.size() >= 4) {
+            // AudioSpecificConfig: 5bit(object type) + 4bit(sampling frequency index) + 4bit(channel configuration)
+            const unsigned char *asc = reinterpret_cast<const unsigned char *>(audioConfig.data() + 2);
+            int rateIndex = ((asc[0] & 0x07) << 1) | (asc[1] >> 7);
+            int channels = (asc[1] >> 3) & 0x0f;
+            if (rateIndex < 13) {
+                p = encodeNamedNumber(p, end, "audiosamplerate", SAMPLE_RATES[rateIndex]);
+                count++;
+            }
+            p = encodeNamedNumber(p, end, "audiosamplesize", 16);
+            count++;
+            p = encodeNamedBoolean(p, end, "stereo", channels >= 2);
+            count++;
+        }
+    }
+    AMF_EncodeInt32(countPosition, end, count);
+    AMF_EncodeInt24(p, end, AMF_OBJECT_END);// 空的属性名 0x0000 + 结束标志 0x09
+    p += 3;
+
+    int64_t tagPosition = fileBytes;
+    if (!writeTag(FLV_TAG_TYPE_SCRIPT, body, p - body, 0)) {
+        return false;
+    }
+    durationValuePosition = tagPosition + FLV_TAG_HEADER_SIZE + durationOffset;
+    fileSizeValuePosition = tagPosition + FLV_TAG_HEADER_SIZE + fileSizeOffset;
+    return true;
+}
+
+void FlvFileSink::updateMetaData() {
+    if (durationValuePosition < 0 || fileSizeValuePosition < 0) {
+        return;
+    }
+    char value[9];
+    AMF_EncodeNumber(value, value + sizeof(value), lastTimestamp / 1000.0);
+    bool success = fseek(file, durationValuePosition, SEEK_SET) == 0
+                   && fwrite(value + 1, 1, 8, file) == 8;// 跳过 1 字节的类型标记
+    AMF_EncodeNumber(value, value + sizeof(value), (double) fileBytes);
+    success = success && fseek(file, fileSizeValuePosition, SEEK_SET) == 0
+              && fwrite(value + 1, 1, 8, file) == 8;
+    if (!success) {
+        LOGE(LOG_TAG, "update onMetaData failed!");
+    }
+}
+
+bool FlvFileSink::writeTag(int type, const char *data, uint32_t dataSize, uint32_t timestamp) {
+    unsigned char tagHeader[FLV_TAG_HEADER_SIZE];
+    int i = 0;
+    tagHeader[i++] = type;// 8bit(tag type: 8 音频，9 视频，18 脚本)
+
+    // 24bit(data size)
+    tagHeader[i++] = (dataSize >> 16) & 0xff;
+    tagHeader[i++] = (dataSize >> 8) & 0xff;
+    tagHeader[i++] = dataSize & 0xff;
+
+    // 24bit(timestamp 低 24 位) + 8bit(timestamp extended 高 8 位)
+    tagHeader[i++] = (timestamp >> 16) & 0xff;
+    tagHeader[i++] = (timestamp >> 8) & 0xff;
+    tagHeader[i++] = timestamp & 0xff;
+    tagHeader[i++] = (timestamp >> 24) & 0xff;
+
+    // 24bit(stream id: 总是 0)
+    tagHeader[i++] = 0x00;
+    tagHeader[i++] = 0x00;
+    tagHeader[i++] = 0x00;
+
+    uint32_t tagSize = FLV_TAG_HEADER_SIZE + dataSize;
+    unsigned char previousTagSize[FLV_PREVIOUS_TAG_SIZE] = {
+            static_cast<unsigned char>((tagSize >> 24) & 0xff),
+            static_cast<unsigned char>((tagSize >> 16) & 0xff),
+            static_cast<unsigned char>((tagSize >> 8) & 0xff),
+            static_cast<unsigned char>(tagSize & 0xff)
+    };
+
+    if (fwrite(tagHeader, 1, FLV_TAG_HEADER_SIZE, file) != FLV_TAG_HEADER_SIZE
+        || fwrite(data, 1, dataSize, file) != dataSize
+        || fwrite(previousTagSize, 1, FLV_PREVIOUS_TAG_SIZE, file) != FLV_PREVIOUS_TAG_SIZE) {
+        LOGE(LOG_TAG, "write tag failed! type=%d size=%d", type, dataSize);
+        return false;
+    }
+    tagCount++;
+    fileBytes += tagSize + FLV_PREVIOUS_TAG_SIZE;
+    if (LOG_REPEAT_DEBUG) {
+        LOGD(LOG_TAG, "write tag type=%d size=%d timestamp=%d", type, dataSize, timestamp);
+    }
+    return true;
+}
+
+void FlvFileSink::markDiscontinuity() {
+    pthread_mutex_lock(&mutex);
+    if (isHeaderWritten) {
+        // 下一段从最后一个 Tag 之后一帧开始，不与上一段的最后一个 Tag 重复
+        timestampOffset = lastTimestamp + (videoInterval > 0 ? videoInterval : 1);
+    }
+    needRebase = true;
+    isResyncing = false;
+    // 重连后编码器也会重新开始，要等新的 SPS/PPS 和关键帧
+    isWaitingKeyframe = hasVideo;
+    videoConfig.clear();
+    pthread_mutex_unlock(&mutex);
+}
+
+void FlvFileSink::resync() {
+    pthread_mutex_lock(&mutex);
+    if (isHeaderWritten) {
+        isResyncing = true;
+        resyncMinTimestamp = lastRawTimestamp + 1;
+        isWaitingKeyframe = hasVideo;
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+void FlvFileSink::close() {
+    pthread_mutex_lock(&mutex);
+    closeLocked();
+    pthread_mutex_unlock(&mutex);
+}
+
+void FlvFileSink::closeLocked() {
+    if (file != NULL) {
+        updateMetaData();
+        fclose(file);
+        file = NULL;
+        if (LOG_DEBUG) {
+            LOGD(LOG_TAG, "close: tags=%lld bytes=%lld duration=%dms",
+                 (long long) tagCount, (long long) fileBytes, lastTimestamp);
+        }
+    }
+    if (fileBuffer != NULL) {
+        // setvbuf 的缓冲区要在 fclose 之后才能释放
+        free(fileBuffer);
+        fileBuffer = NULL;
+    }
+}
+
+int64_t FlvFileSink::getTagCount() {
+    pthread_mutex_lock(&mutex);
+    int64_t count = tagCount;
+    pthread_mutex_unlock(&mutex);
+    return count;
+}
+
+int64_t FlvFileSink::getFileBytes() {
+    pthread_mutex_lock(&mutex);
+    int64_t bytes = fileBytes;
+    pthread_mutex_unlock(&mutex);
+    return bytes;
+}
@@ -0,0 +1,225 @@
+//
+// Created by WTZ on 2020/5/10.
+//
+
+#include <string.h>
+#include "RtmpDestination.h"
+#include "WePushFlow.h"
+
+RtmpDestination::RtmpDestination(int index, const char *url, WePushFlow *owner, RtmpPacketPool *pool) {
+    this->index = index;
+    size_t length = strlen(url);
+    this->url = new char[length + 1];
+    memcpy(this->url, url, length + 1);
+    this->owner = owner;
+    this->packetPool = pool;
+}
+
+RtmpDestination::~RtmpDestination() {
+    stop();
+    delete[] url;
+    url = NULL;
+}
+
+int RtmpDestination::getIndex() {
+    return index;
+}
+
+const char *RtmpDestination::getUrl() {
+    return url;
+}
+
+bool RtmpDestination::connect(int timeoutSeconds, int queueMaxBytes, int queueMaxDurationMills) {
+    rtmp = RTMP_Alloc();
+    RTMP_Init(rtmp);
+    rtmp->Link.timeout = timeoutSeconds;
+    rtmp->Link.lFlags |= RTMP_LF_LIVE;// stream is live
+
+    // RTMP_SetupURL 会直接引用 url 中的内容，所以 url 要保留到断开之后
+    if (!RTMP_SetupURL(rtmp, url)) {
+        LOGE(LOG_TAG, "destination %d RTMP_SetupURL failed:%s", index, url);
+        freeRTMP();
+        return false;
+    }
+
+    RTMP_EnableWrite(rtmp);
+
+    if (!RTMP_Connect(rtmp, NULL)) {
+        LOGE(LOG_TAG, "destination %d RTMP_Connect failed:%s", index, url);
+        freeRTMP();
+        return false;
+    }
+
+    if (!RTMP_ConnectStream(rtmp, 0)) {
+        LOGE(LOG_TAG, "destination %d RTMP_ConnectStream failed:%s", index, url);
+        freeRTMP();
+        return false;
+    }
+
+    queue = new RtmpPacketQueue(packetPool);
+    queue->setLimits(queueMaxBytes, queueMaxDurationMills);
+    return true;
+}
+
+void *connectThreadCall(void *data) {
+    RtmpDestination *destination = static_cast<RtmpDestination *>(data);
+    destination->_connect();
+    pthread_exit(NULL);
+}
+
+void RtmpDestination::startConnect(int timeoutSeconds, int queueMaxBytes, int queueMaxDurationMills) {
+    if (isConnectThreadStarted) {
+        return;
+    }
+    connectTimeoutSeconds = timeoutSeconds;
+    connectQueueMaxBytes = queueMaxBytes;
+    connectQueueMaxDurationMills = queueMaxDurationMills;
+    isConnected = false;
+    isConnectThreadStarted = pthread_create(&connectThread, NULL, connectThreadCall, this) == 0;
+    if (!isConnectThreadStarted) {
+        LOGE(LOG_TAG, "destination %d create connectThread failed! connect directly", index);
+        _connect();
+    }
+}
+
+void RtmpDestination::_connect() {
+    isConnected = connect(connectTimeoutSeconds, connectQueueMaxBytes, connectQueueMaxDurationMills);
+}
+
+bool RtmpDestination::waitConnect() {
+    if (isConnectThreadStarted) {
+        pthread_join(connectThread, NULL);
+        isConnectThreadStarted = false;
+    }
+    return isConnected;
+}
+
+void RtmpDestination::setQueueLimits(int maxBytes, int maxDurationMills) {
+    if (queue != NULL) {
+        queue->setLimits(maxBytes, maxDurationMills);
+    }
+}
+
+void *sendThreadCall(void *data) {
+    RtmpDestination *destination = static_cast<RtmpDestination *>(data);
+    if (LOG_DEBUG) {
+        LOGW("sendThreadCall", "destination %d sendThread run...", destination->getIndex());
+    }
+    destination->_loopSend();
+
+    if (LOG_DEBUG) {
+        LOGW("sendThreadCall", "destination %d sendThread exit...", destination->getIndex());
+    }
+    pthread_exit(NULL);
+}
+
+void RtmpDestination::startSend(uint32_t startPushTime) {
+    if (queue == NULL || isSendThreadStarted) {
+        return;
+    }
+    isShouldExit = false;
+    isActive = true;
+    sentBytes = 0;
+    lastQueueStatsTime = startPushTime;
+    isSendThreadStarted = pthread_create(&sendThread, NULL, sendThreadCall, this) == 0;
+    if (!isSendThreadStarted) {
+        LOGE(LOG_TAG, "destination %d create sendThread failed!", index);
+        isActive = false;
+    }
+}
+
+void RtmpDestination::_loopSend() {
+    bool isDisconnected = false;
+    RTMPPacket *packet = NULL;
+    while (!isShouldExit) {
+        packet = queue->getPacket();
+        if (packet != NULL) {
+            // packet 可能同时在其它目标的发送线程中使用，不能用会改写 body 的 RTMP_SendPacket
+            int result = RTMP_SendSharedPacket(rtmp, packet);
+            if (result != FALSE) {
+                sentBytes += packet->m_nBodySize;
+            }
+            owner->onDestinationPacketSent(this, packet);
+            packetPool->recyclePacket(packet);
+            packet = NULL;
+            if (result == FALSE) {
+                bool isConnected = RTMP_IsConnected(rtmp);
+                LOGE(LOG_TAG, "destination %d RTMP_SendSharedPacket failed! IsConnected=%d",
+                     index, isConnected);
+                if (!isConnected) {
+                    isDisconnected = true;
+                    break;
+                }
+            }
+        }
+        reportQueueStats();
+    }
+
+    isActive = false;
+    if (isDisconnected && !isShouldExit) {
+        // 不再接收新数据，已入队的共享 packet 释放引用，不占用其它目标的内存
+        queue->setAllowOperation(false);
+        queue->clearQueue();
+        owner->onDestinationDisconnected(this);
+    }
+}
+
+void RtmpDestination::reportQueueStats() {
+    uint32_t now = RTMP_GetTime();
+    if (now - lastQueueStatsTime < PUSH_QUEUE_STATS_INTERVAL_MILLS) {
+        return;
+    }
+    lastQueueStatsTime = now;
+    owner->onDestinationQueueStats(this);
+}
+
+void RtmpDestination::putPacket(RTMPPacket *packet) {
+    if (!isActive || queue == NULL) {
+        return;
+    }
+    packetPool->retainPacket(packet);
+    queue->putPacket(packet);
+}
+
+bool RtmpDestination::isSending() {
+    return isActive;
+}
+
+void RtmpDestination::getQueueStats(RtmpPacketQueueStats *stats) {
+    if (queue == NULL) {
+        memset(stats, 0, sizeof(RtmpPacketQueueStats));
+        return;
+    }
+    queue->getStats(stats);
+}
+
+int64_t RtmpDestination::getSentBytes() {
+    return sentBytes;
+}
+
+void RtmpDestination::stop() {
+    waitConnect();
+    isShouldExit = true;
+    isActive = false;
+    if (queue != NULL) {
+        queue->setAllowOperation(false);
+        queue->setProductDataComplete(true);
+        queue->clearQueue();
+    }
+    if (isSendThreadStarted) {
+        pthread_join(sendThread, NULL);// 阻塞等待发送线程结束
+        isSendThreadStarted = false;
+    }
+    freeRTMP();
+    delete queue;
+    queue = NULL;
+}
+
+void RtmpDestination::freeRTMP() {
+    if (rtmp == NULL) {
+        return;
+    }
+    RTMP_Close(rtmp);
+    RTMP_Free(rtmp);
+    rtmp = NULL;
+}
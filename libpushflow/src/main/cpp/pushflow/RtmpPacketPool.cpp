@@ -0,0 +1,144 @@
+//
+// Created by WTZ on 2020/5/6.
+//
+
+#include <stdlib.h>
+#include "RtmpPacketPool.h"
+
+RtmpPacketPool::RtmpPacketPool() {
+    pthread_mutex_init(&mutex, NULL);
+}
+
+RtmpPacketPool::~RtmpPacketPool() {
+    trim();
+    if (inUseCount != 0) {
+        LOGW(LOG_TAG, "~RtmpPacketPool but %d packets are still in use", inUseCount);
+    }
+    pthread_mutex_destroy(&mutex);
+}
+
+int RtmpPacketPool::getSizeClass(uint32_t bodySize) {
+    uint32_t capacity = 1u << MIN_SIZE_SHIFT;
+    for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+        if (bodySize <= capacity) {
+            return i;
+        }
+        capacity <<= 1;
+    }
+    return RTMP_PACKET_POOL_OVERSIZE;
+}
+
+PooledRtmpPacket *RtmpPacketPool::allocPacket(uint32_t bodyCapacity, int sizeClass) {
+    PooledRtmpPacket *pooled = static_cast<PooledRtmpPacket *>(malloc(sizeof(PooledRtmpPacket)));
+    if (pooled == NULL) {
+        return NULL;
+    }
+    // RTMPPacket_Alloc 会在 body 前预留 RTMP_MAX_HEADER_SIZE，RTMP_SendPacket 直接在那里写包头
+    if (!RTMPPacket_Alloc(&pooled->packet, bodyCapacity)) {
+        free(pooled);
+        return NULL;
+    }
+    pooled->sizeClass = sizeClass;
+    pooled->bodyCapacity = bodyCapacity;
+    return pooled;
+}
+
+void RtmpPacketPool::freePacket(PooledRtmpPacket *pooled) {
+    RTMPPacket_Free(&pooled->packet);
+    free(pooled);
+}
+
+RTMPPacket *RtmpPacketPool::obtainPacket(uint32_t bodySize) {
+    int sizeClass = getSizeClass(bodySize);
+    PooledRtmpPacket *pooled = NULL;
+
+    pthread_mutex_lock(&mutex);
+    obtainCount++;
+    if (sizeClass != RTMP_PACKET_POOL_OVERSIZE && !freeLists[sizeClass].empty()) {
+        pooled = freeLists[sizeClass].back();
+        freeLists[sizeClass].pop_back();
+        cachedCount--;
+        hitCount++;
+    } else {
+        allocCount++;
+    }
+    inUseCount++;
+    if (inUseCount > highWaterMark) {
+        highWaterMark = inUseCount;
+    }
+    pthread_mutex_unlock(&mutex);
+
+    if (pooled == NULL) {
+        // 分配内存放在锁外，避免阻塞其它线程回收
+        uint32_t capacity = sizeClass == RTMP_PACKET_POOL_OVERSIZE
+                            ? bodySize : (1u << (MIN_SIZE_SHIFT + sizeClass));
+        pooled = allocPacket(capacity, sizeClass);
+        if (pooled == NULL) {
+            LOGE(LOG_TAG, "allocPacket failed! bodySize=%d", bodySize);
+            pthread_mutex_lock(&mutex);
+            inUseCount--;
+            pthread_mutex_unlock(&mutex);
+            return NULL;
+        }
+    }
+
+    RTMPPacket_Reset(&pooled->packet);
+    __atomic_store_n(&pooled->refCount, 1, __ATOMIC_RELAXED);
+    return &pooled->packet;
+}
+
+void RtmpPacketPool::retainPacket(RTMPPacket *packet) {
+    if (packet == NULL) {
+        return;
+    }
+    PooledRtmpPacket *pooled = reinterpret_cast<PooledRtmpPacket *>(packet);
+    __atomic_add_fetch(&pooled->refCount, 1, __ATOMIC_RELAXED);
+}
+
+void RtmpPacketPool::recyclePacket(RTMPPacket *packet) {
+    if (packet == NULL) {
+        return;
+    }
+    PooledRtmpPacket *pooled = reinterpret_cast<PooledRtmpPacket *>(packet);
+    if (__atomic_sub_fetch(&pooled->refCount, 1, __ATOMIC_ACQ_REL) > 0) {
+        return;// 还有其它推流目标在使用
+    }
+
+    bool cached = false;
+    pthread_mutex_lock(&mutex);
+    inUseCount--;
+    if (pooled->sizeClass != RTMP_PACKET_POOL_OVERSIZE
+        && freeLists[pooled->sizeClass].size() < MAX_CACHE_PER_CLASS) {
+        freeLists[pooled->sizeClass].push_back(pooled);
+        cachedCount++;
+        cached = true;
+    }
+    pthread_mutex_unlock(&mutex);
+
+    if (!cached) {
+        freePacket(pooled);
+    }
+}
+
+void RtmpPacketPool::getStats(RtmpPacketPoolStats *stats) {
+    pthread_mutex_lock(&mutex);
+    stats->obtainCount = obtainCount;
+    stats->allocCount = allocCount;
+    stats->hitCount = hitCount;
+    stats->inUseCount = inUseCount;
+    stats->highWaterMark = highWaterMark;
+    stats->cachedCount = cachedCount;
+    pthread_mutex_unlock(&mutex);
+}
+
+void RtmpPacketPool::trim() {
+    pthread_mutex_lock(&mutex);
+    for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+        for (size_t j = 0; j < freeLists[i].size(); j++) {
+            freePacket(freeLists[i][j]);
+        }
+        freeLists[i].clear();
+    }
+    cachedCount = 0;
+    pthread_mutex_unlock(&mutex);
+}
@@ -4,7 +4,8 @@
 
 #include "RtmpPacketQueue.h"
 
-RtmpPacketQueue::RtmpPacketQueue() {
+RtmpPacketQueue::RtmpPacketQueue(RtmpPacketPool *pool) {
+    packetPool = pool;
     allowOperation = true;
     pthread_mutex_init(&mutex, NULL);
     pthread_cond_init(&condition, NULL);
@@ -43,10 +44,74 @@ bool RtmpPacketQueue::isProductDataComplete() {
     return ret;
 }
 
+void RtmpPacketQueue::setLimits(int maxBytes, int maxDurationMills) {
+    pthread_mutex_lock(&mutex);
+
+    if (LOG_DEBUG) {
+        LOGD(LOG_TAG, "setLimits maxBytes=%d maxDurationMills=%d", maxBytes, maxDurationMills);
+    }
+    this->maxBytes = maxBytes > 0 ? maxBytes : 0;
+    this->maxDurationMills = maxDurationMills > 0 ? maxDurationMills : 0;
+    if (this->maxBytes == 0 && this->maxDurationMills == 0) {
+        isWaitingKeyframe = false;
+    }
+
+    pthread_mutex_unlock(&mutex);
+}
+
+int RtmpPacketQueue::getPacketKind(RTMPPacket *packet) {
+    if (packet->m_packetType == RTMP_PACKET_TYPE_AUDIO) {
+        return PACKET_KIND_AUDIO;
+    }
+    if (packet->m_packetType != RTMP_PACKET_TYPE_VIDEO || packet->m_nBodySize < 2) {
+        return PACKET_KIND_OTHER;
+    }
+    // body[0]: 4bit(frame type: 1 关键帧, 2 非关键帧) + 4bit(codec id)
+    // body[1]: 8bit(packet type: 0 配置信息 sps pps, 1 纯视频数据)
+    if (packet->m_body[1] == 0x00) {
+        return PACKET_KIND_VIDEO_CONFIG;
+    }
+    if (((packet->m_body[0] >> 4) & 0x0f) == 1) {
+        return PACKET_KIND_VIDEO_KEYFRAME;
+    }
+    return PACKET_KIND_VIDEO_FRAME;
+}
+
 void RtmpPacketQueue::putPacket(RTMPPacket *packet) {
     pthread_mutex_lock(&mutex);
 
-    queue.push(packet);
+    if (!allowOperation) {
+        // 队列已停止使用，不再有消费者取数据，直接回收，避免 packet 留在队列中直到析构
+        packetPool->recyclePacket(packet);
+        pthread_mutex_unlock(&mutex);
+        return;
+    }
+
+    bool isBounded = maxBytes > 0 || maxDurationMills > 0;
+    if (isBounded && isWaitingKeyframe) {
+        int kind = getPacketKind(packet);
+        if (kind == PACKET_KIND_VIDEO_KEYFRAME) {
+            isWaitingKeyframe = false;
+        } else if (kind == PACKET_KIND_VIDEO_FRAME) {
+            // 参考帧已被丢弃，在下一个关键帧到来之前的非关键帧都无法解码，直接丢弃
+            droppedFrames++;
+            droppedBytes += packet->m_nBodySize;
+            packetPool->recyclePacket(packet);
+            pthread_mutex_unlock(&mutex);
+            return;
+        }
+    }
+
+    queue.push_back(packet);
+    queueBytes += packet->m_nBodySize;
+    if (isBounded) {
+        while (isOverLimit()) {
+            if (!dropOldestNonKeyframes() && !dropOldestKeyframe()) {
+                // 只剩音频和 SPS/PPS，不再丢弃
+                break;
+            }
+        }
+    }
     if (LOG_REPEAT_DEBUG) {
         LOGD(LOG_TAG, "putAVpacket current size：%d", queue.size());
     }
@@ -55,6 +120,119 @@ void RtmpPacketQueue::putPacket(RTMPPacket *packet) {
     pthread_mutex_unlock(&mutex);
 }
 
+bool RtmpPacketQueue::isOverLimit() {
+    if (maxBytes > 0 && queueBytes > maxBytes) {
+        return true;
+    }
+    return maxDurationMills > 0 && getLatencyMills(true) > maxDurationMills;
+}
+
+bool RtmpPacketQueue::isTimedKind(int kind, bool videoOnly) {
+    // SPS/PPS 不带时间戳，只看音视频数据
+    if (kind == PACKET_KIND_VIDEO_KEYFRAME || kind == PACKET_KIND_VIDEO_FRAME) {
+        return true;
+    }
+    return !videoOnly && kind == PACKET_KIND_AUDIO;
+}
+
+int RtmpPacketQueue::getLatencyMills(bool videoOnly) {
+    std::deque<RTMPPacket *>::iterator oldest = queue.begin();
+    while (oldest != queue.end() && !isTimedKind(getPacketKind(*oldest), videoOnly)) {
+        ++oldest;
+    }
+    if (oldest == queue.end()) {
+        return 0;
+    }
+    std::deque<RTMPPacket *>::reverse_iterator newest = queue.rbegin();
+    while (!isTimedKind(getPacketKind(*newest), videoOnly)) {
+        ++newest;
+    }
+    int latency = (int) ((*newest)->m_nTimeStamp - (*oldest)->m_nTimeStamp);
+    return latency > 0 ? latency : 0;
+}
+
+bool RtmpPacketQueue::dropOldestNonKeyframes() {
+    // 范围：从队头到第 2 个关键帧之前，即最旧的一个 GOP 及其之前残留的非关键帧
+    size_t end = queue.size();
+    int keyframeCount = 0;
+    for (size_t i = 0; i < queue.size(); i++) {
+        if (getPacketKind(queue[i]) == PACKET_KIND_VIDEO_KEYFRAME && ++keyframeCount == 2) {
+            end = i;
+            break;
+        }
+    }
+
+    bool dropped = false;
+    size_t afterLastDropped = 0;// 最后一个被丢弃的 packet 之后的第一个位置
+    size_t i = 0;
+    while (i < end) {
+        if (getPacketKind(queue[i]) == PACKET_KIND_VIDEO_FRAME) {
+            dropPacketAt(i);
+            end--;
+            dropped = true;
+            afterLastDropped = i;
+        } else {
+            i++;
+        }
+    }
+    if (dropped) {
+        // 被丢弃的帧之后还有关键帧时，正在生产的 GOP 完好，后续的非关键帧可以正常解码；
+        // 否则丢的就是正在生产的 GOP，后续的非关键帧也要丢到下一个关键帧
+        bool hasKeyframeAfter = false;
+        for (size_t j = afterLastDropped; j < queue.size(); j++) {
+            if (getPacketKind(queue[j]) == PACKET_KIND_VIDEO_KEYFRAME) {
+                hasKeyframeAfter = true;
+                break;
+            }
+        }
+        if (!hasKeyframeAfter) {
+            isWaitingKeyframe = true;
+        }
+    }
+    if (dropped && LOG_DEBUG) {
+        LOGW(LOG_TAG, "dropOldestNonKeyframes: size=%d bytes=%lld dropped=%lld",
+             queue.size(), (long long) queueBytes, (long long) droppedFrames);
+    }
+    return dropped;
+}
+
+bool RtmpPacketQueue::dropOldestKeyframe() {
+    size_t keyframeIndex = queue.size();
+    bool hasNextKeyframe = false;
+    for (size_t i = 0; i < queue.size(); i++) {
+        if (getPacketKind(queue[i]) == PACKET_KIND_VIDEO_KEYFRAME) {
+            if (keyframeIndex == queue.size()) {
+                keyframeIndex = i;
+            } else {
+                hasNextKeyframe = true;
+                break;
+            }
+        }
+    }
+    if (keyframeIndex == queue.size()) {
+        return false;
+    }
+
+    dropPacketAt(keyframeIndex);
+    if (!hasNextKeyframe) {
+        isWaitingKeyframe = true;
+    }
+    if (LOG_DEBUG) {
+        LOGW(LOG_TAG, "dropOldestKeyframe: size=%d bytes=%lld dropped=%lld",
+             queue.size(), (long long) queueBytes, (long long) droppedFrames);
+    }
+    return true;
+}
+
+void RtmpPacketQueue::dropPacketAt(size_t index) {
+    RTMPPacket *packet = queue[index];
+    queue.erase(queue.begin() + index);
+    queueBytes -= packet->m_nBodySize;
+    droppedFrames++;
+    droppedBytes += packet->m_nBodySize;
+    packetPool->recyclePacket(packet);
+}
+
 RTMPPacket *RtmpPacketQueue::getPacket() {
     pthread_mutex_lock(&mutex);
 
@@ -63,7 +241,8 @@ RTMPPacket *RtmpPacketQueue::getPacket() {
     while (allowOperation) {
         if (!queue.empty()) {
             packet = queue.front();
-            queue.pop();
+            queue.pop_front();
+            queueBytes -= packet->m_nBodySize;
             break;
         } else if (!productDataComplete) {
             pthread_cond_wait(&condition, &mutex);
@@ -85,6 +264,16 @@ int RtmpPacketQueue::getQueueSize() {
     return size;
 }
 
+void RtmpPacketQueue::getStats(RtmpPacketQueueStats *stats) {
+    pthread_mutex_lock(&mutex);
+    stats->size = queue.size();
+    stats->bytes = queueBytes;
+    stats->latencyMills = getLatencyMills(false);
+    stats->droppedFrames = droppedFrames;
+    stats->droppedBytes = droppedBytes;
+    pthread_mutex_unlock(&mutex);
+}
+
 void RtmpPacketQueue::clearQueue() {
     if (LOG_DEBUG) {
         LOGD(LOG_TAG, "clearQueue...");
@@ -95,10 +284,12 @@ void RtmpPacketQueue::clearQueue() {
     RTMPPacket *packet = NULL;
     while (!queue.empty()) {
         packet = queue.front();
-        queue.pop();
-        RTMPPacket_Free(packet);
+        queue.pop_front();
+        packetPool->recyclePacket(packet);
     }
     packet = NULL;
+    queueBytes = 0;
+    isWaitingKeyframe = false;
 
     pthread_mutex_unlock(&mutex);
     if (LOG_DEBUG) {
@@ -108,6 +299,6 @@ void RtmpPacketQueue::clearQueue() {
 
 void RtmpPacketQueue::releaseQueue() {
     clearQueue();
-    std::queue<RTMPPacket *> empty;
+    std::deque<RTMPPacket *> empty;
     swap(empty, queue);
 }
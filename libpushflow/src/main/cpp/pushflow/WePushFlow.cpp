@@ -2,11 +2,18 @@
 // Created by WTZ on 2020/4/20.
 //
 
+#include <stdio.h>
+#include <string.h>
 #include "WePushFlow.h"
 
-WePushFlow::WePushFlow(OnStartPushResultListener *startListener, OnPushDisconnectCall *disconnectCall) {
+WePushFlow::WePushFlow(OnStartPushResultListener *startListener, OnPushDisconnectCall *disconnectCall,
+                       OnPushQueueStatsCall *queueStatsCall) {
     this->onStartPushResultListener = startListener;
     this->onPushDisconnectCall = disconnectCall;
+    this->onPushQueueStatsCall = queueStatsCall;
+    packetPool = new RtmpPacketPool();
+    flvSink = new FlvFileSink();
+    pthread_mutex_init(&destinationsMutex, NULL);
 }
 
 WePushFlow::~WePushFlow() {
@@ -15,10 +22,18 @@ WePushFlow::~WePushFlow() {
         delete[] pushUrl;// pushUrl 是 JNI 中通过 new char[] 创建的
         pushUrl = NULL;
     }
+    clearBackupPushUrls();
     delete onStartPushResultListener;
     onStartPushResultListener = NULL;
     delete onPushDisconnectCall;
     onPushDisconnectCall = NULL;
+    delete onPushQueueStatsCall;
+    onPushQueueStatsCall = NULL;
+    delete flvSink;
+    flvSink = NULL;
+    delete packetPool;
+    packetPool = NULL;
+    pthread_mutex_destroy(&destinationsMutex);
 }
 
 void WePushFlow::setPushUrl(char *url) {
@@ -29,6 +44,17 @@ void WePushFlow::setPushUrl(char *url) {
     this->pushUrl = url;
 }
 
+void WePushFlow::addBackupPushUrl(char *url) {
+    backupUrls.push_back(url);
+}
+
+void WePushFlow::clearBackupPushUrls() {
+    for (size_t i = 0; i < backupUrls.size(); i++) {
+        delete[] backupUrls[i];// 与 pushUrl 一样是 JNI 中通过 new char[] 创建的
+    }
+    backupUrls.clear();
+}
+
 void WePushFlow::setConnectTimeout(int seconds) {
     this->connectTimeout = seconds;
 }
@@ -53,18 +79,14 @@ void WePushFlow::setAudioChannels(int audioChannels) {
     }
 }
 
-void *pushThreadCall(void *data) {
-    if (LOG_DEBUG) {
-        LOGW("pushThreadCall", "pushThread run...");
-    }
-    WePushFlow *wePushFlow = static_cast<WePushFlow *>(data);
-    wePushFlow->_loopPush();
-
-    if (LOG_DEBUG) {
-        LOGW("pushThreadCall", "pushThread exit...");
+void WePushFlow::setQueueLimits(int maxBytes, int maxDurationMills) {
+    this->queueMaxBytes = maxBytes;
+    this->queueMaxDurationMills = maxDurationMills;
+    pthread_mutex_lock(&destinationsMutex);
+    for (size_t i = 0; i < destinations.size(); i++) {
+        destinations[i]->setQueueLimits(queueMaxBytes, queueMaxDurationMills);
     }
-    wePushFlow->isPushThreadStarted = false;
-    pthread_exit(&wePushFlow->pushThread);
+    pthread_mutex_unlock(&destinationsMutex);
 }
 
 void WePushFlow::startPush() {
@@ -81,86 +103,117 @@ void WePushFlow::startPush() {
         return;
     }
 
-    rtmp = RTMP_Alloc();
-    RTMP_Init(rtmp);
-    rtmp->Link.timeout = connectTimeout;
-    rtmp->Link.lFlags |= RTMP_LF_LIVE;// stream is live
-
-    if (!RTMP_SetupURL(rtmp, pushUrl)) {
-        LOGE(LOG_TAG, "RTMP_SetupURL failed:%s", pushUrl);
-        handleOnStartPushFailed("RTMP_SetupURL failed");
-        return;
+    // 同时连接主地址和各备用地址，总耗时是最慢的一个而不是全部相加，至少有一个连接成功就开始推流
+    std::vector<RtmpDestination *> connecting;
+    int total = 1 + backupUrls.size();
+    for (int i = 0; i < total; i++) {
+        const char *url = i == 0 ? pushUrl : backupUrls[i - 1];
+        RtmpDestination *destination = new RtmpDestination(i, url, this, packetPool);
+        destination->startConnect(connectTimeout, queueMaxBytes, queueMaxDurationMills);
+        connecting.push_back(destination);
     }
-
-    RTMP_EnableWrite(rtmp);
-
-    if (!RTMP_Connect(rtmp, NULL)) {
-        LOGE(LOG_TAG, "RTMP_Connect failed:%s", pushUrl);
-        handleOnStartPushFailed("RTMP_Connect failed");
-        return;
+    std::vector<RtmpDestination *> connected;
+    for (size_t i = 0; i < connecting.size(); i++) {
+        if (connecting[i]->waitConnect()) {
+            connected.push_back(connecting[i]);
+        } else {
+            delete connecting[i];
+        }
     }
-
-    if (!RTMP_ConnectStream(rtmp, 0)) {
-        LOGE(LOG_TAG, "RTMP_ConnectStream failed:%s", pushUrl);
-        handleOnStartPushFailed("RTMP_ConnectStream failed");
+    if (isShouldExit || connected.empty()) {
+        for (size_t i = 0; i < connected.size(); i++) {
+            delete connected[i];
+        }
+        handleOnStartPushFailed(isShouldExit ? "startPush canceled" : "RTMP connect failed");
         return;
     }
 
-    queue = new RtmpPacketQueue();
     startPushTime = RTMP_GetTime();
+    pthread_mutex_lock(&destinationsMutex);
+    destinations = connected;
+    activeDestinationCount = destinations.size();
+    recordSource = destinations[0];
+    for (size_t i = 0; i < destinations.size(); i++) {
+        destinations[i]->startSend(startPushTime);
+    }
+    pthread_mutex_unlock(&destinationsMutex);
+    flvSink->markDiscontinuity();// 每次推流 packet 时间戳都从 0 开始
+
     isStartSuccess = true;
     isStarting = false;
     if (onStartPushResultListener != NULL) {
-        onStartPushResultListener->callback(2, true, "startPush success!");
+        char info[64];
+        snprintf(info, sizeof(info), "startPush success! %d/%d connected", (int) connected.size(), total);
+        onStartPushResultListener->callback(2, true, info);
     }
-
-    pushThread = pthread_create(&pushThread, NULL, pushThreadCall, this);
-    isPushThreadStarted = true;
 }
 
-void WePushFlow::handleOnStartPushFailed(char *error) {
-    freeRTMP();
+void WePushFlow::handleOnStartPushFailed(const char *error) {
     isStarting = false;
     if (onStartPushResultListener != NULL) {
         onStartPushResultListener->callback(2, false, error);
     }
 }
 
-void WePushFlow::_loopPush() {
-    while (!isShouldExit) {
-        packet = queue->getPacket();
-        if (packet != NULL) {
-            int result = RTMP_SendPacket(rtmp, packet, 1);
-            RTMPPacket_Free(packet);
-            free(packet);
-            packet = NULL;
-            if (result == FALSE) {
-                bool isConnected = RTMP_IsConnected(rtmp);
-                LOGE(LOG_TAG, "RTMP_SendPacket failed! IsConnected=%d", isConnected);
-                if (!isConnected) {
-                    isShouldCallDisconnect = true;
-                    break;
-                }
+void WePushFlow::dispatchPacket(RTMPPacket *packet) {
+    // 各推流目标只增加引用计数，不复制数据
+    pthread_mutex_lock(&destinationsMutex);
+    for (size_t i = 0; i < destinations.size(); i++) {
+        destinations[i]->putPacket(packet);
+    }
+    pthread_mutex_unlock(&destinationsMutex);
+
+    packetPool->recyclePacket(packet);// 释放创建时的引用
+}
+
+void WePushFlow::onDestinationDisconnected(RtmpDestination *destination) {
+    LOGE(LOG_TAG, "destination %d disconnected: %s", destination->getIndex(), destination->getUrl());
+    pthread_mutex_lock(&destinationsMutex);
+    activeDestinationCount--;
+    bool isAllDisconnected = activeDestinationCount <= 0;
+    if (recordSource == destination) {
+        // 本地录制改为跟随还在发送的目标，它的队列进度与断开的目标不同，要重新对齐
+        RtmpDestination *source = NULL;
+        for (size_t i = 0; i < destinations.size() && source == NULL; i++) {
+            if (destinations[i] != destination && destinations[i]->isSending()) {
+                source = destinations[i];
             }
         }
+        recordSource = source;
+        flvSink->resync();
     }
+    pthread_mutex_unlock(&destinationsMutex);
 
-    isStartSuccess = false;
-    freeRTMP();
-
-    if (isShouldCallDisconnect) {
-        isShouldCallDisconnect = false;
-        onPushDisconnectCall->callback(0);
+    // 只要还有目标在推流就继续，全部断开才通知上层
+    if (isAllDisconnected && !isShouldExit) {
+        isStartSuccess = false;
+        if (onPushDisconnectCall != NULL) {
+            onPushDisconnectCall->callback(0);
+        }
     }
 }
 
-void WePushFlow::freeRTMP() {
-    if (rtmp == NULL) {
+void WePushFlow::onDestinationQueueStats(RtmpDestination *destination) {
+    if (onPushQueueStatsCall == NULL) {
         return;
     }
-    RTMP_Close(rtmp);
-    RTMP_Free(rtmp);
-    rtmp = NULL;
+    RtmpPacketQueueStats stats;
+    destination->getQueueStats(&stats);
+    int64_t sentBytes = destination->getSentBytes();
+    if (LOG_REPEAT_DEBUG) {
+        LOGD(LOG_TAG, "destination %d queue stats: size=%d bytes=%lld latency=%dms dropped=%lld sent=%lld",
+             destination->getIndex(), stats.size, (long long) stats.bytes, stats.latencyMills,
+             (long long) stats.droppedFrames, (long long) sentBytes);
+    }
+    onPushQueueStatsCall->callback(7, destination->getIndex(), stats.size, stats.bytes,
+                                   stats.latencyMills, stats.droppedFrames, stats.droppedBytes,
+                                   sentBytes);
+}
+
+void WePushFlow::onDestinationPacketSent(RtmpDestination *destination, RTMPPacket *packet) {
+    if (destination == recordSource) {
+        flvSink->writePacket(packet);
+    }
 }
 
 void WePushFlow::pushSpsPps(char *sps, int spsLength, char *pps, int ppsLength) {
@@ -188,15 +241,12 @@ void WePushFlow::pushSpsPps(char *sps, int spsLength, char *pps, int ppsLength)
     }
 
     int bodySize = spsLength + ppsLength + RTMP_SPS_PPS_EXTRA_BYTES_SIZE;
-    RTMPPacket *packet = static_cast<RTMPPacket *>(malloc(sizeof(RTMPPacket)));
-    if (!RTMPPacket_Alloc(packet, bodySize)) {
-        LOGE(LOG_TAG, "RTMPPacket_Alloc failed! spsLength=%d ppsLength=%d", spsLength, ppsLength);
-        free(packet);
+    RTMPPacket *packet = packetPool->obtainPacket(bodySize);
+    if (packet == NULL) {
+        LOGE(LOG_TAG, "obtainPacket failed! spsLength=%d ppsLength=%d", spsLength, ppsLength);
         return;
     }
 
-    RTMPPacket_Reset(packet);
-
     char *body = packet->m_body;
     int i = 0;
 
@@ -242,9 +292,9 @@ void WePushFlow::pushSpsPps(char *sps, int spsLength, char *pps, int ppsLength)
     packet->m_hasAbsTimestamp = 0;// 没有绝对时间
     packet->m_nChannel = RTMP_STREAM_CHANNEL_VIDEO;
     packet->m_headerType = RTMP_PACKET_SIZE_MEDIUM;
-    packet->m_nInfoField2 = rtmp->m_stream_id;
+    packet->m_nInfoField2 = 0;// 发送时使用各推流目标自己的 stream id
 
-    queue->putPacket(packet);
+    dispatchPacket(packet);
 }
 
 void WePushFlow::pushVideoData(char *data, int dataLength, bool isKeyframe) {
@@ -268,15 +318,12 @@ void WePushFlow::pushVideoData(char *data, int dataLength, bool isKeyframe) {
     // isKeyframe = type == NAL_SLICE_IDR;// NAL_SLICE_IDR = 5 关键帧
 
     int bodySize = dataLength + RTMP_VIDEO_EXTRA_BYTES_SIZE;
-    RTMPPacket *packet = static_cast<RTMPPacket *>(malloc(sizeof(RTMPPacket)));
-    if (!RTMPPacket_Alloc(packet, bodySize)) {
-        LOGE(LOG_TAG, "RTMPPacket_Alloc failed! dataLength=%d", dataLength);
-        free(packet);
+    RTMPPacket *packet = packetPool->obtainPacket(bodySize);
+    if (packet == NULL) {
+        LOGE(LOG_TAG, "obtainPacket failed! dataLength=%d", dataLength);
         return;
     }
 
-    RTMPPacket_Reset(packet);
-
     char *body = packet->m_body;
     int i = 0;
 
@@ -309,9 +356,42 @@ void WePushFlow::pushVideoData(char *data, int dataLength, bool isKeyframe) {
     packet->m_hasAbsTimestamp = 0;// 没有绝对时间
     packet->m_nChannel = RTMP_STREAM_CHANNEL_VIDEO;
     packet->m_headerType = RTMP_PACKET_SIZE_LARGE;
-    packet->m_nInfoField2 = rtmp->m_stream_id;
+    packet->m_nInfoField2 = 0;// 发送时使用各推流目标自己的 stream id
 
-    queue->putPacket(packet);
+    dispatchPacket(packet);
+}
+
+void WePushFlow::pushAudioSpecificConfig(char *asc, int ascLength) {
+    if (!isStartSuccess) {
+        LOGW(LOG_TAG, "pushAudioSpecificConfig but is not start success yet");
+        return;
+    }
+
+    int bodySize = ascLength + RTMP_AAC_EXTRA_BYTES_SIZE;
+    RTMPPacket *packet = packetPool->obtainPacket(bodySize);
+    if (packet == NULL) {
+        LOGE(LOG_TAG, "obtainPacket failed! ascLength=%d", ascLength);
+        return;
+    }
+
+    char *body = packet->m_body;
+
+    // 与音频数据相同的格式标志
+    body[0] = 0xAC | audioEncodeBitsFlag | audioChannelFlag;
+
+    body[1] = 0x00;// 8bit(AAC packet type: 0 表示 AAC sequence header)
+
+    memcpy(&body[2], asc, ascLength);// AudioSpecificConfig
+
+    packet->m_packetType = RTMP_PACKET_TYPE_AUDIO;
+    packet->m_nBodySize = bodySize;
+    packet->m_nTimeStamp = 0;// 序列头不用时间
+    packet->m_hasAbsTimestamp = 0;// 没有绝对时间
+    packet->m_nChannel = RTMP_STREAM_CHANNEL_AUDIO;
+    packet->m_headerType = RTMP_PACKET_SIZE_LARGE;
+    packet->m_nInfoField2 = 0;// 发送时使用各推流目标自己的 stream id
+
+    dispatchPacket(packet);
 }
 
 void WePushFlow::pushAudioData(char *data, int dataLength) {
@@ -321,15 +401,12 @@ void WePushFlow::pushAudioData(char *data, int dataLength) {
     }
 
     int bodySize = dataLength + RTMP_AAC_EXTRA_BYTES_SIZE;
-    RTMPPacket *packet = static_cast<RTMPPacket *>(malloc(sizeof(RTMPPacket)));
-    if (!RTMPPacket_Alloc(packet, bodySize)) {
-        LOGE(LOG_TAG, "RTMPPacket_Alloc failed! dataLength=%d", dataLength);
-        free(packet);
+    RTMPPacket *packet = packetPool->obtainPacket(bodySize);
+    if (packet == NULL) {
+        LOGE(LOG_TAG, "obtainPacket failed! dataLength=%d", dataLength);
         return;
     }
 
-    RTMPPacket_Reset(packet);
-
     char *body = packet->m_body;
 
     // 4bit(sound format: 10 表示AAC) + 2bit(sampleRate: 3 表示44K)
@@ -347,31 +424,44 @@ void WePushFlow::pushAudioData(char *data, int dataLength) {
 //    packet->m_nChannel = RTMP_STREAM_CHANNEL_VIDEO;
     packet->m_nChannel = RTMP_STREAM_CHANNEL_AUDIO;
     packet->m_headerType = RTMP_PACKET_SIZE_MEDIUM;
-    packet->m_nInfoField2 = rtmp->m_stream_id;
+    packet->m_nInfoField2 = 0;// 发送时使用各推流目标自己的 stream id
+
+    dispatchPacket(packet);
+}
 
-    queue->putPacket(packet);
+void WePushFlow::getPacketPoolStats(RtmpPacketPoolStats *stats) {
+    packetPool->getStats(stats);
+}
+
+bool WePushFlow::startRecord(const char *path) {
+    return flvSink->open(path, true, true);
+}
+
+void WePushFlow::stopRecord() {
+    flvSink->close();
 }
 
 void WePushFlow::setStopFlag() {
-    LOGW(LOG_TAG, "setStopFlag...isPushThreadStarted=%d", isPushThreadStarted);
+    LOGW(LOG_TAG, "setStopFlag...");
     isShouldExit = true;
     isStartSuccess = false;
 }
 
 void WePushFlow::stopPush() {
-    LOGW(LOG_TAG, "stopPush...isPushThreadStarted=%d", isPushThreadStarted);
+    LOGW(LOG_TAG, "stopPush...");
     isShouldExit = true;
     isStartSuccess = false;
-    if (queue != NULL) {
-        queue->setAllowOperation(false);
-        queue->setProductDataComplete(true);
-        queue->clearQueue();
-    }
-    if (isPushThreadStarted) {
-        pthread_join(pushThread, NULL);// 阻塞等待子线程结束
+
+    std::vector<RtmpDestination *> stopping;
+    pthread_mutex_lock(&destinationsMutex);
+    stopping.swap(destinations);
+    activeDestinationCount = 0;
+    recordSource = NULL;
+    pthread_mutex_unlock(&destinationsMutex);
+
+    // 在锁外等待各发送线程结束，发送线程断开回调时也要获取这个锁
+    for (size_t i = 0; i < stopping.size(); i++) {
+        delete stopping[i];
     }
-    freeRTMP();
-    delete queue;
-    queue = NULL;
     LOGW(LOG_TAG, "stopPush complete");
 }
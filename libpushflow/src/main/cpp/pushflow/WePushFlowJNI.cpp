@@ -32,7 +32,8 @@ Java_com_wtz_libpushflow_WePushFlow_nativeCreatePushFlow(JNIEnv *env, jobject th
     if (pWePushFlow == NULL) {
         OnStartPushResultListener *startListener = new OnStartPushResultListener(jvm, env, thiz);
         OnPushDisconnectCall *disconnectCall = new OnPushDisconnectCall(jvm, env, thiz);
-        pWePushFlow = new WePushFlow(startListener, disconnectCall);
+        OnPushQueueStatsCall *queueStatsCall = new OnPushQueueStatsCall(jvm, env, thiz);
+        pWePushFlow = new WePushFlow(startListener, disconnectCall, queueStatsCall);
     }
 
     return true;
@@ -63,6 +64,42 @@ Java_com_wtz_libpushflow_WePushFlow_nativeSetPushUrl(JNIEnv *env, jobject thiz,
     pWePushFlow->setPushUrl(source);
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeAddBackupPushUrl(JNIEnv *env, jobject thiz, jstring url) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeAddBackupPushUrl but pWePushFlow == NULL");
+        return;
+    }
+
+    if (url == NULL || env->GetStringUTFLength(url) == 0) {
+        LOGE(LOG_TAG, "Can't add a 'null' string to backup push url!");
+        return;
+    }
+
+    int jstrUtf16Len = env->GetStringLength(url);
+    int jstrUtf8Len = env->GetStringUTFLength(url);
+    char *source = new char[jstrUtf8Len + 1];// 回收放在 WePushFlow 中
+    env->GetStringUTFRegion(url, 0, jstrUtf16Len, source);
+    source[jstrUtf8Len] = '\0';
+
+    if (LOG_DEBUG) {
+        LOGD(LOG_TAG, "nativeAddBackupPushUrl: %s", source);
+    }
+    pWePushFlow->addBackupPushUrl(source);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeClearBackupPushUrls(JNIEnv *env, jobject thiz) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeClearBackupPushUrls but pWePushFlow == NULL");
+        return;
+    }
+
+    pWePushFlow->clearBackupPushUrls();
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_wtz_libpushflow_WePushFlow_nativeSetConnectTimeout(JNIEnv *env, jobject thiz,
@@ -99,6 +136,48 @@ Java_com_wtz_libpushflow_WePushFlow_nativeSetAudioChannels(JNIEnv *env, jobject
     pWePushFlow->setAudioChannels(audio_channels);
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeSetQueueLimits(JNIEnv *env, jobject thiz,
+                                                         jint max_bytes, jint max_duration_mills) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeSetQueueLimits but pWePushFlow == NULL");
+        return;
+    }
+
+    pWePushFlow->setQueueLimits(max_bytes, max_duration_mills);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeStartRecord(JNIEnv *env, jobject thiz, jstring path) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeStartRecord but pWePushFlow == NULL");
+        return false;
+    }
+
+    if (path == NULL || env->GetStringUTFLength(path) == 0) {
+        LOGE(LOG_TAG, "Can't record to a 'null' path!");
+        return false;
+    }
+
+    const char *source = env->GetStringUTFChars(path, NULL);
+    bool success = pWePushFlow->startRecord(source);
+    env->ReleaseStringUTFChars(path, source);
+    return success;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeStopRecord(JNIEnv *env, jobject thiz) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeStopRecord but pWePushFlow == NULL");
+        return;
+    }
+
+    pWePushFlow->stopRecord();
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_wtz_libpushflow_WePushFlow_nativeStartPush(JNIEnv *env, jobject thiz) {
@@ -127,8 +206,25 @@ Java_com_wtz_libpushflow_WePushFlow_nativePushSpsPps(JNIEnv *env, jobject thiz,
     pWePushFlow->pushSpsPps(reinterpret_cast<char *>(spsJbyte), sps_length,
                             reinterpret_cast<char *>(ppsJbyte), pps_length);
 
-    env->ReleaseByteArrayElements(sps, spsJbyte, 0);
-    env->ReleaseByteArrayElements(pps, ppsJbyte, 0);
+    env->ReleaseByteArrayElements(sps, spsJbyte, JNI_ABORT);// 只读不写，不需要拷回
+    env->ReleaseByteArrayElements(pps, ppsJbyte, JNI_ABORT);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativePushAudioSpecificConfig(JNIEnv *env, jobject thiz,
+                                                                  jbyteArray asc, jint asc_length) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativePushAudioSpecificConfig but pWePushFlow == NULL");
+        return;
+    }
+
+    jbyte *ascJbyte = env->GetByteArrayElements(asc, NULL);
+
+    // typedef signed char     jbyte;
+    pWePushFlow->pushAudioSpecificConfig(reinterpret_cast<char *>(ascJbyte), asc_length);
+
+    env->ReleaseByteArrayElements(asc, ascJbyte, JNI_ABORT);// 只读不写，不需要拷回
 }
 
 extern "C"
@@ -145,7 +241,7 @@ Java_com_wtz_libpushflow_WePushFlow_nativePushVideoData(JNIEnv *env, jobject thi
     // typedef signed char     jbyte;
     pWePushFlow->pushVideoData(reinterpret_cast<char *>(dataJbyte), data_length, is_keyframe);
 
-    env->ReleaseByteArrayElements(data, dataJbyte, 0);
+    env->ReleaseByteArrayElements(data, dataJbyte, JNI_ABORT);// 只读不写，不需要拷回
 }
 
 extern "C"
@@ -162,7 +258,74 @@ Java_com_wtz_libpushflow_WePushFlow_nativePushAudioData(JNIEnv *env, jobject thi
     // typedef signed char     jbyte;
     pWePushFlow->pushAudioData(reinterpret_cast<char *>(dataJbyte), data_length);
 
-    env->ReleaseByteArrayElements(data, dataJbyte, 0);
+    env->ReleaseByteArrayElements(data, dataJbyte, JNI_ABORT);// 只读不写，不需要拷回
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativePushVideoDataDirect(JNIEnv *env, jobject thiz,
+                                                              jobject data, jint offset,
+                                                              jint data_length, jboolean is_keyframe) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativePushVideoDataDirect but pWePushFlow == NULL");
+        return;
+    }
+
+    // 直接读取 direct buffer 内存，不经过 Java 数组中转
+    char *address = static_cast<char *>(env->GetDirectBufferAddress(data));
+    jlong capacity = env->GetDirectBufferCapacity(data);
+    if (address == NULL || offset < 0 || data_length <= 0 || offset + data_length > capacity) {
+        LOGE(LOG_TAG, "nativePushVideoDataDirect invalid buffer! offset=%d length=%d capacity=%lld",
+             offset, data_length, (long long) capacity);
+        return;
+    }
+
+    pWePushFlow->pushVideoData(address + offset, data_length, is_keyframe);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativePushAudioDataDirect(JNIEnv *env, jobject thiz,
+                                                              jobject data, jint offset,
+                                                              jint data_length) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativePushAudioDataDirect but pWePushFlow == NULL");
+        return;
+    }
+
+    char *address = static_cast<char *>(env->GetDirectBufferAddress(data));
+    jlong capacity = env->GetDirectBufferCapacity(data);
+    if (address == NULL || offset < 0 || data_length <= 0 || offset + data_length > capacity) {
+        LOGE(LOG_TAG, "nativePushAudioDataDirect invalid buffer! offset=%d length=%d capacity=%lld",
+             offset, data_length, (long long) capacity);
+        return;
+    }
+
+    pWePushFlow->pushAudioData(address + offset, data_length);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeGetPacketPoolStats(JNIEnv *env, jobject thiz,
+                                                             jlongArray stats) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeGetPacketPoolStats but pWePushFlow == NULL");
+        return;
+    }
+
+    RtmpPacketPoolStats poolStats;
+    pWePushFlow->getPacketPoolStats(&poolStats);
+
+    // 顺序与 Java 层 WePushFlow.PacketPoolStats 一致
+    jlong values[6];
+    values[0] = poolStats.obtainCount;
+    values[1] = poolStats.allocCount;
+    values[2] = poolStats.hitCount;
+    values[3] = poolStats.inUseCount;
+    values[4] = poolStats.highWaterMark;
+    values[5] = poolStats.cachedCount;
+    int length = env->GetArrayLength(stats);
+    env->SetLongArrayRegion(stats, 0, length < 6 ? length : 6, values);
 }
 
 extern "C"
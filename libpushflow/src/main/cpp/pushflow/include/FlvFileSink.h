@@ -0,0 +1,136 @@
+//
+// Created by WTZ on 2020/5/9.
+//
+
+#ifndef VIDEOMAKER_FLVFILESINK_H
+#define VIDEOMAKER_FLVFILESINK_H
+
+#include <stdio.h>
+#include <pthread.h>
+#include <vector>
+#include "AndroidLog.h"
+
+extern "C"
+{
+#include "rtmp.h"
+};
+
+#define FLV_HEADER_SIZE  9
+#define FLV_TAG_HEADER_SIZE  11
+#define FLV_PREVIOUS_TAG_SIZE  4
+
+#define FLV_TAG_TYPE_SCRIPT  18
+#define FLV_SOUND_FORMAT_AAC  10
+
+/**
+ * 把推流用的 RTMPPacket 原样写成 FLV 文件
+ * RTMP 音视频消息的 body 与 FLV Audio/Video Tag 的 data 格式完全相同，所以不需要重新封装，
+ * 只需要在 body 前后加上 Tag 头和 PreviousTagSize，推流和本地录制共用一次编码和封包。
+ *
+ * 文件结构：
+ * 1. 第一个 Tag 是 onMetaData，关闭文件时回填 duration 和 filesize；
+ * 2. 有视频时从第一个关键帧开始写，在它前面依次写入最近的 SPS/PPS 和 AAC 序列头（AudioSpecificConfig），
+ * 序列头在开始写之前到达时先保存一份，保证文件开头就能解码。
+ *
+ * 时间戳处理：
+ * 1. 写入的时间戳以开始写入时的 packet 时间为 0 点；
+ * 2. 推流重连后 packet 时间戳会从 0 重新开始，调用 markDiscontinuity 后接着上一段的时间继续写，
+ * 两段之间隔开一个视频帧间隔，不会出现重复的时间戳；
+ * 3. 换了一条发送路径时调用 resync，时间戳仍然连续，只等下一个关键帧并跳过已经写过的时间。
+ */
+class FlvFileSink {
+
+private:
+    const char *LOG_TAG = "FlvFileSink";
+
+    // 写文件缓冲，减少 write 系统调用次数
+    static const int FILE_BUFFER_SIZE = 256 * 1024;
+
+    FILE *file = NULL;
+    char *fileBuffer = NULL;
+    pthread_mutex_t mutex;
+
+    bool hasVideo = true;
+    bool hasAudio = true;
+    bool isHeaderWritten = false;// onMetaData 和序列头是否已经写入
+    bool isWaitingKeyframe = true;
+    bool needRebase = true;
+    uint32_t baseTimestamp = 0;// 当前这段 packet 时间戳的 0 点
+    uint32_t timestampOffset = 0;// 之前各段已写入的时长
+    uint32_t lastTimestamp = 0;// 最后写入的 Tag 时间戳
+    uint32_t lastRawTimestamp = 0;// 最后写入的音视频 packet 原始时间戳
+    uint32_t lastVideoTimestamp = 0;
+    uint32_t videoInterval = 0;// 最近两个视频帧的间隔，用于隔开不连续的两段
+    bool isResyncing = false;
+    uint32_t resyncMinTimestamp = 0;// resync 后原始时间戳小于它的 packet 已经写过
+
+    // 最近的序列头 body，开始写文件时补写在第一个关键帧前面
+    std::vector<char> videoConfig;
+    std::vector<char> audioConfig;
+    bool isAudioConfigPending = false;// 音频序列头还没有写入当前文件
+
+    // onMetaData 中 duration 和 filesize 数值在文件中的位置，关闭时回填，小于 0 表示没有
+    int64_t durationValuePosition = -1;
+    int64_t fileSizeValuePosition = -1;
+
+    int64_t tagCount = 0;
+    int64_t fileBytes = 0;
+
+public:
+    FlvFileSink();
+
+    ~FlvFileSink();
+
+    /**
+     * 创建文件并写入 FLV 文件头，已打开时会先关闭之前的文件
+     *
+     * @param hasVideo 是否有视频，有视频时会等到第一个关键帧才开始写
+     * @param hasAudio 是否有音频
+     * @return 是否成功
+     */
+    bool open(const char *path, bool hasVideo, bool hasAudio);
+
+    bool isOpened();
+
+    /**
+     * 写入一个音频或视频 packet，其它类型忽略
+     *
+     * @return 是否写入，还在等待关键帧、序列头只保存未写入或写文件失败时返回 false
+     */
+    bool writePacket(RTMPPacket *packet);
+
+    /**
+     * 后续 packet 的时间戳不再与之前连续，例如推流重连后从 0 重新计时
+     */
+    void markDiscontinuity();
+
+    /**
+     * 后续 packet 来自另一条发送路径：时间戳与之前连续，但可能与已写入的重复或者中间缺帧，
+     * 跳过已写过的时间并等下一个关键帧再继续写
+     */
+    void resync();
+
+    /**
+     * 写完缓冲区数据并关闭文件
+     */
+    void close();
+
+    int64_t getTagCount();
+
+    int64_t getFileBytes();
+
+private:
+    void closeLocked();
+
+    bool writeTag(int type, const char *data, uint32_t dataSize, uint32_t timestamp);
+
+    bool writeMetaData();
+
+    void updateMetaData();
+
+    static bool isAacSequenceHeader(RTMPPacket *packet);
+
+};
+
+
+#endif //VIDEOMAKER_FLVFILESINK_H
@@ -11,20 +11,12 @@ class OnPushDisconnectCall : public JavaListener {
 
 public:
     OnPushDisconnectCall(JavaVM *jvm, JNIEnv *mainEnv, jobject obj)
-    : JavaListener(jvm, mainEnv, obj) {
+    : JavaListener(jvm, mainEnv, obj, "onNativePushDisconnect", "()V") {
     }
 
     ~OnPushDisconnectCall() {
     };
 
-    const char *getMethodName() {
-        return "onNativePushDisconnect";
-    }
-
-    const char *getMethodSignature() {
-        return "()V";
-    }
-
     void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) {
         env->CallVoidMethod(obj, methodId);
     }
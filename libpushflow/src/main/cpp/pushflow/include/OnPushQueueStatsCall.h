@@ -0,0 +1,36 @@
+//
+// Created by WTZ on 2020/5/8.
+//
+
+#ifndef VIDEOMAKER_ONPUSHQUEUESTATSCALL_H
+#define VIDEOMAKER_ONPUSHQUEUESTATSCALL_H
+
+#include "JavaListener.h"
+
+class OnPushQueueStatsCall : public JavaListener {
+
+public:
+    OnPushQueueStatsCall(JavaVM *jvm, JNIEnv *mainEnv, jobject obj)
+    : JavaListener(jvm, mainEnv, obj, "onNativePushQueueStats", "(IIJIJJJ)V") {
+    }
+
+    ~OnPushQueueStatsCall() {
+    };
+
+    void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) {
+        int destination = va_arg(args, int);
+        int size = va_arg(args, int);
+        int64_t bytes = va_arg(args, int64_t);
+        int latencyMills = va_arg(args, int);
+        int64_t droppedFrames = va_arg(args, int64_t);
+        int64_t droppedBytes = va_arg(args, int64_t);
+        int64_t sentBytes = va_arg(args, int64_t);
+
+        env->CallVoidMethod(obj, methodId, destination, size, (jlong) bytes, latencyMills,
+                            (jlong) droppedFrames, (jlong) droppedBytes, (jlong) sentBytes);
+    }
+
+};
+
+
+#endif //VIDEOMAKER_ONPUSHQUEUESTATSCALL_H
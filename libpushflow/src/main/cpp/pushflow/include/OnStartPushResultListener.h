@@ -11,20 +11,12 @@ class OnStartPushResultListener : public JavaListener {
 
 public:
     OnStartPushResultListener(JavaVM *jvm, JNIEnv *mainEnv, jobject obj)
-    : JavaListener(jvm, mainEnv, obj) {
+    : JavaListener(jvm, mainEnv, obj, "onNativeStartPushResult", "(ZLjava/lang/String;)V") {
     }
 
     ~OnStartPushResultListener() {
     };
 
-    const char *getMethodName() {
-        return "onNativeStartPushResult";
-    }
-
-    const char *getMethodSignature() {
-        return "(ZLjava/lang/String;)V";
-    }
-
     void reallyCallback(JNIEnv *env, jobject obj, jmethodID methodId, va_list args) {
         bool success = va_arg(args, bool);
         const char *info = va_arg(args, const char *);
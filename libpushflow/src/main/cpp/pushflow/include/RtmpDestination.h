@@ -0,0 +1,118 @@
+//
+// Created by WTZ on 2020/5/10.
+//
+
+#ifndef VIDEOMAKER_RTMPDESTINATION_H
+#define VIDEOMAKER_RTMPDESTINATION_H
+
+extern "C" {
+#include "rtmp.h"
+};
+
+#include <pthread.h>
+#include <atomic>
+#include "AndroidLog.h"
+#include "RtmpPacketQueue.h"
+#include "RtmpPacketPool.h"
+
+class WePushFlow;
+
+/**
+ * 一个推流目标：独立的 RTMP 连接、发送线程和推流队列
+ * 多个目标共享同一份 packet，入队时只增加引用计数，慢的目标由自己的有界队列丢帧或者断开，不影响其它目标
+ */
+class RtmpDestination {
+
+private:
+    const char *LOG_TAG = "RtmpDestination";
+
+    int index;
+    char *url = NULL;
+    RTMP *rtmp = NULL;
+
+    WePushFlow *owner = NULL;
+    RtmpPacketPool *packetPool = NULL;
+    RtmpPacketQueue *queue = NULL;
+
+    pthread_t connectThread;
+    bool isConnectThreadStarted = false;
+    int connectTimeoutSeconds = 0;
+    int connectQueueMaxBytes = 0;
+    int connectQueueMaxDurationMills = 0;
+    bool isConnected = false;
+
+    pthread_t sendThread;
+    bool isSendThreadStarted = false;
+    // 在发送线程和推流线程之间共享
+    std::atomic<bool> isShouldExit{false};
+    std::atomic<bool> isActive{false};
+
+    uint32_t lastQueueStatsTime = 0;
+    int64_t sentBytes = 0;// 累计发送成功的 body 字节数，只在发送线程中写
+
+public:
+    /**
+     * @param index 目标序号，0 是主推流地址
+     * @param url   会复制一份，调用方管理原字符串
+     */
+    RtmpDestination(int index, const char *url, WePushFlow *owner, RtmpPacketPool *pool);
+
+    ~RtmpDestination();
+
+    int getIndex();
+
+    const char *getUrl();
+
+    /**
+     * 阻塞连接，成功后创建推流队列，但还不发送
+     */
+    bool connect(int timeoutSeconds, int queueMaxBytes, int queueMaxDurationMills);
+
+    /**
+     * 在单独的线程中连接，多个目标可以同时连接，用 waitConnect 等待结果
+     */
+    void startConnect(int timeoutSeconds, int queueMaxBytes, int queueMaxDurationMills);
+
+    void _connect();
+
+    /**
+     * 阻塞等待 startConnect 的连接线程结束
+     *
+     * @return 是否连接成功
+     */
+    bool waitConnect();
+
+    void setQueueLimits(int maxBytes, int maxDurationMills);
+
+    /**
+     * 开启发送线程
+     */
+    void startSend(uint32_t startPushTime);
+
+    void _loopSend();
+
+    /**
+     * 共享 packet 入队，会增加引用计数，调用方仍持有自己的引用；已断开时直接忽略
+     */
+    void putPacket(RTMPPacket *packet);
+
+    bool isSending();
+
+    void getQueueStats(RtmpPacketQueueStats *stats);
+
+    int64_t getSentBytes();
+
+    /**
+     * 停止发送线程并断开连接，阻塞等待发送线程退出
+     */
+    void stop();
+
+private:
+    void freeRTMP();
+
+    void reportQueueStats();
+
+};
+
+
+#endif //VIDEOMAKER_RTMPDESTINATION_H
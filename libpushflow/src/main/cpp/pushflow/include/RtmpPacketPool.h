@@ -0,0 +1,103 @@
+//
+// Created by WTZ on 2020/5/6.
+//
+
+#ifndef VIDEOMAKER_RTMPPACKETPOOL_H
+#define VIDEOMAKER_RTMPPACKETPOOL_H
+
+#include <vector>
+#include <pthread.h>
+#include "AndroidLog.h"
+
+extern "C"
+{
+#include "rtmp.h"
+};
+
+/**
+ * 从 RtmpPacketPool 取出的 packet，RTMPPacket 必须是第一个成员，以便与 RTMPPacket * 互相转换
+ */
+typedef struct PooledRtmpPacket {
+    RTMPPacket packet;
+    int sizeClass;// 所属规格，RTMP_PACKET_POOL_OVERSIZE 表示超过最大规格，回收时直接释放
+    uint32_t bodyCapacity;
+    int refCount;// 引用计数，多个推流目标共享同一个 packet 时使用，只通过原子操作读写
+} PooledRtmpPacket;
+
+#define RTMP_PACKET_POOL_OVERSIZE -1
+
+typedef struct RtmpPacketPoolStats {
+    int64_t obtainCount;// 取 packet 的总次数
+    int64_t allocCount;// 真正分配内存的次数
+    int64_t hitCount;// 从池中复用的次数
+    int inUseCount;// 当前正在使用（已取出未回收）的个数
+    int highWaterMark;// 同时使用个数的最高值
+    int cachedCount;// 当前池中缓存的空闲个数
+} RtmpPacketPoolStats;
+
+/**
+ * 按 body 大小分级缓存的 RTMPPacket 池
+ * 推流时每帧都要 malloc RTMPPacket 及其 body，发送完成后再 free，这里改为发送完成后回收复用
+ */
+class RtmpPacketPool {
+
+private:
+    const char *LOG_TAG = "RtmpPacketPool";
+
+    // 规格从 512B 开始每级翻倍，最大 1MB，足以覆盖常见分辨率的关键帧
+    static const int MIN_SIZE_SHIFT = 9;
+    static const int SIZE_CLASS_COUNT = 12;
+    // 每个规格最多缓存的空闲个数，避免瞬时峰值过后一直占用大量内存
+    static const int MAX_CACHE_PER_CLASS = 16;
+
+    std::vector<PooledRtmpPacket *> freeLists[SIZE_CLASS_COUNT];
+    pthread_mutex_t mutex;
+
+    int64_t obtainCount = 0;
+    int64_t allocCount = 0;
+    int64_t hitCount = 0;
+    int inUseCount = 0;
+    int highWaterMark = 0;
+    int cachedCount = 0;
+
+public:
+    RtmpPacketPool();
+
+    ~RtmpPacketPool();
+
+    /**
+     * 取一个 body 容量不小于 bodySize 的 packet，取出后已 RTMPPacket_Reset，引用计数为 1
+     *
+     * @return 失败时返回 NULL
+     */
+    RTMPPacket *obtainPacket(uint32_t bodySize);
+
+    /**
+     * 增加一个引用，之后每个引用方都要各自调用一次 recyclePacket
+     * 共享的 packet 只能读，发送时要用不修改 packet 的 RTMP_SendSharedPacket
+     */
+    void retainPacket(RTMPPacket *packet);
+
+    /**
+     * 释放一个引用，引用计数减到 0 时才真正回收，回收后调用方不能再使用
+     */
+    void recyclePacket(RTMPPacket *packet);
+
+    void getStats(RtmpPacketPoolStats *stats);
+
+    /**
+     * 释放所有空闲缓存，不影响正在使用的 packet
+     */
+    void trim();
+
+private:
+    int getSizeClass(uint32_t bodySize);
+
+    PooledRtmpPacket *allocPacket(uint32_t bodyCapacity, int sizeClass);
+
+    void freePacket(PooledRtmpPacket *pooled);
+
+};
+
+
+#endif //VIDEOMAKER_RTMPPACKETPOOL_H
@@ -5,15 +5,24 @@
 #ifndef VIDEOMAKER_RTMPPACKETQUEUE_H
 #define VIDEOMAKER_RTMPPACKETQUEUE_H
 
-#include "queue"
+#include "deque"
 #include <pthread.h>
 #include "AndroidLog.h"
+#include "RtmpPacketPool.h"
 
 extern "C"
 {
 #include "rtmp.h"
 };
 
+typedef struct RtmpPacketQueueStats {
+    int size;// 当前队列中 packet 个数
+    int64_t bytes;// 当前队列中 body 总字节数
+    int latencyMills;// 当前队列中最新与最旧音视频数据的时间差
+    int64_t droppedFrames;// 累计丢弃的视频帧数
+    int64_t droppedBytes;// 累计丢弃的字节数
+} RtmpPacketQueueStats;
+
 class RtmpPacketQueue {
 
 private:
@@ -22,15 +31,34 @@ private:
     bool allowOperation = true;
     bool productDataComplete = false;
 
-    std::queue<RTMPPacket *> queue;
+    std::deque<RTMPPacket *> queue;
+    RtmpPacketPool *packetPool = NULL;
     pthread_mutex_t mutex;
     pthread_cond_t condition;
 
+    // 有界模式：任一限制大于 0 即开启，超出限制时按丢帧策略丢弃视频帧
+    int maxBytes = 0;
+    int maxDurationMills = 0;
+    int64_t queueBytes = 0;
+    int64_t droppedFrames = 0;
+    int64_t droppedBytes = 0;
+    // 已丢弃了当前 GOP 中的帧，后续非关键帧无法解码，需要一直丢到下一个关键帧
+    bool isWaitingKeyframe = false;
+
 public:
     static const int MAX_CACHE_NUM = 40;//TODO TEST
 
+    static const int PACKET_KIND_AUDIO = 0;
+    static const int PACKET_KIND_VIDEO_CONFIG = 1;// SPS/PPS
+    static const int PACKET_KIND_VIDEO_KEYFRAME = 2;
+    static const int PACKET_KIND_VIDEO_FRAME = 3;
+    static const int PACKET_KIND_OTHER = 4;
+
 public:
-    RtmpPacketQueue();
+    /**
+     * @param pool 清空队列时 packet 回收到此池中，由调用方管理其生命周期
+     */
+    RtmpPacketQueue(RtmpPacketPool *pool);
 
     ~RtmpPacketQueue();
 
@@ -48,17 +76,46 @@ public:
 
     bool isProductDataComplete();
 
+    /**
+     * 设置有界模式的限制，小于等于 0 表示不限制；两者都不限制时就是无界队列
+     *
+     * 超出限制时的丢帧策略：
+     * 1. 先丢最旧 GOP 中的视频非关键帧，保留其关键帧；
+     * 2. 仍超出时，丢掉最旧的关键帧，即整个 GOP 丢到下一个关键帧为止；
+     * 3. 音频和 SPS/PPS 永远不丢。
+     */
+    void setLimits(int maxBytes, int maxDurationMills);
+
     void putPacket(RTMPPacket *packet);
 
     RTMPPacket *getPacket();
 
     int getQueueSize();
 
+    void getStats(RtmpPacketQueueStats *stats);
+
     void clearQueue();
 
+    static int getPacketKind(RTMPPacket *packet);
+
 private:
     void releaseQueue();
 
+    bool isOverLimit();
+
+    /**
+     * @param videoOnly 只统计视频帧，用于时长限制判断，因为音频不能丢，只能靠丢视频来满足限制
+     */
+    int getLatencyMills(bool videoOnly);
+
+    static bool isTimedKind(int kind, bool videoOnly);
+
+    bool dropOldestNonKeyframes();
+
+    bool dropOldestKeyframe();
+
+    void dropPacketAt(size_t index);
+
 };
 
 
@@ -10,9 +10,15 @@ extern "C" {
 };
 
 #include <pthread.h>
+#include <atomic>
+#include <vector>
 #include "RtmpPacketQueue.h"
+#include "RtmpPacketPool.h"
+#include "RtmpDestination.h"
+#include "FlvFileSink.h"
 #include "OnStartPushResultListener.h"
 #include "OnPushDisconnectCall.h"
+#include "OnPushQueueStatsCall.h"
 
 #define RTMP_SPS_PPS_EXTRA_BYTES_SIZE  16
 #define RTMP_VIDEO_EXTRA_BYTES_SIZE  9
@@ -22,6 +28,11 @@ extern "C" {
 #define RTMP_STREAM_CHANNEL_VIDEO     0x04
 #define RTMP_STREAM_CHANNEL_AUDIO     0x05
 
+#define PUSH_QUEUE_STATS_INTERVAL_MILLS  1000
+
+// 推流队列默认最多积压 2MB，4Mbps 的视频约 4 秒，网络变差时不会无限占用内存
+#define PUSH_QUEUE_DEFAULT_MAX_BYTES  (2 * 1024 * 1024)
+
 class WePushFlow {
 
 private:
@@ -29,58 +40,109 @@ private:
 
     OnStartPushResultListener *onStartPushResultListener = NULL;
     OnPushDisconnectCall *onPushDisconnectCall = NULL;
+    OnPushQueueStatsCall *onPushQueueStatsCall = NULL;
 
-    RTMP *rtmp = NULL;
-    char *pushUrl = NULL;
+    char *pushUrl = NULL;// 主推流地址，对应目标序号 0
+    std::vector<char *> backupUrls;// 备用推流地址，对应目标序号 1~N
     int connectTimeout = 5;// seconds
 
     int audioEncodeBitsFlag = 0x2;// 第2位标志 default 16bits
     int audioChannelFlag = 0x1;// 第1位标志 default stereo
 
-    RtmpPacketQueue *queue = NULL;
-    RTMPPacket *packet = NULL;
-
-    bool isStarting = false;
-    bool isStartSuccess = false;
+    RtmpPacketPool *packetPool = NULL;
+    int queueMaxBytes = PUSH_QUEUE_DEFAULT_MAX_BYTES;// 小于等于 0 表示不限制
+    int queueMaxDurationMills = 0;// 小于等于 0 表示不限制
+    // 各推流目标共享同一份 packet，每个目标有自己的连接、发送线程和队列
+    std::vector<RtmpDestination *> destinations;
+    int activeDestinationCount = 0;
+    pthread_mutex_t destinationsMutex;
+    FlvFileSink *flvSink = NULL;// 本地录制，与推流共用同一份 packet
+    // 本地录制跟随这个目标发送线程的输出，只录经过队列丢帧策略之后真正发出的数据
+    std::atomic<RtmpDestination *> recordSource{NULL};
+
+    // 推流线程、编码线程和发送线程之间共享
+    std::atomic<bool> isStarting{false};
+    std::atomic<bool> isStartSuccess{false};
     long startPushTime = 0;
-    bool isShouldCallDisconnect = false;
-    bool isShouldExit = false;
-
-public:
-    pthread_t pushThread;
-    bool isPushThreadStarted = false;
+    std::atomic<bool> isShouldExit{false};
 
 public:
-    WePushFlow(OnStartPushResultListener *startListener, OnPushDisconnectCall *disconnectCall);
+    WePushFlow(OnStartPushResultListener *startListener, OnPushDisconnectCall *disconnectCall,
+               OnPushQueueStatsCall *queueStatsCall);
 
     ~WePushFlow();
 
     void setPushUrl(char *url);
 
+    /**
+     * 添加备用推流地址，与主地址同时推流，共用一次编码
+     *
+     * @param url 由 WePushFlow 负责释放
+     */
+    void addBackupPushUrl(char *url);
+
+    void clearBackupPushUrls();
+
     void setConnectTimeout(int seconds);
 
     void setAudioEncodeBits(int audioEncodeBits);
 
     void setAudioChannels(int audioChannels);
 
-    void startPush();
+    /**
+     * 设置推流队列的字节数和时长限制，默认只限制字节数为 PUSH_QUEUE_DEFAULT_MAX_BYTES，
+     * 都不大于 0 时为无界队列
+     */
+    void setQueueLimits(int maxBytes, int maxDurationMills);
 
-    void _loopPush();
+    void startPush();
 
     void pushSpsPps(char *sps, int spsLength, char *pps, int ppsLength);
 
     void pushVideoData(char *data, int dataLength, bool isKeyframe);
 
+    /**
+     * 推送 AAC 序列头，在第一帧音频之前调用
+     *
+     * @param asc AudioSpecificConfig，即 AAC 编码器输出格式中的 csd-0
+     */
+    void pushAudioSpecificConfig(char *asc, int ascLength);
+
     void pushAudioData(char *data, int dataLength);
 
+    void getPacketPoolStats(RtmpPacketPoolStats *stats);
+
+    /**
+     * 开始把推流数据同时录制为本地 FLV 文件，推流过程中和推流前都可以调用
+     * 录制的是 recordSource 发送线程从队列中取出的数据，与实际推送的一致
+     */
+    bool startRecord(const char *path);
+
+    void stopRecord();
+
     void setStopFlag();
 
     void stopPush();
 
+    /**
+     * 由推流目标的发送线程回调
+     */
+    void onDestinationDisconnected(RtmpDestination *destination);
+
+    void onDestinationQueueStats(RtmpDestination *destination);
+
+    /**
+     * 发送线程从队列中取出一个 packet 并发送之后回调，packet 在回调返回后才释放
+     */
+    void onDestinationPacketSent(RtmpDestination *destination, RTMPPacket *packet);
+
 private:
-    void handleOnStartPushFailed(char *error);
+    void handleOnStartPushFailed(const char *error);
 
-    void freeRTMP();
+    /**
+     * 分发给各推流目标并释放创建时的引用
+     */
+    void dispatchPacket(RTMPPacket *packet);
 
 };
 
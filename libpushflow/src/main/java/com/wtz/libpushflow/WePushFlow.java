@@ -7,6 +7,8 @@ import android.os.Message;
 
 import com.wtz.libpushflow.utlis.LogUtils;
 
+import java.nio.ByteBuffer;
+
 public class WePushFlow {
 
     private static final String TAG = WePushFlow.class.getSimpleName();
@@ -19,20 +21,38 @@ public class WePushFlow {
 
     private native void nativeSetPushUrl(String url);
 
+    private native void nativeAddBackupPushUrl(String url);
+
+    private native void nativeClearBackupPushUrls();
+
     private native void nativeSetConnectTimeout(int seconds);
 
     private native void nativeSetAudioEncodeBits(int audioEncodeBits);
 
     private native void nativeSetAudioChannels(int audioChannels);
 
+    private native void nativeSetQueueLimits(int maxBytes, int maxDurationMills);
+
+    private native boolean nativeStartRecord(String path);
+
+    private native void nativeStopRecord();
+
     private native void nativeStartPush();
 
     private native void nativePushSpsPps(byte[] sps, int spsLength, byte[] pps, int ppsLength);
 
     private native void nativePushVideoData(byte[] data, int dataLength, boolean isKeyframe);
 
+    private native void nativePushAudioSpecificConfig(byte[] asc, int ascLength);
+
     private native void nativePushAudioData(byte[] data, int dataLength);
 
+    private native void nativePushVideoDataDirect(ByteBuffer data, int offset, int dataLength, boolean isKeyframe);
+
+    private native void nativePushAudioDataDirect(ByteBuffer data, int offset, int dataLength);
+
+    private native void nativeGetPacketPoolStats(long[] stats);
+
     private native void nativeSetStopFlag();
 
     private native void nativeStopPush();
@@ -46,6 +66,9 @@ public class WePushFlow {
     private boolean isStartSuccess;
     private boolean isStarting;
     private boolean isReleased;
+    // 非 direct ByteBuffer 时的中转数组，正常 MediaCodec 输出都是 direct buffer 用不到
+    private byte[] mVideoFallbackBytes;
+    private byte[] mAudioFallbackBytes;
 
     private static final int HANDLE_START_PUSH = 1;
     private static final int HANDLE_STOP_PUSH = 2;
@@ -57,12 +80,56 @@ public class WePushFlow {
         void onPushDisconnect();
     }
 
+    /**
+     * 推流队列状态监听，可选，不设置时不回调
+     */
+    public interface PushQueueStatsListener {
+        /**
+         * 推流队列状态，推流过程中每个推流目标约每秒回调一次
+         *
+         * @param destination   推流目标序号，0 是主推流地址，1~N 依次是备用推流地址
+         * @param queueSize     当前队列中的 packet 个数
+         * @param queueBytes    当前队列中的数据字节数
+         * @param latencyMills  当前队列中最新与最旧音视频数据的时间差，即排队延迟
+         * @param droppedFrames 有界队列模式下累计丢弃的视频帧数
+         * @param droppedBytes  有界队列模式下累计丢弃的字节数
+         * @param sentBytes     本次推流累计发送成功的字节数，两次回调的差值可用于估算上行吞吐量
+         */
+        void onPushQueueStats(int destination, int queueSize, long queueBytes, int latencyMills,
+                              long droppedFrames, long droppedBytes, long sentBytes);
+    }
+
     private PushStateListener mPushStateListener;
 
     public void setPushStateListener(PushStateListener listener) {
         this.mPushStateListener = listener;
     }
 
+    private volatile PushQueueStatsListener mPushQueueStatsListener;
+
+    public void setPushQueueStatsListener(PushQueueStatsListener listener) {
+        this.mPushQueueStatsListener = listener;
+    }
+
+    /**
+     * native 层 RTMPPacket 池的统计数据
+     */
+    public static class PacketPoolStats {
+        public long obtainCount;// 取 packet 的总次数
+        public long allocCount;// 真正分配内存的次数
+        public long hitCount;// 从池中复用的次数
+        public int inUseCount;// 当前正在使用的个数
+        public int highWaterMark;// 同时使用个数的最高值
+        public int cachedCount;// 当前池中缓存的空闲个数
+
+        @Override
+        public String toString() {
+            return "PacketPoolStats{obtain=" + obtainCount + ", alloc=" + allocCount
+                    + ", hit=" + hitCount + ", inUse=" + inUseCount
+                    + ", highWaterMark=" + highWaterMark + ", cached=" + cachedCount + "}";
+        }
+    }
+
     public enum ChannelLayout {
         MONO(1), STEREO(2);
 
@@ -134,6 +201,27 @@ public class WePushFlow {
         nativeSetPushUrl(url);
     }
 
+    /**
+     * 添加备用推流地址，startPush 时与主推流地址同时推流，共用一次编码和封包
+     * 每个地址有独立的连接、发送线程和推流队列，某个地址网络慢时只影响它自己：
+     * 按推流队列限制丢帧，或者断开后不再推流；只有全部地址都断开时才回调 onPushDisconnect
+     */
+    public void addBackupPushUrl(String url) {
+        if (isReleased) {
+            LogUtils.e(TAG, "addBackupPushUrl but it's already released! Please new one instance.");
+            return;
+        }
+        nativeAddBackupPushUrl(url);
+    }
+
+    public void clearBackupPushUrls() {
+        if (isReleased) {
+            LogUtils.e(TAG, "clearBackupPushUrls but it's already released! Please new one instance.");
+            return;
+        }
+        nativeClearBackupPushUrls();
+    }
+
     public void setConnectTimeout(int seconds) {
         if (isReleased) {
             LogUtils.e(TAG, "setConnectTimeout but it's already released! Please new one instance.");
@@ -158,6 +246,46 @@ public class WePushFlow {
         nativeSetAudioChannels(audioChannels.getNativeValue());
     }
 
+    /**
+     * 设置推流队列的限制，上行网络变差时避免队列无限增长、延迟越来越大
+     * 超出任一限制时，先丢最旧 GOP 的非关键帧，再整个 GOP 丢到下一个关键帧；音频和 SPS/PPS 不丢
+     * 默认最多积压 2MB，不限制时长
+     *
+     * @param maxBytes         队列最大字节数，小于等于 0 表示不限制
+     * @param maxDurationMills 队列中视频最大时长，小于等于 0 表示不限制；都不限制时为无界队列
+     */
+    public void setQueueLimits(int maxBytes, int maxDurationMills) {
+        if (isReleased) {
+            LogUtils.e(TAG, "setQueueLimits but it's already released! Please new one instance.");
+            return;
+        }
+        nativeSetQueueLimits(maxBytes, maxDurationMills);
+    }
+
+    /**
+     * 把推流数据同时录制为本地 FLV 文件，与推流共用同一次编码和封包，文件内容就是实际推送的内容：
+     * 录制的是主推流目标经过队列丢帧之后真正发出的数据，主目标断开时改为跟随仍在推流的备用目标
+     * 推流前和推流过程中都可以调用，有视频时从下一个关键帧开始录制；推流断开重连后接着录制
+     *
+     * @param path FLV 文件路径
+     * @return 文件是否创建成功
+     */
+    public boolean startRecord(String path) {
+        if (isReleased) {
+            LogUtils.e(TAG, "startRecord but it's already released! Please new one instance.");
+            return false;
+        }
+        return nativeStartRecord(path);
+    }
+
+    public void stopRecord() {
+        if (isReleased) {
+            LogUtils.e(TAG, "stopRecord but it's already released! Please new one instance.");
+            return;
+        }
+        nativeStopRecord();
+    }
+
     public void startPush() {
         if (isReleased) {
             LogUtils.e(TAG, "startPush but it's already released! Please new one instance.");
@@ -206,6 +334,22 @@ public class WePushFlow {
         }
     }
 
+    private void onNativePushQueueStats(final int destination, final int queueSize,
+                                        final long queueBytes, final int latencyMills,
+                                        final long droppedFrames, final long droppedBytes,
+                                        final long sentBytes) {
+        final PushQueueStatsListener listener = mPushQueueStatsListener;
+        if (listener != null) {
+            mUIHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPushQueueStats(destination, queueSize, queueBytes, latencyMills,
+                            droppedFrames, droppedBytes, sentBytes);
+                }
+            });
+        }
+    }
+
     public void pushSpsPps(byte[] sps, int spsLength, byte[] pps, int ppsLength) {
         if (isReleased) {
             LogUtils.e(TAG, "pushSpsPps but it's already released! Please new one instance.");
@@ -218,6 +362,23 @@ public class WePushFlow {
         nativePushSpsPps(sps, spsLength, pps, ppsLength);
     }
 
+    /**
+     * 推送 AAC 序列头，每次推流开始后在第一帧音频之前调用一次
+     *
+     * @param asc AudioSpecificConfig，即 AAC 编码器输出格式中的 csd-0
+     */
+    public void pushAudioSpecificConfig(byte[] asc, int ascLength) {
+        if (isReleased) {
+            LogUtils.e(TAG, "pushAudioSpecificConfig but it's already released! Please new one instance.");
+            return;
+        }
+        if (!isStartSuccess) {
+            LogUtils.e(TAG, "pushAudioSpecificConfig but it's not started yet.");
+            return;
+        }
+        nativePushAudioSpecificConfig(asc, ascLength);
+    }
+
     public void pushVideoData(byte[] data, int dataLength, boolean isKeyframe) {
         if (isReleased) {
             LogUtils.e(TAG, "pushVideoData but it's already released! Please new one instance.");
@@ -230,6 +391,60 @@ public class WePushFlow {
         nativePushVideoData(data, dataLength, isKeyframe);
     }
 
+    /**
+     * 推送视频数据，direct ByteBuffer 在 native 层直接读取内存，只在写入 RTMPPacket 时拷贝一次
+     * 只在调用期间读取 data，不改变其 position 和 limit
+     *
+     * @param offset data 中视频数据的起始绝对位置
+     */
+    public void pushVideoData(ByteBuffer data, int offset, int dataLength, boolean isKeyframe) {
+        if (isReleased) {
+            LogUtils.e(TAG, "pushVideoData but it's already released! Please new one instance.");
+            return;
+        }
+        if (!isStartSuccess) {
+            LogUtils.e(TAG, "pushVideoData but it's not started yet.");
+            return;
+        }
+        if (data.isDirect()) {
+            nativePushVideoDataDirect(data, offset, dataLength, isKeyframe);
+        } else {
+            mVideoFallbackBytes = copyToFallbackBytes(data, offset, dataLength, mVideoFallbackBytes);
+            nativePushVideoData(mVideoFallbackBytes, dataLength, isKeyframe);
+        }
+    }
+
+    /**
+     * 推送音频数据，说明同 {@link #pushVideoData(ByteBuffer, int, int, boolean)}
+     */
+    public void pushAudioData(ByteBuffer data, int offset, int dataLength) {
+        if (isReleased) {
+            LogUtils.e(TAG, "pushAudioData but it's already released! Please new one instance.");
+            return;
+        }
+        if (!isStartSuccess) {
+            LogUtils.e(TAG, "pushAudioData but it's not started yet.");
+            return;
+        }
+        if (data.isDirect()) {
+            nativePushAudioDataDirect(data, offset, dataLength);
+        } else {
+            mAudioFallbackBytes = copyToFallbackBytes(data, offset, dataLength, mAudioFallbackBytes);
+            nativePushAudioData(mAudioFallbackBytes, dataLength);
+        }
+    }
+
+    private static byte[] copyToFallbackBytes(ByteBuffer data, int offset, int length, byte[] fallback) {
+        if (fallback == null || fallback.length < length) {
+            fallback = new byte[length];
+        }
+        ByteBuffer duplicate = data.duplicate();
+        duplicate.limit(offset + length);
+        duplicate.position(offset);
+        duplicate.get(fallback, 0, length);
+        return fallback;
+    }
+
     public void pushAudioData(byte[] data, int dataLength) {
         if (isReleased) {
             LogUtils.e(TAG, "pushAudioData but it's already released! Please new one instance.");
@@ -242,6 +457,26 @@ public class WePushFlow {
         nativePushAudioData(data, dataLength);
     }
 
+    /**
+     * 获取 native 层 RTMPPacket 池的统计数据，可在任意线程调用
+     */
+    public PacketPoolStats getPacketPoolStats() {
+        PacketPoolStats stats = new PacketPoolStats();
+        if (isReleased) {
+            LogUtils.e(TAG, "getPacketPoolStats but it's already released!");
+            return stats;
+        }
+        long[] values = new long[6];
+        nativeGetPacketPoolStats(values);
+        stats.obtainCount = values[0];
+        stats.allocCount = values[1];
+        stats.hitCount = values[2];
+        stats.inUseCount = (int) values[3];
+        stats.highWaterMark = (int) values[4];
+        stats.cachedCount = (int) values[5];
+        return stats;
+    }
+
     public void stopPush() {
         nativeSetStopFlag();// 设置停止标志位立即执行，不进消息队列
 
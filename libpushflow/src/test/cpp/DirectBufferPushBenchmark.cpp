@@ -0,0 +1,134 @@
+//
+// 编码数据从 MediaCodec 输出 buffer 到 RTMPPacket body 的复制开销，在主机上启动一个 JVM 调用真实的 JNI 函数：
+// 1. 原路径：direct buffer 先复制到 Java 的 byte[]，JNI 用 GetByteArrayElements 取数组内容，
+//    复制到 packet body，再以模式 0 ReleaseByteArrayElements；
+// 2. byte[] 路径改用 JNI_ABORT 释放，即 heap buffer 的回退路径；
+// 3. direct buffer 路径：GetDirectBufferAddress 之后只复制一次到 packet body
+// 按 1080p 常用码率的帧大小序列统计每秒处理的编码数据量，数据一直在缓存中，只反映复制次数和 JNI 调用的差别
+//   direct_buffer_push_benchmark
+//
+
+#include <jni.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+#include <vector>
+#include "RtmpPacketPool.h"
+
+static const int FPS = 30;
+static const int GOP_FRAMES = 60;
+static const int SECONDS = 60;
+static const int ROUNDS = 5;
+
+static int64_t nowNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+/**
+ * 关键帧按 P 帧的 8 倍估算，一个 GOP 的总字节数与码率一致
+ */
+static std::vector<int> createFrameSizes(int videoKbps) {
+    int gopBytes = videoKbps * 1000 / 8 * GOP_FRAMES / FPS;
+    int frameBytes = gopBytes / (GOP_FRAMES - 1 + 8);
+    std::vector<int> sizes;
+    for (int i = 0; i < FPS * SECONDS; i++) {
+        sizes.push_back(i % GOP_FRAMES == 0 ? frameBytes * 8 : frameBytes);
+    }
+    return sizes;
+}
+
+/**
+ * 与 WePushFlow::pushVideoData 一样从池中取 packet，复制数据后发送完成即回收
+ */
+static void copyToPacket(RtmpPacketPool *pool, const char *data, int size) {
+    RTMPPacket *packet = pool->obtainPacket(size + 9);
+    memcpy(packet->m_body + 9, data, size);
+    packet->m_nBodySize = size + 9;
+    pool->recyclePacket(packet);
+}
+
+static int64_t runByteArray(JNIEnv *env, RtmpPacketPool *pool, jobject direct, jbyteArray array,
+                            const std::vector<int> &sizes, jint releaseMode) {
+    const char *address = static_cast<const char *>(env->GetDirectBufferAddress(direct));
+    int64_t start = nowNanos();
+    for (size_t i = 0; i < sizes.size(); i++) {
+        // Java 层的 outBuffer.get(mEncodeBytes, 0, size)
+        env->SetByteArrayRegion(array, 0, sizes[i], reinterpret_cast<const jbyte *>(address));
+        jbyte *bytes = env->GetByteArrayElements(array, NULL);
+        copyToPacket(pool, reinterpret_cast<const char *>(bytes), sizes[i]);
+        env->ReleaseByteArrayElements(array, bytes, releaseMode);
+    }
+    return nowNanos() - start;
+}
+
+static int64_t runDirect(JNIEnv *env, RtmpPacketPool *pool, jobject direct,
+                         const std::vector<int> &sizes) {
+    int64_t start = nowNanos();
+    for (size_t i = 0; i < sizes.size(); i++) {
+        const char *address = static_cast<const char *>(env->GetDirectBufferAddress(direct));
+        jlong capacity = env->GetDirectBufferCapacity(direct);
+        if (address == NULL || sizes[i] > capacity) {
+            return -1;
+        }
+        copyToPacket(pool, address, sizes[i]);
+    }
+    return nowNanos() - start;
+}
+
+int main() {
+    JavaVM *vm = NULL;
+    JNIEnv *env = NULL;
+    JavaVMInitArgs args;
+    memset(&args, 0, sizeof(args));
+    args.version = JNI_VERSION_1_6;
+    if (JNI_CreateJavaVM(&vm, reinterpret_cast<void **>(&env), &args) != JNI_OK) {
+        fprintf(stderr, "JNI_CreateJavaVM failed\n");
+        return 1;
+    }
+
+    const int kbpsList[] = {4000, 6000, 8000};
+    for (size_t k = 0; k < sizeof(kbpsList) / sizeof(kbpsList[0]); k++) {
+        std::vector<int> sizes = createFrameSizes(kbpsList[k]);
+        int64_t totalBytes = 0;
+        for (size_t i = 0; i < sizes.size(); i++) {
+            totalBytes += sizes[i];
+        }
+        int capacity = sizes[0];
+        std::vector<char> encoded(capacity, 0x5a);
+        jobject direct = env->NewDirectByteBuffer(encoded.data(), capacity);
+        jbyteArray array = env->NewByteArray(capacity);
+        RtmpPacketPool pool;
+
+        // 第一轮预热，之后各路径交替运行取最短耗时
+        int64_t best[3] = {INT64_MAX, INT64_MAX, INT64_MAX};
+        for (int round = 0; round <= ROUNDS; round++) {
+            int64_t elapsed[3];
+            elapsed[0] = runByteArray(env, &pool, direct, array, sizes, 0);
+            elapsed[1] = runByteArray(env, &pool, direct, array, sizes, JNI_ABORT);
+            elapsed[2] = runDirect(env, &pool, direct, sizes);
+            for (int p = 0; round > 0 && p < 3; p++) {
+                if (elapsed[p] < best[p]) {
+                    best[p] = elapsed[p];
+                }
+            }
+        }
+        env->DeleteLocalRef(direct);
+        env->DeleteLocalRef(array);
+
+        const char *names[3] = {"byte[] mode 0", "byte[] JNI_ABORT", "direct buffer"};
+        // 每帧数据被完整复制的次数，HotSpot 的 GetByteArrayElements 总是复制一份
+        const int copies[3] = {4, 3, 1};
+        printf("%dKbps 1080p, %d frames, %.1f MB per %d s, keyframe %d bytes:\n", kbpsList[k],
+               (int) sizes.size(), totalBytes / 1048576.0, SECONDS, capacity);
+        for (int p = 0; p < 3; p++) {
+            printf("  %-17s %d copies  %8.1f MB/s  %6.2f ms per second of video  speedup %.2f\n",
+                   names[p], copies[p], totalBytes / 1048576.0 / (best[p] / 1000000000.0),
+                   best[p] / 1000000.0 / SECONDS, (double) best[0] / best[p]);
+        }
+    }
+    vm->DestroyJavaVM();
+    return 0;
+}
@@ -0,0 +1,210 @@
+//
+// 本机模拟的 RTMP 服务端：只应答推流需要的 connect、createStream、publish，之后按限定的速度读取数据，
+// 网络测试和推流基准共用
+//
+
+#ifndef VIDEOMAKER_FAKERTMPSERVER_H
+#define VIDEOMAKER_FAKERTMPSERVER_H
+
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <unistd.h>
+#include <atomic>
+#include <string>
+
+extern "C"
+{
+#include "rtmp.h"
+};
+
+/**
+ * 只实现推流需要的 connect、createStream、publish 应答，之后按限定的速度读取数据
+ */
+typedef struct FakeRtmpServer {
+    int listenFd;
+    int port;
+    int handshakeDelayMills;// 握手前等待，模拟连接很慢的服务端
+    int readBytesPerSecond;// 小于等于 0 时不限速
+    pthread_t thread;
+    std::atomic<bool> isPublished;
+    std::atomic<bool> isShouldExit;
+    std::atomic<long long> receivedBytes;
+} FakeRtmpServer;
+
+static long long nowMills() {
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+}
+
+static void sendInvoke(RTMP *r, int streamId, char *body, char *end) {
+    RTMPPacket packet;
+    RTMPPacket_Reset(&packet);
+    char buffer[RTMP_MAX_HEADER_SIZE + 512];
+    packet.m_body = buffer + RTMP_MAX_HEADER_SIZE;
+    memcpy(packet.m_body, body, end - body);
+    packet.m_nBodySize = end - body;
+    packet.m_nChannel = 0x03;
+    packet.m_headerType = RTMP_PACKET_SIZE_LARGE;
+    packet.m_packetType = RTMP_PACKET_TYPE_INVOKE;
+    packet.m_nInfoField2 = streamId;
+    RTMP_SendPacket(r, &packet, FALSE);
+}
+
+static char *encodeString(char *p, char *end, const char *value) {
+    AVal av = {const_cast<char *>(value), (int) strlen(value)};
+    return AMF_EncodeString(p, end, &av);
+}
+
+static char *encodeNamedString(char *p, char *end, const char *name, const char *value) {
+    AVal avName = {const_cast<char *>(name), (int) strlen(name)};
+    AVal avValue = {const_cast<char *>(value), (int) strlen(value)};
+    return AMF_EncodeNamedString(p, end, &avName, &avValue);
+}
+
+static char *encodeObjectEnd(char *p) {
+    *p++ = 0x00;
+    *p++ = 0x00;
+    *p++ = AMF_OBJECT_END;
+    return p;
+}
+
+static void answerInvoke(RTMP *r, RTMPPacket *packet, FakeRtmpServer *server) {
+    AMFObject obj;
+    if (AMF_Decode(&obj, packet->m_body, packet->m_nBodySize, FALSE) < 0) {
+        return;
+    }
+    AVal method;
+    AMFProp_GetString(AMF_GetProp(&obj, NULL, 0), &method);
+    double txn = AMFProp_GetNumber(AMF_GetProp(&obj, NULL, 1));
+    std::string name(method.av_val, method.av_len);
+
+    char body[512];
+    char *end = body + sizeof(body);
+    char *p = body;
+    if (name == "connect") {
+        p = encodeString(p, end, "_result");
+        p = AMF_EncodeNumber(p, end, txn);
+        *p++ = AMF_OBJECT;
+        p = encodeNamedString(p, end, "fmsVer", "FMS/3,0,1,123");
+        p = encodeObjectEnd(p);
+        *p++ = AMF_OBJECT;
+        p = encodeNamedString(p, end, "level", "status");
+        p = encodeNamedString(p, end, "code", "NetConnection.Connect.Success");
+        p = encodeObjectEnd(p);
+        sendInvoke(r, 0, body, p);
+    } else if (name == "createStream") {
+        p = encodeString(p, end, "_result");
+        p = AMF_EncodeNumber(p, end, txn);
+        *p++ = AMF_NULL;
+        p = AMF_EncodeNumber(p, end, 1);
+        sendInvoke(r, 0, body, p);
+    } else if (name == "publish") {
+        p = encodeString(p, end, "onStatus");
+        p = AMF_EncodeNumber(p, end, 0);
+        *p++ = AMF_NULL;
+        *p++ = AMF_OBJECT;
+        p = encodeNamedString(p, end, "level", "status");
+        p = encodeNamedString(p, end, "code", "NetStream.Publish.Start");
+        p = encodeObjectEnd(p);
+        sendInvoke(r, 1, body, p);
+        server->isPublished = true;
+    }
+    AMF_Reset(&obj);
+}
+
+static void *serve(void *data) {
+    FakeRtmpServer *server = static_cast<FakeRtmpServer *>(data);
+    int fd = accept(server->listenFd, NULL, NULL);
+    if (fd < 0) {
+        return NULL;
+    }
+    usleep(server->handshakeDelayMills * 1000);
+
+    RTMP *r = RTMP_Alloc();
+    RTMP_Init(r);
+    r->m_sb.sb_socket = fd;
+    if (RTMP_Serve(r)) {
+        RTMPPacket packet;
+        memset(&packet, 0, sizeof(packet));
+        while (!server->isPublished && RTMP_IsConnected(r) && RTMP_ReadPacket(r, &packet)) {
+            if (!RTMPPacket_IsReady(&packet)) {
+                continue;
+            }
+            if (packet.m_packetType == RTMP_PACKET_TYPE_INVOKE) {
+                answerInvoke(r, &packet, server);
+            }
+            RTMPPacket_Free(&packet);
+        }
+    }
+
+    // 推流开始后只按限定的速度读取，不解析
+    const int CHUNK_BYTES = 4096;
+    char buffer[CHUNK_BYTES];
+    long long startTime = nowMills();
+    while (!server->isShouldExit) {
+        if (server->readBytesPerSecond > 0) {
+            long long allowed = (nowMills() - startTime) * server->readBytesPerSecond / 1000;
+            if (server->receivedBytes >= allowed) {
+                usleep(2000);
+                continue;
+            }
+        }
+        ssize_t count = recv(fd, buffer, CHUNK_BYTES, 0);
+        if (count <= 0) {
+            break;
+        }
+        server->receivedBytes += count;
+    }
+    // RTMP_Close 会关闭 fd 并释放各个通道上缓存的包
+    RTMP_Close(r);
+    RTMP_Free(r);
+    return NULL;
+}
+
+static bool startServer(FakeRtmpServer *server, int handshakeDelayMills, int readBytesPerSecond) {
+    server->handshakeDelayMills = handshakeDelayMills;
+    server->readBytesPerSecond = readBytesPerSecond;
+    server->isPublished = false;
+    server->isShouldExit = false;
+    server->receivedBytes = 0;
+    server->listenFd = socket(AF_INET, SOCK_STREAM, 0);
+    // 接收缓冲区小一些，限速时发送端更快感受到拥塞
+    int bufferSize = 16 * 1024;
+    setsockopt(server->listenFd, SOL_SOCKET, SO_RCVBUF, &bufferSize, sizeof(bufferSize));
+    struct sockaddr_in addr;
+    memset(&addr, 0, sizeof(addr));
+    addr.sin_family = AF_INET;
+    addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    addr.sin_port = 0;
+    if (bind(server->listenFd, (struct sockaddr *) &addr, sizeof(addr)) != 0
+        || listen(server->listenFd, 1) != 0) {
+        close(server->listenFd);
+        return false;
+    }
+    socklen_t length = sizeof(addr);
+    getsockname(server->listenFd, (struct sockaddr *) &addr, &length);
+    server->port = ntohs(addr.sin_port);
+    return pthread_create(&server->thread, NULL, serve, server) == 0;
+}
+
+static void stopServer(FakeRtmpServer *server) {
+    server->isShouldExit = true;
+    shutdown(server->listenFd, SHUT_RDWR);
+    pthread_join(server->thread, NULL);
+    close(server->listenFd);
+}
+
+static char *newUrl(int port) {
+    char *url = new char[64];
+    snprintf(url, 64, "rtmp://127.0.0.1:%d/live/test", port);
+    return url;
+}
+
+
+#endif //VIDEOMAKER_FAKERTMPSERVER_H
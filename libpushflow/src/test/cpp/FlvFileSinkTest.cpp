@@ -0,0 +1,306 @@
+//
+// FlvFileSink 的文件结构和时间戳测试：onMetaData、序列头、推流重连和切换发送路径
+//
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <string>
+#include <vector>
+#include "WeTest.h"
+#include "FlvFileSink.h"
+#include "RtmpPacketPool.h"
+#include "RtmpPacketQueue.h"
+
+typedef struct FlvTag {
+    int type;
+    uint32_t timestamp;
+    std::vector<unsigned char> body;
+} FlvTag;
+
+enum {
+    AUDIO_CONFIG, AUDIO_FRAME, VIDEO_CONFIG, VIDEO_KEYFRAME, VIDEO_FRAME
+};
+
+// AAC LC、44100Hz、双声道
+static const unsigned char AUDIO_SPECIFIC_CONFIG[2] = {0x12, 0x10};
+
+static RtmpPacketPool pool;
+
+static void write(FlvFileSink *sink, int what, uint32_t timestamp) {
+    RTMPPacket *packet = pool.obtainPacket(16);
+    packet->m_nBodySize = 16;
+    packet->m_nTimeStamp = timestamp;
+    packet->m_hasAbsTimestamp = 0;
+    memset(packet->m_body, 0, 16);
+    switch (what) {
+        case AUDIO_CONFIG:
+            packet->m_packetType = RTMP_PACKET_TYPE_AUDIO;
+            packet->m_nBodySize = 4;
+            packet->m_body[0] = (char) 0xAF;
+            packet->m_body[1] = 0x00;
+            memcpy(packet->m_body + 2, AUDIO_SPECIFIC_CONFIG, 2);
+            break;
+        case AUDIO_FRAME:
+            packet->m_packetType = RTMP_PACKET_TYPE_AUDIO;
+            packet->m_body[0] = (char) 0xAF;
+            packet->m_body[1] = 0x01;
+            break;
+        default:
+            packet->m_packetType = RTMP_PACKET_TYPE_VIDEO;
+            packet->m_body[0] = what == VIDEO_FRAME ? 0x27 : 0x17;
+            packet->m_body[1] = what == VIDEO_CONFIG ? 0x00 : 0x01;
+            break;
+    }
+    sink->writePacket(packet);
+    pool.recyclePacket(packet);
+}
+
+static uint32_t readBigEndian(const unsigned char *p, int bytes) {
+    uint32_t value = 0;
+    for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | p[i];
+    }
+    return value;
+}
+
+static std::vector<FlvTag> readTags(const char *path, long *fileSize) {
+    std::vector<FlvTag> tags;
+    FILE *file = fopen(path, "rb");
+    if (file == NULL) {
+        return tags;
+    }
+    std::vector<unsigned char> data;
+    unsigned char buffer[4096];
+    size_t count;
+    while ((count = fread(buffer, 1, sizeof(buffer), file)) > 0) {
+        data.insert(data.end(), buffer, buffer + count);
+    }
+    fclose(file);
+    *fileSize = data.size();
+
+    WE_CHECK(data.size() >= FLV_HEADER_SIZE + FLV_PREVIOUS_TAG_SIZE);
+    WE_CHECK(memcmp(data.data(), "FLV", 3) == 0);
+    size_t offset = FLV_HEADER_SIZE + FLV_PREVIOUS_TAG_SIZE;
+    while (offset + FLV_TAG_HEADER_SIZE <= data.size()) {
+        const unsigned char *p = &data[offset];
+        uint32_t dataSize = readBigEndian(p + 1, 3);
+        size_t next = offset + FLV_TAG_HEADER_SIZE + dataSize + FLV_PREVIOUS_TAG_SIZE;
+        if (next > data.size()) {
+            break;
+        }
+        FlvTag tag;
+        tag.type = p[0];
+        tag.timestamp = readBigEndian(p + 4, 3) | (p[7] << 24);
+        tag.body.assign(p + FLV_TAG_HEADER_SIZE, p + FLV_TAG_HEADER_SIZE + dataSize);
+        WE_CHECK_EQ(FLV_TAG_HEADER_SIZE + dataSize, readBigEndian(&data[next - FLV_PREVIOUS_TAG_SIZE], 4));
+        tags.push_back(tag);
+        offset = next;
+    }
+    WE_CHECK_EQ(data.size(), offset);
+    return tags;
+}
+
+static int kindOf(const FlvTag &tag) {
+    if (tag.type == RTMP_PACKET_TYPE_AUDIO) {
+        return tag.body[1] == 0x00 ? AUDIO_CONFIG : AUDIO_FRAME;
+    }
+    if (tag.body[1] == 0x00) {
+        return VIDEO_CONFIG;
+    }
+    return tag.body[0] == 0x17 ? VIDEO_KEYFRAME : VIDEO_FRAME;
+}
+
+/**
+ * onMetaData 中按名字查找数值或布尔属性，找不到返回 -1
+ */
+static double findMetaValue(const FlvTag &tag, const char *name) {
+    std::string body(tag.body.begin(), tag.body.end());
+    std::string key = std::string(1, (char) 0) + (char) strlen(name) + name;
+    size_t position = body.find(key);
+    if (position == std::string::npos) {
+        return -1;
+    }
+    const char *value = body.data() + position + key.size();
+    if (value[0] == AMF_NUMBER) {
+        return AMF_DecodeNumber(value + 1);
+    }
+    if (value[0] == AMF_BOOLEAN) {
+        return value[1];
+    }
+    return -1;
+}
+
+static std::string tempPath() {
+    char path[] = "/tmp/we_flv_test_XXXXXX";
+    int fd = mkstemp(path);
+    close(fd);
+    return path;
+}
+
+/**
+ * 序列头在关键帧之前到达时先保存，文件以 onMetaData、SPS/PPS、AAC 序列头、关键帧开头
+ */
+static void testHeaderTags() {
+    std::string path = tempPath();
+    FlvFileSink *sink = new FlvFileSink();
+    WE_CHECK(sink->open(path.c_str(), true, true));
+
+    write(sink, AUDIO_CONFIG, 0);
+    write(sink, AUDIO_FRAME, 80);
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_FRAME, 90);
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_KEYFRAME, 100);
+    write(sink, AUDIO_FRAME, 110);
+    write(sink, VIDEO_FRAME, 133);
+    write(sink, VIDEO_FRAME, 166);
+    int64_t fileBytes = sink->getFileBytes();
+    sink->close();
+    delete sink;
+
+    long fileSize = 0;
+    std::vector<FlvTag> tags = readTags(path.c_str(), &fileSize);
+    WE_CHECK_EQ(fileBytes, fileSize);
+    WE_CHECK_EQ(7, tags.size());
+    if (tags.size() == 7) {
+        WE_CHECK_EQ(FLV_TAG_TYPE_SCRIPT, tags[0].type);
+        WE_CHECK_EQ(VIDEO_CONFIG, kindOf(tags[1]));
+        WE_CHECK_EQ(AUDIO_CONFIG, kindOf(tags[2]));
+        WE_CHECK(memcmp(&tags[2].body[2], AUDIO_SPECIFIC_CONFIG, 2) == 0);
+        WE_CHECK_EQ(VIDEO_KEYFRAME, kindOf(tags[3]));
+        WE_CHECK_EQ(AUDIO_FRAME, kindOf(tags[4]));
+        uint32_t expected[7] = {0, 0, 0, 0, 10, 33, 66};
+        for (int i = 0; i < 7; i++) {
+            WE_CHECK_EQ(expected[i], tags[i].timestamp);
+        }
+
+        // 关闭时回填了时长和文件大小
+        WE_CHECK_EQ(66, (long long) (findMetaValue(tags[0], "duration") * 1000 + 0.5));
+        WE_CHECK_EQ(fileSize, (long long) findMetaValue(tags[0], "filesize"));
+        WE_CHECK_EQ(7, (long long) findMetaValue(tags[0], "videocodecid"));
+        WE_CHECK_EQ(FLV_SOUND_FORMAT_AAC, (long long) findMetaValue(tags[0], "audiocodecid"));
+        WE_CHECK_EQ(44100, (long long) findMetaValue(tags[0], "audiosamplerate"));
+        WE_CHECK_EQ(1, (long long) findMetaValue(tags[0], "stereo"));
+    }
+    unlink(path.c_str());
+}
+
+/**
+ * 推流重连后时间戳从 0 开始，新的一段接在上一段之后一帧，不重复上一段最后的时间戳
+ */
+static void testDiscontinuity() {
+    std::string path = tempPath();
+    FlvFileSink *sink = new FlvFileSink();
+    WE_CHECK(sink->open(path.c_str(), true, true));
+
+    write(sink, AUDIO_CONFIG, 0);
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_KEYFRAME, 0);
+    write(sink, VIDEO_FRAME, 33);
+    write(sink, VIDEO_FRAME, 66);
+    sink->markDiscontinuity();
+    write(sink, AUDIO_CONFIG, 0);
+    write(sink, AUDIO_FRAME, 5);// 还没有关键帧，丢弃
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_KEYFRAME, 10);
+    write(sink, VIDEO_FRAME, 43);
+    sink->close();
+    delete sink;
+
+    long fileSize = 0;
+    std::vector<FlvTag> tags = readTags(path.c_str(), &fileSize);
+    WE_CHECK_EQ(10, tags.size());
+    if (tags.size() == 10) {
+        // 0 script, 1 video config, 2 audio config, 3~5 第一段，6 video config, 7 audio config, 8~9 第二段
+        WE_CHECK_EQ(66, tags[5].timestamp);
+        WE_CHECK_EQ(VIDEO_CONFIG, kindOf(tags[6]));
+        WE_CHECK_EQ(99, tags[6].timestamp);
+        WE_CHECK_EQ(AUDIO_CONFIG, kindOf(tags[7]));
+        WE_CHECK_EQ(99, tags[7].timestamp);
+        WE_CHECK_EQ(VIDEO_KEYFRAME, kindOf(tags[8]));
+        WE_CHECK_EQ(99, tags[8].timestamp);
+        WE_CHECK_EQ(132, tags[9].timestamp);
+    }
+    unlink(path.c_str());
+}
+
+/**
+ * 换到另一条发送路径：已经写过的时间跳过，等到新的关键帧才继续，时间戳不回退
+ */
+static void testResync() {
+    std::string path = tempPath();
+    FlvFileSink *sink = new FlvFileSink();
+    WE_CHECK(sink->open(path.c_str(), true, true));
+
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_KEYFRAME, 0);
+    for (int i = 1; i <= 6; i++) {
+        write(sink, VIDEO_FRAME, i * 33);
+        write(sink, AUDIO_FRAME, i * 33 + 1);
+    }
+    sink->resync();
+    // 另一个队列里还有已经写过的数据
+    write(sink, VIDEO_FRAME, 166);
+    write(sink, AUDIO_FRAME, 167);
+    write(sink, VIDEO_FRAME, 231);// 没写过，但参考帧已缺失
+    write(sink, AUDIO_FRAME, 232);
+    write(sink, VIDEO_CONFIG, 0);
+    write(sink, VIDEO_KEYFRAME, 264);
+    write(sink, AUDIO_FRAME, 265);
+    write(sink, VIDEO_FRAME, 297);
+    sink->close();
+    delete sink;
+
+    long fileSize = 0;
+    std::vector<FlvTag> tags = readTags(path.c_str(), &fileSize);
+    WE_CHECK_EQ(1 + 2 + 12 + 4, tags.size());
+    uint32_t lastTimestamp = 0;
+    for (size_t i = 0; i < tags.size(); i++) {
+        WE_CHECK(tags[i].timestamp >= lastTimestamp);
+        lastTimestamp = tags[i].timestamp;
+    }
+    if (tags.size() == 19) {
+        WE_CHECK_EQ(VIDEO_CONFIG, kindOf(tags[15]));
+        WE_CHECK_EQ(VIDEO_KEYFRAME, kindOf(tags[16]));
+        WE_CHECK_EQ(264, tags[16].timestamp);
+    }
+    unlink(path.c_str());
+}
+
+/**
+ * 只有音频时从第一帧音频开始写
+ */
+static void testAudioOnly() {
+    std::string path = tempPath();
+    FlvFileSink *sink = new FlvFileSink();
+    WE_CHECK(sink->open(path.c_str(), false, true));
+    write(sink, AUDIO_CONFIG, 0);
+    write(sink, AUDIO_FRAME, 20);
+    write(sink, AUDIO_FRAME, 43);
+    sink->close();
+    delete sink;
+
+    long fileSize = 0;
+    std::vector<FlvTag> tags = readTags(path.c_str(), &fileSize);
+    WE_CHECK_EQ(4, tags.size());
+    if (tags.size() == 4) {
+        WE_CHECK_EQ(FLV_TAG_TYPE_SCRIPT, tags[0].type);
+        WE_CHECK_EQ(-1, (long long) findMetaValue(tags[0], "videocodecid"));
+        WE_CHECK_EQ(AUDIO_CONFIG, kindOf(tags[1]));
+        WE_CHECK_EQ(23, tags[3].timestamp);
+    }
+    unlink(path.c_str());
+}
+
+int main() {
+    WE_RUN(testHeaderTags);
+    WE_RUN(testDiscontinuity);
+    WE_RUN(testResync);
+    WE_RUN(testAudioOnly);
+
+    RtmpPacketPoolStats poolStats;
+    pool.getStats(&poolStats);
+    WE_CHECK_EQ(0, poolStats.inUseCount);
+    return WE_RESULT();
+}
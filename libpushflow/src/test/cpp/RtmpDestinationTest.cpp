@@ -0,0 +1,135 @@
+//
+// RtmpDestination 和 WePushFlow 的网络测试：本机模拟的 RTMP 服务端限速接收、连接较慢
+//
+
+#include <string.h>
+#include <unistd.h>
+#include "WeTest.h"
+#include "WePushFlow.h"
+#include "FakeRtmpServer.h"
+
+static RTMPPacket *newPacket(RtmpPacketPool *pool, bool isVideo, bool isKeyframe, int bodySize,
+                             uint32_t timestamp) {
+    RTMPPacket *packet = pool->obtainPacket(bodySize);
+    memset(packet->m_body, 0, bodySize);
+    packet->m_nBodySize = bodySize;
+    packet->m_nTimeStamp = timestamp;
+    packet->m_hasAbsTimestamp = 0;
+    packet->m_nInfoField2 = 0;
+    if (isVideo) {
+        packet->m_packetType = RTMP_PACKET_TYPE_VIDEO;
+        packet->m_nChannel = RTMP_STREAM_CHANNEL_VIDEO;
+        packet->m_headerType = RTMP_PACKET_SIZE_LARGE;
+        packet->m_body[0] = isKeyframe ? 0x17 : 0x27;
+        packet->m_body[1] = 0x01;
+    } else {
+        packet->m_packetType = RTMP_PACKET_TYPE_AUDIO;
+        packet->m_nChannel = RTMP_STREAM_CHANNEL_AUDIO;
+        packet->m_headerType = RTMP_PACKET_SIZE_MEDIUM;
+        packet->m_body[0] = (char) 0xAF;
+        packet->m_body[1] = 0x01;
+    }
+    return packet;
+}
+
+/**
+ * 上行只有 512KB/s，推 30fps、每帧 64KB 的视频 4 秒：默认的队列限制让积压的字节数有上限，
+ * 丢的只是视频帧，packet 池占用的 packet 个数也不会一直增长
+ */
+static void testThrottledTcp() {
+    const int READ_BYTES_PER_SECOND = 512 * 1024;
+    const int FRAME_BYTES = 64 * 1024;
+    const int AUDIO_BYTES = 400;
+    const int FPS = 30;
+    const int SECONDS = 4;
+
+    FakeRtmpServer server;
+    WE_CHECK(startServer(&server, 0, READ_BYTES_PER_SECOND));
+    RtmpPacketPool pool;
+    WePushFlow *owner = new WePushFlow(NULL, NULL, NULL);
+    char *url = newUrl(server.port);
+    RtmpDestination *destination = new RtmpDestination(0, url, owner, &pool);
+    WE_CHECK(destination->connect(5, PUSH_QUEUE_DEFAULT_MAX_BYTES, 0));
+    WE_CHECK(server.isPublished);
+
+    uint32_t startTime = RTMP_GetTime();
+    destination->startSend(startTime);
+    int64_t maxQueueBytes = 0;
+    int maxInUse = 0;
+    for (int i = 0; i < FPS * SECONDS; i++) {
+        uint32_t timestamp = RTMP_GetTime() - startTime;
+        RTMPPacket *video = newPacket(&pool, true, i % FPS == 0, FRAME_BYTES, timestamp);
+        destination->putPacket(video);
+        pool.recyclePacket(video);
+        RTMPPacket *audio = newPacket(&pool, false, false, AUDIO_BYTES, timestamp);
+        destination->putPacket(audio);
+        pool.recyclePacket(audio);
+
+        RtmpPacketQueueStats stats;
+        destination->getQueueStats(&stats);
+        if (stats.bytes > maxQueueBytes) {
+            maxQueueBytes = stats.bytes;
+        }
+        RtmpPacketPoolStats poolStats;
+        pool.getStats(&poolStats);
+        if (poolStats.inUseCount > maxInUse) {
+            maxInUse = poolStats.inUseCount;
+        }
+        usleep(1000 * 1000 / FPS);
+    }
+
+    RtmpPacketQueueStats stats;
+    destination->getQueueStats(&stats);
+    int64_t sentBytes = destination->getSentBytes();
+    printf("    throttled: produced=%d sent=%lld maxQueueBytes=%lld dropped=%lld maxInUse=%d\n",
+           (FRAME_BYTES + AUDIO_BYTES) * FPS * SECONDS, (long long) sentBytes,
+           (long long) maxQueueBytes, (long long) stats.droppedFrames, maxInUse);
+    WE_CHECK(destination->isSending());
+    WE_CHECK(stats.droppedFrames > 0);
+    // 超出限制时入队后立即丢帧，最多多出一帧
+    WE_CHECK(maxQueueBytes <= PUSH_QUEUE_DEFAULT_MAX_BYTES + FRAME_BYTES);
+    WE_CHECK(maxInUse <= (PUSH_QUEUE_DEFAULT_MAX_BYTES / FRAME_BYTES + 1) * 2 + FPS);
+    WE_CHECK(sentBytes > 0);
+
+    delete destination;
+    delete[] url;
+    stopServer(&server);
+    delete owner;
+
+    RtmpPacketPoolStats poolStats;
+    pool.getStats(&poolStats);
+    WE_CHECK_EQ(0, poolStats.inUseCount);
+}
+
+/**
+ * 主地址和备用地址同时连接，总耗时接近最慢的一个，而不是两个相加
+ */
+static void testParallelConnect() {
+    const int HANDSHAKE_DELAY_MILLS = 1000;
+    FakeRtmpServer primary;
+    FakeRtmpServer backup;
+    WE_CHECK(startServer(&primary, HANDSHAKE_DELAY_MILLS, 0));
+    WE_CHECK(startServer(&backup, HANDSHAKE_DELAY_MILLS, 0));
+
+    WePushFlow *pushFlow = new WePushFlow(NULL, NULL, NULL);
+    pushFlow->setPushUrl(newUrl(primary.port));
+    pushFlow->addBackupPushUrl(newUrl(backup.port));
+    long long startTime = nowMills();
+    pushFlow->startPush();
+    long long elapsed = nowMills() - startTime;
+    printf("    parallel connect: %lldms\n", elapsed);
+    WE_CHECK(primary.isPublished);
+    WE_CHECK(backup.isPublished);
+    WE_CHECK(elapsed < HANDSHAKE_DELAY_MILLS * 2 - 200);
+
+    pushFlow->stopPush();
+    stopServer(&primary);
+    stopServer(&backup);
+    delete pushFlow;
+}
+
+int main() {
+    WE_RUN(testThrottledTcp);
+    WE_RUN(testParallelConnect);
+    return WE_RESULT();
+}
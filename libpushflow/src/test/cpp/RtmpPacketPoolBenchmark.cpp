@@ -0,0 +1,132 @@
+//
+// RtmpPacketPool 与原来每帧 malloc RTMPPacket 和 body、发送后 free 的耗时对比：
+// 按 1080p 推流的帧大小序列取 packet，写入数据，在发送队列中保留 inFlight 个之后再释放
+//   rtmp_packet_pool_benchmark [inFlight]
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <deque>
+#include <vector>
+#include "RtmpPacketPool.h"
+
+static const int PACKETS = 200000;
+
+static int64_t nowNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+/**
+ * 6Mbps 30fps、GOP 60 帧的视频，关键帧约 180KB、P 帧约 22KB，每个视频帧之后跟一到两个 370 字节的音频帧
+ */
+static std::vector<uint32_t> createSizes() {
+    std::vector<uint32_t> sizes;
+    for (int i = 0; sizes.size() < (size_t) PACKETS; i++) {
+        sizes.push_back(i % 60 == 0 ? 180 * 1024 : 22 * 1024 + (i * 7919) % 4096);
+        sizes.push_back(370);
+        if (i % 2 == 0) {
+            sizes.push_back(370);
+        }
+    }
+    sizes.resize(PACKETS);
+    return sizes;
+}
+
+/**
+ * 原 WePushFlow 每帧分配、发送后释放的方式
+ */
+static RTMPPacket *mallocPacket(uint32_t bodySize) {
+    RTMPPacket *packet = static_cast<RTMPPacket *>(malloc(sizeof(RTMPPacket)));
+    if (!RTMPPacket_Alloc(packet, bodySize)) {
+        free(packet);
+        return NULL;
+    }
+    RTMPPacket_Reset(packet);
+    return packet;
+}
+
+static void freePacket(RTMPPacket *packet) {
+    RTMPPacket_Free(packet);
+    free(packet);
+}
+
+static int64_t runMalloc(const std::vector<uint32_t> &sizes, const char *frame, int inFlight,
+                         bool isWriting) {
+    std::deque<RTMPPacket *> queue;
+    int64_t start = nowNanos();
+    for (size_t i = 0; i < sizes.size(); i++) {
+        RTMPPacket *packet = mallocPacket(sizes[i]);
+        if (isWriting) {
+            memcpy(packet->m_body, frame, sizes[i]);
+        }
+        packet->m_nBodySize = sizes[i];
+        queue.push_back(packet);
+        if (queue.size() > (size_t) inFlight) {
+            freePacket(queue.front());
+            queue.pop_front();
+        }
+    }
+    while (!queue.empty()) {
+        freePacket(queue.front());
+        queue.pop_front();
+    }
+    return nowNanos() - start;
+}
+
+static int64_t runPool(const std::vector<uint32_t> &sizes, const char *frame, int inFlight,
+                       bool isWriting, RtmpPacketPoolStats *stats) {
+    RtmpPacketPool pool;
+    std::deque<RTMPPacket *> queue;
+    int64_t start = nowNanos();
+    for (size_t i = 0; i < sizes.size(); i++) {
+        RTMPPacket *packet = pool.obtainPacket(sizes[i]);
+        if (isWriting) {
+            memcpy(packet->m_body, frame, sizes[i]);
+        }
+        packet->m_nBodySize = sizes[i];
+        queue.push_back(packet);
+        if (queue.size() > (size_t) inFlight) {
+            pool.recyclePacket(queue.front());
+            queue.pop_front();
+        }
+    }
+    while (!queue.empty()) {
+        pool.recyclePacket(queue.front());
+        queue.pop_front();
+    }
+    int64_t elapsed = nowNanos() - start;
+    pool.getStats(stats);
+    return elapsed;
+}
+
+int main(int argc, char *argv[]) {
+    int inFlight = argc > 1 ? atoi(argv[1]) : 8;
+    if (inFlight < 0) {
+        fprintf(stderr, "inFlight params is illegal: %s\n", argv[1]);
+        return 1;
+    }
+    std::vector<uint32_t> sizes = createSizes();
+    std::vector<char> frame(180 * 1024, 0x5a);
+    printf("%d packets, inFlight=%d\n", PACKETS, inFlight);
+
+    for (int writing = 0; writing <= 1; writing++) {
+        bool isWriting = writing == 1;
+        // 先各跑一遍预热，第二遍计时
+        RtmpPacketPoolStats stats;
+        runMalloc(sizes, frame.data(), inFlight, isWriting);
+        runPool(sizes, frame.data(), inFlight, isWriting, &stats);
+        int64_t mallocNanos = runMalloc(sizes, frame.data(), inFlight, isWriting);
+        int64_t poolNanos = runPool(sizes, frame.data(), inFlight, isWriting, &stats);
+        printf("%s: malloc %.1f ns/packet, pool %.1f ns/packet, speedup %.2f,"
+               " pool alloc=%lld hit=%lld highWaterMark=%d\n",
+               isWriting ? "obtain+write+recycle" : "obtain+recycle",
+               (double) mallocNanos / PACKETS, (double) poolNanos / PACKETS,
+               (double) mallocNanos / poolNanos, (long long) stats.allocCount,
+               (long long) stats.hitCount, stats.highWaterMark);
+    }
+    return 0;
+}
@@ -0,0 +1,204 @@
+//
+// RtmpPacketPool 的规格选择、引用计数回收、使用个数最高值和超大 packet 不进池的测试
+//
+
+#include <pthread.h>
+#include <string.h>
+#include <vector>
+#include "WeTest.h"
+#include "RtmpPacketPool.h"
+
+static PooledRtmpPacket *toPooled(RTMPPacket *packet) {
+    return reinterpret_cast<PooledRtmpPacket *>(packet);
+}
+
+/**
+ * 规格从 512B 开始每级翻倍，取不小于 bodySize 的最小规格
+ */
+static void testSizeClasses() {
+    RtmpPacketPool pool;
+    const uint32_t sizes[] = {0, 1, 512, 513, 1024, 1025, 64 * 1024, 64 * 1024 + 1, 1024 * 1024};
+    const uint32_t capacities[] = {512, 512, 512, 1024, 1024, 2048, 64 * 1024, 128 * 1024, 1024 * 1024};
+    const int sizeClasses[] = {0, 0, 0, 1, 1, 2, 7, 8, 11};
+    for (size_t i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        RTMPPacket *packet = pool.obtainPacket(sizes[i]);
+        WE_CHECK(packet != NULL);
+        WE_CHECK(packet->m_body != NULL);
+        WE_CHECK_EQ(capacities[i], toPooled(packet)->bodyCapacity);
+        WE_CHECK_EQ(sizeClasses[i], toPooled(packet)->sizeClass);
+        // 整个容量都可以写
+        memset(packet->m_body, 0x5a, capacities[i]);
+        pool.recyclePacket(packet);
+    }
+}
+
+/**
+ * 回收的 packet 只被同规格的请求复用，复用时已重置
+ */
+static void testRecycleReuses() {
+    RtmpPacketPool pool;
+    RTMPPacket *packet = pool.obtainPacket(1000);
+    packet->m_nBodySize = 1000;
+    packet->m_nTimeStamp = 1234;
+    packet->m_packetType = RTMP_PACKET_TYPE_VIDEO;
+    pool.recyclePacket(packet);
+
+    RTMPPacket *large = pool.obtainPacket(2000);
+    WE_CHECK(large != packet);
+    RTMPPacket *reused = pool.obtainPacket(600);
+    WE_CHECK(reused == packet);
+    WE_CHECK_EQ(0, reused->m_nBodySize);
+    WE_CHECK_EQ(0, reused->m_nTimeStamp);
+    WE_CHECK_EQ(0, reused->m_packetType);
+    WE_CHECK_EQ(1, toPooled(reused)->refCount);
+
+    RtmpPacketPoolStats stats;
+    pool.getStats(&stats);
+    WE_CHECK_EQ(3, stats.obtainCount);
+    WE_CHECK_EQ(2, stats.allocCount);
+    WE_CHECK_EQ(1, stats.hitCount);
+    WE_CHECK_EQ(2, stats.inUseCount);
+    WE_CHECK_EQ(0, stats.cachedCount);
+
+    pool.recyclePacket(reused);
+    pool.recyclePacket(large);
+    pool.trim();
+    pool.getStats(&stats);
+    WE_CHECK_EQ(0, stats.inUseCount);
+    WE_CHECK_EQ(0, stats.cachedCount);
+    pool.recyclePacket(NULL);
+}
+
+/**
+ * 多个推流目标共享时，最后一个引用释放才回到池中
+ */
+static void testRefCountReturn() {
+    RtmpPacketPool pool;
+    RTMPPacket *packet = pool.obtainPacket(4096);
+    pool.retainPacket(packet);
+    pool.retainPacket(packet);
+    WE_CHECK_EQ(3, toPooled(packet)->refCount);
+
+    RtmpPacketPoolStats stats;
+    pool.recyclePacket(packet);
+    pool.recyclePacket(packet);
+    pool.getStats(&stats);
+    WE_CHECK_EQ(1, stats.inUseCount);
+    WE_CHECK_EQ(0, stats.cachedCount);
+
+    pool.recyclePacket(packet);
+    pool.getStats(&stats);
+    WE_CHECK_EQ(0, stats.inUseCount);
+    WE_CHECK_EQ(1, stats.cachedCount);
+    WE_CHECK(pool.obtainPacket(4096) == packet);
+    WE_CHECK_EQ(1, toPooled(packet)->refCount);
+    pool.recyclePacket(packet);
+}
+
+typedef struct SharedPackets {
+    RtmpPacketPool *pool;
+    std::vector<RTMPPacket *> packets;
+} SharedPackets;
+
+static void *recycleShared(void *data) {
+    SharedPackets *shared = static_cast<SharedPackets *>(data);
+    for (size_t i = 0; i < shared->packets.size(); i++) {
+        shared->pool->recyclePacket(shared->packets[i]);
+    }
+    return NULL;
+}
+
+/**
+ * 两个发送线程同时释放共享 packet 的引用，每个 packet 恰好回收一次
+ */
+static void testConcurrentRecycle() {
+    const int PACKETS = 20000;
+    RtmpPacketPool pool;
+    SharedPackets shared;
+    shared.pool = &pool;
+    for (int i = 0; i < PACKETS; i++) {
+        RTMPPacket *packet = pool.obtainPacket(512);
+        pool.retainPacket(packet);
+        shared.packets.push_back(packet);
+    }
+    pthread_t first;
+    pthread_t second;
+    pthread_create(&first, NULL, recycleShared, &shared);
+    pthread_create(&second, NULL, recycleShared, &shared);
+    pthread_join(first, NULL);
+    pthread_join(second, NULL);
+
+    RtmpPacketPoolStats stats;
+    pool.getStats(&stats);
+    WE_CHECK_EQ(0, stats.inUseCount);
+    WE_CHECK_EQ(16, stats.cachedCount);
+    WE_CHECK_EQ(PACKETS, stats.highWaterMark);
+}
+
+/**
+ * 最高值记录同时在用的个数，之后的少量使用不会改变它；每个规格最多缓存 16 个
+ */
+static void testHighWaterMark() {
+    const int PEAK = 20;
+    RtmpPacketPool pool;
+    std::vector<RTMPPacket *> packets;
+    for (int i = 0; i < PEAK; i++) {
+        packets.push_back(pool.obtainPacket(8 * 1024));
+    }
+    RtmpPacketPoolStats stats;
+    pool.getStats(&stats);
+    WE_CHECK_EQ(PEAK, stats.inUseCount);
+    WE_CHECK_EQ(PEAK, stats.highWaterMark);
+
+    for (int i = 0; i < PEAK; i++) {
+        pool.recyclePacket(packets[i]);
+    }
+    pool.getStats(&stats);
+    WE_CHECK_EQ(0, stats.inUseCount);
+    WE_CHECK_EQ(PEAK, stats.highWaterMark);
+    WE_CHECK_EQ(16, stats.cachedCount);
+
+    for (int i = 0; i < 3; i++) {
+        pool.recyclePacket(pool.obtainPacket(8 * 1024));
+    }
+    pool.getStats(&stats);
+    WE_CHECK_EQ(PEAK, stats.highWaterMark);
+    WE_CHECK_EQ(PEAK, stats.allocCount);
+    WE_CHECK_EQ(3, stats.hitCount);
+}
+
+/**
+ * 超过 1MB 的 packet 按实际大小分配，回收时直接释放，不占用池的缓存
+ */
+static void testOversizeBypassesPool() {
+    const uint32_t OVERSIZE = 1024 * 1024 + 1;
+    RtmpPacketPool pool;
+    RTMPPacket *packet = pool.obtainPacket(OVERSIZE);
+    WE_CHECK(packet != NULL);
+    WE_CHECK_EQ(RTMP_PACKET_POOL_OVERSIZE, toPooled(packet)->sizeClass);
+    WE_CHECK_EQ(OVERSIZE, toPooled(packet)->bodyCapacity);
+    memset(packet->m_body, 0x5a, OVERSIZE);
+    pool.recyclePacket(packet);
+
+    RtmpPacketPoolStats stats;
+    pool.getStats(&stats);
+    WE_CHECK_EQ(0, stats.inUseCount);
+    WE_CHECK_EQ(0, stats.cachedCount);
+    WE_CHECK_EQ(1, stats.highWaterMark);
+
+    pool.recyclePacket(pool.obtainPacket(OVERSIZE));
+    pool.getStats(&stats);
+    WE_CHECK_EQ(2, stats.allocCount);
+    WE_CHECK_EQ(0, stats.hitCount);
+    WE_CHECK_EQ(0, stats.cachedCount);
+}
+
+int main() {
+    WE_RUN(testSizeClasses);
+    WE_RUN(testRecycleReuses);
+    WE_RUN(testRefCountReturn);
+    WE_RUN(testConcurrentRecycle);
+    WE_RUN(testHighWaterMark);
+    WE_RUN(testOversizeBypassesPool);
+    return WE_RESULT();
+}
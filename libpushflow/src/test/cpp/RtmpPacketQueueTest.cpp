@@ -0,0 +1,228 @@
+//
+// RtmpPacketQueue 有界模式的丢帧策略测试，包括慢消费者场景
+//
+
+#include <pthread.h>
+#include <string.h>
+#include <unistd.h>
+#include <vector>
+#include "WeTest.h"
+#include "RtmpPacketQueue.h"
+
+static const int FRAME_BYTES = 1000;
+
+/**
+ * body[2..5] 写入 GOP 序号，body[6..9] 写入 GOP 内帧序号，用于消费端检查可解码性
+ */
+static RTMPPacket *newPacket(RtmpPacketPool *pool, int kind, uint32_t timestamp, int gop, int index) {
+    RTMPPacket *packet = pool->obtainPacket(FRAME_BYTES);
+    packet->m_nBodySize = FRAME_BYTES;
+    packet->m_nTimeStamp = timestamp;
+    packet->m_hasAbsTimestamp = 0;
+    if (kind == RtmpPacketQueue::PACKET_KIND_AUDIO) {
+        packet->m_packetType = RTMP_PACKET_TYPE_AUDIO;
+        packet->m_body[0] = (char) 0xAF;
+        packet->m_body[1] = 0x01;
+    } else {
+        packet->m_packetType = RTMP_PACKET_TYPE_VIDEO;
+        if (kind == RtmpPacketQueue::PACKET_KIND_VIDEO_CONFIG) {
+            packet->m_body[0] = 0x17;
+            packet->m_body[1] = 0x00;
+        } else {
+            packet->m_body[0] = kind == RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME ? 0x17 : 0x27;
+            packet->m_body[1] = 0x01;
+        }
+    }
+    memcpy(packet->m_body + 2, &gop, 4);
+    memcpy(packet->m_body + 6, &index, 4);
+    return packet;
+}
+
+static int readInt(RTMPPacket *packet, int offset) {
+    int value;
+    memcpy(&value, packet->m_body + offset, 4);
+    return value;
+}
+
+static void drainAndRecycle(RtmpPacketQueue *queue, RtmpPacketPool *pool, std::vector<int> *kinds) {
+    queue->setProductDataComplete(true);
+    RTMPPacket *packet;
+    while ((packet = queue->getPacket()) != NULL) {
+        if (kinds != NULL) {
+            kinds->push_back(RtmpPacketQueue::getPacketKind(packet));
+        }
+        pool->recyclePacket(packet);
+    }
+}
+
+/**
+ * 队头只剩上一个 GOP 残留的非关键帧时，新来的关键帧是队列中唯一的关键帧：
+ * 丢掉残留帧后新 GOP 完好，它后面的非关键帧不能被当作不可解码而丢弃
+ */
+static void testTailKeyframeKeepsNewGop() {
+    RtmpPacketPool pool;
+    RtmpPacketQueue *queue = new RtmpPacketQueue(&pool);
+    queue->setLimits(FRAME_BYTES * 4, 0);
+
+    for (int i = 1; i <= 4; i++) {
+        queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, i * 33, 0, i));
+    }
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, 5 * 33, 1, 0));
+    WE_CHECK_EQ(1, queue->getQueueSize());
+
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, 6 * 33, 1, 1));
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, 7 * 33, 1, 2));
+
+    std::vector<int> kinds;
+    drainAndRecycle(queue, &pool, &kinds);
+    WE_CHECK_EQ(3, kinds.size());
+    WE_CHECK_EQ(RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, kinds[0]);
+
+    RtmpPacketQueueStats stats;
+    queue->getStats(&stats);
+    WE_CHECK_EQ(4, stats.droppedFrames);
+    delete queue;
+
+    RtmpPacketPoolStats poolStats;
+    pool.getStats(&poolStats);
+    WE_CHECK_EQ(0, poolStats.inUseCount);
+}
+
+/**
+ * 丢的是正在生产的 GOP 时，后续非关键帧要一直丢到下一个关键帧
+ */
+static void testDropCurrentGopWaitsKeyframe() {
+    RtmpPacketPool pool;
+    RtmpPacketQueue *queue = new RtmpPacketQueue(&pool);
+    queue->setLimits(FRAME_BYTES * 3, 0);
+
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, 0, 0, 0));
+    for (int i = 1; i <= 3; i++) {
+        queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, i * 33, 0, i));
+    }
+    // 超出限制，丢掉当前 GOP 的非关键帧，之后的非关键帧参考帧已缺失
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, 4 * 33, 0, 4));
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, 5 * 33, 1, 0));
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, 6 * 33, 1, 1));
+
+    std::vector<int> kinds;
+    drainAndRecycle(queue, &pool, &kinds);
+    WE_CHECK_EQ(3, kinds.size());
+    WE_CHECK_EQ(RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, kinds[0]);
+    WE_CHECK_EQ(RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, kinds[1]);
+    WE_CHECK_EQ(RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME, kinds[2]);
+    delete queue;
+}
+
+/**
+ * 停止使用后入队的 packet 直接回收
+ */
+static void testPutAfterStopRecycles() {
+    RtmpPacketPool pool;
+    RtmpPacketQueue *queue = new RtmpPacketQueue(&pool);
+    queue->setAllowOperation(false);
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME, 0, 0, 0));
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_AUDIO, 0, 0, 0));
+    WE_CHECK_EQ(0, queue->getQueueSize());
+
+    RtmpPacketPoolStats poolStats;
+    pool.getStats(&poolStats);
+    WE_CHECK_EQ(0, poolStats.inUseCount);
+    delete queue;
+}
+
+typedef struct SlowConsumer {
+    RtmpPacketQueue *queue;
+    RtmpPacketPool *pool;
+    int sleepMicros;
+    int audioCount;
+    int videoCount;
+    int undecodableCount;
+} SlowConsumer;
+
+static void *consumeSlowly(void *data) {
+    SlowConsumer *consumer = static_cast<SlowConsumer *>(data);
+    int currentGop = -1;
+    int lastIndex = -1;
+    RTMPPacket *packet;
+    while ((packet = consumer->queue->getPacket()) != NULL) {
+        int kind = RtmpPacketQueue::getPacketKind(packet);
+        if (kind == RtmpPacketQueue::PACKET_KIND_AUDIO) {
+            consumer->audioCount++;
+        } else if (kind == RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME) {
+            consumer->videoCount++;
+            currentGop = readInt(packet, 2);
+            lastIndex = 0;
+        } else if (kind == RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME) {
+            consumer->videoCount++;
+            // 非关键帧必须紧接着同一 GOP 的上一帧，否则参考帧缺失
+            if (readInt(packet, 2) != currentGop || readInt(packet, 6) != lastIndex + 1) {
+                consumer->undecodableCount++;
+            }
+            lastIndex = readInt(packet, 6);
+        }
+        consumer->pool->recyclePacket(packet);
+        usleep(consumer->sleepMicros);
+    }
+    return NULL;
+}
+
+/**
+ * 生产 30fps、每秒一个关键帧、每帧一个音频包，消费速度只有生产的一半：
+ * 队列大小受限，送出的非关键帧都可以解码，音频一个不丢
+ */
+static void testSlowConsumer() {
+    const int GOP_SIZE = 30;
+    const int GOP_COUNT = 20;
+    const int PRODUCE_INTERVAL_MICROS = 200;
+
+    RtmpPacketPool pool;
+    RtmpPacketQueue *queue = new RtmpPacketQueue(&pool);
+    queue->setLimits(FRAME_BYTES * 60, 1000);
+
+    SlowConsumer consumer = {queue, &pool, PRODUCE_INTERVAL_MICROS, 0, 0, 0};
+    pthread_t thread;
+    pthread_create(&thread, NULL, consumeSlowly, &consumer);
+
+    queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_VIDEO_CONFIG, 0, 0, 0));
+    int maxSize = 0;
+    for (int gop = 0; gop < GOP_COUNT; gop++) {
+        for (int i = 0; i < GOP_SIZE; i++) {
+            uint32_t timestamp = (uint32_t) ((gop * GOP_SIZE + i) * 1000 / GOP_SIZE);
+            int kind = i == 0 ? RtmpPacketQueue::PACKET_KIND_VIDEO_KEYFRAME
+                              : RtmpPacketQueue::PACKET_KIND_VIDEO_FRAME;
+            queue->putPacket(newPacket(&pool, kind, timestamp, gop, i));
+            queue->putPacket(newPacket(&pool, RtmpPacketQueue::PACKET_KIND_AUDIO, timestamp, gop, i));
+            int size = queue->getQueueSize();
+            if (size > maxSize) {
+                maxSize = size;
+            }
+            usleep(PRODUCE_INTERVAL_MICROS);
+        }
+    }
+    queue->setProductDataComplete(true);
+    pthread_join(thread, NULL);
+
+    RtmpPacketQueueStats stats;
+    queue->getStats(&stats);
+    printf("    slow consumer: delivered video=%d audio=%d dropped=%lld maxSize=%d\n",
+           consumer.videoCount, consumer.audioCount, (long long) stats.droppedFrames, maxSize);
+    WE_CHECK_EQ(0, consumer.undecodableCount);
+    WE_CHECK_EQ(GOP_SIZE * GOP_COUNT, consumer.audioCount);
+    WE_CHECK_EQ(GOP_SIZE * GOP_COUNT, consumer.videoCount + stats.droppedFrames);
+    WE_CHECK(stats.droppedFrames > 0);
+    WE_CHECK(consumer.videoCount > GOP_COUNT);
+    delete queue;
+
+    RtmpPacketPoolStats poolStats;
+    pool.getStats(&poolStats);
+    WE_CHECK_EQ(0, poolStats.inUseCount);
+}
+
+int main() {
+    WE_RUN(testTailKeyframeKeepsNewGop);
+    WE_RUN(testDropCurrentGopWaitsKeyframe);
+    WE_RUN(testPutAfterStopRecycles);
+    WE_RUN(testSlowConsumer);
+    return WE_RESULT();
+}
@@ -0,0 +1,161 @@
+//
+// 推流路径的基准：WePushFlow 向本机不限速的模拟 RTMP 服务端推 1080p 码率的 H.264 和 AAC 数据，
+// 分别不等待和按 10 倍实时送入 60 秒的帧，统计送入耗时、端到端吞吐量和 packet 池的复用情况
+//   we_push_flow_benchmark [videoKbps]
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <vector>
+#include "WePushFlow.h"
+#include "FakeRtmpServer.h"
+
+static const int FPS = 30;
+static const int GOP_FRAMES = 60;
+static const int SECONDS = 60;
+// 44.1kHz 的 AAC 每帧 1024 个采样，约 43 帧每秒，128Kbps 时每帧约 370 字节
+static const int AUDIO_FRAMES_PER_SECOND = 43;
+static const int AUDIO_FRAME_BYTES = 370;
+
+static int64_t nowMicros() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000 + now.tv_nsec / 1000;
+}
+
+/**
+ * 带 4 字节起始码的 NALU，内容随机，不需要能解码
+ */
+static std::vector<char> newNalu(int bytes, int type) {
+    std::vector<char> nalu(bytes);
+    nalu[0] = 0x00;
+    nalu[1] = 0x00;
+    nalu[2] = 0x00;
+    nalu[3] = 0x01;
+    nalu[4] = (char) (0x60 | type);
+    unsigned int seed = (unsigned int) bytes;
+    for (int i = 5; i < bytes; i++) {
+        seed = seed * 1103515245 + 12345;
+        nalu[i] = (char) (seed >> 16);
+    }
+    return nalu;
+}
+
+typedef struct PushResult {
+    int64_t payloadBytes;
+    long long receivedBytes;
+    int64_t feedMicros;
+    int64_t totalMicros;
+    RtmpPacketPoolStats poolStats;
+} PushResult;
+
+/**
+ * 推 60 秒的数据，feedSpeed 小于等于 0 时不等待，否则按实时的 feedSpeed 倍、以绝对截止时间送入每个视频帧
+ */
+static bool push(int videoKbps, int feedSpeed, PushResult *result) {
+    // 关键帧按 P 帧的 8 倍估算，一个 GOP 的总字节数与码率一致
+    int gopBytes = videoKbps * 1000 / 8 * GOP_FRAMES / FPS;
+    int frameBytes = gopBytes / (GOP_FRAMES - 1 + 8);
+    std::vector<char> sps = newNalu(20, 7);
+    std::vector<char> pps = newNalu(8, 8);
+    std::vector<char> keyframe = newNalu(frameBytes * 8, 5);
+    std::vector<char> frame = newNalu(frameBytes, 1);
+    std::vector<char> audio(AUDIO_FRAME_BYTES, 0x21);
+    char asc[] = {0x12, 0x10};
+
+    FakeRtmpServer server;
+    if (!startServer(&server, 0, 0)) {
+        fprintf(stderr, "start server failed\n");
+        return false;
+    }
+    WePushFlow *pushFlow = new WePushFlow(NULL, NULL, NULL);
+    pushFlow->setPushUrl(newUrl(server.port));
+    // 无界队列，所有数据都要发出去，吞吐量才有可比性
+    pushFlow->setQueueLimits(0, 0);
+    pushFlow->startPush();
+    if (!server.isPublished) {
+        fprintf(stderr, "push to 127.0.0.1:%d failed\n", server.port);
+        delete pushFlow;
+        stopServer(&server);
+        return false;
+    }
+
+    int videoFrames = FPS * SECONDS;
+    int audioFrames = AUDIO_FRAMES_PER_SECOND * SECONDS;
+    int64_t payloadBytes = 0;
+    int64_t start = nowMicros();
+    pushFlow->pushSpsPps(sps.data(), sps.size(), pps.data(), pps.size());
+    pushFlow->pushAudioSpecificConfig(asc, sizeof(asc));
+    for (int i = 0, a = 0; i < videoFrames; i++) {
+        if (feedSpeed > 0) {
+            int64_t wait = start + (int64_t) i * 1000000 / FPS / feedSpeed - nowMicros();
+            if (wait > 0) {
+                usleep((useconds_t) wait);
+            }
+        }
+        bool isKeyframe = i % GOP_FRAMES == 0;
+        std::vector<char> &data = isKeyframe ? keyframe : frame;
+        pushFlow->pushVideoData(data.data(), data.size(), isKeyframe);
+        payloadBytes += data.size();
+        // 音频按时间戳穿插在视频帧之间
+        for (; a < audioFrames && (int64_t) a * FPS <= (int64_t) i * AUDIO_FRAMES_PER_SECOND; a++) {
+            pushFlow->pushAudioData(audio.data(), audio.size());
+            payloadBytes += audio.size();
+        }
+    }
+    result->feedMicros = nowMicros() - start;
+    // RTMP 头和分块只会让收到的字节更多，收满负载字节数时所有帧都已发出
+    while (server.receivedBytes < payloadBytes && nowMicros() - start < 120 * 1000000LL) {
+        usleep(1000);
+    }
+    result->totalMicros = nowMicros() - start;
+    result->payloadBytes = payloadBytes;
+    result->receivedBytes = server.receivedBytes;
+
+    pushFlow->getPacketPoolStats(&result->poolStats);
+    pushFlow->stopPush();
+    delete pushFlow;
+    stopServer(&server);
+    return result->receivedBytes >= payloadBytes;
+}
+
+static void printResult(const char *name, const PushResult &result) {
+    int frames = (FPS + AUDIO_FRAMES_PER_SECOND) * SECONDS;
+    const RtmpPacketPoolStats &stats = result.poolStats;
+    printf("%s: feed %.1f ms (%.1f us per frame, %.1fx realtime), sink received %lld of %lld bytes"
+           " in %.1f ms (%.1f MB/s, %.1fx realtime), pool obtain=%lld alloc=%lld hit=%lld"
+           " highWaterMark=%d\n", name, result.feedMicros / 1000.0,
+           (double) result.feedMicros / frames, SECONDS * 1000000.0 / result.feedMicros,
+           result.receivedBytes, (long long) result.payloadBytes, result.totalMicros / 1000.0,
+           result.receivedBytes / 1048576.0 / (result.totalMicros / 1000000.0),
+           SECONDS * 1000000.0 / result.totalMicros, (long long) stats.obtainCount,
+           (long long) stats.allocCount, (long long) stats.hitCount, stats.highWaterMark);
+}
+
+int main(int argc, char *argv[]) {
+    int videoKbps = argc > 1 ? atoi(argv[1]) : 6000;
+    if (videoKbps <= 0) {
+        fprintf(stderr, "videoKbps params is illegal: %s\n", argv[1]);
+        return 1;
+    }
+    printf("video %dKbps %dfps, %d seconds, cpus=%d\n", videoKbps, FPS, SECONDS,
+           (int) sysconf(_SC_NPROCESSORS_ONLN));
+
+    // 不等待：衡量推流路径能达到的最大吞吐量，队列会积压，packet 池大多要新分配
+    PushResult burst;
+    if (!push(videoKbps, 0, &burst)) {
+        return 1;
+    }
+    printResult("burst", burst);
+
+    // 10 倍实时：发送线程跟得上，队列很短，packet 池基本都能复用
+    PushResult paced;
+    if (!push(videoKbps, 10, &paced)) {
+        return 1;
+    }
+    printResult("paced 10x", paced);
+    return 0;
+}
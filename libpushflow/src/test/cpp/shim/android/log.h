@@ -0,0 +1,20 @@
+//
+// 主机上编译测试用的 android/log.h，日志直接丢弃
+//
+
+#ifndef VIDEOMAKER_TEST_ANDROID_LOG_H
+#define VIDEOMAKER_TEST_ANDROID_LOG_H
+
+enum {
+    ANDROID_LOG_VERBOSE = 2,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR
+};
+
+static inline int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    return 0;
+}
+
+#endif //VIDEOMAKER_TEST_ANDROID_LOG_H
@@ -0,0 +1,224 @@
+package com.wtz.libvideomaker.audio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把任意大小的 PCM 数据块拼成固定 1024 个采样的 AAC 帧，并按采样个数计算时间戳
+ * <p>
+ * 用于音频编码器的输入端：
+ * 1. 所有帧在构造时预先分配，生产者把数据拷贝进当前帧，写满后交给消费者，用完后回收复用，不再分配内存；
+ * 2. 时间戳由整数采样计数换算，时间轴起点 + 帧起始采样数 * 1000000 / 采样率，长时间录制不会因浮点累加产生漂移；
+ * 3. 已填满的帧个数有上限，消费者跟不上时生产者不等待，直接丢弃最旧的一帧，采集线程不会被编码阻塞；
+ * 被丢弃帧的采样仍然计入时间轴，后续帧的时间戳保持与实际采集时间一致。
+ * <p>
+ * 注意：write/flush 只能在同一个生产者线程调用，take/poll/recycle 只能在同一个消费者线程调用。
+ */
+public class AacFrameAccumulator {
+
+    /**
+     * AAC-LC 每帧每声道的采样个数
+     */
+    public static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    public static class Frame {
+        public final byte[] data;
+        public int size;// 有效字节数，只有 flush 出来的最后一帧可能不满
+        public long startSample;// 帧第一个采样在整个时间轴上的序号
+        public long ptsUs;
+
+        Frame(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mBytesPerSample;// 所有声道一个采样点的字节数
+    private final int mFrameBytes;
+
+    private final ArrayBlockingQueue<Frame> mFreeFrames;
+    private final ArrayBlockingQueue<Frame> mFilledFrames;
+
+    // 只在生产者线程读写
+    private Frame mFillingFrame;
+    private long mSampleCount;
+    private long mBaseTimeUs;
+
+    private volatile long mFrameCount;
+    private volatile long mDroppedFrameCount;
+
+    /**
+     * @param maxQueuedFrames 最多积压的已填满帧个数，至少为 1
+     */
+    public AacFrameAccumulator(int sampleRate, int channelNums, int bitsPerSample, int maxQueuedFrames) {
+        if (sampleRate <= 0 || channelNums <= 0 || bitsPerSample <= 0 || bitsPerSample % 8 != 0) {
+            throw new IllegalArgumentException("AacFrameAccumulator params is illegal: " + sampleRate
+                    + "Hz " + channelNums + "Channels " + bitsPerSample + "bit");
+        }
+        if (maxQueuedFrames < 1) {
+            maxQueuedFrames = 1;
+        }
+        mSampleRate = sampleRate;
+        mBytesPerSample = channelNums * bitsPerSample / 8;
+        mFrameBytes = AAC_SAMPLES_PER_FRAME * mBytesPerSample;
+
+        // 多一帧给生产者正在填充的帧，再多一帧给消费者正在使用的帧
+        int frameCount = maxQueuedFrames + 2;
+        mFreeFrames = new ArrayBlockingQueue<>(frameCount);
+        mFilledFrames = new ArrayBlockingQueue<>(maxQueuedFrames);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeFrames.offer(new Frame(mFrameBytes));
+        }
+    }
+
+    /**
+     * 设置时间轴起点，即第一个采样的采集时间，默认为 0
+     * 生产者调用，要在第一次 write 之前，用来把音频时间戳换算到与视频相同的时钟
+     */
+    public void setBaseTimeUs(long baseTimeUs) {
+        this.mBaseTimeUs = baseTimeUs;
+    }
+
+    /**
+     * 生产者调用，是否已经写入过数据
+     */
+    public boolean isStarted() {
+        return mSampleCount > 0 || mFillingFrame != null;
+    }
+
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * 生产者调用，数据全部拷贝后返回
+     */
+    public void write(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > src.length) {
+            throw new IndexOutOfBoundsException("AacFrameAccumulator write offset=" + offset
+                    + " length=" + length + " src.length=" + src.length);
+        }
+        while (length > 0) {
+            if (mFillingFrame == null) {
+                mFillingFrame = mFreeFrames.poll();
+                if (mFillingFrame == null) {
+                    // 不会发生：空闲帧个数总是大于等于积压上限加一
+                    return;
+                }
+                mFillingFrame.size = 0;
+            }
+            int count = Math.min(length, mFrameBytes - mFillingFrame.size);
+            System.arraycopy(src, offset, mFillingFrame.data, mFillingFrame.size, count);
+            mFillingFrame.size += count;
+            offset += count;
+            length -= count;
+            if (mFillingFrame.size == mFrameBytes) {
+                publishFillingFrame();
+            }
+        }
+    }
+
+    /**
+     * 生产者调用，把不满一帧的剩余数据也作为一帧交给消费者，一般在停止录制时调用
+     * 不满一帧的数据按整采样截断
+     */
+    public void flush() {
+        if (mFillingFrame == null) {
+            return;
+        }
+        mFillingFrame.size -= mFillingFrame.size % mBytesPerSample;
+        if (mFillingFrame.size > 0) {
+            publishFillingFrame();
+        } else {
+            mFreeFrames.offer(mFillingFrame);
+            mFillingFrame = null;
+        }
+    }
+
+    private void publishFillingFrame() {
+        Frame frame = mFillingFrame;
+        mFillingFrame = null;
+        frame.startSample = mSampleCount;
+        frame.ptsUs = mBaseTimeUs + samplesToUs(mSampleCount);
+        mSampleCount += frame.size / mBytesPerSample;
+        mFrameCount++;
+
+        // 消费者跟不上，丢弃最旧的一帧给新帧腾位置；消费者可能刚好取走了它，所以循环直到放入
+        while (!mFilledFrames.offer(frame)) {
+            Frame oldest = mFilledFrames.poll();
+            if (oldest != null) {
+                mDroppedFrameCount++;
+                mFreeFrames.offer(oldest);
+            }
+        }
+    }
+
+    /**
+     * 消费者调用，取最早的一帧，用完后要 recycle
+     *
+     * @return 超时时返回 null
+     */
+    public Frame take(long timeoutMills) throws InterruptedException {
+        return mFilledFrames.poll(timeoutMills, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 消费者调用，不等待
+     *
+     * @return 没有已填满的帧时返回 null
+     */
+    public Frame poll() {
+        return mFilledFrames.poll();
+    }
+
+    /**
+     * 消费者调用，归还 take/poll 取到的帧
+     */
+    public void recycle(Frame frame) {
+        if (frame != null) {
+            mFreeFrames.offer(frame);
+        }
+    }
+
+    /**
+     * 丢弃所有数据并把时间轴清零，只能在生产者和消费者都停止时调用
+     */
+    public void reset() {
+        if (mFillingFrame != null) {
+            mFreeFrames.offer(mFillingFrame);
+            mFillingFrame = null;
+        }
+        Frame frame;
+        while ((frame = mFilledFrames.poll()) != null) {
+            mFreeFrames.offer(frame);
+        }
+        mSampleCount = 0;
+        mBaseTimeUs = 0;
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+    }
+
+    public long samplesToUs(long samples) {
+        return samples * 1000000 / mSampleRate;
+    }
+
+    public long bytesToUs(long bytes) {
+        return samplesToUs(bytes / mBytesPerSample);
+    }
+
+    /**
+     * 已经交给消费者的帧个数，包括被丢弃的帧
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.wtz.libvideomaker.audio;
+
+/**
+ * 两路独立时钟的音频混音时的时钟漂移补偿：主音轨（例如麦克风）按自己的时钟消费，
+ * 副音轨（例如音乐播放回调）按另一个时钟生产到中间缓冲区，两者名义采样率相同，实际速率总有细微差别
+ * <p>
+ * 做法是观察中间缓冲区的填充量，把它稳定在目标延迟附近：
+ * 1. 消费者每次取数据前调用 checkConsume，用指数平滑后的填充量与目标延迟的偏差做 PI 控制，
+ * 得到副音轨重采样的变比微调量，生产者每次重采样前通过 getRatioCorrection 取用；
+ * 2. 刚开始或者欠载时，填充量达到目标延迟之前消费者不取副音轨数据，改用静音，不阻塞主音轨线程；
+ * 3. 填充量超过上限时生产者丢弃新数据，中间缓冲区的延迟始终有界。
+ * <p>
+ * 注意：checkConsume 只能在消费者线程调用，checkProduce 只能在生产者线程调用。
+ */
+public class ClockDriftCompensator {
+
+    /**
+     * 比例系数：每秒偏差对应的变比微调量，偏差 10ms 时微调千分之一
+     */
+    private static final double KP = 0.1;
+
+    /**
+     * 积分系数：约为 KP 的平方的四分之一，闭环阻尼比约为 1，不会来回振荡
+     */
+    private static final double KI = 0.0025;
+
+    /**
+     * 填充量平滑的时间常数，单位：秒，远小于闭环时间常数 1 / KP
+     */
+    private static final double FILL_SMOOTH_SECONDS = 1.0;
+
+    /**
+     * 变比微调量的上限，调整万分之一量级的漂移绰绰有余，又不会带来可闻的音调变化
+     */
+    public static final double MAX_CORRECTION = 0.005;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final int mTargetBytes;
+    private final int mMaxBytes;
+
+    // 只在消费者线程读写
+    private boolean isPrimed;
+    private volatile double mSmoothedFillFrames = -1;
+    private double mIntegral;
+
+    private volatile double mCorrection;
+    private volatile long mUnderrunCount;
+    private volatile long mOverflowCount;
+    private volatile long mDroppedBytes;
+
+    /**
+     * @param bytesPerFrame       所有声道一个采样点的字节数
+     * @param targetLatencyMills  中间缓冲区稳定的目标延迟
+     * @param maxLatencyMills     中间缓冲区的延迟上限，超过时生产者丢弃数据，不小于 targetLatencyMills 的两倍
+     */
+    public ClockDriftCompensator(int sampleRate, int bytesPerFrame, int targetLatencyMills, int maxLatencyMills) {
+        if (sampleRate <= 0 || bytesPerFrame <= 0 || targetLatencyMills <= 0) {
+            throw new IllegalArgumentException("ClockDriftCompensator params is illegal: " + sampleRate
+                    + "Hz " + bytesPerFrame + "BytesPerFrame " + targetLatencyMills + "ms");
+        }
+        mSampleRate = sampleRate;
+        mBytesPerFrame = bytesPerFrame;
+        mTargetBytes = millsToFrames(targetLatencyMills) * bytesPerFrame;
+        mMaxBytes = millsToFrames(Math.max(maxLatencyMills, targetLatencyMills * 2)) * bytesPerFrame;
+    }
+
+    private int millsToFrames(int mills) {
+        return (int) ((long) mSampleRate * mills / 1000);
+    }
+
+    /**
+     * 生产者写入中间缓冲区前调用
+     *
+     * @param filledBytes  中间缓冲区当前已有的字节数
+     * @param produceBytes 准备写入的字节数
+     * @return 可以写入的字节数，按整采样点截断，小于 produceBytes 时剩余数据丢弃
+     */
+    public int checkProduce(int filledBytes, int produceBytes) {
+        int allowed = Math.max(0, mMaxBytes - filledBytes);
+        if (produceBytes <= allowed) {
+            return produceBytes;
+        }
+        allowed -= allowed % mBytesPerFrame;
+        mOverflowCount++;
+        mDroppedBytes += produceBytes - allowed;
+        return allowed;
+    }
+
+    /**
+     * 消费者从中间缓冲区读取前调用，同时更新变比微调量
+     *
+     * @param filledBytes  中间缓冲区当前已有的字节数
+     * @param consumeBytes 本次需要的字节数
+     * @return true 表示可以读取 consumeBytes 个字节；false 表示还在预填充，本次副音轨用静音代替，不读取
+     */
+    public boolean checkConsume(int filledBytes, int consumeBytes) {
+        if (!isPrimed) {
+            if (filledBytes < mTargetBytes || filledBytes < consumeBytes) {
+                return false;
+            }
+            isPrimed = true;
+            mSmoothedFillFrames = -1;
+        } else if (filledBytes < consumeBytes) {
+            // 副音轨停止或者严重落后，重新预填充，积分项保留，恢复后继续沿用已估计的漂移
+            isPrimed = false;
+            mUnderrunCount++;
+            return false;
+        }
+
+        double fillFrames = (double) filledBytes / mBytesPerFrame;
+        double dt = (double) consumeBytes / mBytesPerFrame / mSampleRate;
+        if (mSmoothedFillFrames < 0) {
+            mSmoothedFillFrames = fillFrames;
+        } else {
+            mSmoothedFillFrames += (fillFrames - mSmoothedFillFrames) * dt / (FILL_SMOOTH_SECONDS + dt);
+        }
+
+        // 偏差单位：秒；填充量偏多说明副音轨生产得快，要减小它的输出采样率
+        double error = (mSmoothedFillFrames - (double) mTargetBytes / mBytesPerFrame) / mSampleRate;
+        double integral = mIntegral + error * dt;
+        double correction = -(KP * error + KI * integral);
+        if (correction > MAX_CORRECTION) {
+            correction = MAX_CORRECTION;
+        } else if (correction < -MAX_CORRECTION) {
+            correction = -MAX_CORRECTION;
+        } else {
+            // 输出饱和时不再累加积分，避免积分饱和后长时间回不来
+            mIntegral = integral;
+        }
+        mCorrection = correction;
+        return true;
+    }
+
+    /**
+     * 生产者重采样前调用，作为 PolyphaseResampler.setRatioCorrection 的参数
+     */
+    public double getRatioCorrection() {
+        return mCorrection;
+    }
+
+    /**
+     * 平滑后的中间缓冲区延迟，单位：毫秒，还没开始消费时返回 -1
+     */
+    public double getSmoothedLatencyMills() {
+        double fill = mSmoothedFillFrames;
+        return fill < 0 ? -1 : fill * 1000 / mSampleRate;
+    }
+
+    public int getTargetBytes() {
+        return mTargetBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * 重新开始一段混音时调用，只能在生产者和消费者都停止时调用
+     */
+    public void reset() {
+        isPrimed = false;
+        mSmoothedFillFrames = -1;
+        mIntegral = 0;
+        mCorrection = 0;
+        mUnderrunCount = 0;
+        mOverflowCount = 0;
+        mDroppedBytes = 0;
+    }
+
+}
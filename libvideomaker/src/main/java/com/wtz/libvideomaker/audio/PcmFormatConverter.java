@@ -0,0 +1,361 @@
+package com.wtz.libvideomaker.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * PCM 采样格式和声道布局转换：8 位无符号、16 位、24 位紧凑排列、32 位浮点，单声道与双声道交错互转
+ * <p>
+ * 录音可能退回到 8 位或单声道，而混音、MP3 编码、AAC 编码都按 16 位处理，所以统一在这里转换：
+ * 1. 内部统一经过 16 位 short 中间数组，16 位和浮点格式通过 ByteBuffer 的 asShortBuffer/asFloatBuffer 批量读写，
+ * 不逐个采样移位拼字节；格式和声道都相同时直接数组拷贝；
+ * 2. PCM 数据固定为小端，Android 设备都是小端，批量读写时底层就是内存拷贝；
+ * 3. byte[] 的 ByteBuffer 包装和中间数组都会缓存复用，回调复用同一个数组时每次转换不再分配内存；
+ * 4. 输入按整采样点处理，不满一个采样点的尾部字节忽略。
+ * <p>
+ * 注意：同一个实例不是线程安全的，只能在同一个线程中调用。
+ */
+public class PcmFormatConverter {
+
+    /**
+     * 8 位无符号，静音为 128
+     */
+    public static final int FORMAT_PCM_8BIT = 8;
+
+    /**
+     * 16 位有符号小端
+     */
+    public static final int FORMAT_PCM_16BIT = 16;
+
+    /**
+     * 24 位有符号小端，每个采样 3 个字节紧凑排列
+     */
+    public static final int FORMAT_PCM_24BIT = 24;
+
+    /**
+     * 32 位浮点小端，范围 [-1.0, 1.0]
+     */
+    public static final int FORMAT_PCM_FLOAT = 32;
+
+    private static final float SHORT_TO_FLOAT = 1.0f / 32768;
+
+    private final int mSrcFormat;
+    private final int mSrcChannels;
+    private final int mDstFormat;
+    private final int mDstChannels;
+    private final int mSrcFrameBytes;
+    private final int mDstFrameBytes;
+
+    // 缓存的 byte[] 包装，回调复用同一个数组时不用每次重新包装
+    private byte[] mWrappedSrc;
+    private ByteBuffer mSrcByteBuffer;
+    private byte[] mWrappedDst;
+    private ByteBuffer mDstByteBuffer;
+
+    private short[] mSrcShorts;
+    private short[] mDstShorts;
+    private float[] mFloats;
+
+    public PcmFormatConverter(int srcFormat, int srcChannels, int dstFormat, int dstChannels) {
+        if (!isSupportedFormat(srcFormat) || !isSupportedFormat(dstFormat)
+                || srcChannels < 1 || srcChannels > 2 || dstChannels < 1 || dstChannels > 2) {
+            throw new IllegalArgumentException("PcmFormatConverter unsupported: " + srcFormat + "bit "
+                    + srcChannels + "Channels -> " + dstFormat + "bit " + dstChannels + "Channels");
+        }
+        mSrcFormat = srcFormat;
+        mSrcChannels = srcChannels;
+        mDstFormat = dstFormat;
+        mDstChannels = dstChannels;
+        mSrcFrameBytes = srcChannels * bytesPerSample(srcFormat);
+        mDstFrameBytes = dstChannels * bytesPerSample(dstFormat);
+    }
+
+    private static boolean isSupportedFormat(int format) {
+        return format == FORMAT_PCM_8BIT || format == FORMAT_PCM_16BIT
+                || format == FORMAT_PCM_24BIT || format == FORMAT_PCM_FLOAT;
+    }
+
+    public static int bytesPerSample(int format) {
+        return format / 8;
+    }
+
+    public int getSrcFrameBytes() {
+        return mSrcFrameBytes;
+    }
+
+    public int getDstFrameBytes() {
+        return mDstFrameBytes;
+    }
+
+    /**
+     * 输入 srcBytes 个字节时输出的字节数，用于预先分配输出数组
+     */
+    public int getDstBytes(int srcBytes) {
+        return srcBytes / mSrcFrameBytes * mDstFrameBytes;
+    }
+
+    /**
+     * 是否完全不需要转换，调用者可以据此直接使用原数据
+     */
+    public boolean isPassThrough() {
+        return mSrcFormat == mDstFormat && mSrcChannels == mDstChannels;
+    }
+
+    /**
+     * 转换 byte[] 数据
+     *
+     * @return 写入 dst 的字节数
+     */
+    public int convert(byte[] src, int srcOffset, int srcBytes, byte[] dst, int dstOffset) {
+        int frames = srcBytes / mSrcFrameBytes;
+        int dstBytes = frames * mDstFrameBytes;
+        if (dstOffset + dstBytes > dst.length) {
+            throw new IndexOutOfBoundsException("PcmFormatConverter dst is too small: " + dst.length
+                    + " need " + (dstOffset + dstBytes));
+        }
+        if (isPassThrough()) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, dstBytes);
+            return dstBytes;
+        }
+        ByteBuffer in = wrapSrc(src, srcOffset, frames * mSrcFrameBytes);
+        ByteBuffer out = wrapDst(dst, dstOffset, dstBytes);
+        convertFrames(in, frames, out);
+        return dstBytes;
+    }
+
+    /**
+     * 转换为 16 位 short 数组，例如送给 MP3 编码器，只能用于输出格式是 FORMAT_PCM_16BIT 的转换器
+     *
+     * @return 写入 dst 的 short 个数
+     */
+    public int convertToShorts(byte[] src, int srcOffset, int srcBytes, short[] dst, int dstOffset) {
+        if (mDstFormat != FORMAT_PCM_16BIT) {
+            throw new IllegalStateException("PcmFormatConverter dst format is not 16bit: " + mDstFormat);
+        }
+        int frames = srcBytes / mSrcFrameBytes;
+        int samples = frames * mDstChannels;
+        if (dstOffset + samples > dst.length) {
+            throw new IndexOutOfBoundsException("PcmFormatConverter dst is too small: " + dst.length
+                    + " need " + (dstOffset + samples));
+        }
+        ByteBuffer in = wrapSrc(src, srcOffset, frames * mSrcFrameBytes);
+        if (mSrcChannels == mDstChannels) {
+            readShorts(in, frames * mSrcChannels, dst, dstOffset);
+        } else {
+            short[] shorts = ensureSrcShorts(frames * mSrcChannels);
+            readShorts(in, frames * mSrcChannels, shorts, 0);
+            remapChannels(shorts, frames, dst, dstOffset);
+        }
+        return samples;
+    }
+
+    /**
+     * 转换 ByteBuffer 数据，可以是 direct buffer，例如 MediaCodec 的输入 buffer
+     * 从两者当前 position 开始读写，完成后 position 向后移动；两者原来的字节序保持不变
+     *
+     * @return 写入 dst 的字节数
+     */
+    public int convert(ByteBuffer src, ByteBuffer dst) {
+        int frames = src.remaining() / mSrcFrameBytes;
+        int dstBytes = frames * mDstFrameBytes;
+        if (dst.remaining() < dstBytes) {
+            throw new IndexOutOfBoundsException("PcmFormatConverter dst is too small: " + dst.remaining()
+                    + " need " + dstBytes);
+        }
+        ByteOrder srcOrder = src.order();
+        ByteOrder dstOrder = dst.order();
+        int srcLimit = src.limit();
+        src.limit(src.position() + frames * mSrcFrameBytes);
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        if (isPassThrough()) {
+            dst.put(src);
+        } else {
+            convertFrames(src, frames, dst);
+        }
+        src.limit(srcLimit);
+        src.order(srcOrder);
+        dst.order(dstOrder);
+        return dstBytes;
+    }
+
+    private ByteBuffer wrapSrc(byte[] src, int offset, int length) {
+        if (src != mWrappedSrc) {
+            mWrappedSrc = src;
+            mSrcByteBuffer = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mSrcByteBuffer.limit(offset + length).position(offset);
+        return mSrcByteBuffer;
+    }
+
+    private ByteBuffer wrapDst(byte[] dst, int offset, int length) {
+        if (dst != mWrappedDst) {
+            mWrappedDst = dst;
+            mDstByteBuffer = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mDstByteBuffer.limit(offset + length).position(offset);
+        return mDstByteBuffer;
+    }
+
+    /**
+     * 从 in 的 position 开始读 frames 个采样点，转换后写到 out 的 position，两者 position 都向后移动
+     */
+    private void convertFrames(ByteBuffer in, int frames, ByteBuffer out) {
+        int srcSamples = frames * mSrcChannels;
+        int dstSamples = frames * mDstChannels;
+        short[] srcShorts = ensureSrcShorts(srcSamples);
+        readShorts(in, srcSamples, srcShorts, 0);
+
+        short[] dstShorts = srcShorts;
+        if (mSrcChannels != mDstChannels) {
+            dstShorts = ensureDstShorts(dstSamples);
+            remapChannels(srcShorts, frames, dstShorts, 0);
+        }
+        writeShorts(dstShorts, dstSamples, out);
+    }
+
+    private void readShorts(ByteBuffer in, int samples, short[] dst, int dstOffset) {
+        switch (mSrcFormat) {
+            case FORMAT_PCM_16BIT: {
+                ShortBuffer view = in.asShortBuffer();
+                view.get(dst, dstOffset, samples);
+                in.position(in.position() + samples * 2);
+                break;
+            }
+
+            case FORMAT_PCM_FLOAT: {
+                float[] floats = ensureFloats(samples);
+                FloatBuffer view = in.asFloatBuffer();
+                view.get(floats, 0, samples);
+                in.position(in.position() + samples * 4);
+                int value;
+                for (int i = 0; i < samples; i++) {
+                    value = (int) (floats[i] * 32768);
+                    dst[dstOffset + i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE
+                            : (value < Short.MIN_VALUE ? Short.MIN_VALUE : value));
+                }
+                break;
+            }
+
+            case FORMAT_PCM_8BIT: {
+                // 8 位本身就是一个字节一个采样，没有批量转换的办法；byte[] 包装的直接访问数组，省掉逐个 get 的边界检查
+                int position = in.position();
+                if (in.hasArray()) {
+                    final byte[] array = in.array();
+                    final int start = in.arrayOffset() + position;
+                    for (int i = 0; i < samples; i++) {
+                        dst[dstOffset + i] = (short) (((array[start + i] & 0xff) - 128) << 8);
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        dst[dstOffset + i] = (short) (((in.get(position + i) & 0xff) - 128) << 8);
+                    }
+                }
+                in.position(position + samples);
+                break;
+            }
+
+            case FORMAT_PCM_24BIT: {
+                // 只保留高 16 位，即每个采样的后两个字节
+                int position = in.position();
+                for (int i = 0; i < samples; i++, position += 3) {
+                    dst[dstOffset + i] = in.getShort(position + 1);
+                }
+                in.position(position);
+                break;
+            }
+        }
+    }
+
+    private void writeShorts(short[] src, int samples, ByteBuffer out) {
+        switch (mDstFormat) {
+            case FORMAT_PCM_16BIT: {
+                ShortBuffer view = out.asShortBuffer();
+                view.put(src, 0, samples);
+                out.position(out.position() + samples * 2);
+                break;
+            }
+
+            case FORMAT_PCM_FLOAT: {
+                float[] floats = ensureFloats(samples);
+                for (int i = 0; i < samples; i++) {
+                    floats[i] = src[i] * SHORT_TO_FLOAT;
+                }
+                FloatBuffer view = out.asFloatBuffer();
+                view.put(floats, 0, samples);
+                out.position(out.position() + samples * 4);
+                break;
+            }
+
+            case FORMAT_PCM_8BIT: {
+                int position = out.position();
+                if (out.hasArray()) {
+                    final byte[] array = out.array();
+                    final int start = out.arrayOffset() + position;
+                    for (int i = 0; i < samples; i++) {
+                        array[start + i] = (byte) ((src[i] >> 8) + 128);
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        out.put(position + i, (byte) ((src[i] >> 8) + 128));
+                    }
+                }
+                out.position(position + samples);
+                break;
+            }
+
+            case FORMAT_PCM_24BIT: {
+                int position = out.position();
+                for (int i = 0; i < samples; i++, position += 3) {
+                    out.put(position, (byte) 0);
+                    out.putShort(position + 1, src[i]);
+                }
+                out.position(position);
+                break;
+            }
+        }
+    }
+
+    /**
+     * 单声道复制到左右两个声道，双声道取平均值混成单声道
+     */
+    private void remapChannels(short[] src, int frames, short[] dst, int dstOffset) {
+        if (mSrcChannels == 1) {
+            short value;
+            for (int i = 0, j = dstOffset; i < frames; i++, j += 2) {
+                value = src[i];
+                dst[j] = value;
+                dst[j + 1] = value;
+            }
+        } else {
+            for (int i = 0, j = 0; i < frames; i++, j += 2) {
+                dst[dstOffset + i] = (short) ((src[j] + src[j + 1]) >> 1);
+            }
+        }
+    }
+
+    private short[] ensureSrcShorts(int samples) {
+        if (mSrcShorts == null || mSrcShorts.length < samples) {
+            // 只在数据变大时重新分配，尽可能避免频繁创建和释放内存造成内存抖动
+            mSrcShorts = new short[samples];
+        }
+        return mSrcShorts;
+    }
+
+    private short[] ensureDstShorts(int samples) {
+        if (mDstShorts == null || mDstShorts.length < samples) {
+            mDstShorts = new short[samples];
+        }
+        return mDstShorts;
+    }
+
+    private float[] ensureFloats(int samples) {
+        if (mFloats == null || mFloats.length < samples) {
+            mFloats = new float[samples];
+        }
+        return mFloats;
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.wtz.libvideomaker.audio;
+
+/**
+ * 16 位小端 PCM 多音轨混音器
+ * <p>
+ * 此混音器适用于“采样率一致、通道数一致、通道采样精度统一为 16 位”的多路音轨：
+ * 1. 直接从各音轨的 byte[] 中读取采样值，混音结果直接写到调用者提供的输出 byte[]，输出可以复用某一路输入；
+ * 2. 中间累加数组在构造或帧变大时才分配，之后每次混音不再分配内存；
+ * 3. 每路音轨可单独设置增益，增益转换为 Q12 定点数参与整数运算，乘增益后四舍五入（与 Math.round 相同）；
+ * 4. 按音轨逐个累加，内层循环是连续的数组访问，便于 JIT 展开和向量化。
+ * <p>
+ * 混音策略参考：叶大侠 https://juejin.im/post/5aa40ff6f265da239866e12c
+ */
+public class PcmMixer {
+
+    /**
+     * 线性叠加平均：各路叠加后除以音轨数，不会溢出，但某一路音量小时整体音量会被拉低
+     */
+    public static final int STRATEGY_AVERAGE = 0;
+
+    /**
+     * 饱和叠加：各路直接叠加，超出 16 位范围时截断到最大/最小值
+     */
+    public static final int STRATEGY_SATURATE = 1;
+
+    /**
+     * 自适应加权：以各路采样值自身大小作为权重，即 Σ(x·|x|) / Σ|x|，音轨较多时效果较好，但可能引入噪音
+     */
+    public static final int STRATEGY_ADAPTIVE = 2;
+
+    /**
+     * 软削波限幅：各路直接叠加，超过拐点后按双曲线压缩逐渐逼近最大值，避免硬截断带来的破音
+     */
+    public static final int STRATEGY_SOFT_CLIP = 3;
+
+    /**
+     * 单路增益上限（不含），Q12 下满幅采样乘增益仍在 int 范围内
+     */
+    public static final float MAX_TRACK_GAIN = 16f;
+
+    private static final int GAIN_SHIFT = 12;
+    private static final int GAIN_ONE = 1 << GAIN_SHIFT;
+    private static final int GAIN_HALF = GAIN_ONE >> 1;
+    // 软削波拐点：满幅的 3/4
+    private static final int SOFT_CLIP_KNEE = Short.MAX_VALUE * 3 / 4;
+    private static final int SOFT_CLIP_RANGE = Short.MAX_VALUE - SOFT_CLIP_KNEE;
+
+    private final int mTrackCount;
+    private final int[] mTrackGains;
+    private int mStrategy = STRATEGY_AVERAGE;
+
+    private int[] mAccumulator;
+    private int[] mAbsAccumulator;
+    private long[] mWeightedAccumulator;
+
+    public PcmMixer(int trackCount) {
+        if (trackCount <= 0) {
+            throw new IllegalArgumentException("PcmMixer trackCount must be positive: " + trackCount);
+        }
+        mTrackCount = trackCount;
+        mTrackGains = new int[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mTrackGains[i] = GAIN_ONE;
+        }
+    }
+
+    public int getTrackCount() {
+        return mTrackCount;
+    }
+
+    public void setStrategy(int strategy) {
+        if (strategy < STRATEGY_AVERAGE || strategy > STRATEGY_SOFT_CLIP) {
+            throw new IllegalArgumentException("PcmMixer illegal strategy: " + strategy);
+        }
+        mStrategy = strategy;
+    }
+
+    public int getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * 设置某一路音轨的增益，1.0 表示原音量
+     * 增益按 1/4096 量化，是 1/4096 整数倍的增益（如 0.5、1.0、2.0）与浮点乘法后 Math.round 的结果逐采样一致，
+     * 其它增益有量化误差，单路采样值最多相差 |x| / 8192 + 1，满幅时不超过 5（约 -76dB）
+     *
+     * @param gain 范围 [0, MAX_TRACK_GAIN)
+     */
+    public void setTrackGain(int track, float gain) {
+        if (!(gain >= 0 && gain < MAX_TRACK_GAIN)) {
+            throw new IllegalArgumentException("PcmMixer gain is illegal: " + gain);
+        }
+        mTrackGains[track] = (int) (gain * GAIN_ONE + 0.5f);
+    }
+
+    public void setTrackGains(float[] gains) {
+        if (gains == null || gains.length != mTrackCount) {
+            throw new IllegalArgumentException("PcmMixer gains length must be " + mTrackCount);
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            setTrackGain(i, gains[i]);
+        }
+    }
+
+    /**
+     * 混音
+     *
+     * @param tracks       各路音轨数据，数量与 trackCount 一致，每路长度不小于 sizePerTrack
+     * @param sizePerTrack 每路参与混音的字节数，奇数时忽略最后一个字节
+     * @param out          混音输出，长度不小于 sizePerTrack，可以是 tracks 中的某一路
+     * @return 写入 out 的字节数
+     */
+    public int mix(byte[][] tracks, int sizePerTrack, byte[] out) {
+        if (tracks == null || tracks.length != mTrackCount) {
+            throw new IllegalArgumentException("PcmMixer tracks count must be " + mTrackCount);
+        }
+        if (out == null || out.length < sizePerTrack) {
+            throw new IllegalArgumentException("PcmMixer out buffer is too small");
+        }
+        for (int row = 0; row < mTrackCount; row++) {
+            if (tracks[row] == null || tracks[row].length < sizePerTrack) {
+                throw new IllegalArgumentException("PcmMixer track " + row + " is too small");
+            }
+        }
+
+        final int samples = sizePerTrack / 2;
+        ensureAccumulator(samples);
+        switch (mStrategy) {
+            case STRATEGY_ADAPTIVE:
+                mixAdaptive(tracks, samples, out);
+                break;
+
+            case STRATEGY_SATURATE:
+                accumulate(tracks, samples);
+                writeSaturate(mAccumulator, samples, 1, out);
+                break;
+
+            case STRATEGY_SOFT_CLIP:
+                accumulate(tracks, samples);
+                writeSoftClip(samples, out);
+                break;
+
+            case STRATEGY_AVERAGE:
+            default:
+                accumulate(tracks, samples);
+                writeSaturate(mAccumulator, samples, mTrackCount, out);
+                break;
+        }
+        return samples * 2;
+    }
+
+    private void ensureAccumulator(int samples) {
+        if (mAccumulator == null || mAccumulator.length < samples) {
+            // 只在帧变大时重新分配，尽可能避免频繁创建和释放内存造成内存抖动
+            mAccumulator = new int[samples];
+            mAbsAccumulator = null;
+            mWeightedAccumulator = null;
+        }
+        if (mStrategy == STRATEGY_ADAPTIVE && mAbsAccumulator == null) {
+            mAbsAccumulator = new int[mAccumulator.length];
+            mWeightedAccumulator = new long[mAccumulator.length];
+        }
+    }
+
+    private void accumulate(byte[][] tracks, int samples) {
+        final int[] acc = mAccumulator;
+        for (int row = 0; row < mTrackCount; row++) {
+            final byte[] track = tracks[row];
+            final int gain = mTrackGains[row];
+            if (row == 0) {
+                for (int i = 0, j = 0; i < samples; i++, j += 2) {
+                    acc[i] = clamp16(((((track[j] & 0xff) | (track[j + 1] << 8)) * gain) + GAIN_HALF) >> GAIN_SHIFT);
+                }
+            } else {
+                for (int i = 0, j = 0; i < samples; i++, j += 2) {
+                    acc[i] += clamp16(((((track[j] & 0xff) | (track[j + 1] << 8)) * gain) + GAIN_HALF) >> GAIN_SHIFT);
+                }
+            }
+        }
+    }
+
+    private void mixAdaptive(byte[][] tracks, int samples, byte[] out) {
+        final int[] absAcc = mAbsAccumulator;
+        final long[] weightedAcc = mWeightedAccumulator;
+        int value;
+        for (int row = 0; row < mTrackCount; row++) {
+            final byte[] track = tracks[row];
+            final int gain = mTrackGains[row];
+            final boolean first = row == 0;
+            for (int i = 0, j = 0; i < samples; i++, j += 2) {
+                value = clamp16(((((track[j] & 0xff) | (track[j + 1] << 8)) * gain) + GAIN_HALF) >> GAIN_SHIFT);
+                if (first) {
+                    weightedAcc[i] = (long) value * (value < 0 ? -value : value);
+                    absAcc[i] = value < 0 ? -value : value;
+                } else {
+                    weightedAcc[i] += (long) value * (value < 0 ? -value : value);
+                    absAcc[i] += value < 0 ? -value : value;
+                }
+            }
+        }
+
+        final int[] acc = mAccumulator;
+        for (int i = 0; i < samples; i++) {
+            acc[i] = absAcc[i] == 0 ? 0 : (int) (weightedAcc[i] / absAcc[i]);
+        }
+        writeSaturate(acc, samples, 1, out);
+    }
+
+    /**
+     * 增益放大后的单路采样值先截断到 16 位范围，与原有线性叠加平均混音保持一致
+     * 调用前加 GAIN_HALF 再右移，即向下取整的四舍五入；原来的 (int) (x * gain + 0.5f) 对负数向 0 截断，
+     * 增益为 1 时负的采样值也会被加 1，这里不再保留这个偏差
+     */
+    private static int clamp16(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private static void writeSaturate(int[] acc, int samples, int divisor, byte[] out) {
+        int value;
+        for (int i = 0, j = 0; i < samples; i++, j += 2) {
+            value = divisor == 1 ? acc[i] : acc[i] / divisor;
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            out[j] = (byte) value;
+            out[j + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private void writeSoftClip(int samples, byte[] out) {
+        final int[] acc = mAccumulator;
+        int value;
+        int over;
+        for (int i = 0, j = 0; i < samples; i++, j += 2) {
+            value = acc[i];
+            if (value > SOFT_CLIP_KNEE) {
+                over = value - SOFT_CLIP_KNEE;
+                value = SOFT_CLIP_KNEE + (int) ((long) over * SOFT_CLIP_RANGE / (over + SOFT_CLIP_RANGE));
+            } else if (value < -SOFT_CLIP_KNEE) {
+                over = -SOFT_CLIP_KNEE - value;
+                value = -SOFT_CLIP_KNEE - (int) ((long) over * SOFT_CLIP_RANGE / (over + SOFT_CLIP_RANGE));
+            }
+            out[j] = (byte) value;
+            out[j + 1] = (byte) (value >> 8);
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.wtz.libvideomaker.audio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者（SPSC）的 PCM 字节环形缓冲区
+ * <p>
+ * 用于替代 LinkedBlockingQueue<Byte> 逐字节装箱、逐字节加锁的方式在线程间传递 PCM 数据：
+ * 1. 读写都是批量数组拷贝，读写位置各自只由一个线程推进，正常读写路径不加锁、不分配内存；
+ * 2. 容量有界，写满后生产者可选择不等待、超时等待或一直等待；
+ * 3. 只有在需要等待时，才通过 mWaitLock 进行 wait/notify。
+ * <p>
+ * 注意：write 系列方法只能在同一个生产者线程调用，read 系列方法只能在同一个消费者线程调用。
+ */
+public class PcmRingBuffer {
+
+    private final byte[] mBuffer;
+    private final int mCapacity;
+    private final int mIndexMask;
+
+    // 读写位置单调递增，取下标时与 mIndexMask 相与
+    private final AtomicLong mWritePos = new AtomicLong(0);
+    private final AtomicLong mReadPos = new AtomicLong(0);
+
+    private final Object mWaitLock = new Object();
+    private volatile boolean isReaderWaiting;
+    private volatile boolean isWriterWaiting;
+
+    /**
+     * @param minCapacity 最小容量，单位：字节。实际容量会向上取整为 2 的幂次
+     */
+    public PcmRingBuffer(int minCapacity) {
+        if (minCapacity <= 0 || minCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("PcmRingBuffer capacity is illegal: " + minCapacity);
+        }
+        mCapacity = minCapacity == 1 ? 1 : Integer.highestOneBit(minCapacity - 1) << 1;
+        mIndexMask = mCapacity - 1;
+        mBuffer = new byte[mCapacity];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 当前可读字节数
+     */
+    public int available() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    /**
+     * 当前可写字节数
+     */
+    public int remaining() {
+        return mCapacity - available();
+    }
+
+    /**
+     * 丢弃当前所有可读数据
+     * 读位置只会前进不会回退，所以在生产者或其它线程调用也不会破坏缓冲区结构
+     */
+    public void clear() {
+        long read;
+        long write;
+        do {
+            read = mReadPos.get();
+            write = mWritePos.get();
+            if (read >= write) {
+                break;
+            }
+        } while (!mReadPos.compareAndSet(read, write));
+        signalWriter();
+    }
+
+    /**
+     * 不等待写入，能写多少就写多少
+     *
+     * @return 实际写入的字节数，缓冲区已满时返回 0
+     */
+    public int write(byte[] src, int offset, int length) {
+        checkBounds(src, offset, length);
+        int written = writeOnce(src, offset, length);
+        if (written > 0) {
+            signalReader();
+        }
+        return written;
+    }
+
+    /**
+     * 超时等待写入，直到全部写完或超时
+     *
+     * @return 实际写入的字节数
+     */
+    public int write(byte[] src, int offset, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkBounds(src, offset, length);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int written = 0;
+        while (written < length) {
+            int ret = writeOnce(src, offset + written, length - written);
+            if (ret > 0) {
+                written += ret;
+                signalReader();
+                continue;
+            }
+            long waitNanos = deadline - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            awaitWritable(waitNanos);
+        }
+        return written;
+    }
+
+    /**
+     * 一直等待，直到全部写完
+     */
+    public void writeFully(byte[] src, int offset, int length) throws InterruptedException {
+        checkBounds(src, offset, length);
+        int written = 0;
+        while (written < length) {
+            int ret = writeOnce(src, offset + written, length - written);
+            if (ret > 0) {
+                written += ret;
+                signalReader();
+            } else {
+                awaitWritable(0);
+            }
+        }
+    }
+
+    /**
+     * 不等待读取，能读多少就读多少
+     *
+     * @return 实际读取的字节数，缓冲区为空时返回 0
+     */
+    public int read(byte[] dst, int offset, int length) {
+        checkBounds(dst, offset, length);
+        int read = readOnce(dst, offset, length);
+        if (read > 0) {
+            signalWriter();
+        }
+        return read;
+    }
+
+    /**
+     * 超时等待读取，直到读满 length 或超时
+     *
+     * @return 实际读取的字节数
+     */
+    public int read(byte[] dst, int offset, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        checkBounds(dst, offset, length);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int read = 0;
+        while (read < length) {
+            int ret = readOnce(dst, offset + read, length - read);
+            if (ret > 0) {
+                read += ret;
+                signalWriter();
+                continue;
+            }
+            long waitNanos = deadline - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            awaitReadable(waitNanos);
+        }
+        return read;
+    }
+
+    /**
+     * 一直等待，直到读满 length
+     */
+    public void readFully(byte[] dst, int offset, int length) throws InterruptedException {
+        checkBounds(dst, offset, length);
+        int read = 0;
+        while (read < length) {
+            int ret = readOnce(dst, offset + read, length - read);
+            if (ret > 0) {
+                read += ret;
+                signalWriter();
+            } else {
+                awaitReadable(0);
+            }
+        }
+    }
+
+    private int writeOnce(byte[] src, int offset, int length) {
+        long write = mWritePos.get();
+        int free = mCapacity - (int) (write - mReadPos.get());
+        int count = Math.min(free, length);
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) (write & mIndexMask);
+        int firstPart = Math.min(count, mCapacity - index);
+        System.arraycopy(src, offset, mBuffer, index, firstPart);
+        if (count > firstPart) {
+            System.arraycopy(src, offset + firstPart, mBuffer, 0, count - firstPart);
+        }
+        mWritePos.set(write + count);
+        return count;
+    }
+
+    private int readOnce(byte[] dst, int offset, int length) {
+        long read = mReadPos.get();
+        int count = Math.min((int) (mWritePos.get() - read), length);
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) (read & mIndexMask);
+        int firstPart = Math.min(count, mCapacity - index);
+        System.arraycopy(mBuffer, index, dst, offset, firstPart);
+        if (count > firstPart) {
+            System.arraycopy(mBuffer, 0, dst, offset + firstPart, count - firstPart);
+        }
+        // 如果期间被 clear 推进了读位置，这次读到的就是已丢弃的数据，不再回退读位置
+        mReadPos.compareAndSet(read, read + count);
+        return count;
+    }
+
+    private void awaitReadable(long waitNanos) throws InterruptedException {
+        synchronized (mWaitLock) {
+            isReaderWaiting = true;
+            try {
+                if (available() == 0) {
+                    timedWait(waitNanos);
+                }
+            } finally {
+                isReaderWaiting = false;
+            }
+        }
+    }
+
+    private void awaitWritable(long waitNanos) throws InterruptedException {
+        synchronized (mWaitLock) {
+            isWriterWaiting = true;
+            try {
+                if (remaining() == 0) {
+                    timedWait(waitNanos);
+                }
+            } finally {
+                isWriterWaiting = false;
+            }
+        }
+    }
+
+    private void timedWait(long waitNanos) throws InterruptedException {
+        if (waitNanos <= 0) {
+            mWaitLock.wait();
+        } else {
+            TimeUnit.NANOSECONDS.timedWait(mWaitLock, waitNanos);
+        }
+    }
+
+    private void signalReader() {
+        if (isReaderWaiting) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    private void signalWriter() {
+        if (isWriterWaiting) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    private static void checkBounds(byte[] bytes, int offset, int length) {
+        if (bytes == null) {
+            throw new NullPointerException("PcmRingBuffer bytes is null");
+        }
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("PcmRingBuffer offset=" + offset + ", length="
+                    + length + ", array length=" + bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+package com.wtz.libvideomaker.audio;
+
+import java.util.Arrays;
+
+/**
+ * 16 位交错 PCM 的流式多相（polyphase）重采样器，用于不同采样率的音轨混音前统一采样率
+ * <p>
+ * 原理：把输入先 L 倍插值、低通滤波，再 M 倍抽取，L/M 是输出采样率与输入采样率约分后的比值：
+ * 1. 低通滤波器是 Kaiser 窗加窗的 sinc，构造时按 L 个相位拆成 L 组系数预先计算好，
+ * 每个输出采样只需要用其中一组系数与最近 taps 个输入采样做一次点积，不计算插值出来的 0 值；
+ * 2. 每个声道有一条延迟线保存最近的输入采样，数据块之间状态连续，任意大小的数据块都可以直接送入；
+ * 3. 延迟线按两倍长度存储，同一采样写两次，点积窗口总是一段连续的数组，不需要取模；
+ * 4. 构造之后 process 不再分配内存，输出由调用者提供，长度可以先用 getMaxOutputFrames 计算；
+ * 5. 可以通过 setRatioCorrection 在名义比值上做细微的变比微调，用于补偿两路音频的时钟漂移，
+ * 此时输出时刻落在两个相位之间，用相邻两组系数线性插值，所以系数表至少拆成 MIN_PHASES 个相位。
+ * <p>
+ * 注意：同一个实例不是线程安全的，只能在同一个线程中调用 process/reset。
+ */
+public class PolyphaseResampler {
+
+    /**
+     * 约分后 L 的上限，决定系数表最大占用，例如 11025Hz -> 48000Hz 的 L 是 640
+     */
+    public static final int MAX_PHASES = 4096;
+
+    /**
+     * 升采样时每个相位的系数个数；降采样时按降采样倍数等比例增加，保证过渡带相对输出采样率宽度不变
+     */
+    public static final int DEFAULT_TAPS_PER_PHASE = 48;
+
+    /**
+     * 系数表的最少相位个数，L 较小时按整数倍细分，保证变比微调时相邻相位插值的误差足够小
+     */
+    public static final int MIN_PHASES = 256;
+
+    /**
+     * 变比微调的最大幅度，时钟漂移一般只有万分之一量级
+     */
+    public static final double MAX_RATIO_CORRECTION = 0.05;
+
+    // 相位累加器的小数位数
+    private static final int PHASE_FRAC_BITS = 32;
+    private static final long PHASE_FRAC_MASK = (1L << PHASE_FRAC_BITS) - 1;
+    private static final float PHASE_FRAC_SCALE = 1.0f / (1L << PHASE_FRAC_BITS);
+
+    // Kaiser 窗 beta 约 7 时阻带衰减约 70dB
+    private static final double KAISER_BETA = 7.0;
+    private static final double STOPBAND_DB = 70.0;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mChannels;
+    private final int mFrameBytes;
+
+    private final int mUpFactor;// L
+    private final int mDownFactor;// M
+    private final int mPhaseCount;// L 的整数倍
+    private final int mTaps;
+    // mPhaseCount + 1 组系数，每组 taps 个，按时间从旧到新排列；最后一组等于第 0 组推迟一个输入采样，用于插值
+    private final float[] mCoefs;
+
+    private final float[][] mDelayLines;
+    private int mDelayPos;
+
+    // 相位累加器，高位是系数表相位，低 PHASE_FRAC_BITS 位是相位之间的小数部分
+    // 下一个输出采样相对最新输入采样的相位，小于 mPhaseLimit 时可输出
+    private long mPhase;
+    private final long mPhaseLimit;
+    private final long mNominalStep;
+    private long mStep;
+    private double mRatioCorrection;
+
+    // byte 接口中不满一个采样点的剩余字节
+    private final byte[] mPendingBytes;
+    private int mPendingSize;
+
+    public PolyphaseResampler(int inputRate, int outputRate, int channels) {
+        this(inputRate, outputRate, channels, DEFAULT_TAPS_PER_PHASE);
+    }
+
+    /**
+     * @param tapsPerPhase 升采样时每个相位的系数个数，越大过渡带越窄、计算量越大
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int channels, int tapsPerPhase) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0 || tapsPerPhase < 4) {
+            throw new IllegalArgumentException("PolyphaseResampler params is illegal: " + inputRate
+                    + "Hz -> " + outputRate + "Hz " + channels + "Channels " + tapsPerPhase + "taps");
+        }
+        int gcd = gcd(inputRate, outputRate);
+        mUpFactor = outputRate / gcd;
+        mDownFactor = inputRate / gcd;
+        if (mUpFactor > MAX_PHASES) {
+            throw new IllegalArgumentException("PolyphaseResampler ratio is too complex: " + inputRate
+                    + "Hz -> " + outputRate + "Hz, L=" + mUpFactor);
+        }
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        mChannels = channels;
+        mFrameBytes = channels * 2;
+
+        if (outputRate < inputRate) {
+            tapsPerPhase = (int) Math.ceil((double) tapsPerPhase * inputRate / outputRate);
+        }
+        mTaps = tapsPerPhase;
+        mPhaseCount = mUpFactor * ((MIN_PHASES + mUpFactor - 1) / mUpFactor);
+        mCoefs = designCoefs(mPhaseCount, mTaps, inputRate, outputRate);
+
+        mPhaseLimit = (long) mPhaseCount << PHASE_FRAC_BITS;
+        mNominalStep = ((long) mDownFactor * (mPhaseCount / mUpFactor)) << PHASE_FRAC_BITS;
+        mStep = mNominalStep;
+
+        mDelayLines = new float[channels][mTaps * 2];
+        mPendingBytes = new byte[mFrameBytes];
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * 在 up 倍升采样后的采样率上设计原型低通滤波器，再拆成 up + 1 个相位
+     */
+    private static float[] designCoefs(int up, int taps, int inputRate, int outputRate) {
+        final int length = up * taps + 1;
+        final double upRate = (double) inputRate * up;
+        final double nyquist = Math.min(inputRate, outputRate) / 2.0;
+        // Kaiser 窗过渡带宽度估算：(A - 7.95) / (14.36 * N) * Fs，让阻带从较低一方的奈奎斯特频率开始
+        double transition = (STOPBAND_DB - 7.95) / (14.36 * length) * upRate;
+        double cutoff = Math.max(nyquist - transition / 2, nyquist / 2);
+        double fc = cutoff / upRate;// 归一化截止频率，单位：周期/采样
+
+        final double center = (length - 1) / 2.0;
+        final double i0Beta = besselI0(KAISER_BETA);
+        double[] prototype = new double[length];
+        for (int i = 0; i < length; i++) {
+            double t = i - center;
+            double sinc = t == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * t) / (Math.PI * t);
+            double r = 2.0 * i / (length - 1) - 1;
+            double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+            prototype[i] = sinc * window;
+        }
+
+        // 每个相位单独归一化直流增益为 1，避免相位间增益差异带来的调制噪声
+        float[] coefs = new float[(up + 1) * taps];
+        for (int phase = 0; phase <= up; phase++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += prototype[phase + k * up];
+            }
+            for (int k = 0; k < taps; k++) {
+                // 第 k 个系数乘的是往前第 k 个输入采样，倒序存放，点积时与延迟线同方向遍历
+                coefs[phase * taps + (taps - 1 - k)] = (float) (prototype[phase + k * up] / sum);
+            }
+        }
+        return coefs;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getTapsPerPhase() {
+        return mTaps;
+    }
+
+    /**
+     * 滤波器引入的群延迟，单位：输入采样点
+     */
+    public float getDelayFrames() {
+        return (mTaps - 1) / 2.0f;
+    }
+
+    /**
+     * 在名义比值上微调输出采样率，实际输出采样率为 outputRate * (1 + correction)
+     * 下一个输出采样开始生效，只改变相位步进，滤波器状态保持连续
+     *
+     * @param correction 范围 [-MAX_RATIO_CORRECTION, MAX_RATIO_CORRECTION]，超出时截断
+     */
+    public void setRatioCorrection(double correction) {
+        correction = Math.max(-MAX_RATIO_CORRECTION, Math.min(MAX_RATIO_CORRECTION, correction));
+        if (correction == mRatioCorrection) {
+            return;
+        }
+        mRatioCorrection = correction;
+        mStep = correction == 0 ? mNominalStep : Math.round(mNominalStep / (1 + correction));
+    }
+
+    public double getRatioCorrection() {
+        return mRatioCorrection;
+    }
+
+    /**
+     * 输入 inFrames 个采样点时最多输出的采样点个数，用于预先分配输出数组，已考虑当前的变比微调
+     */
+    public int getMaxOutputFrames(int inFrames) {
+        return (int) Math.ceil((double) inFrames * mPhaseLimit / mStep) + 1;
+    }
+
+    /**
+     * 输入 inBytes 个字节时最多输出的字节数，包括上次剩余的不满一个采样点的字节
+     */
+    public int getMaxOutputBytes(int inBytes) {
+        return getMaxOutputFrames((inBytes + mFrameBytes - 1) / mFrameBytes + 1) * mFrameBytes;
+    }
+
+    /**
+     * 重采样交错的 short 数据
+     *
+     * @param inFrames  输入采样点个数，每个采样点包含 channels 个 short
+     * @param out       输出，从 outOffset 开始至少要有 getMaxOutputFrames(inFrames) * channels 个空位
+     * @return 输出的采样点个数
+     */
+    public int process(short[] in, int inOffset, int inFrames, short[] out, int outOffset) {
+        final int channels = mChannels;
+        int outIndex = outOffset;
+        for (int i = 0, index = inOffset; i < inFrames; i++, index += channels) {
+            pushFrame(in, index);
+            while (mPhase < mPhaseLimit) {
+                for (int ch = 0; ch < channels; ch++) {
+                    out[outIndex++] = toShort(filter(ch));
+                }
+                mPhase += mStep;
+            }
+            mPhase -= mPhaseLimit;
+        }
+        return (outIndex - outOffset) / channels;
+    }
+
+    /**
+     * 重采样 16 位小端交错的字节数据，不满一个采样点的剩余字节留到下次处理
+     *
+     * @param out 输出，从 outOffset 开始至少要有 getMaxOutputBytes(inBytes) 个空位
+     * @return 输出的字节数
+     */
+    public int process(byte[] in, int inOffset, int inBytes, byte[] out, int outOffset) {
+        final int frameBytes = mFrameBytes;
+        int outIndex = outOffset;
+        int index = inOffset;
+        final int end = inOffset + inBytes;
+
+        if (mPendingSize > 0) {
+            int count = Math.min(frameBytes - mPendingSize, inBytes);
+            System.arraycopy(in, index, mPendingBytes, mPendingSize, count);
+            mPendingSize += count;
+            index += count;
+            if (mPendingSize < frameBytes) {
+                return 0;
+            }
+            mPendingSize = 0;
+            outIndex = processByteFrame(mPendingBytes, 0, out, outIndex);
+        }
+
+        for (; index + frameBytes <= end; index += frameBytes) {
+            outIndex = processByteFrame(in, index, out, outIndex);
+        }
+
+        if (index < end) {
+            mPendingSize = end - index;
+            System.arraycopy(in, index, mPendingBytes, 0, mPendingSize);
+        }
+        return outIndex - outOffset;
+    }
+
+    private int processByteFrame(byte[] in, int index, byte[] out, int outIndex) {
+        final int channels = mChannels;
+        final int pos = mDelayPos;
+        final int taps = mTaps;
+        for (int ch = 0, j = index; ch < channels; ch++, j += 2) {
+            float value = (short) ((in[j] & 0xff) | (in[j + 1] << 8));
+            float[] line = mDelayLines[ch];
+            line[pos] = value;
+            line[pos + taps] = value;
+        }
+        mDelayPos = pos + 1 == taps ? 0 : pos + 1;
+
+        int value;
+        while (mPhase < mPhaseLimit) {
+            for (int ch = 0; ch < channels; ch++) {
+                value = toShort(filter(ch));
+                out[outIndex++] = (byte) value;
+                out[outIndex++] = (byte) (value >> 8);
+            }
+            mPhase += mStep;
+        }
+        mPhase -= mPhaseLimit;
+        return outIndex;
+    }
+
+    private void pushFrame(short[] in, int index) {
+        final int pos = mDelayPos;
+        final int taps = mTaps;
+        for (int ch = 0; ch < mChannels; ch++) {
+            float[] line = mDelayLines[ch];
+            float value = in[index + ch];
+            line[pos] = value;
+            line[pos + taps] = value;
+        }
+        mDelayPos = pos + 1 == taps ? 0 : pos + 1;
+    }
+
+    /**
+     * 当前相位的系数与延迟线点积；最新采样在 mDelayPos - 1 + taps，窗口为 [mDelayPos, mDelayPos + taps)
+     * 相位落在两组系数之间时，对相邻两组系数线性插值
+     */
+    private float filter(int channel) {
+        final float[] line = mDelayLines[channel];
+        final float[] coefs = mCoefs;
+        final int taps = mTaps;
+        final int coefStart = (int) (mPhase >>> PHASE_FRAC_BITS) * taps;
+        final int lineStart = mDelayPos;
+        final long frac = mPhase & PHASE_FRAC_MASK;
+        float sum = 0;
+        if (frac == 0) {
+            for (int k = 0; k < taps; k++) {
+                sum += coefs[coefStart + k] * line[lineStart + k];
+            }
+            return sum;
+        }
+
+        final float weight = frac * PHASE_FRAC_SCALE;
+        final int nextStart = coefStart + taps;
+        float c;
+        for (int k = 0; k < taps; k++) {
+            c = coefs[coefStart + k];
+            sum += (c + (coefs[nextStart + k] - c) * weight) * line[lineStart + k];
+        }
+        return sum;
+    }
+
+    private static short toShort(float value) {
+        int rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (rounded < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) rounded;
+    }
+
+    /**
+     * 清空延迟线和相位，重新开始一段不连续的数据时调用，例如 seek 或重新开始录制
+     */
+    public void reset() {
+        for (float[] line : mDelayLines) {
+            Arrays.fill(line, 0);
+        }
+        mDelayPos = 0;
+        mPhase = 0;
+        mPendingSize = 0;
+    }
+
+}
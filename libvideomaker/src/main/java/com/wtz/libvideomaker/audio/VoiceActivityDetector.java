@@ -0,0 +1,218 @@
+package com.wtz.libvideomaker.audio;
+
+/**
+ * 基于短时能量和过零率的语音活动检测（VAD），用于长时间录音时跳过静音段的编码
+ * <p>
+ * 按 20ms 一帧判断：
+ * 1. 能量是帧内 16 位采样的均方值，噪声底按帧跟踪：比它低时立即跟随，比它高时缓慢上升，
+ * 判为语音的帧只以极慢的速度上升，持续说话时语音不会被当成噪声；
+ * 2. 能量高于噪声底 ENERGY_RATIO 倍且高于绝对门限时判为语音；
+ * 能量只略高于噪声底、但过零率高时（清辅音、摩擦音能量低，过零多）也判为语音；
+ * 3. 语音结束后保持 HANGOVER_MILLS 的拖尾，避免把字尾和字间的短停顿切掉。
+ * <p>
+ * 对一段数据的判断结果按 gate 的模式处理：只标记（默认）、清零后交给编码器、或者丢弃，
+ * 丢弃会改变输出时长，误判时会丢掉语音，需要调用者明确选择。
+ * 注意：同一个实例不是线程安全的，只能在同一个线程中调用。
+ */
+public class VoiceActivityDetector {
+
+    /**
+     * 静音段不编码，输出时长会比录音时长短
+     */
+    public static final int MODE_DROP = 0;
+
+    /**
+     * 只做判断，数据原样编码，调用者可以根据 isLastSpeech 自行处理
+     */
+    public static final int MODE_MARK = 1;
+
+    /**
+     * 静音段清零后编码，保持时长不变，编码器对数字静音的处理代价很低
+     */
+    public static final int MODE_MUTE = 2;
+
+    private static final int FRAME_MILLS = 20;
+    private static final int HANGOVER_MILLS = 300;
+
+    // 能量高于噪声底 4 倍（约 6dB）判为语音
+    private static final int ENERGY_RATIO = 4;
+    // 能量高于噪声底 2 倍且过零率高于 1/4 时判为清辅音
+    private static final int FRICATIVE_ENERGY_RATIO = 2;
+    private static final int FRICATIVE_ZCR_DIVISOR = 4;
+    // 绝对能量门限，约为 -60dBFS，低于它一定是静音
+    private static final long MIN_SPEECH_ENERGY = 1100;
+    // 非语音帧噪声底每帧上升 1/256，约 7 秒上升 4 倍，环境噪声变大时能跟上
+    private static final int NOISE_RISE_SHIFT = 8;
+    // 语音帧每帧只上升 1/2048，约 57 秒才上升 4 倍，持续的噪声被误判为语音时最终仍能跟上；
+    // 说话中的停顿能量低于噪声底，会把噪声底立即拉回来
+    private static final int ACTIVE_NOISE_RISE_SHIFT = 11;
+
+    private final int mChannels;
+    private final int mFrameSamples;// 每帧每声道采样个数
+    private final int mHangoverFrames;
+    private int mMode = MODE_MARK;
+
+    // 当前正在累加的帧
+    private long mFrameEnergySum;
+    private int mFrameZeroCrossings;
+    private int mFrameCount;
+    private int mLastSign;
+
+    private long mNoiseFloor = -1;
+    private int mHangoverLeft;
+    private boolean isLastFrameSpeech;
+    private boolean isLastSpeech;
+
+    private long mTotalFrames;
+    private long mSpeechFrames;
+
+    public VoiceActivityDetector(int sampleRate, int channelNums) {
+        if (sampleRate <= 0 || channelNums <= 0) {
+            throw new IllegalArgumentException("VoiceActivityDetector params is illegal: " + sampleRate
+                    + "Hz " + channelNums + "Channels");
+        }
+        mChannels = channelNums;
+        mFrameSamples = Math.max(1, sampleRate * FRAME_MILLS / 1000);
+        mHangoverFrames = HANGOVER_MILLS / FRAME_MILLS;
+    }
+
+    public void setMode(int mode) {
+        if (mode < MODE_DROP || mode > MODE_MUTE) {
+            throw new IllegalArgumentException("VoiceActivityDetector illegal mode: " + mode);
+        }
+        mMode = mode;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * 判断一段 16 位交错 PCM 并按模式处理
+     *
+     * @param samples 交错采样，MODE_MUTE 时静音段会被原地清零
+     * @param count   采样个数，包含所有声道
+     * @return 需要送给编码器的采样个数，MODE_DROP 时静音段返回 0，其它情况返回 count
+     */
+    public int gate(short[] samples, int offset, int count) {
+        boolean speech = detect(samples, offset, count);
+        if (speech) {
+            return count;
+        }
+        switch (mMode) {
+            case MODE_DROP:
+                return 0;
+
+            case MODE_MUTE:
+                for (int i = offset, end = offset + count; i < end; i++) {
+                    samples[i] = 0;
+                }
+                return count;
+
+            case MODE_MARK:
+            default:
+                return count;
+        }
+    }
+
+    /**
+     * 判断一段 16 位交错 PCM 是否包含语音，不满一帧的部分累积到下一次
+     *
+     * @return 这段数据中有任何一帧是语音或者处于拖尾中时返回 true；
+     * 数据不满一帧时沿用上一帧的结果
+     */
+    public boolean detect(short[] samples, int offset, int count) {
+        final int channels = mChannels;
+        final int frameSamples = mFrameSamples;
+        boolean speech = false;
+        boolean hasFrame = false;
+        int value;
+        int sign;
+        for (int i = offset, end = offset + count - channels + 1; i < end; i += channels) {
+            // 多声道只取第一个声道计算能量和过零率，过零率只能按单个声道统计
+            value = samples[i];
+            mFrameEnergySum += value * value;
+            sign = value >> 31;
+            if (sign != mLastSign) {
+                mFrameZeroCrossings++;
+                mLastSign = sign;
+            }
+            if (++mFrameCount == frameSamples) {
+                speech |= finishFrame();
+                hasFrame = true;
+            }
+        }
+        isLastSpeech = hasFrame ? speech : isLastFrameSpeech;
+        return isLastSpeech;
+    }
+
+    private boolean finishFrame() {
+        long energy = mFrameEnergySum / mFrameCount;
+        int zeroCrossings = mFrameZeroCrossings;
+        int frameCount = mFrameCount;
+        mFrameEnergySum = 0;
+        mFrameZeroCrossings = 0;
+        mFrameCount = 0;
+
+        if (mNoiseFloor < 0 || energy < mNoiseFloor) {
+            mNoiseFloor = energy;
+        }
+
+        // 先按已有的噪声底判断，再决定噪声底上升的速度
+        boolean active = false;
+        if (energy >= MIN_SPEECH_ENERGY) {
+            if (energy > mNoiseFloor * ENERGY_RATIO) {
+                active = true;
+            } else if (energy > mNoiseFloor * FRICATIVE_ENERGY_RATIO
+                    && zeroCrossings * FRICATIVE_ZCR_DIVISOR > frameCount) {
+                active = true;
+            }
+        }
+        if (energy > mNoiseFloor) {
+            mNoiseFloor += Math.max(1, mNoiseFloor >> (active ? ACTIVE_NOISE_RISE_SHIFT : NOISE_RISE_SHIFT));
+        }
+
+        if (active) {
+            mHangoverLeft = mHangoverFrames;
+        } else if (mHangoverLeft > 0) {
+            mHangoverLeft--;
+            active = true;
+        }
+
+        mTotalFrames++;
+        if (active) {
+            mSpeechFrames++;
+        }
+        isLastFrameSpeech = active;
+        return active;
+    }
+
+    /**
+     * 最近一次 detect/gate 的结果
+     */
+    public boolean isLastSpeech() {
+        return isLastSpeech;
+    }
+
+    public long getTotalFrames() {
+        return mTotalFrames;
+    }
+
+    public long getSpeechFrames() {
+        return mSpeechFrames;
+    }
+
+    public void reset() {
+        mFrameEnergySum = 0;
+        mFrameZeroCrossings = 0;
+        mFrameCount = 0;
+        mLastSign = 0;
+        mNoiseFloor = -1;
+        mHangoverLeft = 0;
+        isLastFrameSpeech = false;
+        isLastSpeech = false;
+        mTotalFrames = 0;
+        mSpeechFrames = 0;
+    }
+
+}
@@ -5,6 +5,7 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.opengl.GLES20;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 
@@ -12,15 +13,20 @@ import com.wtz.libvideomaker.egl.WeGLSurfaceView;
 import com.wtz.libvideomaker.egl.WeGLRenderer;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
 import com.wtz.libvideomaker.renderer.filters.FilterRenderer;
-import com.wtz.libvideomaker.renderer.filters.GrayFilterRenderer;
-import com.wtz.libvideomaker.renderer.filters.ReverseFilterRenderer;
+import com.wtz.libvideomaker.renderer.filters.FilterShaderCompiler;
+import com.wtz.libvideomaker.renderer.filters.FusedFilterRenderer;
 import com.wtz.libvideomaker.renderer.filters.WatermarkRenderer;
 import com.wtz.libvideomaker.renderer.origins.CameraRenderer;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
         CameraRenderer.OnSharedTextureChangedListener, CameraRenderer.SurfaceTextureListener,
@@ -42,12 +48,18 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     private int mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
 
     private CameraRenderer mCameraRenderer;
-    private FilterRenderer mFilterRenderer;
-    private FilterRenderer mGrayFilterRenderer;
-    private FilterRenderer mReverseFilterRenderer;
     private WatermarkRenderer mWatermarkRenderer;
     private OnScreenRenderer mOnScreenRenderer;
 
+    // 滤镜经 FilterShaderCompiler 合并：逐像素滤镜直接在相机绘制中完成，不再单独绘制一次；
+    // 只有需要相邻像素的滤镜才由 mExtraPassRenderers 额外绘制，mExtraPassRenderers 只在渲染线程访问
+    private volatile List<FilterShaderCompiler.Stage> mFilterStages = Collections.emptyList();
+    private volatile boolean isFilterStagesChanged;
+    private final List<FusedFilterRenderer> mExtraPassRenderers = new ArrayList<>();
+    private volatile boolean isClearScreenOnDraw = true;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
     public enum PictureRenderType {
         NORMAL, GRAY, COLOR_REVERSE
     }
@@ -59,6 +71,20 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     private OnCameraSizeChangedListener mOnCameraSizeChangedListener;
 
+    /**
+     * 预览渲染线程把一帧新的相机画面画到输出纹理之后回调，在预览渲染线程中执行，不要做耗时操作
+     * <p>
+     * 用于驱动使用共享上下文、单独渲染线程的下游，例如没有挂到本 View 上的编码器：
+     * 下游设置为 RENDERMODE_WHEN_DIRTY，在回调中 requestRender，每个相机帧只画一次。
+     * 挂到本 View 上的 {@link com.wtz.libvideomaker.egl.WeGLRenderTarget} 本来就随预览逐帧绘制，不需要这个回调。
+     */
+    public interface OnFrameAvailableListener {
+        void onFrameAvailable();
+    }
+
+    private final List<OnFrameAvailableListener> mFrameAvailableListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean isNewFrameAvailable = new AtomicBoolean();
+
     public WeCameraView(Context context) {
         this(context, null);
     }
@@ -69,20 +95,15 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     public WeCameraView(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
-//        setRenderMode(RENDERMODE_WHEN_DIRTY);
-        // 暂时用持续渲染模式解决脏模式下有时 onFrameAvailable 不回调导致不渲染的 BUG
-        setRenderMode(RENDERMODE_CONTINUOUSLY);
+        // 每个相机帧只画一次，没有新帧时不重复绘制；渲染帧率作为最高帧率限制
+        // 以前脏模式下偶尔不再渲染，是 requestRender 在渲染线程开始等待之前到达被丢失，WeGLThread 已改为请求计数
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
         setRenderFps(RENDER_FPS);
 
         mCameraRenderer = new CameraRenderer(context, this);
         mCameraRenderer.setClearScreenOnDraw(false);//
         mCameraRenderer.setSharedTextureChangedListener(this);
 
-        mGrayFilterRenderer = new GrayFilterRenderer(context);
-        mGrayFilterRenderer.setFilterTextureChangedListener(this);
-        mReverseFilterRenderer = new ReverseFilterRenderer(context);
-        mReverseFilterRenderer.setFilterTextureChangedListener(this);
-
         mWatermarkRenderer = new WatermarkRenderer(context);
         mWatermarkRenderer.setMarkTextureChangedListener(this);
         mWatermarkRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
@@ -92,9 +113,10 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     }
 
     public void setClearScreenOnDraw(boolean clearScreen) {
+        isClearScreenOnDraw = clearScreen;
         mCameraRenderer.setClearScreenOnDraw(clearScreen);
-        mGrayFilterRenderer.setClearScreenOnDraw(clearScreen);
-        mReverseFilterRenderer.setClearScreenOnDraw(clearScreen);
+        // 额外的滤镜绘制只在渲染线程访问，重新创建时使用新的设置
+        isFilterStagesChanged = true;
         mWatermarkRenderer.setClearScreenOnDraw(clearScreen);
         mOnScreenRenderer.setClearScreenOnDraw(clearScreen);
     }
@@ -103,6 +125,16 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
         this.mOnCameraSizeChangedListener = listener;
     }
 
+    public void addOnFrameAvailableListener(OnFrameAvailableListener listener) {
+        if (listener != null && !mFrameAvailableListeners.contains(listener)) {
+            mFrameAvailableListeners.add(listener);
+        }
+    }
+
+    public void removeOnFrameAvailableListener(OnFrameAvailableListener listener) {
+        mFrameAvailableListeners.remove(listener);
+    }
+
     public void setScreenTextureChangeListener(OnScreenRenderer.ScreenTextureChangeListener listener) {
         mOnScreenRenderer.setScreenTextureChangeListener(listener);
     }
@@ -112,25 +144,75 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     }
 
     public void setPictureRenderType(PictureRenderType type) {
+        List<FilterShaderCompiler.Stage> stages = new ArrayList<>();
         switch (type) {
             case NORMAL:
-                mFilterRenderer = null;
                 break;
 
             case GRAY:
-                mFilterRenderer = mGrayFilterRenderer;
+                stages.add(FilterShaderCompiler.GRAY);
                 break;
 
             case COLOR_REVERSE:
-                mFilterRenderer = mReverseFilterRenderer;
+                stages.add(FilterShaderCompiler.REVERSE);
                 break;
         }
-        if (mFilterRenderer == null) {
-            mWatermarkRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
-        } else {
-            mFilterRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
-            mWatermarkRenderer.setExternalTextureId(mFilterRenderer.getFilterTextureId());
+        setFilterStages(stages);
+    }
+
+    /**
+     * 任意线程调用，按顺序叠加多个滤镜，渲染线程下一帧生效
+     */
+    public void setFilterStages(List<FilterShaderCompiler.Stage> stages) {
+        mFilterStages = stages != null ? Collections.unmodifiableList(new ArrayList<>(stages))
+                : Collections.<FilterShaderCompiler.Stage>emptyList();
+        isFilterStagesChanged = true;
+    }
+
+    /**
+     * 在渲染线程中重新生成着色器：第一次绘制交给相机，其余的各自创建一个 FusedFilterRenderer
+     */
+    private void applyFilterStages() {
+        isFilterStagesChanged = false;
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(mFilterStages, true);
+        LogUtils.d(TAG, "applyFilterStages " + passes);
+
+        FilterShaderCompiler.Pass cameraPass = passes.get(0);
+        mCameraRenderer.setFragmentShaderSource(
+                cameraPass.getStages().isEmpty() ? null : cameraPass.getFragmentSource());
+
+        releaseExtraPassRenderers();
+        for (int i = 1; i < passes.size(); i++) {
+            FusedFilterRenderer renderer = new FusedFilterRenderer(getContext(), passes.get(i));
+            renderer.setClearScreenOnDraw(isClearScreenOnDraw);
+            renderer.setFilterTextureChangedListener(this);
+            renderer.onEGLContextCreated();
+            if (mSurfaceWidth > 0 && mSurfaceHeight > 0) {
+                renderer.onSurfaceChanged(mSurfaceWidth, mSurfaceHeight);
+            }
+            mExtraPassRenderers.add(renderer);
         }
+        relinkFilterTextures();
+    }
+
+    private void releaseExtraPassRenderers() {
+        for (FusedFilterRenderer renderer : mExtraPassRenderers) {
+            renderer.setFilterTextureChangedListener(null);
+            renderer.onEGLContextToDestroy();
+        }
+        mExtraPassRenderers.clear();
+    }
+
+    /**
+     * 相机输出 -> 额外的滤镜绘制 -> 水印，任何一个输出纹理变化后重新串联
+     */
+    private void relinkFilterTextures() {
+        int textureId = mCameraRenderer.getSharedTextureId();
+        for (FusedFilterRenderer renderer : mExtraPassRenderers) {
+            renderer.setExternalTextureId(textureId);
+            textureId = renderer.getFilterTextureId();
+        }
+        mWatermarkRenderer.setExternalTextureId(textureId);
     }
 
     public void setImageMark(Bitmap bitmap, int showWidth, int showHeight,
@@ -165,19 +247,12 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     @Override
     public void onSharedTextureChanged(int textureID) {
-        if (mFilterRenderer != null) {
-            mFilterRenderer.setExternalTextureId(textureID);
-        } else {
-            mWatermarkRenderer.setExternalTextureId(textureID);
-        }
+        relinkFilterTextures();
     }
 
     @Override
     public void onFilterTextureChanged(FilterRenderer renderer, int textureID) {
-        if (mFilterRenderer != renderer) {
-            return;
-        }
-        mWatermarkRenderer.setExternalTextureId(mFilterRenderer.getFilterTextureId());
+        relinkFilterTextures();
     }
 
     @Override
@@ -194,10 +269,10 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     public void onEGLContextCreated() {
         LogUtils.d(TAG, "onEGLContextCreated");
         mCameraRenderer.onEGLContextCreated();
-        mGrayFilterRenderer.onEGLContextCreated();
-        mReverseFilterRenderer.onEGLContextCreated();
         mWatermarkRenderer.onEGLContextCreated();
         mOnScreenRenderer.onEGLContextCreated();
+        // 额外的滤镜绘制随上下文销毁，在新上下文的第一帧重新创建
+        isFilterStagesChanged = true;
     }
 
     @Override
@@ -260,9 +335,12 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(TAG, "onSurfaceChanged " + width + "x" + height);
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
         mCameraRenderer.onSurfaceChanged(width, height);
-        mGrayFilterRenderer.onSurfaceChanged(width, height);
-        mReverseFilterRenderer.onSurfaceChanged(width, height);
+        for (FusedFilterRenderer renderer : mExtraPassRenderers) {
+            renderer.onSurfaceChanged(width, height);
+        }
         mWatermarkRenderer.onSurfaceChanged(width, height);
         mOnScreenRenderer.onSurfaceChanged(width, height);
 
@@ -277,7 +355,8 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     @Override
     public void onFrameAvailable() {
-//        requestRender();//脏模式渲染才需要主动刷新
+        isNewFrameAvailable.set(true);
+        requestRender();
     }
 
     public void takePhoto() {
@@ -289,9 +368,14 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     @Override
     public void onDrawFrame() {
+        // 在 updateTexImage 之前原子地取出并清除标志，读和清之间到达的新帧不会被清掉，留给下一次绘制回调
+        boolean hasNewFrame = isNewFrameAvailable.getAndSet(false);
+        if (isFilterStagesChanged) {
+            applyFilterStages();
+        }
         mCameraRenderer.onDrawFrame();
-        if (mFilterRenderer != null) {
-            mFilterRenderer.onDrawFrame();
+        for (int i = 0, size = mExtraPassRenderers.size(); i < size; i++) {
+            mExtraPassRenderers.get(i).onDrawFrame();
         }
         mWatermarkRenderer.onDrawFrame();
         mOnScreenRenderer.onDrawFrame();
@@ -299,6 +383,13 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
             isTakingPhoto = false;
             mOnScreenRenderer.takePhoto(getPhotoPathName());
         }
+        if (hasNewFrame && !mFrameAvailableListeners.isEmpty()) {
+            // 下游在共享上下文中读输出纹理，先把绘制指令提交给 GPU
+            GLES20.glFlush();
+            for (OnFrameAvailableListener listener : mFrameAvailableListeners) {
+                listener.onFrameAvailable();
+            }
+        }
     }
 
     private String getPhotoPathName() {
@@ -313,9 +404,8 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
             mCamera.stopPreview();
             mCamera = null;
         }
+        releaseExtraPassRenderers();
         mCameraRenderer.onEGLContextToDestroy();
-        mGrayFilterRenderer.onEGLContextToDestroy();
-        mReverseFilterRenderer.onEGLContextToDestroy();
         mWatermarkRenderer.onEGLContextToDestroy();
         mOnScreenRenderer.onEGLContextToDestroy();
     }
@@ -0,0 +1,47 @@
+package com.wtz.libvideomaker.egl;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码数据的接收端，挂到 {@link WeGLMediaEncoder} 上，同一份编码输出可以同时交给多个接收端，
+ * 例如一边推流一边录制 MP4，只需要一套渲染和编码。
+ * <p>
+ * 除 onEncodeStart/onEncodeStop 外，回调都在音频或视频编码线程中执行，两个线程可能同时回调，实现需要自己保证线程安全；
+ * 回调中应尽快返回，耗时操作会直接拖慢编码线程，影响所有接收端。
+ */
+public interface EncodedSampleSink {
+
+    int TRACK_VIDEO = 0;
+    int TRACK_AUDIO = 1;
+
+    /**
+     * 开始编码，或者编码过程中被添加时回调，在格式和数据之前
+     *
+     * @param hasAudio 是否有音频轨，没有设置音频参数或者音频编码器创建失败时为 false
+     */
+    void onEncodeStart(boolean hasAudio);
+
+    /**
+     * 编码器输出格式确定，编码过程中被添加时会补发已确定的格式
+     */
+    void onOutputFormatChanged(int track, MediaFormat format);
+
+    /**
+     * 一帧编码数据
+     *
+     * @param data MediaCodec 的输出 buffer，position 和 limit 已设置为有效数据范围，
+     *             只在回调内有效，所有接收端共用同一个 buffer，不要修改其内容
+     * @param info 所有接收端共用，不要修改；presentationTimeUs 已换算为从开始编码算起，音视频是同一个起点
+     */
+    void onSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info);
+
+    /**
+     * 编码停止，或者编码过程中被移除时回调
+     * 被移除时编码线程可能正在给这个接收端分发最后一帧，此后到达的数据要忽略
+     */
+    void onEncodeStop();
+
+}
@@ -0,0 +1,234 @@
+package com.wtz.libvideomaker.egl;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 从 MediaCodec 取编码输出，代替编码线程里 dequeueOutputBuffer(info, 0) 的空转轮询
+ * <p>
+ * API 21 及以上使用异步回调：回调把可用的输出写入预先分配的单生产者单消费者环形队列，不分配内存也不等待，
+ * 编码线程在队列为空时带超时等待；
+ * 更低版本，或者还需要同步 dequeueInputBuffer 的编码器，使用带超时的 dequeueOutputBuffer。
+ * 两种方式下编码线程都按原来的 dequeueOutputBuffer 语义取输出，并统计取的次数和真正拿到输出的次数。
+ */
+public class MediaCodecDrainer {
+
+    private static final String TAG = MediaCodecDrainer.class.getSimpleName();
+
+    private MediaCodec mCodec;
+    private String mExternalTag;
+    private boolean isAsync;
+
+    // 回调线程只推进写位置，编码线程只推进读位置，事件对象循环使用；
+    // 编码器同时在外的输出 buffer 只有几个，容量足够，写满说明消费出了问题，只记录丢弃
+    private static final int EVENT_CAPACITY = 64;
+    private static final int EVENT_INDEX_MASK = EVENT_CAPACITY - 1;
+    private OutputEvent[] mOutputEvents;
+    private final AtomicLong mWritePos = new AtomicLong(0);
+    private final AtomicLong mReadPos = new AtomicLong(0);
+    private final Object mWaitLock = new Object();
+    private volatile boolean isReaderWaiting;
+
+    // 只在编码线程中写
+    private volatile long mDequeueCount;
+    private volatile long mOutputCount;
+
+    private static class OutputEvent {
+        int index;
+        int offset;
+        int size;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    public static class Stats {
+        public final boolean isAsync;
+        public final long dequeueCount;// 取输出的次数
+        public final long outputCount;// 其中拿到输出 buffer 或者格式变化的次数
+
+        Stats(boolean isAsync, long dequeueCount, long outputCount) {
+            this.isAsync = isAsync;
+            this.dequeueCount = dequeueCount;
+            this.outputCount = outputCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{isAsync=" + isAsync + ", dequeueCount=" + dequeueCount
+                    + ", outputCount=" + outputCount + "}";
+        }
+    }
+
+    /**
+     * 必须在 codec configure 之前创建，异步回调要在 configure 之前设置
+     *
+     * @param preferAsync 编码器的输入需要 dequeueInputBuffer 时要传 false，异步模式下不允许同步取输入 buffer
+     */
+    public MediaCodecDrainer(MediaCodec codec, boolean preferAsync, String externalTag) {
+        this.mCodec = codec;
+        this.mExternalTag = externalTag;
+        this.isAsync = preferAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        if (isAsync) {
+            mOutputEvents = new OutputEvent[EVENT_CAPACITY];
+            for (int i = 0; i < EVENT_CAPACITY; i++) {
+                mOutputEvents[i] = new OutputEvent();
+            }
+            setAsyncCallback();
+        }
+        LogUtils.w(TAG, mExternalTag + "isAsync=" + isAsync);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setAsyncCallback() {
+        // 回调发送到创建 codec 的线程的 Looper 上，也就是编码器的接口调度线程，回调里只写入队列，不分配、不等待
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // 只用于 Surface 输入的编码器，不会有输入 buffer
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                OutputEvent event = obtainWritableEvent();
+                if (event == null) {
+                    return;
+                }
+                event.index = index;
+                event.offset = info.offset;
+                event.size = info.size;
+                event.presentationTimeUs = info.presentationTimeUs;
+                event.flags = info.flags;
+                publishEvent();
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                LogUtils.e(TAG, mExternalTag + "onError: " + e.toString());
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                OutputEvent event = obtainWritableEvent();
+                if (event == null) {
+                    return;
+                }
+                event.index = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                publishEvent();
+            }
+        });
+    }
+
+    /**
+     * 回调线程调用，返回下一个可写的事件对象，队列已满时返回 null
+     */
+    private OutputEvent obtainWritableEvent() {
+        long write = mWritePos.get();
+        if (write - mReadPos.get() >= EVENT_CAPACITY) {
+            LogUtils.e(TAG, mExternalTag + "output events full, drop one");
+            return null;
+        }
+        return mOutputEvents[(int) (write & EVENT_INDEX_MASK)];
+    }
+
+    /**
+     * 回调线程调用，填好事件之后再推进写位置，编码线程在等待时才加锁唤醒
+     */
+    private void publishEvent() {
+        mWritePos.set(mWritePos.get() + 1);
+        if (isReaderWaiting) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitEvent(long timeoutUs) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        synchronized (mWaitLock) {
+            isReaderWaiting = true;
+            try {
+                long waitNanos;
+                while (mReadPos.get() == mWritePos.get()
+                        && (waitNanos = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(mWaitLock, waitNanos);
+                }
+            } catch (InterruptedException e) {
+                LogUtils.e(TAG, mExternalTag + "dequeueOutputBuffer interrupted");
+            } finally {
+                isReaderWaiting = false;
+            }
+        }
+    }
+
+    public boolean isAsync() {
+        return isAsync;
+    }
+
+    /**
+     * 与 MediaCodec.dequeueOutputBuffer 的返回值含义相同，只在编码线程中调用
+     *
+     * @param timeoutUs 没有输出时最多等待的时间，单位：微秒，0 表示不等待
+     */
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        mDequeueCount++;
+        int index;
+        if (isAsync) {
+            long read = mReadPos.get();
+            if (read == mWritePos.get() && timeoutUs > 0) {
+                awaitEvent(timeoutUs);
+            }
+            if (read == mWritePos.get()) {
+                index = MediaCodec.INFO_TRY_AGAIN_LATER;
+            } else {
+                // 先取出内容再推进读位置，之后这个事件对象才会被回调线程复用
+                OutputEvent event = mOutputEvents[(int) (read & EVENT_INDEX_MASK)];
+                index = event.index;
+                if (index >= 0) {
+                    info.set(event.offset, event.size, event.presentationTimeUs, event.flags);
+                }
+                mReadPos.set(read + 1);
+            }
+        } else {
+            index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        }
+        if (index >= 0 || index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            mOutputCount++;
+        }
+        return index;
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        if (isAsync) {
+            return getOutputBufferV21(index);
+        }
+        return mCodec.getOutputBuffers()[index];
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ByteBuffer getOutputBufferV21(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    public Stats getStats() {
+        return new Stats(isAsync, mDequeueCount, mOutputCount);
+    }
+
+    /**
+     * codec 停止后队列里的 index 都已失效，只清空不归还
+     */
+    public void release() {
+        if (mOutputEvents != null) {
+            mReadPos.set(mWritePos.get());
+        }
+        mCodec = null;
+    }
+
+}
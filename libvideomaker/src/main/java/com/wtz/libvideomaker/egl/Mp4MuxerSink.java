@@ -0,0 +1,144 @@
+package com.wtz.libvideomaker.egl;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 把编码数据封装为 MP4 文件，一个实例只对应一个文件，停止后不能再次使用
+ * <p>
+ * 编码过程中才添加时，视频从下一个关键帧开始写，音频只写这个关键帧之后的帧，
+ * 两个轨道的时间戳都减去这个关键帧的时间戳，保持原来的音画对齐。
+ */
+public class Mp4MuxerSink implements EncodedSampleSink {
+
+    private static final String TAG = "Mp4MuxerSink";
+
+    private final String mSavePath;
+    private MediaMuxer mMediaMuxer;
+    private boolean hasAudio;
+    private int mVideoTrackIndex = -1;
+    private int mAudioTrackIndex = -1;
+    private boolean isMuxerStarted;
+    private boolean isStopped;
+
+    // 编码输出的 BufferInfo 所有接收端共用，时间戳换算到这里，不改动原对象
+    private final MediaCodec.BufferInfo mWriteInfo = new MediaCodec.BufferInfo();
+    private boolean isVideoStarted;
+    private long mStartPts;// 第一个写入的关键帧的时间戳，音视频共用
+    private long mVideoDurationUs;
+    private long mWrittenSamples;
+
+    public Mp4MuxerSink(String savePath) {
+        this.mSavePath = savePath;
+    }
+
+    public String getSavePath() {
+        return mSavePath;
+    }
+
+    @Override
+    public synchronized void onEncodeStart(boolean hasAudio) {
+        if (isStopped || mMediaMuxer != null) {
+            LogUtils.e(TAG, "onEncodeStart but it's already used! stopped=" + isStopped);
+            return;
+        }
+        this.hasAudio = hasAudio;
+        try {
+            mMediaMuxer = new MediaMuxer(mSavePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            e.printStackTrace();
+            isStopped = true;
+        }
+    }
+
+    @Override
+    public synchronized void onOutputFormatChanged(int track, MediaFormat format) {
+        if (isStopped || mMediaMuxer == null || isMuxerStarted) {
+            return;
+        }
+        if (track == TRACK_VIDEO) {
+            if (mVideoTrackIndex < 0) {
+                mVideoTrackIndex = mMediaMuxer.addTrack(format);
+            }
+        } else if (hasAudio && mAudioTrackIndex < 0) {
+            mAudioTrackIndex = mMediaMuxer.addTrack(format);
+        }
+        boolean canStartMuxer = mVideoTrackIndex >= 0 && (!hasAudio || mAudioTrackIndex >= 0);
+        LogUtils.w(TAG, "canStartMuxer " + canStartMuxer);
+        if (canStartMuxer) {
+            // MediaMuxer.start() is called after addTrack and before writeSampleData
+            mMediaMuxer.start();
+            isMuxerStarted = true;
+        }
+    }
+
+    @Override
+    public synchronized void onSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (!isMuxerStarted || isStopped) {
+            return;
+        }
+        int trackIndex;
+        long pts;
+        if (track == TRACK_VIDEO) {
+            if (!isVideoStarted) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                    return;
+                }
+                isVideoStarted = true;
+                mStartPts = info.presentationTimeUs;
+            }
+            trackIndex = mVideoTrackIndex;
+            pts = info.presentationTimeUs - mStartPts;
+            mVideoDurationUs = pts;
+        } else {
+            // 早于第一个关键帧的音频没有对应的画面，不写
+            if (!isVideoStarted || mAudioTrackIndex < 0 || info.presentationTimeUs < mStartPts) {
+                return;
+            }
+            trackIndex = mAudioTrackIndex;
+            pts = info.presentationTimeUs - mStartPts;
+        }
+        mWriteInfo.set(info.offset, info.size, pts, info.flags);
+        try {
+            mMediaMuxer.writeSampleData(trackIndex, data, mWriteInfo);
+            mWrittenSamples++;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 已写入的视频时长，单位：微秒
+     */
+    public synchronized long getVideoDurationUs() {
+        return mVideoDurationUs;
+    }
+
+    @Override
+    public synchronized void onEncodeStop() {
+        if (isStopped) {
+            return;
+        }
+        isStopped = true;
+        LogUtils.w(TAG, "onEncodeStop " + mSavePath + " samples=" + mWrittenSamples
+                + " duration=" + mVideoDurationUs / 1000 + "ms");
+        if (mMediaMuxer != null) {
+            try {
+                if (isMuxerStarted) {
+                    mMediaMuxer.stop();// 在停止时才会写入视频头信息
+                }
+                mMediaMuxer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mMediaMuxer = null;
+        }
+    }
+
+}
@@ -56,6 +56,7 @@ public class WeEGLHelper {
     private EGL10 mEGL;
     private EGLDisplay mEGLDisplay;
     private EGLContext mEGLContext;
+    private EGLConfig mEGLConfig;
     private EGLSurface mEGLSurface;
 
     public WeEGLHelper(String externalTag) {
@@ -133,7 +134,8 @@ public class WeEGLHelper {
             throw new RuntimeException(exceptionPrefix() + "create EGLContext failed: " + getEglErrorString(mEGL.eglGetError()));
         }
 
-        // 创建 WindowSurface
+        // 创建 WindowSurface，同一个上下文上后续再创建的 WindowSurface 也使用这个配置
+        mEGLConfig = configs[0];
         mEGLSurface = mEGL.eglCreateWindowSurface(mEGLDisplay, configs[0], surface, null);
         if (mEGLSurface == null || mEGLSurface == EGL10.EGL_NO_SURFACE) {
             if (mEGL.eglGetError() == EGL10.EGL_BAD_NATIVE_WINDOW) {
@@ -174,6 +176,73 @@ public class WeEGLHelper {
         return EGL10.EGL_SUCCESS;
     }
 
+    /**
+     * 在同一个上下文上再创建一个 WindowSurface，用于一个渲染线程同时绘制多个输出，
+     * 例如预览窗口和编码器输入 Surface，通过 {@link #makeCurrent} 切换
+     *
+     * @return 创建失败返回 null
+     */
+    public EGLSurface createWindowSurface(Surface surface) {
+        if (mEGL == null || mEGLConfig == null) {
+            throw new IllegalStateException(
+                    exceptionPrefix() + "invoke createWindowSurface() before initEGL!");
+        }
+        EGLSurface eglSurface = mEGL.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, surface, null);
+        if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
+            LogUtils.e(TAG, mExternalTag + "createWindowSurface error:" + getEglErrorString(mEGL.eglGetError()));
+            return null;
+        }
+        return eglSurface;
+    }
+
+    /**
+     * 切换当前绘制的 Surface，上下文不变，所有纹理和着色器程序都可以直接使用
+     *
+     * @param eglSurface 为 null 时切换回 initEGL 创建的主 Surface
+     */
+    public boolean makeCurrent(EGLSurface eglSurface) {
+        if (mEGL == null) {
+            return false;
+        }
+        EGLSurface target = eglSurface != null ? eglSurface : mEGLSurface;
+        if (!mEGL.eglMakeCurrent(mEGLDisplay, target, target, mEGLContext)) {
+            LogUtils.e(TAG, mExternalTag + "eglMakeCurrent error:" + getEglErrorString(mEGL.eglGetError()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 提交 createWindowSurface 创建的 Surface 的当前帧，需要先 makeCurrent 到这个 Surface
+     */
+    public int swapBuffers(EGLSurface eglSurface) {
+        if (mEGL == null) {
+            throw new IllegalStateException(
+                    exceptionPrefix() + "invoke swapBuffers() but EGL instance is null!");
+        }
+        if (!mEGL.eglSwapBuffers(mEGLDisplay, eglSurface)) {
+            int error = mEGL.eglGetError();
+            LogUtils.e(TAG, mExternalTag + "eglSwapBuffers error: " + getEglErrorString(error));
+            return error;
+        }
+        return EGL10.EGL_SUCCESS;
+    }
+
+    /**
+     * 销毁 createWindowSurface 创建的 Surface，当前正绘制这个 Surface 时先切换回主 Surface
+     */
+    public void destroyWindowSurface(EGLSurface eglSurface) {
+        if (mEGL == null || eglSurface == null || eglSurface == mEGLSurface) {
+            return;
+        }
+        if (mEGL.eglGetCurrentSurface(EGL10.EGL_DRAW) == eglSurface) {
+            makeCurrent(null);
+        }
+        if (!mEGL.eglDestroySurface(mEGLDisplay, eglSurface)) {
+            LogUtils.e(TAG, mExternalTag + "eglDestroySurface error:" + getEglErrorString(mEGL.eglGetError()));
+        }
+    }
+
     private static String exceptionPrefix() {
         return TAG + " throwEglException tid=" + android.os.Process.myTid() + " ";
     }
@@ -207,6 +276,7 @@ public class WeEGLHelper {
             mEGLDisplay = null;
         }
 
+        mEGLConfig = null;
         mEGL = null;
     }
 
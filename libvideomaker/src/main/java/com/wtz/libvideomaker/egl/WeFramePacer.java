@@ -0,0 +1,296 @@
+package com.wtz.libvideomaker.egl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 持续渲染模式下的帧节奏控制，不依赖 Android 和 GLES，时钟可以替换
+ * <p>
+ * 每一帧的开始时间对齐到绝对的截止时间 mNextDeadlineNanos，每帧只在上一个截止时间上加一个帧间隔，
+ * 绘制耗时和 sleep 多睡的时间都不会累积到后面的帧上；毫秒取整也只影响单帧，不会让整体帧率偏低。
+ * <p>
+ * 绘制超时时：迟到不超过 1/4 帧间隔的立即开始下一帧，仍按原来的截止时间对齐；
+ * 迟到更多的放弃已经错过的截止时间，从当前时间重新对齐，不会为了追赶进度连续快速绘制多帧。
+ * <p>
+ * 同时统计帧间隔（相邻两帧开始时间之差）和绘制耗时（帧开始到调用 {@link #awaitNextFrame()}）的直方图。
+ * awaitNextFrame 只在渲染线程调用，统计可以在任意线程读取。
+ */
+public class WeFramePacer {
+
+    /**
+     * 纳秒时钟，默认使用 System.nanoTime 和 Thread.sleep
+     */
+    public interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Clock mClock;
+    private volatile int mFps;
+    private volatile long mFrameIntervalNanos;
+
+    // 其他线程修改帧率后由渲染线程在下一帧重新对齐
+    private volatile boolean isRealignRequested;
+
+    // 以下时间只在渲染线程中访问
+    private boolean isAligned;// false 表示还没有对齐，下一帧从当前时间开始对齐
+    private long mNextDeadlineNanos;
+    private boolean hasFrameStart;
+    private long mFrameStartNanos;
+
+    // 统计在 this 锁下读写
+    private long mFrames;
+    private long mLateFrames;
+    private long mMissedDeadlines;
+    private final Histogram mIntervalHistogram = new Histogram();
+    private final Histogram mDrawHistogram = new Histogram();
+
+    public WeFramePacer(int fps) {
+        this(fps, SYSTEM_CLOCK);
+    }
+
+    public WeFramePacer(int fps, Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("WeFramePacer params is illegal: clock is null");
+        }
+        this.mClock = clock;
+        setFps(fps);
+    }
+
+    /**
+     * 任意线程调用，下一帧重新对齐截止时间
+     */
+    public void setFps(int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("WeFramePacer params is illegal: fps=" + fps);
+        }
+        mFps = fps;
+        mFrameIntervalNanos = NANOS_PER_SECOND / fps;
+        isRealignRequested = true;
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    /**
+     * 停止按节奏绘制后调用，例如切换到脏模式；下一帧重新对齐，中间的停顿不计入统计
+     */
+    public void restart() {
+        isAligned = false;
+        hasFrameStart = false;
+    }
+
+    /**
+     * 一帧画完后调用，记录本帧耗时，等待到下一帧的截止时间后返回，返回时即下一帧的开始
+     *
+     * @return false 表示等待被中断，没有等到截止时间
+     */
+    public boolean awaitNextFrame() {
+        long interval = mFrameIntervalNanos;
+        long now = mClock.nanoTime();
+        long drawNanos = hasFrameStart ? now - mFrameStartNanos : -1;
+
+        if (isRealignRequested) {
+            isRealignRequested = false;
+            isAligned = false;
+        }
+        boolean isLate = false;
+        long missed = 0;
+        if (!isAligned) {
+            isAligned = true;
+            mNextDeadlineNanos = now + interval;
+        } else {
+            mNextDeadlineNanos += interval;
+            long lateNanos = now - mNextDeadlineNanos;
+            if (lateNanos > interval / 4) {
+                // 放弃已经错过的截止时间，从现在重新对齐
+                missed = lateNanos / interval + 1;
+                mNextDeadlineNanos = now;
+            } else if (lateNanos > 0) {
+                isLate = true;
+            }
+        }
+
+        boolean isCompleted = true;
+        long sleepNanos = mNextDeadlineNanos - now;
+        try {
+            // sleep 可能提前返回，睡到截止时间为止
+            while (sleepNanos > 0) {
+                mClock.sleepNanos(sleepNanos);
+                now = mClock.nanoTime();
+                sleepNanos = mNextDeadlineNanos - now;
+            }
+        } catch (InterruptedException e) {
+            now = mClock.nanoTime();
+            isCompleted = false;
+        }
+
+        long frameIntervalNanos = hasFrameStart ? now - mFrameStartNanos : -1;
+        hasFrameStart = true;
+        mFrameStartNanos = now;
+        synchronized (this) {
+            mFrames++;
+            if (isLate) {
+                mLateFrames++;
+            }
+            mMissedDeadlines += missed;
+            if (drawNanos >= 0) {
+                mDrawHistogram.record(drawNanos);
+            }
+            if (frameIntervalNanos >= 0) {
+                mIntervalHistogram.record(frameIntervalNanos);
+            }
+        }
+        return isCompleted;
+    }
+
+    /**
+     * 清空统计，不影响节奏
+     */
+    public synchronized void resetStats() {
+        mFrames = 0;
+        mLateFrames = 0;
+        mMissedDeadlines = 0;
+        mIntervalHistogram.clear();
+        mDrawHistogram.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mFps, mFrames, mLateFrames, mMissedDeadlines,
+                mIntervalHistogram.copy(), mDrawHistogram.copy());
+    }
+
+    public static class Stats {
+        public final int fps;
+        public final long frames;// 已开始的帧数
+        public final long lateFrames;// 迟到不超过 1/4 帧间隔、仍按原截止时间对齐的帧数
+        public final long missedDeadlines;// 迟到太多而放弃的截止时间数，即相对目标帧率丢掉的帧数
+        public final Histogram frameIntervals;// 相邻两帧开始时间之差
+        public final Histogram drawTimes;// 每帧从开始到画完的耗时
+
+        Stats(int fps, long frames, long lateFrames, long missedDeadlines,
+              Histogram frameIntervals, Histogram drawTimes) {
+            this.fps = fps;
+            this.frames = frames;
+            this.lateFrames = lateFrames;
+            this.missedDeadlines = missedDeadlines;
+            this.frameIntervals = frameIntervals;
+            this.drawTimes = drawTimes;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameStats{fps=" + fps + ", frames=" + frames + ", lateFrames=" + lateFrames
+                    + ", missedDeadlines=" + missedDeadlines
+                    + ", interval=" + frameIntervals + ", draw=" + drawTimes + "}";
+        }
+    }
+
+    /**
+     * 固定桶宽的耗时直方图，0.25ms 一个桶，最大 200ms，超出的都计入最后一个桶
+     */
+    public static class Histogram {
+
+        public static final long BUCKET_WIDTH_NANOS = 250000;
+        public static final int BUCKET_COUNT = 800;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT + 1];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        Histogram() {
+        }
+
+        void record(long nanos) {
+            int index = (int) Math.min(nanos / BUCKET_WIDTH_NANOS, BUCKET_COUNT);
+            mBuckets[index]++;
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(mBuckets, 0);
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        Histogram copy() {
+            Histogram copy = new Histogram();
+            System.arraycopy(mBuckets, 0, copy.mBuckets, 0, mBuckets.length);
+            copy.mCount = mCount;
+            copy.mTotalNanos = mTotalNanos;
+            copy.mMaxNanos = mMaxNanos;
+            return copy;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public float getMeanMills() {
+            return mCount > 0 ? mTotalNanos / 1000000.0f / mCount : 0;
+        }
+
+        public float getMaxMills() {
+            return mMaxNanos / 1000000.0f;
+        }
+
+        /**
+         * @param percentile 0-100
+         * @return 不少于 percentile% 的样本落在的桶的上限，超出最大桶时为最大值；没有样本时为 0
+         */
+        public float getPercentileMills(float percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min((i + 1) * BUCKET_WIDTH_NANOS, mMaxNanos) / 1000000.0f;
+                }
+            }
+            return getMaxMills();
+        }
+
+        /**
+         * @return 各个桶的样本数的拷贝，第 i 个桶为 [i, i + 1) * BUCKET_WIDTH_NANOS，最后一个桶为超出部分
+         */
+        public long[] getBucketCounts() {
+            return mBuckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "{count=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms}",
+                    mCount, getPercentileMills(50), getPercentileMills(95), getPercentileMills(99),
+                    getMaxMills());
+        }
+    }
+
+}
@@ -0,0 +1,1079 @@
+package com.wtz.libvideomaker.egl;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.text.TextUtils;
+import android.view.Surface;
+
+import com.wtz.libvideomaker.audio.AacFrameAccumulator;
+import com.wtz.libvideomaker.audio.PcmFormatConverter;
+import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.ThreadExitWaiter;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * 音视频编码核心：一个渲染线程、一个视频编码器和一个 AAC 编码器，
+ * 编码输出同时分发给所有已添加的 {@link EncodedSampleSink}，例如 MP4 文件和推流，
+ * 多个接收端共用同一个 MediaCodec 输出 buffer，不按接收端复制数据，也不需要为每个输出各编码一次。
+ */
+public abstract class WeGLMediaEncoder {
+
+    private static final String TAG = "WeGLMediaEncoder";
+    private String mExternalTag;
+
+    private WeakReference<WeGLMediaEncoder> mWeakReference;
+
+    // 编码数据接收端，增删在接口调度线程，持有 mSinkLock 修改列表和格式
+    private final List<EncodedSampleSink> mSinks = new ArrayList<>();
+    private final Object mSinkLock = new Object();
+    private boolean isSinkActive;// 编码开始到停止之间为 true，停止后编码线程即使还没退出也不再分发，只在接口调度线程读写
+    // 编码线程分发数据时用的快照，列表变化时整体替换，写文件等耗时操作不持有 mSinkLock
+    private volatile EncodedSampleSink[] mDispatchSinks = new EncodedSampleSink[0];
+    private MediaFormat mVideoOutputFormat;// 编码过程中添加接收端时补发
+    private MediaFormat mAudioOutputFormat;
+
+    // 渲染线程
+    private WeGLThread mGLThread;
+    // 设置宿主后不再创建自己的渲染线程，编码器的输入 Surface 作为额外输出挂到宿主渲染线程上
+    private WeGLRenderTargetHost mRenderTargetHost;
+    private WeGLRenderTargetHost mActiveRenderTargetHost;
+    private volatile WeGLRenderTarget mRenderTarget;
+    private EGLContext mShareContext;
+    private Surface mSurface;
+    private WeGLRenderer mRenderer;
+    private int mRenderMode = WeGLRenderer.RENDERMODE_CONTINUOUSLY;
+    private int mRenderFps = 0;
+
+    // 视频编码线程
+    private MediaEncodeThread mVideoEncodeThread;
+    private static final int MEDIA_FRAME_RATE = 30;// 一般摄像头预览最大 30 帧每秒
+    private static final int I_FRAME_INTERVAL = 1;// 设置关键帧间隔为 1 秒
+    private int mVideoBitrate;// 小于等于 0 时按分辨率计算默认码率
+    private MediaCodec mVideoEncoder;
+    private MediaFormat mVideoFormat;
+    private MediaCodec.BufferInfo mVideoBufInfo;
+    private MediaCodecDrainer mVideoDrainer;
+    private long mEncodeTimeMills;
+    // 开始编码的时间，与 System.nanoTime 同一个时钟，视频帧默认用这个时钟作为时间戳，音频帧的时间轴也换算到这个时钟
+    private volatile long mStartTimeUs;
+
+    // 音频编码线程
+    private MediaEncodeThread mAudioEncodeThread;
+    private boolean needEncodeAudio;
+    private boolean isAudioEncoderStarted;
+    private int mAudioSampleRate;
+    private int mAudioChannelNums;
+    private int mAudioBitsPerSample;
+    private int mPcmMaxBytesPerCallback;
+    private AacFrameAccumulator mAacAccumulator;
+    // AAC 编码器只接受 16 位 PCM，其它位数的输入先在采集线程转换
+    private PcmFormatConverter mPcmConverter;
+    private byte[] mConvertedPcm;
+    private static final int AUDIO_MAX_QUEUED_FRAMES = 8;// 最多积压的 AAC 帧个数，44.1kHz 时约 186ms
+    protected static final int AUDIO_BIT_RATE = 96000;
+    private MediaCodec mAudioEncoder;
+    private MediaFormat mAudioFormat;
+    private MediaCodec.BufferInfo mAudioBufInfo;
+    private MediaCodecDrainer mAudioDrainer;
+
+    // 停止时等待渲染和编码线程退出
+    private static final String THREAD_NAME_GL = "GLThread";
+    private static final String THREAD_NAME_VIDEO_ENCODE = "VideoEncodeThread";
+    private static final String THREAD_NAME_AUDIO_ENCODE = "AudioEncodeThread";
+    private static final long THREAD_EXIT_TIMEOUT_MILLS = 3000;
+    private ThreadExitWaiter mThreadExitWaiter;
+
+    // 接口调度线程
+    private Handler mWorkHandler;
+    private HandlerThread mWorkThread;
+    private boolean isRecording;
+    private boolean isReleased;
+
+    private static final int HANDLE_START_ENCODE = 0;
+    private static final int HANDLE_STOP_ENCODE = 1;
+    private static final int HANDLE_RELEASE = 2;
+    private static final int HANDLE_ADD_SINK = 3;
+    private static final int HANDLE_REMOVE_SINK = 4;
+    private static final String PARAMS_EGL_CONTEXT = "egl_context";
+    private static final String PARAMS_MIME_TYPE = "mime_type";
+    private static final String PARAMS_VIDEO_WIDTH = "video_width";
+    private static final String PARAMS_VIDEO_HEIGHT = "video_height";
+    private static final String PARAMS_SAMPLE_RATE = "sample_rate";
+    private static final String PARAMS_CHANNEL_NUMS = "channel_nums";
+    private static final String PARAMS_BITS_PER_SAMPLE = "bits_per_sample";
+
+    protected abstract WeGLRenderer getRenderer();
+
+    protected abstract String getExternalLogTag();
+
+    public WeGLMediaEncoder() {
+        mExternalTag = getExternalLogTag() + ": ";
+        mThreadExitWaiter = new ThreadExitWaiter(mExternalTag);
+        mWorkThread = new HandlerThread("WeGLMediaEncoder");
+        mWorkThread.start();
+        mWorkHandler = new Handler(mWorkThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                int msgType = msg.what;
+                LogUtils.d(TAG, "mWorkHandler handleMessage: " + msgType);
+                switch (msgType) {
+                    case HANDLE_START_ENCODE:
+                        handleStartEncode(msg);
+                        break;
+
+                    case HANDLE_STOP_ENCODE:
+                        handleStopEncode();
+                        break;
+
+                    case HANDLE_RELEASE:
+                        handleRelease();
+                        break;
+
+                    case HANDLE_ADD_SINK:
+                        handleAddSink((EncodedSampleSink) msg.obj);
+                        break;
+
+                    case HANDLE_REMOVE_SINK:
+                        handleRemoveSink((EncodedSampleSink) msg.obj);
+                        break;
+                }
+            }
+        };
+        LogUtils.w(TAG, mExternalTag + "WeGLMediaEncoder created");
+    }
+
+    /**
+     * 添加编码数据接收端，与开始、停止编码按调用顺序执行
+     * 编码过程中添加时会立即补发输出格式，并请求一个关键帧，接收端从关键帧开始就能使用
+     */
+    public void addSink(EncodedSampleSink sink) {
+        if (isReleased || sink == null) {
+            LogUtils.e(TAG, mExternalTag + "addSink but released=" + isReleased + " or sink is null");
+            return;
+        }
+        Message msg = mWorkHandler.obtainMessage(HANDLE_ADD_SINK);
+        msg.obj = sink;
+        mWorkHandler.sendMessage(msg);
+    }
+
+    /**
+     * 移除编码数据接收端，编码过程中移除时会回调其 onEncodeStop
+     */
+    public void removeSink(EncodedSampleSink sink) {
+        if (isReleased || sink == null) {
+            return;
+        }
+        Message msg = mWorkHandler.obtainMessage(HANDLE_REMOVE_SINK);
+        msg.obj = sink;
+        mWorkHandler.sendMessage(msg);
+    }
+
+    private void handleAddSink(EncodedSampleSink sink) {
+        if (mSinks.contains(sink)) {
+            return;
+        }
+        boolean needKeyFrame = isSinkActive;
+        if (needKeyFrame) {
+            // 接收端可能在这里创建文件，不持有 mSinkLock，编码线程的分发不受影响
+            sink.onEncodeStart(needEncodeAudio);
+        }
+        synchronized (mSinkLock) {
+            // 先补发格式再加入列表，接收端不会在格式之前收到数据
+            if (isSinkActive) {
+                if (mVideoOutputFormat != null) {
+                    sink.onOutputFormatChanged(EncodedSampleSink.TRACK_VIDEO, mVideoOutputFormat);
+                }
+                if (mAudioOutputFormat != null) {
+                    sink.onOutputFormatChanged(EncodedSampleSink.TRACK_AUDIO, mAudioOutputFormat);
+                }
+            }
+            mSinks.add(sink);
+            updateDispatchSinks();
+        }
+        LogUtils.w(TAG, mExternalTag + "handleAddSink " + sink + " needKeyFrame=" + needKeyFrame);
+        if (needKeyFrame) {
+            requestKeyFrame();
+        }
+    }
+
+    private void handleRemoveSink(EncodedSampleSink sink) {
+        synchronized (mSinkLock) {
+            if (!mSinks.remove(sink)) {
+                return;
+            }
+            updateDispatchSinks();
+        }
+        if (isSinkActive) {
+            sink.onEncodeStop();
+        }
+        LogUtils.w(TAG, mExternalTag + "handleRemoveSink " + sink);
+    }
+
+    /**
+     * 持有 mSinkLock 调用，编码停止时分发快照为空
+     */
+    private void updateDispatchSinks() {
+        mDispatchSinks = isSinkActive ? mSinks.toArray(new EncodedSampleSink[0]) : new EncodedSampleSink[0];
+    }
+
+    private void dispatchOutputFormat(int track, MediaFormat format) {
+        synchronized (mSinkLock) {
+            if (track == EncodedSampleSink.TRACK_VIDEO) {
+                mVideoOutputFormat = format;
+            } else {
+                mAudioOutputFormat = format;
+            }
+            if (!isSinkActive) {
+                return;
+            }
+            for (int i = 0, size = mSinks.size(); i < size; i++) {
+                mSinks.get(i).onOutputFormatChanged(track, format);
+            }
+        }
+    }
+
+    private void dispatchSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        // 音视频编码线程各自分发，不互相等待，也不阻塞接收端的增删
+        EncodedSampleSink[] sinks = mDispatchSinks;
+        for (EncodedSampleSink sink : sinks) {
+            // 每个接收端都从有效数据的开头读，共用同一个 buffer，只重置读写位置
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+            sink.onSampleData(track, data, info);
+        }
+    }
+
+    public void setRenderMode(int renderMode) {
+        if ((WeGLRenderer.RENDERMODE_WHEN_DIRTY != renderMode)
+                && (renderMode != WeGLRenderer.RENDERMODE_CONTINUOUSLY)) {
+            throw new IllegalArgumentException(
+                    exceptionPrefix() + "illegal argument: renderMode " + renderMode);
+        }
+        mRenderMode = renderMode;
+    }
+
+    public void setRenderFps(int fps) {
+        mRenderFps = fps;
+        if (mGLThread != null) {
+            mGLThread.setRenderFps(mRenderFps);
+        }
+        WeGLRenderTarget target = mRenderTarget;
+        if (target != null) {
+            target.setFps(fps);
+        }
+    }
+
+    /**
+     * 在 startEncode 之前调用，下一次开始编码时生效，传 null 恢复使用自己的渲染线程
+     * <p>
+     * 设置后编码器不再单独开渲染线程和共享上下文，而是在宿主（例如预览 View）的渲染线程上，
+     * 每画完一帧预览就切换到编码器的输入 Surface 再画一次，预览和编码逐帧同步。
+     * 此时 startEncode 的 EGLContext 可以为 null，渲染模式跟随宿主，渲染帧率不能高于宿主。
+     */
+    public void setRenderTargetHost(WeGLRenderTargetHost host) {
+        mRenderTargetHost = host;
+    }
+
+    /**
+     * @return 挂到宿主上编码时的额外输出，可以查询绘制和跳过的帧数，其它情况为 null
+     */
+    public WeGLRenderTarget getRenderTarget() {
+        return mRenderTarget;
+    }
+
+    public void requestRender() {
+        WeGLRenderTargetHost host = mActiveRenderTargetHost;
+        if (host != null) {
+            host.requestRender();
+            return;
+        }
+        if (mGLThread == null) {
+            LogUtils.e(TAG, mExternalTag + exceptionPrefix()
+                    + "GLThread is null! You can't call requestRender before onEGLContextCreated.");
+            return;
+        }
+        mGLThread.requestRender();
+    }
+
+    public static int getDefaultVideoBitrate(int videoWidth, int videoHeight) {
+        return videoWidth * videoHeight * 4;
+    }
+
+    /**
+     * 设置视频编码码率，单位：bps，小于等于 0 表示按分辨率计算默认码率
+     * 编码过程中调用会通过 MediaCodec.setParameters 立即生效，不需要重启编码器
+     */
+    public void setVideoBitrate(int bitrate) {
+        mVideoBitrate = bitrate;
+        MediaCodec encoder = mVideoEncoder;
+        if (encoder == null || bitrate <= 0) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            encoder.setParameters(params);
+        } catch (Exception e) {
+            // 编码器可能正好在停止释放
+            LogUtils.e(TAG, mExternalTag + "setVideoBitrate " + bitrate + " failed: " + e);
+        }
+    }
+
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * 请求编码器尽快输出一个关键帧，编码过程中新加入的接收端需要从关键帧开始
+     */
+    public void requestKeyFrame() {
+        MediaCodec encoder = mVideoEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (Exception e) {
+            LogUtils.e(TAG, mExternalTag + "requestKeyFrame failed: " + e);
+        }
+    }
+
+    public void setAudioParams(int sampleRate, int channelNums, int bitsPerSample, int pcmMaxBytesPerCallback) {
+        this.mAudioSampleRate = sampleRate;
+        this.mAudioChannelNums = channelNums;
+        this.mAudioBitsPerSample = bitsPerSample;
+        this.mPcmMaxBytesPerCallback = pcmMaxBytesPerCallback;
+    }
+
+    protected void startEncode(EGLContext context, String mimeType, int videoWidth, int videoHeight) {
+        if (isReleased) {
+            LogUtils.e(TAG, mExternalTag + "startEncode but this encoder is already released!");
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_START_ENCODE);// 以最新设置为准
+
+        Map<String, Object> params = new HashMap<>();
+        params.put(PARAMS_EGL_CONTEXT, context);
+        params.put(PARAMS_MIME_TYPE, mimeType);
+        params.put(PARAMS_VIDEO_WIDTH, videoWidth);
+        params.put(PARAMS_VIDEO_HEIGHT, videoHeight);
+        // 音频参数没有不影响视频录制，也就是无音视频
+        params.put(PARAMS_SAMPLE_RATE, mAudioSampleRate);
+        params.put(PARAMS_CHANNEL_NUMS, mAudioChannelNums);
+        params.put(PARAMS_BITS_PER_SAMPLE, mAudioBitsPerSample);
+
+        Message msg = mWorkHandler.obtainMessage(HANDLE_START_ENCODE);
+        msg.obj = params;
+        mWorkHandler.sendMessage(msg);
+    }
+
+    private void handleStartEncode(Message msg) {
+        if (isRecording) {
+            LogUtils.e(TAG, "Can't start encoder again: it's already recording!");
+            return;
+        }
+        isRecording = true;
+
+        Map<String, Object> params = (Map<String, Object>) msg.obj;
+        EGLContext context = (EGLContext) params.get(PARAMS_EGL_CONTEXT);
+        String mimeType = (String) params.get(PARAMS_MIME_TYPE);
+        int videoWidth = (int) params.get(PARAMS_VIDEO_WIDTH);
+        int videoHeight = (int) params.get(PARAMS_VIDEO_HEIGHT);
+        int sampleRate = (int) params.get(PARAMS_SAMPLE_RATE);
+        int channelNums = (int) params.get(PARAMS_CHANNEL_NUMS);
+        int bitsPerSample = (int) params.get(PARAMS_BITS_PER_SAMPLE);
+        handleStartEncode(context, mimeType, videoWidth, videoHeight,
+                sampleRate, channelNums, bitsPerSample);
+    }
+
+    private void handleStartEncode(EGLContext context, String mimeType,
+                                   int videoWidth, int videoHeight, int sampleRate,
+                                   int channelNums, int bitsPerSample) {
+        LogUtils.w(TAG, mExternalTag + "handleStartEncode mimeType=" + mimeType +
+                ", video size=" + videoWidth + "x" + videoHeight);
+        this.mShareContext = context;
+        WeGLRenderTargetHost host = mRenderTargetHost;
+        if (mShareContext == null && host == null) {
+            throw new IllegalArgumentException("EGLContext can't be null!");
+        }
+
+        if (TextUtils.isEmpty(mimeType) || videoWidth <= 0 || videoHeight <= 0) {
+            throw new IllegalArgumentException("startEncode video arguments is illegal");
+        }
+
+        mRenderer = getRenderer();
+        if (mRenderer == null) {
+            throw new RuntimeException("The render from getRenderer can't be null!");
+        }
+
+        if (!initVideoEncoder(mimeType, videoWidth, videoHeight)) {
+            return;
+        }
+
+        needEncodeAudio = initAudioEncoder();
+        LogUtils.w(TAG, "needEncodeAudio " + needEncodeAudio);
+
+        // 编码线程还没有启动，接收端创建文件等操作不需要持有 mSinkLock
+        for (int i = 0, size = mSinks.size(); i < size; i++) {
+            mSinks.get(i).onEncodeStart(needEncodeAudio);
+        }
+        synchronized (mSinkLock) {
+            mVideoOutputFormat = null;
+            mAudioOutputFormat = null;
+            isSinkActive = true;
+            updateDispatchSinks();
+        }
+        // 音视频时间戳都减去这个时间，从同一个起点开始
+        mStartTimeUs = System.nanoTime() / 1000;
+
+        mWeakReference = new WeakReference<>(this);
+        if (host != null) {
+            mActiveRenderTargetHost = host;
+            mRenderTarget = new WeGLRenderTarget(getExternalLogTag(), mSurface, mRenderer,
+                    videoWidth, videoHeight, mRenderFps);
+            mRenderTarget.setOnAttachFailedListener(new WeGLRenderTarget.OnAttachFailedListener() {
+                @Override
+                public void onAttachFailed(WeGLRenderTarget target) {
+                    LogUtils.e(TAG, mExternalTag + "mRenderTarget attach failed, no video frame will be encoded: "
+                            + target);
+                }
+            });
+            host.addRenderTarget(mRenderTarget);
+        } else {
+            mGLThread = new GLThread(mWeakReference, getExternalLogTag());
+            if (mRenderFps > 0) {
+                mGLThread.setRenderFps(mRenderFps);
+            }
+            mGLThread.onWindowResize(videoWidth, videoHeight);
+            mGLThread.start();
+        }
+
+        mVideoEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_VIDEO, "VideoEncodeThread");
+        mVideoEncodeThread.start();
+
+        if (needEncodeAudio) {
+            mAudioEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_AUDIO, "AudioEncodeThread");
+            mAudioEncodeThread.start();
+        }
+    }
+
+    private boolean initVideoEncoder(String mimeType, int videoWidth, int videoHeight) {
+        mVideoFormat = MediaFormat.createVideoFormat(mimeType, videoWidth, videoHeight);
+        mVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        int bitrate = mVideoBitrate > 0 ? mVideoBitrate : getDefaultVideoBitrate(videoWidth, videoHeight);
+        mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);// 设置码率
+        mVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, MEDIA_FRAME_RATE);
+        mVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        try {
+            mVideoEncoder = MediaCodec.createEncoderByType(mimeType);
+            // Surface 输入，可以使用异步回调取输出
+            mVideoDrainer = new MediaCodecDrainer(mVideoEncoder, true, mExternalTag + "video ");
+            mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mSurface = mVideoEncoder.createInputSurface();
+        } catch (Exception e) {
+            e.printStackTrace();
+            mVideoFormat = null;
+            mVideoEncoder = null;
+            mVideoDrainer = null;
+            return false;
+        }
+
+        mVideoBufInfo = new MediaCodec.BufferInfo();
+        mEncodeTimeMills = 0;
+        return true;
+    }
+
+    private boolean initAudioEncoder() {
+        if (mAudioSampleRate == 0 || mAudioChannelNums == 0
+                || mAudioBitsPerSample == 0 || mPcmMaxBytesPerCallback == 0) {
+            LogUtils.e(TAG, mExternalTag + "initAudioEncoder but audio params is not set!");
+            return false;
+        }
+
+        String mimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
+        mAudioFormat = MediaFormat.createAudioFormat(mimeType, mAudioSampleRate, mAudioChannelNums);
+        mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+        mAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        int maxInputSize = mPcmMaxBytesPerCallback;
+        if (mAudioBitsPerSample != PcmFormatConverter.FORMAT_PCM_16BIT) {
+            mPcmConverter = new PcmFormatConverter(mAudioBitsPerSample, mAudioChannelNums,
+                    PcmFormatConverter.FORMAT_PCM_16BIT, mAudioChannelNums);
+            maxInputSize = mPcmConverter.getDstBytes(mPcmMaxBytesPerCallback);
+        }
+        // 输入按 1024 个采样一帧送给编码器，时间戳按采样个数计算
+        mAacAccumulator = new AacFrameAccumulator(mAudioSampleRate, mAudioChannelNums,
+                PcmFormatConverter.FORMAT_PCM_16BIT, AUDIO_MAX_QUEUED_FRAMES);
+        mAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                Math.max(maxInputSize, mAacAccumulator.getFrameBytes()));
+
+        try {
+            mAudioEncoder = MediaCodec.createEncoderByType(mimeType);
+            // 输入 PCM 要同步 dequeueInputBuffer，只能带超时同步取输出
+            mAudioDrainer = new MediaCodecDrainer(mAudioEncoder, false, mExternalTag + "audio ");
+            mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mAudioFormat = null;
+            mAudioEncoder = null;
+            mAudioDrainer = null;
+            mAacAccumulator = null;
+            mPcmConverter = null;
+            return false;
+        }
+
+        mAudioBufInfo = new MediaCodec.BufferInfo();
+        return true;
+    }
+
+    public void onVideoSizeChanged(int width, int height) {
+        LogUtils.w(TAG, mExternalTag + "onVideoSizeChanged " + width + "x" + height);
+        WeGLRenderTarget target = mRenderTarget;
+        if (target != null) {
+            target.setSize(width, height);
+            mActiveRenderTargetHost.requestRender();
+            return;
+        }
+        if (mGLThread == null) {
+            return;
+        }
+        mGLThread.onWindowResize(width, height);
+        mGLThread.requestRender();
+    }
+
+    /**
+     * @return 最近一次停止编码时，渲染线程和编码线程各自的退出耗时，单位毫秒，超时未退出的为 -1
+     */
+    public Map<String, Long> getLastThreadStopLatencyMills() {
+        return mThreadExitWaiter.getStopLatencyMills();
+    }
+
+    /**
+     * @return 自己的渲染线程的绘制统计，挂到宿主上编码或者未开始编码时为 null，
+     * 挂到宿主上时见 {@link #getRenderTarget()}
+     */
+    public WeGLThread.RenderStats getRenderStats() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getRenderStats() : null;
+    }
+
+    /**
+     * @return 自己的渲染线程持续渲染时的帧间隔统计，挂到宿主上编码或者未开始编码时为 null
+     */
+    public WeFramePacer.Stats getFrameStats() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getFrameStats() : null;
+    }
+
+    /**
+     * @return 视频编码线程取输出的次数统计，用来衡量编码线程空转情况，未开始过编码时为 null
+     */
+    public MediaCodecDrainer.Stats getVideoDrainStats() {
+        MediaCodecDrainer drainer = mVideoDrainer;
+        return drainer != null ? drainer.getStats() : null;
+    }
+
+    public MediaCodecDrainer.Stats getAudioDrainStats() {
+        MediaCodecDrainer drainer = mAudioDrainer;
+        return drainer != null ? drainer.getStats() : null;
+    }
+
+    /**
+     * 获取当前已编码时长，单位：毫秒
+     */
+    public long getEncodeTimeMills() {
+        return mEncodeTimeMills;
+    }
+
+    protected void stopEncode() {
+        if (isReleased) {
+            LogUtils.e(TAG, mExternalTag + "stopEncode but this encoder is already released!");
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_START_ENCODE);
+        Message msg = mWorkHandler.obtainMessage(HANDLE_STOP_ENCODE);
+        mWorkHandler.sendMessage(msg);
+    }
+
+    private void handleStopEncode() {
+        LogUtils.w(TAG, mExternalTag + "handleStopEncode");
+        if (!isRecording) {
+            LogUtils.w(TAG, "No need to stop encoder again: it's already stopped!");
+            return;
+        }
+        isRecording = false;
+
+        mThreadExitWaiter.reset();
+        if (mGLThread != null) {
+            mThreadExitWaiter.expect(THREAD_NAME_GL, mGLThread);
+            mGLThread.requestExit(new WeGLThread.OnExitedListener() {
+                @Override
+                public void onExited(WeGLThread glThread) {
+                    LogUtils.w(TAG, mExternalTag + "mGLThread onExited: " + glThread.hashCode());
+                    mThreadExitWaiter.onExited(THREAD_NAME_GL);
+                }
+            });
+        }
+        if (mRenderTarget != null) {
+            // 宿主销毁编码器输入 Surface 对应的 EGLSurface 之后才能释放编码器
+            mThreadExitWaiter.expect(THREAD_NAME_GL, null);
+            mActiveRenderTargetHost.removeRenderTarget(mRenderTarget,
+                    new WeGLRenderTargetHost.OnRenderTargetRemovedListener() {
+                        @Override
+                        public void onRemoved(WeGLRenderTarget target) {
+                            LogUtils.w(TAG, mExternalTag + "mRenderTarget onRemoved: " + target);
+                            mThreadExitWaiter.onExited(THREAD_NAME_GL);
+                        }
+                    });
+        }
+
+        if (mVideoEncodeThread != null) {
+            mThreadExitWaiter.expect(THREAD_NAME_VIDEO_ENCODE, mVideoEncodeThread);
+            mVideoEncodeThread.requestExit(new OnThreadExitedListener() {
+                @Override
+                public void onExited(Thread thread) {
+                    LogUtils.w(TAG, mExternalTag + "mVideoEncodeThread onExited: " + thread.hashCode());
+                    mThreadExitWaiter.onExited(THREAD_NAME_VIDEO_ENCODE);
+                }
+            });
+        }
+
+        if (mAudioEncodeThread != null) {
+            mThreadExitWaiter.expect(THREAD_NAME_AUDIO_ENCODE, mAudioEncodeThread);
+            mAudioEncodeThread.requestExit(new OnThreadExitedListener() {
+                @Override
+                public void onExited(Thread thread) {
+                    LogUtils.w(TAG, mExternalTag + "mAudioEncodeThread onExited: " + thread.hashCode());
+                    mThreadExitWaiter.onExited(THREAD_NAME_AUDIO_ENCODE);
+                }
+            });
+        }
+
+        if (!mThreadExitWaiter.await(THREAD_EXIT_TIMEOUT_MILLS)) {
+            LogUtils.e(TAG, mExternalTag + "handleStopEncode: wait threads exit timeout, release codec on thread exit");
+        }
+        boolean wasSinkActive = isSinkActive;
+        synchronized (mSinkLock) {
+            isSinkActive = false;
+            updateDispatchSinks();
+            mVideoOutputFormat = null;
+            mAudioOutputFormat = null;
+        }
+        if (wasSinkActive) {
+            // 接收端停止时可能要写文件尾，不持有 mSinkLock
+            for (int i = 0, size = mSinks.size(); i < size; i++) {
+                mSinks.get(i).onEncodeStop();
+            }
+        }
+        releaseOnGLThreadExit();
+        releaseOnMediaEncThreadExit();
+    }
+
+    private void releaseOnGLThreadExit() {
+        LogUtils.w(TAG, mExternalTag + "releaseOnGLThreadExit");
+        mShareContext = null;
+        mRenderer = null;
+        mGLThread = null;
+        mRenderTarget = null;
+        mActiveRenderTargetHost = null;
+        mSurface = null;
+    }
+
+    private void releaseOnMediaEncThreadExit() {
+        LogUtils.w(TAG, mExternalTag + "releaseOnMediaEncThreadExit");
+        // 等待超时时编码线程可能还在使用编码器，这时交给编码线程退出时释放，否则在这里直接释放；
+        // mVideoDrainer、mAudioDrainer 保留用于查询统计，下次开始编码时替换
+        if (mVideoEncodeThread == null
+                || !mVideoEncodeThread.releaseCodecOnExit(mVideoEncoder, mVideoDrainer)) {
+            releaseCodec(mVideoEncoder, mVideoDrainer);
+        }
+        if (mAudioEncodeThread == null
+                || !mAudioEncodeThread.releaseCodecOnExit(mAudioEncoder, mAudioDrainer)) {
+            releaseCodec(mAudioEncoder, mAudioDrainer);
+        }
+        mVideoEncodeThread = null;
+        mAudioEncodeThread = null;
+        mVideoEncoder = null;
+        mAudioEncoder = null;
+        mVideoFormat = null;
+        mVideoBufInfo = null;
+        mAudioFormat = null;
+        mAudioBufInfo = null;
+        if (mAacAccumulator != null) {
+            LogUtils.w(TAG, mExternalTag + "audio frames=" + mAacAccumulator.getFrameCount()
+                    + " dropped=" + mAacAccumulator.getDroppedFrameCount());
+            mAacAccumulator = null;
+        }
+        mPcmConverter = null;
+        mConvertedPcm = null;
+
+        needEncodeAudio = false;
+        isAudioEncoderStarted = false;
+
+        mAudioSampleRate = 0;
+        mAudioChannelNums = 0;
+        mAudioBitsPerSample = 0;
+        mPcmMaxBytesPerCallback = 0;
+        mEncodeTimeMills = 0;
+    }
+
+    protected void release() {
+        if (isReleased) {
+            return;
+        }
+        // 首先置总的标志位，阻止消息队列的正常消费
+        isReleased = true;
+
+        // 然后抛到工作线程做释放工作
+        mWorkHandler.removeCallbacksAndMessages(null);
+        Message msg = mWorkHandler.obtainMessage(HANDLE_RELEASE);
+        mWorkHandler.sendMessage(msg);
+    }
+
+    private void handleRelease() {
+        handleStopEncode();
+
+        mWorkHandler.removeCallbacksAndMessages(null);
+        try {
+            mWorkThread.quit();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void releaseCodec(MediaCodec codec, MediaCodecDrainer drainer) {
+        if (codec != null) {
+            try {
+                codec.stop();
+                codec.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (drainer != null) {
+            drainer.release();
+        }
+    }
+
+    private static String exceptionPrefix() {
+        return TAG + " tid=" + android.os.Process.myTid() + " ";
+    }
+
+    public interface OnThreadExitedListener {
+        void onExited(Thread thread);
+    }
+
+    /**
+     * 要编码的视频内容 GLES 渲染线程
+     */
+    static class GLThread extends WeGLThread {
+
+        private WeakReference<WeGLMediaEncoder> mWeakReference;
+
+        public GLThread(WeakReference<WeGLMediaEncoder> reference, String externalTag) {
+            super(externalTag);
+            this.mWeakReference = reference;
+        }
+
+        @Override
+        protected EGLContext getEGLContext() {
+            WeGLMediaEncoder encoder = mWeakReference.get();
+            if (encoder == null) {
+                LogUtils.e(TAG, mExternalTag + "GLThread getEGLContext failed: WeGLMediaEncoder got from mWeakReference is null");
+                return null;
+            }
+            return encoder.mShareContext;
+        }
+
+        @Override
+        protected Surface getSurface() {
+            WeGLMediaEncoder encoder = mWeakReference.get();
+            if (encoder == null) {
+                LogUtils.e(TAG, mExternalTag + "GLThread getSurface failed: WeGLMediaEncoder got from mWeakReference is null");
+                return null;
+            }
+            return encoder.mSurface;
+        }
+
+        @Override
+        protected int getRenderMode() {
+            WeGLMediaEncoder encoder = mWeakReference.get();
+            if (encoder == null) {
+                LogUtils.e(TAG, mExternalTag + "GLThread getRenderMode failed: WeGLMediaEncoder got from mWeakReference is null");
+                return WeGLRenderer.RENDERMODE_CONTINUOUSLY;
+            }
+            return encoder.mRenderMode;
+        }
+
+        @Override
+        protected WeGLRenderer getRenderer() {
+            WeGLMediaEncoder encoder = mWeakReference.get();
+            if (encoder == null) {
+                LogUtils.e(TAG, mExternalTag + "GLThread getRenderer failed: WeGLMediaEncoder got from mWeakReference is null");
+                return null;
+            }
+            return encoder.mRenderer;
+        }
+
+    }
+
+    /**
+     * 音视频编码线程
+     */
+    static class MediaEncodeThread extends Thread {
+        private String mTag;
+
+        public static final int TYPE_VIDEO = 0;
+        public static final int TYPE_AUDIO = 1;
+        private static final long DEQUEUE_OUTPUT_TIMEOUT_US = 10 * 1000;
+        private int mMediaType;
+
+        private WeakReference<WeGLMediaEncoder> mWeakReference;
+        private MediaCodec mEncoder;
+        private MediaCodec.BufferInfo mBufInfo;
+        private MediaCodecDrainer mDrainer;
+        private AacFrameAccumulator mAccumulator;
+        private AacFrameAccumulator.Frame mPendingFrame;// 没有空闲输入 buffer 时留到下次再送
+
+        private int mOutputBufIndex;
+        private int mTrack;
+
+        private volatile boolean isShouldExit;
+        private volatile boolean isExited;
+
+        // 与 isExited 一样由请求退出的线程和本线程分别读写
+        private volatile OnThreadExitedListener mOnExitedListener;
+
+        // 等待退出超时后由主类交过来，本线程退出时释放，在 this 上同步
+        private MediaCodec mCodecToRelease;
+        private MediaCodecDrainer mDrainerToRelease;
+
+        public MediaEncodeThread(WeakReference<WeGLMediaEncoder> weakReference, int mediaType, String tag) {
+            this.mWeakReference = weakReference;
+            this.mMediaType = mediaType;
+            this.mTag = tag;
+
+            mTrack = mMediaType == TYPE_VIDEO ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO;
+            if (mMediaType == TYPE_VIDEO) {
+                mEncoder = mWeakReference.get().mVideoEncoder;
+                mBufInfo = mWeakReference.get().mVideoBufInfo;
+                mDrainer = mWeakReference.get().mVideoDrainer;
+            } else {
+                mEncoder = mWeakReference.get().mAudioEncoder;
+                mBufInfo = mWeakReference.get().mAudioBufInfo;
+                mDrainer = mWeakReference.get().mAudioDrainer;
+                mAccumulator = mWeakReference.get().mAacAccumulator;
+            }
+        }
+
+        @Override
+        public void run() {
+            setName(mTag + " " + android.os.Process.myTid());
+            LogUtils.w(mTag, "encode thread starting tid=" + android.os.Process.myTid());
+            try {
+                guardedRun();
+            } catch (Throwable e) {
+                LogUtils.e(mTag, "catch exception: " + e.toString());
+                if (isShouldExit) {
+                    LogUtils.e(mTag, "Because isShouldExit = true, so ignore this exception");
+                } else {
+                    throw e;
+                }
+            } finally {
+                release();
+            }
+            LogUtils.w(mTag, "encode thread end tid=" + android.os.Process.myTid());
+        }
+
+        private void guardedRun() {
+            mEncoder.start();
+            if (mMediaType == TYPE_AUDIO) {
+                WeGLMediaEncoder master = mWeakReference.get();
+                if (master == null) {
+                    LogUtils.e(mTag, "WeGLMediaEncoder got from mWeakReference is null, so exit!");
+                    return;
+                }
+                master.isAudioEncoderStarted = true;
+            }
+            while (!isShouldExit) {
+                WeGLMediaEncoder master = mWeakReference.get();
+                if (master == null) {
+                    // 主类已被回收，因为某种原因没有来得及置退出标志，这里就直接退出线程
+                    LogUtils.e(mTag, "WeGLMediaEncoder got from mWeakReference is null, so exit!");
+                    return;
+                }
+
+                if (mEncoder == null || mDrainer == null || mBufInfo == null) {
+                    LogUtils.e(mTag, "mEncoder or mDrainer or mBufInfo got from mWeakReference is null!");
+                    return;
+                }
+
+                try {
+                    if (mAccumulator != null) {
+                        feedAudioFrames();
+                    }
+
+                    // 没有输出时阻塞等待一小段时间，不空转，同时保证能及时检查退出标志
+                    mOutputBufIndex = mDrainer.dequeueOutputBuffer(mBufInfo, DEQUEUE_OUTPUT_TIMEOUT_US);
+                    if (mOutputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        LogUtils.w(mTag, "mOutputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED");
+                        master.dispatchOutputFormat(mTrack, mEncoder.getOutputFormat());
+                    } else {
+                        while (mOutputBufIndex >= 0) {
+                            if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+                                    || mBufInfo.size <= 0) {
+                                // 编解码配置数据已经在输出格式的 csd 中交给接收端了
+                                mEncoder.releaseOutputBuffer(mOutputBufIndex, false);
+                                mOutputBufIndex = mDrainer.dequeueOutputBuffer(mBufInfo, 0);
+                                continue;
+                            }
+                            ByteBuffer outBuffer = mDrainer.getOutputBuffer(mOutputBufIndex);
+
+                            // 音视频减去同一个开始时间，接收端可以直接按时间戳对齐两个轨道
+                            mBufInfo.presentationTimeUs = Math.max(
+                                    mBufInfo.presentationTimeUs - master.mStartTimeUs, 0);
+                            if (mMediaType == TYPE_VIDEO) {
+                                // 只针对一个主 track 写时间就够了
+                                master.mEncodeTimeMills = mBufInfo.presentationTimeUs / 1000;
+                            }
+
+                            // 不拷贝到 byte[]，直接把 MediaCodec 的 direct buffer 依次交给所有接收端，
+                            // 接收端在 releaseOutputBuffer 之前同步使用
+                            master.dispatchSampleData(mTrack, outBuffer, mBufInfo);
+
+                            mEncoder.releaseOutputBuffer(mOutputBufIndex, false);
+                            mOutputBufIndex = mDrainer.dequeueOutputBuffer(mBufInfo, 0);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 把攒好的 AAC 帧送入编码器，编码器没有空闲输入 buffer 时不等待，由 mAccumulator 限制积压
+         */
+        private void feedAudioFrames() {
+            while (true) {
+                if (mPendingFrame == null) {
+                    mPendingFrame = mAccumulator.poll();
+                    if (mPendingFrame == null) {
+                        return;
+                    }
+                }
+                int inputBufferIndex = mEncoder.dequeueInputBuffer(0);
+                if (inputBufferIndex < 0) {
+                    return;
+                }
+                ByteBuffer inputBuffer = mEncoder.getInputBuffers()[inputBufferIndex];
+                inputBuffer.clear();
+                inputBuffer.put(mPendingFrame.data, 0, mPendingFrame.size);
+                mEncoder.queueInputBuffer(inputBufferIndex, 0, mPendingFrame.size, mPendingFrame.ptsUs, 0);
+                mAccumulator.recycle(mPendingFrame);
+                mPendingFrame = null;
+            }
+        }
+
+        public void requestExit(OnThreadExitedListener listener) {
+            this.mOnExitedListener = listener;
+            if (isExited) {
+                // 与 release 同时发生时回调可能调用两次，ThreadExitWaiter 只记录第一次
+                if (listener != null) {
+                    listener.onExited(this);
+                }
+            } else {
+                isShouldExit = true;
+            }
+        }
+
+        /**
+         * 主类等待本线程退出超时后调用，编码器不能在本线程使用过程中释放，改为本线程退出时释放
+         *
+         * @return 本线程已经退出时返回 false，由调用者直接释放
+         */
+        synchronized boolean releaseCodecOnExit(MediaCodec codec, MediaCodecDrainer drainer) {
+            if (isExited) {
+                return false;
+            }
+            LogUtils.e(mTag, "still running, release codec on exit");
+            mCodecToRelease = codec;
+            mDrainerToRelease = drainer;
+            return true;
+        }
+
+        private void release() {
+            // mEncoder 系列在这里只置空，一般由外部主类释放，主类等待超时时才在这里释放
+            if (mDrainer != null) {
+                LogUtils.w(mTag, "drain " + mDrainer.getStats());
+            }
+            mEncoder = null;
+            mBufInfo = null;
+            mDrainer = null;
+            mAccumulator = null;
+            mPendingFrame = null;
+            mWeakReference = null;
+
+            MediaCodec codec;
+            MediaCodecDrainer drainer;
+            synchronized (this) {
+                isExited = true;
+                codec = mCodecToRelease;
+                drainer = mDrainerToRelease;
+                mCodecToRelease = null;
+                mDrainerToRelease = null;
+            }
+            releaseCodec(codec, drainer);
+
+            OnThreadExitedListener listener = mOnExitedListener;
+            if (listener != null) {
+                listener.onExited(this);
+            }
+        }
+
+    }
+
+    public void onAudioPCMDataCall(byte[] pcmData, int size) {
+        AacFrameAccumulator accumulator = mAacAccumulator;
+        if (!needEncodeAudio || !isRecording || accumulator == null || !isAudioEncoderStarted
+                || pcmData == null || size <= 0) {
+            return;
+        }
+        PcmFormatConverter converter = mPcmConverter;
+        if (converter != null) {
+            int convertedSize = converter.getDstBytes(size);
+            byte[] converted = mConvertedPcm;
+            if (converted == null || converted.length < convertedSize) {
+                // 尽可能避免频繁创建和释放内存造成内存抖动
+                converted = new byte[convertedSize];
+                mConvertedPcm = converted;
+            }
+            size = converter.convert(pcmData, 0, size, converted, 0);
+            pcmData = converted;
+        }
+        if (!accumulator.isStarted()) {
+            // 第一块数据的第一个采样大约在收到之前一个数据块时长时采集，之后的时间戳按采样个数推算
+            long captureTimeUs = System.nanoTime() / 1000 - accumulator.bytesToUs(size);
+            accumulator.setBaseTimeUs(Math.max(captureTimeUs, mStartTimeUs));
+        }
+        // 只拷贝到 AAC 帧缓存，由音频编码线程送入编码器，积压满时直接丢弃最旧的一帧，不阻塞采集线程
+        accumulator.write(pcmData, 0, size);
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.wtz.libvideomaker.egl;
+
+import android.view.Surface;
+
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * 挂在另一个 {@link WeGLThread} 上的额外输出，例如编码器的输入 Surface
+ * <p>
+ * 宿主线程每画完自己的一帧，就用 eglMakeCurrent 切换到这个 Surface，调用 mRenderer 再画一次，
+ * 不再为每个输出单独开渲染线程和 EGL 上下文，预览和编码在同一帧内完成，始终保持同步。
+ * 渲染器与宿主共用同一个上下文，可以直接使用宿主创建的纹理。
+ * <p>
+ * 帧率不能高于宿主的帧率，低于宿主时跳过部分宿主帧：与 {@link WeFramePacer} 一样保存绝对的下一帧截止时间，
+ * 每画一帧前进一个完整的帧间隔，选最接近截止时间的宿主帧绘制，长期的平均帧率等于设定值，
+ * 而不是被宿主帧间隔取整到宿主帧率的 1/N。
+ * 除构造时的参数外，字段都只在宿主渲染线程中访问。
+ */
+public class WeGLRenderTarget {
+
+    private final String mName;
+    final Surface mSurface;
+    final WeGLRenderer mRenderer;
+
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile boolean isSizeChanged = true;
+    private volatile long mFrameIntervalNanos;
+    private volatile boolean isRealignRequested;
+
+    private volatile OnAttachFailedListener mOnAttachFailedListener;
+
+    EGLSurface mEGLSurface;
+    int mAttachAttempts;// 连续创建 EGLSurface 失败的次数
+    private boolean isAligned;
+    private long mNextDeadlineNanos;
+    private long mLastHostFrameNanos;
+    private long mHostIntervalNanos;// 宿主帧间隔的滑动平均，每帧更新 1/8
+    long mDrawnFrames;
+    long mSkippedFrames;
+
+    /**
+     * @param fps 小于等于 0 时跟随宿主的每一帧
+     */
+    public WeGLRenderTarget(String name, Surface surface, WeGLRenderer renderer,
+                            int width, int height, int fps) {
+        if (surface == null || renderer == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("WeGLRenderTarget params is illegal: " + surface
+                    + " " + renderer + " " + width + "x" + height);
+        }
+        this.mName = name;
+        this.mSurface = surface;
+        this.mRenderer = renderer;
+        this.mWidth = width;
+        this.mHeight = height;
+        setFps(fps);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 宿主多次重试仍无法为 Surface 创建 EGLSurface 时回调，之后宿主不再绘制这个输出，
+     * 调用者仍需要 removeRenderTarget
+     */
+    public interface OnAttachFailedListener {
+        void onAttachFailed(WeGLRenderTarget target);
+    }
+
+    public void setOnAttachFailedListener(OnAttachFailedListener listener) {
+        mOnAttachFailedListener = listener;
+    }
+
+    OnAttachFailedListener getOnAttachFailedListener() {
+        return mOnAttachFailedListener;
+    }
+
+    /**
+     * 任意线程调用，宿主下一次绘制这个输出时生效
+     */
+    public void setSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        isSizeChanged = true;
+    }
+
+    /**
+     * 任意线程调用，宿主下一帧立即绘制这个输出并重新对齐截止时间
+     *
+     * @param fps 小于等于 0 时跟随宿主的每一帧
+     */
+    public void setFps(int fps) {
+        mFrameIntervalNanos = fps > 0 ? 1000000000L / fps : 0;
+        isRealignRequested = true;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 已绘制的帧数
+     */
+    public long getDrawnFrames() {
+        return mDrawnFrames;
+    }
+
+    /**
+     * @return 因为帧率限制跳过的宿主帧数
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * 宿主每一帧调用一次，判断这一帧是否要绘制这个输出
+     * 下一个宿主帧按宿主帧间隔的平均值估算，这一帧比下一帧更接近截止时间时就绘制，
+     * 单个宿主帧的抖动不会让输出整帧地提前或推迟
+     */
+    boolean isDue(long nowNanos) {
+        if (mLastHostFrameNanos > 0) {
+            long hostInterval = nowNanos - mLastHostFrameNanos;
+            mHostIntervalNanos = mHostIntervalNanos <= 0 ? hostInterval
+                    : mHostIntervalNanos + ((hostInterval - mHostIntervalNanos) >> 3);
+        }
+        mLastHostFrameNanos = nowNanos;
+        if (mFrameIntervalNanos <= 0 || !isAligned || isRealignRequested) {
+            return true;
+        }
+        return mNextDeadlineNanos - nowNanos <= mHostIntervalNanos / 2;
+    }
+
+    /**
+     * 宿主绘制完这个输出后调用，截止时间前进一个完整的帧间隔
+     */
+    void onDrawn(long nowNanos) {
+        long interval = mFrameIntervalNanos;
+        if (!isAligned || isRealignRequested) {
+            isRealignRequested = false;
+            isAligned = true;
+            mNextDeadlineNanos = nowNanos + interval;
+        } else {
+            mNextDeadlineNanos += interval;
+            if (mNextDeadlineNanos <= nowNanos) {
+                // 宿主停顿超过一个帧间隔，放弃已经错过的截止时间，从现在重新对齐，不连续追帧
+                mNextDeadlineNanos = nowNanos + interval;
+            }
+        }
+        mDrawnFrames++;
+    }
+
+    boolean consumeSizeChanged() {
+        boolean changed = isSizeChanged;
+        isSizeChanged = false;
+        return changed;
+    }
+
+    void onDetached() {
+        mEGLSurface = null;
+        mAttachAttempts = 0;
+        isAligned = false;
+        mLastHostFrameNanos = 0;
+        mHostIntervalNanos = 0;
+        isSizeChanged = true;
+    }
+
+    @Override
+    public String toString() {
+        return "WeGLRenderTarget{" + mName + " " + mWidth + "x" + mHeight
+                + " drawn=" + mDrawnFrames + " skipped=" + mSkippedFrames + "}";
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.wtz.libvideomaker.egl;
+
+/**
+ * 可以挂载额外输出的渲染宿主，见 {@link WeGLRenderTarget}
+ */
+public interface WeGLRenderTargetHost {
+
+    /**
+     * 任意线程调用，宿主渲染线程在下一帧开始前创建对应的 EGLSurface 并回调 onEGLContextCreated
+     */
+    void addRenderTarget(WeGLRenderTarget target);
+
+    /**
+     * 任意线程调用，宿主渲染线程销毁对应的 EGLSurface 并回调 onEGLContextToDestroy 之后回调 listener；
+     * 调用者在回调之前不能释放 Surface 的生产者或消费者，例如编码器
+     */
+    void removeRenderTarget(WeGLRenderTarget target, OnRenderTargetRemovedListener listener);
+
+    void requestRender();
+
+    interface OnRenderTargetRemovedListener {
+        void onRemoved(WeGLRenderTarget target);
+    }
+
+}
@@ -9,13 +9,19 @@ import android.view.SurfaceView;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLContext;
 
 /**
  * 尽可能用简单的方式来达到目标
+ * <p>
+ * 作为 {@link WeGLRenderTargetHost}，编码器等输出可以挂到本 View 的渲染线程上绘制，
+ * Surface 重建后会自动重新挂到新的渲染线程上。
  */
-public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHolder.Callback,
+        WeGLRenderTargetHost {
     private static final String TAG = "WeGLSurfaceView";
     private String mExternalTag;
 
@@ -34,6 +40,12 @@ public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHold
     private int mRenderMode = WeGLRenderer.RENDERMODE_CONTINUOUSLY;
     private int mRenderFps = 0;
 
+    private final List<WeGLRenderTarget> mRenderTargets = new ArrayList<>();
+    // 当前挂着 mRenderTargets 的渲染线程。Surface 重建时旧线程可能还没退出，
+    // 它销毁各输出的 EGLSurface 之前，新线程无法为同一个 Surface 创建 EGLSurface，
+    // 所以等旧线程退出后才把输出交给新线程
+    private WeGLThread mTargetsOwnerThread;
+
     public WeGLSurfaceView(Context context) {
         this(context, null);
     }
@@ -101,6 +113,49 @@ public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHold
         return mGLThread != null ? mGLThread.getSharedEGLContext() : null;
     }
 
+    /**
+     * @return 当前渲染线程的绘制统计，渲染线程未创建时为 null
+     */
+    public WeGLThread.RenderStats getRenderStats() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getRenderStats() : null;
+    }
+
+    /**
+     * @return 当前渲染线程持续渲染时的帧间隔统计，渲染线程未创建时为 null
+     */
+    public WeFramePacer.Stats getFrameStats() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getFrameStats() : null;
+    }
+
+    @Override
+    public void addRenderTarget(WeGLRenderTarget target) {
+        synchronized (WeGLSurfaceView.this) {// 与渲染线程的创建和退出同步
+            if (mRenderTargets.contains(target)) {
+                return;
+            }
+            mRenderTargets.add(target);
+            if (mGLThread != null && mGLThread == mTargetsOwnerThread) {
+                mGLThread.addRenderTarget(target);
+            }
+        }
+    }
+
+    @Override
+    public void removeRenderTarget(WeGLRenderTarget target, OnRenderTargetRemovedListener listener) {
+        WeGLThread glThread;
+        synchronized (WeGLSurfaceView.this) {
+            mRenderTargets.remove(target);
+            glThread = mTargetsOwnerThread;
+        }
+        if (glThread != null) {
+            glThread.removeRenderTarget(target, listener);
+        } else if (listener != null) {
+            listener.onRemoved(target);
+        }
+    }
+
     @Override
     protected void onAttachedToWindow() {
         LogUtils.w(TAG, mExternalTag + "onAttachedToWindow");
@@ -130,6 +185,9 @@ public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHold
             if (mRenderFps > 0) {
                 mGLThread.setRenderFps(mRenderFps);
             }
+            if (mTargetsOwnerThread == null) {
+                handOverRenderTargets();
+            }
             mGLThread.start();
             LogUtils.w(TAG, mExternalTag + "mGLThread start: " + mGLThread.hashCode());
         }
@@ -155,6 +213,13 @@ public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHold
                 public void onExited(WeGLThread glThread) {
                     LogUtils.w(TAG, mExternalTag + "mGLThread onExited: " + glThread.hashCode());
                     synchronized (WeGLSurfaceView.this) {// 与初始化创建资源同步
+                        if (glThread == mTargetsOwnerThread) {
+                            // 旧线程已经销毁了各输出的 EGLSurface
+                            mTargetsOwnerThread = null;
+                            if (mGLThread != null && glThread != mGLThread) {
+                                handOverRenderTargets();
+                            }
+                        }
                         if (mGLThread != null && glThread != mGLThread) {
                             // 新的线程已经创建
                             return;
@@ -168,6 +233,16 @@ public abstract class WeGLSurfaceView extends SurfaceView implements SurfaceHold
         }
     }
 
+    /**
+     * 持有 WeGLSurfaceView.this 锁时调用，把所有输出挂到当前渲染线程上
+     */
+    private void handOverRenderTargets() {
+        mTargetsOwnerThread = mGLThread;
+        for (WeGLRenderTarget target : mRenderTargets) {
+            mGLThread.addRenderTarget(target);
+        }
+    }
+
     private void releaseOnGLThreadExit() {
         // 不用把外部导入的资源置空，因为这些资源是可能一次性设置的，如果要回收由外部设置空
 //        mSurface = null;
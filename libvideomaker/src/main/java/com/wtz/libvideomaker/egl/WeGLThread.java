@@ -1,16 +1,24 @@
 package com.wtz.libvideomaker.egl;
 
+import android.opengl.GLES20;
 import android.view.Surface;
 
 import com.wtz.libvideomaker.utils.LogUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
 import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLSurface;
 
 
 /**
  * GLES 渲染线程
+ * <p>
+ * 除了自己的 Surface，还可以挂载多个 {@link WeGLRenderTarget}，每帧画完自己的 Surface 后依次切换过去绘制，
+ * 所有输出共用这一个线程和 EGL 上下文。
  */
 public abstract class WeGLThread extends Thread {
 
@@ -23,24 +31,46 @@ public abstract class WeGLThread extends Thread {
 
     private static final int DEFAULT_FPS = 60;
     private int mFPS;
-    // 在配置 RGBA 32、EGL_DEPTH_SIZE 8、EGL_STENCIL_SIZE 8 情况下：
-    // 在 MI 4LTE Android 4.4.4 上测试 eglSwapBuffers 本身耗时约 0 或 10 ms，其中 10 ms 占比 20%
-    // 在 HUAWEI DUA-AL00 Android 8.1.0 上测试 eglSwapBuffers 本身耗时约 2-5 ms
-    private static final int INSTRUCTIONS_TIME_MILLS = 3;
-    private int mFrameIntervalMills;// 期望 1 秒 mFPS 帧包括指令耗时在内的总间隔
-    private long mNextFrameStartTime;
-    private int mRenderInterval;
+    private long mFrameIntervalNanos;// 期望 1 秒 mFPS 帧包括指令耗时在内的总间隔，用纳秒避免毫秒取整后超过上限
+    // 持续渲染模式下按绝对截止时间对齐每一帧，绘制和 eglSwapBuffers 的耗时已经包含在内，不再估算指令耗时
+    private final WeFramePacer mFramePacer;
+
+    // 脏模式下按请求绘制：每个请求（例如相机的一帧）只画一次，多个请求在一次绘制前到达时合并；
+    // 请求计数在 mRenderLock 下读写，绘制过程中到达的请求不会因为还没进入 wait 而丢失
+    private int mPendingRenderRequests;
+    private long mLastRenderTimeNanos;
+    private long mRenderedFrames;
+    private long mRenderRequests;
+    private long mCoalescedRequests;
+    private long mDuplicateFramesAvoided;
 
     private int mWidth;
     private int mHeight;
 
-    private boolean isShouldExit;
-    private boolean isExited;
+    private volatile boolean isShouldExit;
+    private volatile boolean isExited;
     private boolean isSurfaceChanged;
     private boolean isFirstDraw = true;
 
     private OnExitedListener mOnExitedListener;
 
+    // 额外输出，mRenderTargets 只在渲染线程访问，增删先放到待处理列表，下一帧开始前处理
+    private final List<WeGLRenderTarget> mRenderTargets = new ArrayList<>();
+    private final Object mTargetLock = new Object();
+    private final List<WeGLRenderTarget> mPendingAddTargets = new ArrayList<>();
+    private final List<PendingRemoval> mPendingRemovals = new ArrayList<>();
+    private boolean isTargetsClosed;// 渲染线程已退出，之后的移除请求立即回调
+    // 增删输出不是绘制请求：脏模式下只唤醒渲染线程处理，不画帧，也不计入绘制请求统计，在 mRenderLock 下读写
+    private boolean isTargetsChangePending;
+    // 创建 EGLSurface 失败的输出，例如旧渲染线程还没有销毁它的 EGLSurface，之后每帧开始前重试，只在渲染线程访问
+    private static final int MAX_ATTACH_ATTEMPTS = 10;
+    private final List<WeGLRenderTarget> mRetryAttachTargets = new ArrayList<>();
+
+    private static class PendingRemoval {
+        WeGLRenderTarget target;
+        WeGLRenderTargetHost.OnRenderTargetRemovedListener listener;
+    }
+
     protected abstract EGLContext getEGLContext();
 
     protected abstract Surface getSurface();
@@ -53,13 +83,19 @@ public abstract class WeGLThread extends Thread {
         this.mExternalTag = externalTag + ": ";
         mRenderLock = new Object();
         mFPS = DEFAULT_FPS;
-        mFrameIntervalMills = (int) (1000.0f / mFPS + 0.5f);
+        mFrameIntervalNanos = 1000000000L / mFPS;
+        mFramePacer = new WeFramePacer(mFPS);
     }
 
     public void setRenderFps(int fps) {
         LogUtils.w(TAG, mExternalTag + "setRenderFps:" + fps);
+        if (fps <= 0) {
+            LogUtils.e(TAG, mExternalTag + "setRenderFps ignore illegal fps:" + fps);
+            return;
+        }
         this.mFPS = fps;
-        mFrameIntervalMills = (int) (1000.0f / mFPS + 0.5f);
+        mFrameIntervalNanos = 1000000000L / mFPS;
+        mFramePacer.setFps(fps);
     }
 
     public void onWindowResize(int w, int h) {
@@ -93,15 +129,20 @@ public abstract class WeGLThread extends Thread {
         }
 
         while (!isShouldExit) {
+            applyPendingTargets();
             if (isSurfaceChanged) {
                 isSurfaceChanged = false;
                 onSurfaceChanged();
                 onDraw();// 解决脏模式下当surface大小改变时不多画一次就不能正确绘制的问题
                 swap();
+                drawRenderTargets();
+                mRenderedFrames++;
                 // 这里不需要等待，可以走到下一个循环直接画第二次
             } else {
                 onDraw();
                 swap();
+                drawRenderTargets();
+                mRenderedFrames++;
                 applyRenderMode();
             }
         }
@@ -176,35 +217,262 @@ public abstract class WeGLThread extends Thread {
 
     private void applyRenderMode() {
         if (getRenderMode() == WeGLRenderer.RENDERMODE_WHEN_DIRTY) {
+            // 等待请求的时间不是帧间隔，切回持续模式时重新对齐
+            mFramePacer.restart();
+            waitRenderRequest();
+        } else {
+            mFramePacer.awaitNextFrame();
+        }
+    }
+
+    /**
+     * 脏模式下等待下一个绘制请求，两次绘制至少间隔一个完整的帧间隔，帧率不超过 setRenderFps 设置的值，
+     * 限速等待期间到达的请求与当前请求合并为一次绘制
+     */
+    private void waitRenderRequest() {
+        int requests;
+        while (true) {
+            boolean hasRenderRequest;
             synchronized (mRenderLock) {
-                try {
-                    mRenderLock.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                while (mPendingRenderRequests == 0 && !isTargetsChangePending && !isShouldExit) {
+                    try {
+                        mRenderLock.wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
                 }
+                hasRenderRequest = mPendingRenderRequests > 0;
+                isTargetsChangePending = false;
             }
-        } else {
-            if (mNextFrameStartTime == 0) {
-                mRenderInterval = mFrameIntervalMills - INSTRUCTIONS_TIME_MILLS;
-            } else {
-                mRenderInterval = mFrameIntervalMills - (int) (System.currentTimeMillis() - mNextFrameStartTime);
+            if (isShouldExit) {
+                return;
             }
-            if (mRenderInterval <= 0) {
-                // LogUtils.e(TAG, mExternalTag + "Render too slow!!! " + mRenderInterval + "ms");
-            } else {
+            if (hasRenderRequest) {
+                break;
+            }
+            // 只有输出的增删，及时处理后继续等待，新挂载的输出在下一次绘制请求时画出
+            applyPendingTargets();
+        }
+
+        long now = System.nanoTime();
+        if (mLastRenderTimeNanos > 0) {
+            long waitNanos = mFrameIntervalNanos - (now - mLastRenderTimeNanos);
+            if (waitNanos > 0) {
                 try {
-                    Thread.sleep(mRenderInterval);
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                now = System.nanoTime();
+            }
+            // 持续渲染模式下，两次请求之间会按帧率把同一帧重复绘制这么多次
+            long continuousFrames = (now - mLastRenderTimeNanos) / mFrameIntervalNanos;
+            if (continuousFrames > 1) {
+                mDuplicateFramesAvoided += continuousFrames - 1;
             }
-            mNextFrameStartTime = System.currentTimeMillis();
         }
+        mLastRenderTimeNanos = now;
+
+        synchronized (mRenderLock) {
+            requests = mPendingRenderRequests;
+            mPendingRenderRequests = 0;
+        }
+        mRenderRequests += requests;
+        mCoalescedRequests += requests - 1;
     }
 
     public void requestRender() {
-        synchronized (mRenderLock) {
-            mRenderLock.notifyAll();
+        Object renderLock = mRenderLock;
+        if (renderLock == null) {
+            return;
+        }
+        synchronized (renderLock) {
+            mPendingRenderRequests++;
+            renderLock.notifyAll();
+        }
+    }
+
+    public static class RenderStats {
+        public final long renderedFrames;// 已绘制的帧数
+        public final long renderRequests;// 脏模式下收到的绘制请求数
+        public final long coalescedRequests;// 脏模式下因为合并而没有单独绘制的请求数
+        public final long duplicateFramesAvoided;// 与按帧率持续渲染相比少画的重复帧数
+
+        RenderStats(long renderedFrames, long renderRequests, long coalescedRequests,
+                    long duplicateFramesAvoided) {
+            this.renderedFrames = renderedFrames;
+            this.renderRequests = renderRequests;
+            this.coalescedRequests = coalescedRequests;
+            this.duplicateFramesAvoided = duplicateFramesAvoided;
+        }
+
+        @Override
+        public String toString() {
+            return "RenderStats{renderedFrames=" + renderedFrames + ", renderRequests=" + renderRequests
+                    + ", coalescedRequests=" + coalescedRequests
+                    + ", duplicateFramesAvoided=" + duplicateFramesAvoided + "}";
+        }
+    }
+
+    public RenderStats getRenderStats() {
+        return new RenderStats(mRenderedFrames, mRenderRequests, mCoalescedRequests, mDuplicateFramesAvoided);
+    }
+
+    /**
+     * 任意线程调用
+     *
+     * @return 持续渲染模式下的帧间隔和绘制耗时直方图，以及错过的截止时间数
+     */
+    public WeFramePacer.Stats getFrameStats() {
+        return mFramePacer.getStats();
+    }
+
+    /**
+     * 任意线程调用，见 {@link WeGLRenderTargetHost#addRenderTarget}
+     */
+    public void addRenderTarget(WeGLRenderTarget target) {
+        synchronized (mTargetLock) {
+            if (isTargetsClosed) {
+                LogUtils.e(TAG, mExternalTag + "addRenderTarget but render thread is exited: " + target);
+                return;
+            }
+            mPendingAddTargets.add(target);
+        }
+        wakeForTargetsChange();
+    }
+
+    /**
+     * 任意线程调用，见 {@link WeGLRenderTargetHost#removeRenderTarget}
+     */
+    public void removeRenderTarget(WeGLRenderTarget target,
+                                   WeGLRenderTargetHost.OnRenderTargetRemovedListener listener) {
+        synchronized (mTargetLock) {
+            if (!isTargetsClosed) {
+                PendingRemoval removal = new PendingRemoval();
+                removal.target = target;
+                removal.listener = listener;
+                mPendingRemovals.add(removal);
+                target = null;
+            }
+        }
+        if (target == null) {
+            // 脏模式下唤醒渲染线程及时处理，否则调用者要等到下一次 requestRender
+            wakeForTargetsChange();
+        } else if (listener != null) {
+            listener.onRemoved(target);
+        }
+    }
+
+    private void wakeForTargetsChange() {
+        Object renderLock = mRenderLock;
+        if (renderLock == null) {
+            return;
+        }
+        synchronized (renderLock) {
+            isTargetsChangePending = true;
+            renderLock.notifyAll();
+        }
+    }
+
+    private void applyPendingTargets() {
+        List<PendingRemoval> removals = null;
+        synchronized (mTargetLock) {
+            for (int i = 0; i < mPendingAddTargets.size(); i++) {
+                attachRenderTarget(mPendingAddTargets.get(i));
+            }
+            mPendingAddTargets.clear();
+            if (!mPendingRemovals.isEmpty()) {
+                removals = new ArrayList<>(mPendingRemovals);
+                mPendingRemovals.clear();
+            }
+        }
+        if (removals != null) {
+            for (PendingRemoval removal : removals) {
+                mRetryAttachTargets.remove(removal.target);
+                detachRenderTarget(removal.target);
+                if (removal.listener != null) {
+                    removal.listener.onRemoved(removal.target);
+                }
+            }
+        }
+        for (int i = mRetryAttachTargets.size() - 1; i >= 0; i--) {
+            attachRenderTarget(mRetryAttachTargets.remove(i));
+        }
+    }
+
+    private void attachRenderTarget(WeGLRenderTarget target) {
+        if (mRenderTargets.contains(target) || mRetryAttachTargets.contains(target)) {
+            return;
+        }
+        EGLSurface eglSurface = mEglHelper.createWindowSurface(target.mSurface);
+        if (eglSurface == null) {
+            target.mAttachAttempts++;
+            LogUtils.e(TAG, mExternalTag + "attachRenderTarget createWindowSurface failed "
+                    + target.mAttachAttempts + " times: " + target);
+            if (target.mAttachAttempts < MAX_ATTACH_ATTEMPTS) {
+                mRetryAttachTargets.add(target);
+            } else {
+                target.mAttachAttempts = 0;
+                WeGLRenderTarget.OnAttachFailedListener listener = target.getOnAttachFailedListener();
+                if (listener != null) {
+                    listener.onAttachFailed(target);
+                }
+            }
+            return;
+        }
+        target.mAttachAttempts = 0;
+        target.mEGLSurface = eglSurface;
+        target.mRenderer.onEGLContextCreated();
+        mRenderTargets.add(target);
+        LogUtils.w(TAG, mExternalTag + "attachRenderTarget " + target);
+    }
+
+    private void detachRenderTarget(WeGLRenderTarget target) {
+        // 添加时创建 EGLSurface 失败的不在列表中
+        if (!mRenderTargets.remove(target)) {
+            return;
+        }
+        target.mRenderer.onEGLContextToDestroy();
+        mEglHelper.destroyWindowSurface(target.mEGLSurface);
+        target.onDetached();
+        LogUtils.w(TAG, mExternalTag + "detachRenderTarget " + target);
+    }
+
+    /**
+     * 画完主 Surface 后依次切换到各个输出绘制，全部画完再切换回主 Surface
+     * 上下文的视口是所有 Surface 共用的，切换后要按各自的大小重新设置
+     */
+    private void drawRenderTargets() {
+        if (mRenderTargets.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean isSwitched = false;
+        for (int i = 0, size = mRenderTargets.size(); i < size; i++) {
+            WeGLRenderTarget target = mRenderTargets.get(i);
+            if (!target.isDue(now)) {
+                target.mSkippedFrames++;
+                continue;
+            }
+            if (!mEglHelper.makeCurrent(target.mEGLSurface)) {
+                continue;
+            }
+            isSwitched = true;
+            if (target.consumeSizeChanged()) {
+                target.mRenderer.onSurfaceChanged(target.getWidth(), target.getHeight());
+            } else {
+                GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+            }
+            target.mRenderer.onDrawFrame();
+            int ret = mEglHelper.swapBuffers(target.mEGLSurface);
+            if (ret != EGL10.EGL_SUCCESS) {
+                LogUtils.e(TAG, mExternalTag + "swap " + target.getName() + " error:" + ret);
+            }
+            target.onDrawn(now);
+        }
+        if (isSwitched) {
+            mEglHelper.makeCurrent(null);
+            GLES20.glViewport(0, 0, mWidth, mHeight);
         }
     }
 
@@ -225,6 +493,28 @@ public abstract class WeGLThread extends Thread {
     }
 
     private void release() {
+        mRetryAttachTargets.clear();
+        if (mEglHelper != null) {
+            // 在主上下文销毁之前释放额外输出，宿主需要时在新线程上重新添加
+            for (int i = mRenderTargets.size() - 1; i >= 0; i--) {
+                detachRenderTarget(mRenderTargets.get(i));
+            }
+        }
+        mRenderTargets.clear();
+        // EGLSurface 都销毁之后才关闭，之前到达的移除请求都要等到这里才回调
+        List<PendingRemoval> removals;
+        synchronized (mTargetLock) {
+            isTargetsClosed = true;
+            removals = new ArrayList<>(mPendingRemovals);
+            mPendingRemovals.clear();
+            mPendingAddTargets.clear();
+        }
+        for (PendingRemoval removal : removals) {
+            if (removal.listener != null) {
+                removal.listener.onRemoved(removal.target);
+            }
+        }
+
         WeGLRenderer renderer = getRenderer();
         if (renderer != null) {
             renderer.onEGLContextToDestroy();
@@ -235,6 +525,11 @@ public abstract class WeGLThread extends Thread {
             mEglHelper = null;
         }
 
+        LogUtils.w(TAG, mExternalTag + "release " + getRenderStats());
+        WeFramePacer.Stats frameStats = mFramePacer.getStats();
+        if (frameStats.frames > 0) {
+            LogUtils.w(TAG, mExternalTag + "release " + frameStats);
+        }
         mRenderLock = null;
 
         isExited = true;
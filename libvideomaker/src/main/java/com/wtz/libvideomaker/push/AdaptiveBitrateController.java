@@ -0,0 +1,205 @@
+package com.wtz.libvideomaker.push;
+
+/**
+ * 推流自适应码率控制器，按 AIMD（加性增、乘性减）调整视频编码码率
+ * <p>
+ * 输入是推流队列的周期采样：排队延迟、累计发送字节数、累计丢帧数，输出是下一步的目标视频码率：
+ * 1. 拥塞：排队延迟超过上限、或者有界队列开始丢帧时，码率乘以降低系数，
+ * 若能估算出上行吞吐量，则同时不超过吞吐量扣除预留码率后的一定比例；
+ * 2. 畅通：排队延迟低于下限并连续保持若干个采样后，码率加上固定步长；
+ * 3. 其它情况保持不变，降低码率后也要等若干个采样再判断，给队列留出消化积压的时间；
+ * 延迟虽然超过上限但已在下降，且码率不超过可用带宽时，说明积压正在消化，也不再继续降低。
+ * <p>
+ * 本类不依赖 Android 和系统时钟，采样时间由调用者传入，相同的输入序列总是得到相同的输出。
+ * 非线程安全，需要在同一个线程中调用。
+ */
+public class AdaptiveBitrateController {
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private int mBitrate;
+
+    private int mCongestedLatencyMills = 1000;
+    private int mClearLatencyMills = 200;
+    private float mDecreaseFactor = 0.75f;
+    private int mIncreaseStep;
+    private int mIncreaseHoldSamples = 3;
+    private int mDecreaseHoldSamples = 2;
+    private int mReservedBitrate;
+    // 降码率时不超过实测吞吐量的比例，留一些余量让队列积压能发送出去
+    private float mThroughputUsage = 0.9f;
+
+    private boolean hasLastSample;
+    private long mLastTimeMills;
+    private long mLastSentBytes;
+    private long mLastDroppedFrames;
+    private int mLastLatencyMills;
+    private int mClearSamples;
+    private int mHoldSamples;
+    private int mThroughputBps;
+
+    /**
+     * @param minBitrate     最低码率，单位：bps
+     * @param maxBitrate     最高码率，单位：bps
+     * @param initialBitrate 初始码率，会被限制在 [minBitrate, maxBitrate] 范围内
+     */
+    public AdaptiveBitrateController(int minBitrate, int maxBitrate, int initialBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("AdaptiveBitrateController illegal bitrate range: "
+                    + minBitrate + "~" + maxBitrate);
+        }
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mBitrate = clamp(initialBitrate);
+        mIncreaseStep = Math.max(1, (maxBitrate - minBitrate) / 20);
+    }
+
+    /**
+     * 设置排队延迟的判断阈值
+     *
+     * @param congestedLatencyMills 超过此延迟视为拥塞
+     * @param clearLatencyMills     低于此延迟视为畅通
+     */
+    public void setLatencyThresholds(int congestedLatencyMills, int clearLatencyMills) {
+        if (clearLatencyMills < 0 || congestedLatencyMills <= clearLatencyMills) {
+            throw new IllegalArgumentException("AdaptiveBitrateController illegal latency thresholds: "
+                    + congestedLatencyMills + "," + clearLatencyMills);
+        }
+        mCongestedLatencyMills = congestedLatencyMills;
+        mClearLatencyMills = clearLatencyMills;
+    }
+
+    /**
+     * @param factor 拥塞时码率乘以此系数，取值 (0, 1)
+     */
+    public void setDecreaseFactor(float factor) {
+        if (factor <= 0 || factor >= 1) {
+            throw new IllegalArgumentException("AdaptiveBitrateController illegal decrease factor: " + factor);
+        }
+        mDecreaseFactor = factor;
+    }
+
+    /**
+     * @param step 畅通时每次增加的码率，单位：bps，默认是码率范围的 1/20
+     */
+    public void setIncreaseStep(int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("AdaptiveBitrateController illegal increase step: " + step);
+        }
+        mIncreaseStep = step;
+    }
+
+    /**
+     * @param increaseHoldSamples 连续畅通多少个采样后才增加码率
+     * @param decreaseHoldSamples 降低码率后至少间隔多少个采样才能再次调整
+     */
+    public void setHoldSamples(int increaseHoldSamples, int decreaseHoldSamples) {
+        if (increaseHoldSamples <= 0 || decreaseHoldSamples < 0) {
+            throw new IllegalArgumentException("AdaptiveBitrateController illegal hold samples: "
+                    + increaseHoldSamples + "," + decreaseHoldSamples);
+        }
+        mIncreaseHoldSamples = increaseHoldSamples;
+        mDecreaseHoldSamples = decreaseHoldSamples;
+    }
+
+    /**
+     * 设置发送数据中非视频部分的码率（如音频），估算视频可用带宽时从吞吐量中扣除
+     */
+    public void setReservedBitrate(int bitrate) {
+        mReservedBitrate = Math.max(0, bitrate);
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * @return 最近一次估算的上行吞吐量，单位：bps，还没有估算时为 0
+     */
+    public int getThroughputBps() {
+        return mThroughputBps;
+    }
+
+    /**
+     * 重新开始推流时调用，累计值都从 0 开始，码率保持当前值
+     */
+    public void reset() {
+        hasLastSample = false;
+        mClearSamples = 0;
+        mHoldSamples = 0;
+        mThroughputBps = 0;
+    }
+
+    /**
+     * 输入一次队列采样，计算新的目标码率
+     *
+     * @param timeMills     采样时间，单调递增即可
+     * @param latencyMills  推流队列排队延迟
+     * @param sentBytes     累计发送成功的字节数
+     * @param droppedFrames 累计丢弃的视频帧数
+     * @return 新的目标码率，单位：bps，与 {@link #getBitrate()} 相同
+     */
+    public int onSample(long timeMills, int latencyMills, long sentBytes, long droppedFrames) {
+        boolean newDropped = false;
+        boolean isDraining = false;
+        if (hasLastSample) {
+            long duration = timeMills - mLastTimeMills;
+            long sent = sentBytes - mLastSentBytes;
+            if (duration > 0 && sent >= 0) {
+                mThroughputBps = (int) Math.min(Integer.MAX_VALUE, sent * 8 * 1000 / duration);
+            }
+            newDropped = droppedFrames > mLastDroppedFrames;
+            isDraining = latencyMills < mLastLatencyMills
+                    && mThroughputBps > 0 && mBitrate <= getAvailableBitrate();
+        }
+        hasLastSample = true;
+        mLastTimeMills = timeMills;
+        mLastSentBytes = sentBytes;
+        mLastDroppedFrames = droppedFrames;
+        mLastLatencyMills = latencyMills;
+
+        if (mHoldSamples > 0) {
+            mHoldSamples--;
+            mClearSamples = 0;
+            return mBitrate;
+        }
+
+        if (newDropped || (latencyMills > mCongestedLatencyMills && !isDraining)) {
+            mClearSamples = 0;
+            decrease();
+        } else if (latencyMills < mClearLatencyMills) {
+            mClearSamples++;
+            if (mClearSamples >= mIncreaseHoldSamples) {
+                mClearSamples = 0;
+                mBitrate = clamp((long) mBitrate + mIncreaseStep);
+            }
+        } else {
+            mClearSamples = 0;
+        }
+        return mBitrate;
+    }
+
+    private void decrease() {
+        long target = (long) (mBitrate * mDecreaseFactor);
+        if (mThroughputBps > 0) {
+            target = Math.min(target, getAvailableBitrate());
+        }
+        mBitrate = clamp(target);
+        mHoldSamples = mDecreaseHoldSamples;
+    }
+
+    private long getAvailableBitrate() {
+        return (long) ((mThroughputBps - mReservedBitrate) * mThroughputUsage);
+    }
+
+    private int clamp(long bitrate) {
+        if (bitrate < mMinBitrate) {
+            return mMinBitrate;
+        }
+        if (bitrate > mMaxBitrate) {
+            return mMaxBitrate;
+        }
+        return (int) bitrate;
+    }
+
+}
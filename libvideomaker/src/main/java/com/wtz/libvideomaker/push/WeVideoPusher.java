@@ -5,9 +5,11 @@ import android.media.MediaFormat;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import com.wtz.libpushflow.WePushFlow;
+import com.wtz.libvideomaker.egl.Mp4MuxerSink;
 import com.wtz.libvideomaker.egl.WeGLRenderer;
 import com.wtz.libvideomaker.egl.WeGLVideoPushEncoder;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
@@ -15,6 +17,7 @@ import com.wtz.libvideomaker.utils.ExponentialWaitStrategy;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
@@ -22,12 +25,13 @@ import java.util.concurrent.TimeUnit;
 import javax.microedition.khronos.egl.EGLContext;
 
 public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
-        WePushFlow.PushStateListener, WeGLVideoPushEncoder.OnEncodeDataListener {
+        WePushFlow.PushStateListener, WePushFlow.PushQueueStatsListener,
+        WeGLVideoPushEncoder.OnEncodeDataListener {
     private static final String TAG = WeVideoPusher.class.getSimpleName();
 
     private boolean isUserPushing;
     private boolean isReleased;
-    private boolean isPushStarted;
+    private volatile boolean isPushStarted;
 
     private Context mContext;
     private EGLContext mSharedEGLContext;
@@ -40,6 +44,13 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
     private WePushFlow mWePushFlow;
     private byte[] sps;
     private byte[] pps;
+    private volatile boolean isAudioConfigPushed;
+    private Mp4MuxerSink mMp4Sink;
+
+    // 自适应码率，最低码率大于 0 时开启
+    private int mMinAdaptiveBitrate;
+    private int mMaxAdaptiveBitrate;
+    private AdaptiveBitrateController mBitrateController;
 
     private ExponentialWaitStrategy mWaitStrategy;
     private static final int WAIT_RANDOM_BOUND_SECONDS = 10;// 在等待间隔基础上加随机秒值的边界大小
@@ -87,6 +98,7 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
 
         mWePushFlow = new WePushFlow();
         mWePushFlow.setPushStateListener(this);
+        mWePushFlow.setPushQueueStatsListener(this);
     }
 
     public void setExternalTextureId(int id) {
@@ -111,6 +123,17 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         mWePushFlow.setPushUrl(url);
     }
 
+    /**
+     * 添加备用推流地址，见 {@link WePushFlow#addBackupPushUrl(String)}
+     */
+    public void addBackupPushUrl(String url) {
+        if (isReleased) {
+            LogUtils.e(TAG, "addBackupPushUrl but it's already released! Please new one instance.");
+            return;
+        }
+        mWePushFlow.addBackupPushUrl(url);
+    }
+
     public void setConnectTimeout(int seconds) {
         if (isReleased) {
             LogUtils.e(TAG, "setConnectTimeout but it's already released! Please new one instance.");
@@ -135,6 +158,75 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         mWePushFlow.setAudioChannels(audioChannels);
     }
 
+    /**
+     * 设置推流队列限制，见 {@link WePushFlow#setQueueLimits(int, int)}
+     */
+    public void setQueueLimits(int maxBytes, int maxDurationMills) {
+        if (isReleased) {
+            LogUtils.e(TAG, "setQueueLimits but it's already released! Please new one instance.");
+            return;
+        }
+        mWePushFlow.setQueueLimits(maxBytes, maxDurationMills);
+    }
+
+    /**
+     * 把推流内容同时录制为本地 FLV 文件，见 {@link WePushFlow#startRecord(String)}
+     */
+    public boolean startRecord(String path) {
+        if (isReleased) {
+            LogUtils.e(TAG, "startRecord but it's already released! Please new one instance.");
+            return false;
+        }
+        return mWePushFlow.startRecord(path);
+    }
+
+    public void stopRecord() {
+        if (isReleased) {
+            LogUtils.e(TAG, "stopRecord but it's already released! Please new one instance.");
+            return;
+        }
+        mWePushFlow.stopRecord();
+    }
+
+    /**
+     * 把推流的编码输出同时封装为本地 MP4 文件，与推流共用同一个编码器，不会增加编码负担
+     * 推流断开重连会重新开始编码，此时 MP4 文件随之结束，需要时重新调用
+     */
+    public void startRecordMp4(String path) {
+        if (isReleased) {
+            LogUtils.e(TAG, "startRecordMp4 but it's already released! Please new one instance.");
+            return;
+        }
+        if (mMp4Sink != null) {
+            removeSink(mMp4Sink);
+        }
+        mMp4Sink = new Mp4MuxerSink(path);
+        addSink(mMp4Sink);
+    }
+
+    public void stopRecordMp4() {
+        if (mMp4Sink != null) {
+            removeSink(mMp4Sink);
+            mMp4Sink = null;
+        }
+    }
+
+    /**
+     * 开启自适应码率：根据推流队列的积压情况和上行吞吐量，在 [minBitrate, maxBitrate] 范围内动态调整视频码率
+     * 需要在 startPush 之前调用，minBitrate 小于等于 0 表示关闭
+     *
+     * @param minBitrate 最低视频码率，单位：bps
+     * @param maxBitrate 最高视频码率，单位：bps
+     */
+    public void setAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        if (isReleased) {
+            LogUtils.e(TAG, "setAdaptiveBitrate but it's already released! Please new one instance.");
+            return;
+        }
+        mMinAdaptiveBitrate = minBitrate;
+        mMaxAdaptiveBitrate = maxBitrate;
+    }
+
     public void startPush(EGLContext context, int videoWidth, int videoHeight) {
         if (isReleased) {
             LogUtils.e(TAG, "startPush but it's already released! Please new one instance.");
@@ -145,6 +237,15 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         mVideoWidth = videoWidth;
         mVideoHeight = videoHeight;
 
+        if (mMinAdaptiveBitrate > 0) {
+            mBitrateController = new AdaptiveBitrateController(mMinAdaptiveBitrate, mMaxAdaptiveBitrate,
+                    getDefaultVideoBitrate(videoWidth, videoHeight));
+            mBitrateController.setReservedBitrate(AUDIO_BIT_RATE);
+            setVideoBitrate(mBitrateController.getBitrate());
+        } else {
+            mBitrateController = null;
+        }
+
         startInnerPush();
     }
 
@@ -163,8 +264,13 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
             Toast.makeText(mContext, info, Toast.LENGTH_SHORT).show();
         }
         isPushStarted = success;
+        isAudioConfigPushed = false;
         if (success) {
             stopRetryStartPush();
+            if (mBitrateController != null) {
+                // 重连后 native 层统计数据从 0 开始，码率沿用断开前的值
+                mBitrateController.reset();
+            }
             super.startEncode(mSharedEGLContext, MediaFormat.MIMETYPE_VIDEO_AVC, mVideoWidth, mVideoHeight);
         } else {
             if (isUserPushing) {
@@ -185,6 +291,26 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         }
     }
 
+    @Override
+    public void onPushQueueStats(int destination, int queueSize, long queueBytes, int latencyMills,
+                                 long droppedFrames, long droppedBytes, long sentBytes) {
+        LogUtils.d(TAG, "onPushQueueStats destination=" + destination + " size=" + queueSize
+                + " bytes=" + queueBytes + " latency=" + latencyMills + "ms droppedFrames="
+                + droppedFrames + " droppedBytes=" + droppedBytes + " sentBytes=" + sentBytes);
+        // 码率只跟随主推流地址调整，备用地址网络慢时靠自己的队列丢帧，不拖累主地址画质
+        if (mBitrateController == null || !isPushStarted || destination != 0) {
+            return;
+        }
+        int oldBitrate = mBitrateController.getBitrate();
+        int newBitrate = mBitrateController.onSample(SystemClock.elapsedRealtime(), latencyMills,
+                sentBytes, droppedFrames);
+        if (newBitrate != oldBitrate) {
+            LogUtils.w(TAG, "adaptive bitrate " + oldBitrate + " -> " + newBitrate
+                    + ", throughput=" + mBitrateController.getThroughputBps());
+            setVideoBitrate(newBitrate);
+        }
+    }
+
     private void retryStartPush() {
         mRetryNumber++;
         if (mWaitStrategy == null) {
@@ -233,7 +359,7 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
     }
 
     @Override
-    public void onVideoDataCall(byte[] data, int size, boolean isKeyframe) {
+    public void onVideoDataCall(ByteBuffer data, int offset, int size, boolean isKeyframe) {
         if (isReleased || !isPushStarted || mWePushFlow == null) return;
 
         if (isKeyframe) {
@@ -248,7 +374,7 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
             pps = null;
         }
 
-        mWePushFlow.pushVideoData(data, size, isKeyframe);
+        mWePushFlow.pushVideoData(data, offset, size, isKeyframe);
     }
 
     public void enqueueAudioData(byte[] data, int size) {
@@ -258,10 +384,20 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
     }
 
     @Override
-    public void onAudioDataCall(byte[] data, int size) {
+    public void onAudioDataCall(ByteBuffer data, int offset, int size) {
         if (isReleased || !isPushStarted || mWePushFlow == null) return;
 
-        mWePushFlow.pushAudioData(data, size);
+        if (!isAudioConfigPushed) {
+            // 每次推流重新开始编码，第一帧音频之前先推 AAC 序列头，接收端和本地录制才能解码
+            byte[] asc = getAudioSpecificConfig();
+            if (asc != null) {
+                mWePushFlow.pushAudioSpecificConfig(asc, asc.length);
+            } else {
+                LogUtils.e(TAG, "Can't get AudioSpecificConfig!");
+            }
+            isAudioConfigPushed = true;
+        }
+        mWePushFlow.pushAudioData(data, offset, size);
     }
 
     public void stopPush() {
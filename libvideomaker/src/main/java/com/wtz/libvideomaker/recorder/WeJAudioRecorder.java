@@ -7,9 +7,12 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 
+import com.wtz.libnaudiorecord.PcmLevelMeter;
 import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.ThreadExitWaiter;
 
 import java.lang.ref.WeakReference;
+import java.util.Map;
 
 /**
  * 对 Java 层的 AudioRecord 的封装
@@ -22,7 +25,9 @@ public class WeJAudioRecorder {
     private WeakReference<WeJAudioRecorder> mWeakReference;
 
     private RecordThread mRecordThread;
-    private boolean isRecordThreadExiting;
+    private static final String THREAD_NAME_RECORD = "RecordThread";
+    private static final long THREAD_EXIT_TIMEOUT_MILLS = 3000;
+    private ThreadExitWaiter mThreadExitWaiter = new ThreadExitWaiter(TAG + ": ");
 
     private int mAudioSource;
     private int mSampleRate;
@@ -32,8 +37,7 @@ public class WeJAudioRecorder {
     private int mBufferSizeInBytes;
     private int mAudioBytesPerSecond;
     private long mRecordTimeMills;
-    private double mAmplitudeAvg = 0;// 当前播放声音振幅平均值，即当前所有采样值大小平均值
-    private double mSoundDecibels = 0;// 当前播放声音分贝值，单位：dB
+    private PcmLevelMeter mLevelMeter;// 录音线程更新，界面线程读取当前声音分贝值
     private AudioRecord mRecorder;
 
     // 接口调度线程
@@ -111,6 +115,9 @@ public class WeJAudioRecorder {
         }
         mAudioBytesPerSecond = mSampleRate * getChannelNums() * getBitsPerSample() / 8;
         isInitSuccess = mRecorder != null;
+        if (isInitSuccess && (mBitsPerSample == 8 || mBitsPerSample == 16)) {
+            mLevelMeter = new PcmLevelMeter(mSampleRate, getChannelNums(), mBitsPerSample);
+        }
     }
 
     private AudioRecord findAudioRecord() {
@@ -259,10 +266,26 @@ public class WeJAudioRecorder {
     }
 
     /**
-     * 获取当前播放声音分贝值，单位：dB
+     * @return 最近一次停止录音时，录音线程的退出耗时，单位毫秒，超时未退出的为 -1
+     */
+    public Map<String, Long> getLastThreadStopLatencyMills() {
+        return mThreadExitWaiter.getStopLatencyMills();
+    }
+
+    /**
+     * 获取当前声音分贝值，即最近一段时间的均方根分贝，单位：dB
      */
     public double getSoundDecibels() {
-        return mSoundDecibels;
+        PcmLevelMeter meter = mLevelMeter;
+        return meter != null ? meter.getRmsDecibels() : 0;
+    }
+
+    /**
+     * 获取当前声音峰值分贝值，即最近一段时间的最大振幅分贝，单位：dB
+     */
+    public double getSoundPeakDecibels() {
+        PcmLevelMeter meter = mLevelMeter;
+        return meter != null ? meter.getPeakDecibels() : 0;
     }
 
     public void stopRecord() {
@@ -284,24 +307,20 @@ public class WeJAudioRecorder {
         isRecording = false;
         mRecordTimeMills = 0;
 
-        isRecordThreadExiting = false;
+        mThreadExitWaiter.reset();
         if (mRecordThread != null) {
-            isRecordThreadExiting = true;
+            mThreadExitWaiter.expect(THREAD_NAME_RECORD, mRecordThread);
             mRecordThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, "mRecordThread onExited: " + thread.hashCode());
-                    isRecordThreadExiting = false;
+                    mThreadExitWaiter.onExited(THREAD_NAME_RECORD);
                 }
             });
         }
 
-        while (isRecordThreadExiting) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (!mThreadExitWaiter.await(THREAD_EXIT_TIMEOUT_MILLS)) {
+            LogUtils.e(TAG, "handleStopRecord: wait record thread exit timeout, stop anyway");
         }
         if (mRecorder != null) {
             mRecorder.stop();
@@ -390,9 +409,10 @@ public class WeJAudioRecorder {
         private int mBufferSizeInBytes;
         private int mAudioBytesPerSecond;
         private OnAudioRecordDataListener mOnAudioRecordDataListener;
+        private PcmLevelMeter mLevelMeter;
 
-        private boolean isShouldExit;
-        private boolean isExited;
+        private volatile boolean isShouldExit;
+        private volatile boolean isExited;
 
         private long mAudioPts = 0;
 
@@ -404,6 +424,7 @@ public class WeJAudioRecorder {
             mBufferSizeInBytes = mWeakReference.get().mBufferSizeInBytes;
             mAudioBytesPerSecond = mWeakReference.get().mAudioBytesPerSecond;
             mOnAudioRecordDataListener = mWeakReference.get().mOnAudioRecordDataListener;
+            mLevelMeter = mWeakReference.get().mLevelMeter;
         }
 
         @Override
@@ -431,6 +452,9 @@ public class WeJAudioRecorder {
                 return;
             }
             mRecorder.startRecording();
+            if (mLevelMeter != null) {
+                mLevelMeter.reset();
+            }
 
             int readSize = 0;
             byte[] readBytes = new byte[mBufferSizeInBytes];
@@ -449,7 +473,9 @@ public class WeJAudioRecorder {
                     master.mRecordTimeMills = mAudioPts / 1000;
 
                     // 更新声响
-                    updateSoundDecibels(master, readBytes, readSize);
+                    if (mLevelMeter != null && readSize > 0) {
+                        mLevelMeter.update(readBytes, 0, readSize);
+                    }
 
                     if (mOnAudioRecordDataListener != null) {
                         mOnAudioRecordDataListener.onAudioRecordData(readBytes, readSize);
@@ -460,36 +486,6 @@ public class WeJAudioRecorder {
             }
         }
 
-        private void updateSoundDecibels(WeJAudioRecorder master, byte[] pcmData, int size) {
-            double amplitudeSum = 0;// 采样值加和
-            switch (master.mBitsPerSample) {
-                case 8:
-                    for (int i = 0; i < size; i++) {
-                        amplitudeSum += Math.abs(pcmData[i]);// 把这段时间的所有采样值加和
-                    }
-                    // 更新振幅平均值
-                    master.mAmplitudeAvg = amplitudeSum / size;// 除数是 8 位采样点个数
-                    break;
-
-                case 16:
-                    // 针对 16 位编码，要先把两个 8 位转成 16 位的数据再计算振幅
-                    short amplitudeShort = 0;// 16bit 采样值
-                    for (int i = 0; i < size; i += 2) {
-                        amplitudeShort = (short) ((pcmData[i] & 0xff) | ((pcmData[i + 1] & 0xff) << 8));
-                        amplitudeSum += Math.abs(amplitudeShort);// 把这段时间的所有采样值加和
-                    }
-                    // 更新振幅平均值
-                    master.mAmplitudeAvg = amplitudeSum / (size / 2);// 除数是 16 位采样点个数
-                    break;
-            }
-            // 更新分贝值：分贝 = 20 * log10(振幅)
-            if (master.mAmplitudeAvg > 0) {
-                master.mSoundDecibels = 20 * Math.log10(master.mAmplitudeAvg);
-            } else {
-                master.mSoundDecibels = 0;
-            }
-        }
-
         public void requestExit(OnThreadExitedListener listener) {
             this.mOnExitedListener = listener;
             if (isExited) {
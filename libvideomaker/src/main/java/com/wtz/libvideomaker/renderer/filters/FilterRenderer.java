@@ -116,10 +116,17 @@ public abstract class FilterRenderer extends BaseRender {
 
     protected abstract int getFragmentShaderResId();
 
+    /**
+     * 默认读取 getFragmentShaderResId 对应的着色器，运行时生成着色器的子类可以覆盖
+     */
+    protected String getFragmentShaderSource() {
+        return ShaderUtil.readRawText(mContext, getFragmentShaderResId());
+    }
+
     private void initShaderProgram() {
         // 创建着色器程序
         String vertexSource = ShaderUtil.readRawText(mContext, getVertexShaderResId());
-        String fragmentSource = ShaderUtil.readRawText(mContext, getFragmentShaderResId());
+        String fragmentSource = getFragmentShaderSource();
         int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
         mVertexShaderHandle = shaderIDs[0];
         mFragmentShaderHandle = shaderIDs[1];
@@ -308,6 +315,7 @@ public abstract class FilterRenderer extends BaseRender {
 
         // 使用程序对象 mProgramHandle 作为当前渲染状态的一部分
         GLES20.glUseProgram(mProgramHandle);
+        onProgramUsed(mProgramHandle);
 
         // 准备设置坐标，绑定 VBO
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBOIds[0]);
@@ -351,6 +359,12 @@ public abstract class FilterRenderer extends BaseRender {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
 
+    /**
+     * 每次绘制 glUseProgram 之后调用，子类可以在这里设置额外的 uniform
+     */
+    protected void onProgramUsed(int programHandle) {
+    }
+
     @Override
     public void onEGLContextToDestroy() {
         LogUtils.d(mTag, "onEGLContextToDestroy");
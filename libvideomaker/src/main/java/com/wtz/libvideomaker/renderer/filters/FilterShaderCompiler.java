@@ -0,0 +1,204 @@
+package com.wtz.libvideomaker.renderer.filters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 把多个滤镜片段拼接成尽可能少的片元着色器，只生成 GLSL 文本，不依赖 Android 和 GLES
+ * <p>
+ * 以前每个滤镜都是一次全屏的 FBO 绘制，多一个效果就多一次整帧纹理的读写。
+ * 逐像素的滤镜只依赖当前像素的颜色，可以在同一个着色器里依次计算，合并成一次绘制；
+ * 需要读取相邻像素的滤镜必须读上一步已经完整输出的纹理，只有它们才单独开始一个新的绘制。
+ * <p>
+ * 输入是相机的 OES 纹理时，第一次绘制固定存在，即相机本身的那次绘制：逐像素滤镜直接合并进去，
+ * 需要相邻像素的滤镜从第二次绘制开始，避免在未经旋转裁剪的相机纹理上按像素偏移采样。
+ */
+public class FilterShaderCompiler {
+
+    /**
+     * 一个滤镜片段，body 是若干 GLSL 语句：读写 vec4 color（进入时为上一个滤镜的输出，alpha 在 w），
+     * 需要相邻像素时可以调用 we_sample(vec2 texelOffset) 读取本次绘制输入纹理上相对当前像素偏移若干像素的颜色
+     */
+    public static class Stage {
+        private final String mName;
+        private final String mBody;
+        private final boolean needsNeighbourSamples;
+
+        /**
+         * @param name 只能包含字母、数字和下划线，用于生成的函数名
+         */
+        public Stage(String name, String body, boolean needsNeighbourSamples) {
+            if (name == null || !name.matches("[A-Za-z][A-Za-z0-9_]*") || body == null) {
+                throw new IllegalArgumentException("Stage params is illegal: " + name + " " + body);
+            }
+            this.mName = name;
+            this.mBody = body;
+            this.needsNeighbourSamples = needsNeighbourSamples;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+
+        public boolean needsNeighbourSamples() {
+            return needsNeighbourSamples;
+        }
+
+        @Override
+        public String toString() {
+            return mName + (needsNeighbourSamples ? "(neighbour)" : "");
+        }
+    }
+
+    // 灰度，按 BT.709 的亮度系数加权
+    public static final Stage GRAY = new Stage("gray",
+            "float gray = color.r * 0.2125 + color.g * 0.7154 + color.b * 0.0721;\n"
+                    + "color = vec4(gray, gray, gray, color.w);", false);
+
+    // 反色，输出不透明
+    public static final Stage REVERSE = new Stage("reverse",
+            "color = vec4(vec3(1.0) - color.rgb, 1.0);", false);
+
+    // 降低亮度，RGB 三个分量都降低 0.5
+    public static final Stage LUMINANCE = new Stage("luminance",
+            "color = vec4((color.rgb + vec3(-0.5)), color.w);", false);
+
+    /**
+     * 一次绘制，mStages 为空时只是把输入原样画出
+     */
+    public static class Pass {
+        private final boolean isExternalOesInput;
+        private final List<Stage> mStages;
+        private final String mFragmentSource;
+
+        Pass(boolean isExternalOesInput, List<Stage> stages, String fragmentSource) {
+            this.isExternalOesInput = isExternalOesInput;
+            this.mStages = Collections.unmodifiableList(stages);
+            this.mFragmentSource = fragmentSource;
+        }
+
+        public boolean isExternalOesInput() {
+            return isExternalOesInput;
+        }
+
+        public List<Stage> getStages() {
+            return mStages;
+        }
+
+        /**
+         * @return 是否使用了 u_TexelSize，需要设置为 (1.0 / 宽, 1.0 / 高)
+         */
+        public boolean needsTexelSize() {
+            return !mStages.isEmpty() && mStages.get(0).needsNeighbourSamples();
+        }
+
+        public String getFragmentSource() {
+            return mFragmentSource;
+        }
+
+        @Override
+        public String toString() {
+            return "Pass{" + (isExternalOesInput ? "oes " : "") + mStages + "}";
+        }
+    }
+
+    public static final String TEXEL_SIZE_UNIFORM = "u_TexelSize";
+
+    private FilterShaderCompiler() {
+    }
+
+    /**
+     * 单个逐像素滤镜的一次绘制，输入是普通纹理
+     */
+    public static Pass compileSingle(Stage stage) {
+        if (stage == null || stage.needsNeighbourSamples()) {
+            throw new IllegalArgumentException("compileSingle params is illegal: " + stage);
+        }
+        return compile(Collections.singletonList(stage), false).get(0);
+    }
+
+    /**
+     * @param stages            按顺序执行的滤镜，可以为空
+     * @param isExternalOesInput 输入是否为相机的 OES 纹理
+     * @return 按顺序执行的绘制，至少一个；每次绘制的输入是上一次的输出，第一次的输入是原始纹理
+     */
+    public static List<Pass> compile(List<Stage> stages, boolean isExternalOesInput) {
+        List<List<Stage>> groups = new ArrayList<>();
+        List<Stage> current = new ArrayList<>();
+        groups.add(current);
+        if (stages != null) {
+            for (Stage stage : stages) {
+                if (stage == null) {
+                    throw new IllegalArgumentException("compile params is illegal: stage is null");
+                }
+                boolean isFirstOesPass = isExternalOesInput && groups.size() == 1;
+                if (stage.needsNeighbourSamples() && (!current.isEmpty() || isFirstOesPass)) {
+                    current = new ArrayList<>();
+                    groups.add(current);
+                }
+                current.add(stage);
+            }
+        }
+
+        List<Pass> passes = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            boolean isOes = isExternalOesInput && i == 0;
+            passes.add(new Pass(isOes, groups.get(i), generate(groups.get(i), isOes)));
+        }
+        return passes;
+    }
+
+    static String generate(List<Stage> stages, boolean isExternalOesInput) {
+        boolean needsTexelSize = !stages.isEmpty() && stages.get(0).needsNeighbourSamples();
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("// Generated by FilterShaderCompiler:");
+        if (stages.isEmpty()) {
+            sb.append(" copy");
+        }
+        for (Stage stage : stages) {
+            sb.append(' ').append(stage.getName());
+        }
+        sb.append('\n');
+        if (isExternalOesInput) {
+            sb.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+        sb.append("precision mediump float;\n");
+        sb.append("varying vec2 v_TexCoordinate;\n");
+        sb.append(isExternalOesInput ? "uniform samplerExternalOES u_Texture;\n" : "uniform sampler2D u_Texture;\n");
+        if (needsTexelSize) {
+            sb.append("uniform vec2 ").append(TEXEL_SIZE_UNIFORM).append(";\n");
+            sb.append("vec4 we_sample(vec2 texelOffset) {\n");
+            sb.append("    return texture2D(u_Texture, v_TexCoordinate + texelOffset * ")
+                    .append(TEXEL_SIZE_UNIFORM).append(");\n");
+            sb.append("}\n");
+        }
+        // 每个滤镜包成一个函数，各自的局部变量互不冲突
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            sb.append("vec4 ").append(functionName(i, stage)).append("(vec4 color) {\n");
+            for (String line : stage.getBody().split("\n")) {
+                sb.append("    ").append(line).append('\n');
+            }
+            sb.append("    return color;\n");
+            sb.append("}\n");
+        }
+        sb.append("void main() {\n");
+        sb.append("    vec4 color = texture2D(u_Texture, v_TexCoordinate);\n");
+        for (int i = 0; i < stages.size(); i++) {
+            sb.append("    color = ").append(functionName(i, stages.get(i))).append("(color);\n");
+        }
+        sb.append("    gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String functionName(int index, Stage stage) {
+        return "we_stage" + index + "_" + stage.getName();
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.wtz.libvideomaker.renderer.filters;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import com.wtz.libvideomaker.R;
+
+/**
+ * 绘制 {@link FilterShaderCompiler} 生成的一次绘制，包含一个或多个合并在一起的滤镜
+ */
+public class FusedFilterRenderer extends FilterRenderer {
+
+    private static final String TAG = FusedFilterRenderer.class.getSimpleName();
+
+    private final FilterShaderCompiler.Pass mPass;
+
+    private float[] mPositionMatrix;// 用来保存位置变换矩阵数值的数组
+
+    private int mTexelSizeProgram;
+    private int mTexelSizeUnifHandle = -1;
+    private float mTexelWidth;
+    private float mTexelHeight;
+
+    public FusedFilterRenderer(Context mContext, FilterShaderCompiler.Pass pass) {
+        this(mContext, pass, TAG);
+    }
+
+    protected FusedFilterRenderer(Context mContext, FilterShaderCompiler.Pass pass, String tag) {
+        super(mContext, tag);
+        if (pass == null || pass.isExternalOesInput()) {
+            throw new IllegalArgumentException("FusedFilterRenderer params is illegal: " + pass);
+        }
+        this.mPass = pass;
+    }
+
+    public FilterShaderCompiler.Pass getPass() {
+        return mPass;
+    }
+
+    @Override
+    public void onEGLContextCreated() {
+        // 创建位置转换矩阵(4x4)返回值存储的数组
+        mPositionMatrix = new float[16];
+        mTexelSizeProgram = 0;
+
+        super.onEGLContextCreated();
+    }
+
+    @Override
+    protected int getVertexShaderResId() {
+        return R.raw.we_vidmk_vertex_offscreen_shader;
+    }
+
+    @Override
+    protected int getFragmentShaderResId() {
+        return 0;
+    }
+
+    @Override
+    protected String getFragmentShaderSource() {
+        return mPass.getFragmentSource();
+    }
+
+    @Override
+    protected float[] getVertexCoordData() {
+        return getDefaultVertexCoordData();
+    }
+
+    @Override
+    protected float[] getTextureCoordData() {
+        return getDefaultTextureCoordData();
+    }
+
+    @Override
+    protected int getVertexDrawCount() {
+        return 4;
+    }
+
+    @Override
+    public void onSurfaceChanged(int width, int height) {
+        mTexelWidth = 1.0f / width;
+        mTexelHeight = 1.0f / height;
+        super.onSurfaceChanged(width, height);
+    }
+
+    @Override
+    protected void changePositionMatrix(int width, int height) {
+        defaultPositionMatrixChange(mPositionMatrix);
+    }
+
+    @Override
+    protected float[] getPositionMatrix() {
+        return mPositionMatrix;
+    }
+
+    @Override
+    protected void onProgramUsed(int programHandle) {
+        if (!mPass.needsTexelSize()) {
+            return;
+        }
+        if (mTexelSizeProgram != programHandle) {
+            mTexelSizeProgram = programHandle;
+            mTexelSizeUnifHandle = GLES20.glGetUniformLocation(programHandle,
+                    FilterShaderCompiler.TEXEL_SIZE_UNIFORM);
+        }
+        GLES20.glUniform2f(mTexelSizeUnifHandle, mTexelWidth, mTexelHeight);
+    }
+
+    @Override
+    public void onEGLContextToDestroy() {
+        super.onEGLContextToDestroy();
+        mPositionMatrix = null;
+    }
+
+}
@@ -2,65 +2,15 @@ package com.wtz.libvideomaker.renderer.filters;
 
 import android.content.Context;
 
-import com.wtz.libvideomaker.R;
-
-public class ReverseFilterRenderer extends FilterRenderer {
+/**
+ * 单独的反色滤镜，着色器由 {@link FilterShaderCompiler#REVERSE} 生成，与合并绘制的计算完全相同
+ */
+public class ReverseFilterRenderer extends FusedFilterRenderer {
 
     private static final String TAG = ReverseFilterRenderer.class.getSimpleName();
 
-    private float[] mPositionMatrix;// 用来保存位置变换矩阵数值的数组
-
     public ReverseFilterRenderer(Context mContext) {
-        super(mContext, TAG);
-    }
-
-    @Override
-    public void onEGLContextCreated() {
-        // 创建位置转换矩阵(4x4)返回值存储的数组
-        mPositionMatrix = new float[16];
-
-        super.onEGLContextCreated();
-    }
-
-    @Override
-    protected int getVertexShaderResId() {
-        return R.raw.we_vidmk_vertex_offscreen_shader;
-    }
-
-    @Override
-    protected int getFragmentShaderResId() {
-        return R.raw.we_vidmk_fragment_reverse_texture2d_shader;
-    }
-
-    @Override
-    protected float[] getVertexCoordData() {
-        return getDefaultVertexCoordData();
-    }
-
-    @Override
-    protected float[] getTextureCoordData() {
-        return getDefaultTextureCoordData();
-    }
-
-    @Override
-    protected int getVertexDrawCount() {
-        return 4;
-    }
-
-    @Override
-    protected void changePositionMatrix(int width, int height) {
-        defaultPositionMatrixChange(mPositionMatrix);
-    }
-
-    @Override
-    protected float[] getPositionMatrix() {
-        return mPositionMatrix;
-    }
-
-    @Override
-    public void onEGLContextToDestroy() {
-        super.onEGLContextToDestroy();
-        mPositionMatrix = null;
+        super(mContext, FilterShaderCompiler.compileSingle(FilterShaderCompiler.REVERSE), TAG);
     }
 
 }
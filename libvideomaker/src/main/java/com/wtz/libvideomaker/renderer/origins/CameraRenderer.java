@@ -94,6 +94,9 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     // 用来传入纹理内容到片元着色器的句柄
     private int mTextureUniformHandle;
 
+    // 外部设置的片元着色器，为空时使用原样输出相机画面的着色器
+    private String mFragmentSource;
+
     // Camera preview
     private int mCameraTextureID;
     private SurfaceTexture mCameraSurfaceTexture;
@@ -129,6 +132,24 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         return mOutputTextureIds != null ? mOutputTextureIds[0] : 0;
     }
 
+    /**
+     * 在渲染线程中调用，替换相机绘制使用的片元着色器，例如合并了逐像素滤镜的着色器，
+     * 输入为 samplerExternalOES u_Texture，见 {@link com.wtz.libvideomaker.renderer.filters.FilterShaderCompiler}
+     *
+     * @param fragmentSource 为空时恢复为原样输出相机画面
+     */
+    public void setFragmentShaderSource(String fragmentSource) {
+        if (fragmentSource == null ? mFragmentSource == null : fragmentSource.equals(mFragmentSource)) {
+            return;
+        }
+        mFragmentSource = fragmentSource;
+        if (mProgramHandle > 0) {
+            // 已经创建过着色器程序时马上替换，下一次绘制生效
+            releaseShaderProgram();
+            initShaderProgram();
+        }
+    }
+
     @Override
     public void onEGLContextCreated() {
         LogUtils.d(TAG, "onEGLContextCreated");
@@ -141,7 +162,10 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     private void initShaderProgram() {
         // 创建着色器程序
         String vertexSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_vertex_offscreen_shader);
-        String fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_camera_oes_shader);
+        String fragmentSource = mFragmentSource;
+        if (fragmentSource == null) {
+            fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_camera_oes_shader);
+        }
         int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
         mVertexShaderHandle = shaderIDs[0];
         mFragmentShaderHandle = shaderIDs[1];
@@ -157,6 +181,21 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         mTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Texture");
     }
 
+    private void releaseShaderProgram() {
+        if (mProgramHandle > 0) {
+            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
+            GLES20.glDeleteShader(mVertexShaderHandle);
+            mVertexShaderHandle = 0;
+
+            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
+            GLES20.glDeleteShader(mFragmentShaderHandle);
+            mFragmentShaderHandle = 0;
+
+            GLES20.glDeleteProgram(mProgramHandle);
+            mProgramHandle = 0;
+        }
+    }
+
     private void initCoordinatesData() {
         /*
          *        归一化顶点坐标系                窗口纹理坐标系             FBO 纹理坐标系
@@ -492,18 +531,7 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
             mTextureCoordBuffer.clear();
             mTextureCoordBuffer = null;
         }
-        if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
-            mProgramHandle = 0;
-        }
+        releaseShaderProgram();
         if (mOutputTextureIds != null) {
             GLES20.glDeleteTextures(1, mOutputTextureIds, 0);
             mOutputTextureIds = null;
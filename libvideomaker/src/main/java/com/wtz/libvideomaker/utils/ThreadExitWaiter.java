@@ -0,0 +1,135 @@
+package com.wtz.libvideomaker.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 等待一组工作线程退出，代替轮询 isXxxExiting 标志位的忙等
+ * <p>
+ * 用法：requestExit 之前先 {@link #expect} 登记线程，在线程的退出回调里调用 {@link #onExited}，
+ * 最后 {@link #await} 带超时等待全部线程结束。每个线程从登记到真正结束的耗时会被记录下来。
+ * <p>
+ * 同一个对象可以反复使用，每次 expect 新一轮线程之前先调用 {@link #reset}。
+ */
+public class ThreadExitWaiter {
+
+    private static final String TAG = ThreadExitWaiter.class.getSimpleName();
+
+    private String mExternalTag;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    private static class Entry {
+        String name;
+        Thread thread;
+        CountDownLatch latch = new CountDownLatch(1);
+        long requestTimeNanos;
+        volatile long exitedTimeNanos;
+    }
+
+    public ThreadExitWaiter(String externalTag) {
+        this.mExternalTag = externalTag;
+    }
+
+    /**
+     * 清除上一轮登记的线程和耗时记录
+     */
+    public synchronized void reset() {
+        mEntries.clear();
+    }
+
+    /**
+     * 登记一个即将被请求退出的线程，必须在调用线程的 requestExit 之前调用
+     *
+     * @param name   线程名称，同一轮内不能重复，退出回调和耗时记录都用它来对应
+     * @param thread 用于 await 时 join，可以为 null
+     */
+    public synchronized void expect(String name, Thread thread) {
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.thread = thread;
+        entry.requestTimeNanos = System.nanoTime();
+        mEntries.add(entry);
+    }
+
+    /**
+     * 线程退出回调里调用，重复调用只记录第一次的时间
+     */
+    public void onExited(String name) {
+        Entry entry = findEntry(name);
+        if (entry == null) {
+            LogUtils.e(TAG, mExternalTag + "onExited but not expected: " + name);
+            return;
+        }
+        if (entry.latch.getCount() > 0) {
+            entry.exitedTimeNanos = System.nanoTime();
+            entry.latch.countDown();
+        }
+    }
+
+    /**
+     * 阻塞等待所有已登记的线程退出，所有线程共用同一个超时时间
+     *
+     * @return 超时或者被中断时返回 false，此时仍有线程没有结束
+     */
+    public boolean await(long timeoutMills) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMills);
+        boolean success = true;
+        for (Entry entry : entries) {
+            long remaining = deadline - System.nanoTime();
+            try {
+                if (!entry.latch.await(Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+                    LogUtils.e(TAG, mExternalTag + entry.name + " exit timeout after " + timeoutMills + "ms");
+                    success = false;
+                    continue;
+                }
+                // 退出回调在线程结束前最后执行，再 join 一下确保线程真正结束，重新 start 时不会有旧线程残留
+                if (entry.thread != null && entry.thread != Thread.currentThread()) {
+                    remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    entry.thread.join(Math.max(remaining, 1));
+                }
+            } catch (InterruptedException e) {
+                LogUtils.e(TAG, mExternalTag + "await " + entry.name + " interrupted");
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            LogUtils.w(TAG, mExternalTag + entry.name + " stop latency: "
+                    + getLatencyMills(entry) + "ms");
+        }
+        return success;
+    }
+
+    /**
+     * @return 上一轮各线程从登记到退出的耗时，未退出的线程值为 -1
+     */
+    public synchronized Map<String, Long> getStopLatencyMills() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (Entry entry : mEntries) {
+            long latency = entry.latch.getCount() > 0 ? -1 : getLatencyMills(entry);
+            latencies.put(entry.name, latency);
+        }
+        return latencies;
+    }
+
+    private static long getLatencyMills(Entry entry) {
+        return TimeUnit.NANOSECONDS.toMillis(entry.exitedTimeNanos - entry.requestTimeNanos);
+    }
+
+    private synchronized Entry findEntry(String name) {
+        for (Entry entry : mEntries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AacFrameAccumulatorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_BYTES = AacFrameAccumulator.AAC_SAMPLES_PER_FRAME * 4;// 双声道 16 位
+
+    /**
+     * 每个字节的值是它在整个数据流中的序号，用来检查拼帧后的内容
+     */
+    private static byte[] stream(long start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (start + i);
+        }
+        return bytes;
+    }
+
+    private static void assertFrame(AacFrameAccumulator.Frame frame, long startByte) {
+        assertNotNull(frame);
+        for (int i = 0; i < frame.size; i++) {
+            assertEquals("byte " + i, (byte) (startByte + i), frame.data[i]);
+        }
+    }
+
+    @Test
+    public void splitsArbitraryBlocksIntoFrames() {
+        AacFrameAccumulator accumulator = new AacFrameAccumulator(SAMPLE_RATE, 2, 16, 8);
+        assertEquals(FRAME_BYTES, accumulator.getFrameBytes());
+        assertFalse(accumulator.isStarted());
+
+        long written = 0;
+        int[] blocks = {1000, 3000, 7000, 5000};
+        for (int block : blocks) {
+            accumulator.write(stream(written, block), 0, block);
+            written += block;
+        }
+        assertTrue(accumulator.isStarted());
+        for (int i = 0; i < written / FRAME_BYTES; i++) {
+            AacFrameAccumulator.Frame frame = accumulator.poll();
+            assertEquals(FRAME_BYTES, frame.size);
+            assertEquals(i * 1024L, frame.startSample);
+            assertEquals(i * 1024L * 1000000 / SAMPLE_RATE, frame.ptsUs);
+            assertFrame(frame, (long) i * FRAME_BYTES);
+            accumulator.recycle(frame);
+        }
+        assertNull(accumulator.poll());
+
+        // 剩余不满一帧的数据按整采样截断后输出
+        accumulator.write(stream(written, 3), 0, 3);
+        accumulator.flush();
+        AacFrameAccumulator.Frame last = accumulator.poll();
+        assertEquals((written + 3) % FRAME_BYTES / 4 * 4, last.size);
+        assertFrame(last, written / FRAME_BYTES * FRAME_BYTES);
+    }
+
+    /**
+     * 时间戳从设置的起点开始，按整数采样计数换算，长时间也不漂移
+     */
+    @Test
+    public void ptsStartsFromBaseTimeWithoutDrift() {
+        AacFrameAccumulator accumulator = new AacFrameAccumulator(SAMPLE_RATE, 2, 16, 8);
+        long baseTimeUs = 123456789L;
+        accumulator.setBaseTimeUs(baseTimeUs);
+        byte[] frameData = new byte[FRAME_BYTES];
+        // 约 1 小时
+        long frames = 3600L * SAMPLE_RATE / 1024;
+        AacFrameAccumulator.Frame frame = null;
+        for (long i = 0; i < frames; i++) {
+            accumulator.write(frameData, 0, frameData.length);
+            frame = accumulator.poll();
+            assertEquals(i * 1024, frame.startSample);
+            accumulator.recycle(frame);
+        }
+        assertEquals(baseTimeUs + (frames - 1) * 1024 * 1000000 / SAMPLE_RATE, frame.ptsUs);
+        assertEquals(1000000, accumulator.samplesToUs(SAMPLE_RATE));
+        assertEquals(1000000, accumulator.bytesToUs(SAMPLE_RATE * 4));
+    }
+
+    /**
+     * 消费者不取时生产者不等待，丢弃最旧的帧，被丢弃的采样仍然计入时间轴
+     */
+    @Test
+    public void dropsOldestWithoutWaitingWhenFull() {
+        AacFrameAccumulator accumulator = new AacFrameAccumulator(SAMPLE_RATE, 2, 16, 2);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            accumulator.write(stream((long) i * FRAME_BYTES, FRAME_BYTES), 0, FRAME_BYTES);
+        }
+        assertTrue(System.nanoTime() - start < 50000000L);
+        assertEquals(5, accumulator.getFrameCount());
+        assertEquals(3, accumulator.getDroppedFrameCount());
+
+        AacFrameAccumulator.Frame frame = accumulator.poll();
+        assertEquals(3 * 1024L, frame.startSample);
+        assertFrame(frame, 3L * FRAME_BYTES);
+        accumulator.recycle(frame);
+        frame = accumulator.poll();
+        assertEquals(4 * 1024L, frame.startSample);
+        accumulator.recycle(frame);
+        assertNull(accumulator.poll());
+    }
+
+    /**
+     * 消费者拿着一帧不还时，生产者照样可以继续写
+     */
+    @Test
+    public void consumerHoldingFrameDoesNotStarveProducer() {
+        AacFrameAccumulator accumulator = new AacFrameAccumulator(SAMPLE_RATE, 1, 16, 1);
+        int frameBytes = accumulator.getFrameBytes();
+        byte[] data = new byte[frameBytes];
+        accumulator.write(data, 0, frameBytes);
+        AacFrameAccumulator.Frame held = accumulator.poll();
+        for (int i = 0; i < 10; i++) {
+            accumulator.write(data, 0, frameBytes);
+        }
+        assertEquals(11, accumulator.getFrameCount());
+        assertEquals(10 * 1024L, accumulator.poll().startSample);
+        accumulator.recycle(held);
+    }
+
+    @Test
+    public void resetClearsTimeline() {
+        AacFrameAccumulator accumulator = new AacFrameAccumulator(SAMPLE_RATE, 2, 16, 4);
+        accumulator.setBaseTimeUs(1000);
+        accumulator.write(new byte[FRAME_BYTES + 8], 0, FRAME_BYTES + 8);
+        accumulator.reset();
+        assertFalse(accumulator.isStarted());
+        assertNull(accumulator.poll());
+        accumulator.write(new byte[FRAME_BYTES], 0, FRAME_BYTES);
+        AacFrameAccumulator.Frame frame = accumulator.poll();
+        assertEquals(0, frame.startSample);
+        assertEquals(0, frame.ptsUs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalBits() {
+        new AacFrameAccumulator(SAMPLE_RATE, 2, 12, 4);
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockDriftCompensatorTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FRAME_BYTES = 4;
+    // 10ms
+    private static final int PERIOD_BYTES = 480 * FRAME_BYTES;
+
+    private static ClockDriftCompensator create() {
+        return new ClockDriftCompensator(SAMPLE_RATE, FRAME_BYTES, 100, 300);
+    }
+
+    @Test
+    public void sizesFollowLatency() {
+        ClockDriftCompensator compensator = create();
+        assertEquals(4800 * FRAME_BYTES, compensator.getTargetBytes());
+        assertEquals(14400 * FRAME_BYTES, compensator.getMaxBytes());
+        // 上限不小于目标延迟的两倍
+        assertEquals(9600 * FRAME_BYTES, new ClockDriftCompensator(SAMPLE_RATE, FRAME_BYTES, 100, 120).getMaxBytes());
+        assertEquals(-1, compensator.getSmoothedLatencyMills(), 0);
+    }
+
+    /**
+     * 填充量达到目标延迟之前消费者用静音，之后开始读取
+     */
+    @Test
+    public void primesUntilTargetLatency() {
+        ClockDriftCompensator compensator = create();
+        int target = compensator.getTargetBytes();
+        assertFalse(compensator.checkConsume(0, PERIOD_BYTES));
+        assertFalse(compensator.checkConsume(target - FRAME_BYTES, PERIOD_BYTES));
+        assertTrue(compensator.checkConsume(target, PERIOD_BYTES));
+        assertEquals(100, compensator.getSmoothedLatencyMills(), 0.001);
+        assertEquals(0, compensator.getRatioCorrection(), 0);
+        assertEquals(0, compensator.getUnderrunCount());
+    }
+
+    @Test
+    public void underrunRestartsPriming() {
+        ClockDriftCompensator compensator = create();
+        int target = compensator.getTargetBytes();
+        assertTrue(compensator.checkConsume(target, PERIOD_BYTES));
+        assertFalse(compensator.checkConsume(PERIOD_BYTES - FRAME_BYTES, PERIOD_BYTES));
+        assertEquals(1, compensator.getUnderrunCount());
+        // 重新预填充期间不重复计数
+        assertFalse(compensator.checkConsume(PERIOD_BYTES, PERIOD_BYTES));
+        assertEquals(1, compensator.getUnderrunCount());
+        assertTrue(compensator.checkConsume(target, PERIOD_BYTES));
+    }
+
+    /**
+     * 超过上限时只允许写入整采样点，其余丢弃并计数
+     */
+    @Test
+    public void overflowDropsWholeFrames() {
+        ClockDriftCompensator compensator = create();
+        int max = compensator.getMaxBytes();
+        assertEquals(PERIOD_BYTES, compensator.checkProduce(0, PERIOD_BYTES));
+        assertEquals(0, compensator.getOverflowCount());
+
+        assertEquals(1000, compensator.checkProduce(max - 1002, PERIOD_BYTES));
+        assertEquals(1, compensator.getOverflowCount());
+        assertEquals(PERIOD_BYTES - 1000, compensator.getDroppedBytes());
+
+        assertEquals(0, compensator.checkProduce(max + 100, PERIOD_BYTES));
+        assertEquals(2, compensator.getOverflowCount());
+
+        compensator.reset();
+        assertEquals(0, compensator.getOverflowCount());
+        assertEquals(0, compensator.getDroppedBytes());
+    }
+
+    /**
+     * 填充量偏多时减小副音轨的输出采样率，偏少时增大，并且不超过上限
+     */
+    @Test
+    public void correctionSignAndLimit() {
+        ClockDriftCompensator compensator = create();
+        int target = compensator.getTargetBytes();
+        compensator.checkConsume(target, PERIOD_BYTES);
+        for (int i = 0; i < 100; i++) {
+            compensator.checkConsume(target * 2, PERIOD_BYTES);
+        }
+        assertTrue(compensator.getRatioCorrection() < 0);
+
+        compensator.reset();
+        compensator.checkConsume(target, PERIOD_BYTES);
+        for (int i = 0; i < 3000; i++) {
+            compensator.checkConsume(PERIOD_BYTES, PERIOD_BYTES);
+        }
+        assertEquals(ClockDriftCompensator.MAX_CORRECTION, compensator.getRatioCorrection(), 0);
+    }
+
+    /**
+     * 闭环模拟：副音轨时钟快或慢 300ppm，10 分钟后延迟稳定在目标附近，微调量抵消了漂移，没有欠载和溢出
+     */
+    @Test
+    public void closedLoopCancelsDrift() {
+        assertDriftCancelled(0.0003);
+        assertDriftCancelled(-0.0003);
+    }
+
+    private static void assertDriftCancelled(double drift) {
+        ClockDriftCompensator compensator = create();
+        double producerFrames = 0;
+        double consumerFrames = 0;
+        double maxErrorMills = 0;
+        for (int period = 0; period < 60000; period++) {
+            // 副音轨按自己的时钟生产 10ms，重采样时叠加微调量
+            double produced = 480 * (1 + drift) * (1 + compensator.getRatioCorrection());
+            int filledBytes = (int) (producerFrames - consumerFrames) * FRAME_BYTES;
+            int produceBytes = (int) (producerFrames + produced) * FRAME_BYTES - (int) producerFrames * FRAME_BYTES;
+            int allowed = compensator.checkProduce(filledBytes, produceBytes);
+            producerFrames += produced - (double) (produceBytes - allowed) / FRAME_BYTES;
+
+            filledBytes = (int) (producerFrames - consumerFrames) * FRAME_BYTES;
+            if (compensator.checkConsume(filledBytes, PERIOD_BYTES)) {
+                consumerFrames += 480;
+            }
+            if (period >= 30000) {
+                maxErrorMills = Math.max(maxErrorMills, Math.abs(compensator.getSmoothedLatencyMills() - 100));
+            }
+        }
+        assertTrue("error " + maxErrorMills + "ms", maxErrorMills < 0.5);
+        assertEquals(-drift, compensator.getRatioCorrection(), 0.00002);
+        assertEquals(0, compensator.getUnderrunCount());
+        assertEquals(0, compensator.getOverflowCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalLatency() {
+        new ClockDriftCompensator(SAMPLE_RATE, FRAME_BYTES, 0, 300);
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmFormatConverterTest {
+
+    private static byte[] shortsToBytes(short... samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(samples);
+        return buffer.array();
+    }
+
+    private static short[] bytesToShorts(byte[] bytes, int length) {
+        short[] samples = new short[length / 2];
+        ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    private static byte[] floatsToBytes(float... samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(samples);
+        return buffer.array();
+    }
+
+    private static short[] convertTo16(int srcFormat, int srcChannels, int dstChannels, byte[] src) {
+        PcmFormatConverter converter = new PcmFormatConverter(srcFormat, srcChannels,
+                PcmFormatConverter.FORMAT_PCM_16BIT, dstChannels);
+        byte[] dst = new byte[converter.getDstBytes(src.length)];
+        int length = converter.convert(src, 0, src.length, dst, 0);
+        return bytesToShorts(dst, length);
+    }
+
+    @Test
+    public void eightBitIsUnsigned() {
+        short[] shorts = convertTo16(PcmFormatConverter.FORMAT_PCM_8BIT, 1, 1, new byte[]{0, (byte) 128, (byte) 255});
+        assertArrayEquals(new short[]{-32768, 0, 32512}, shorts);
+
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_8BIT, 1);
+        byte[] dst = new byte[3];
+        assertEquals(3, converter.convert(shortsToBytes((short) -32768, (short) 0, (short) 32767), 0, 6, dst, 0));
+        assertArrayEquals(new byte[]{0, (byte) 128, (byte) 255}, dst);
+    }
+
+    /**
+     * 24 位只保留高 16 位，16 位转 24 位时低字节补 0
+     */
+    @Test
+    public void twentyFourBitKeepsHighBytes() {
+        byte[] src = {(byte) 0xff, 0x34, 0x12, 0x00, 0x00, (byte) 0x80};
+        assertArrayEquals(new short[]{0x1234, -32768},
+                convertTo16(PcmFormatConverter.FORMAT_PCM_24BIT, 1, 1, src));
+
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_24BIT, 1);
+        byte[] dst = new byte[6];
+        assertEquals(6, converter.convert(shortsToBytes((short) 0x1234, (short) -32768), 0, 4, dst, 0));
+        assertArrayEquals(new byte[]{0x00, 0x34, 0x12, 0x00, 0x00, (byte) 0x80}, dst);
+    }
+
+    @Test
+    public void floatIsClamped() {
+        byte[] src = floatsToBytes(0f, 0.5f, -1f, 1f, 2f, -2f);
+        assertArrayEquals(new short[]{0, 16384, -32768, 32767, 32767, -32768},
+                convertTo16(PcmFormatConverter.FORMAT_PCM_FLOAT, 1, 1, src));
+
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_FLOAT, 1);
+        byte[] dst = new byte[8];
+        converter.convert(shortsToBytes((short) 16384, (short) -32768), 0, 4, dst, 0);
+        assertArrayEquals(floatsToBytes(0.5f, -1f), dst);
+    }
+
+    /**
+     * 单声道复制到左右声道，双声道取平均值
+     */
+    @Test
+    public void channelsAreRemapped() {
+        assertArrayEquals(new short[]{1, 1, -2, -2},
+                convertTo16(PcmFormatConverter.FORMAT_PCM_16BIT, 1, 2, shortsToBytes((short) 1, (short) -2)));
+        assertArrayEquals(new short[]{150, -4, 32767},
+                convertTo16(PcmFormatConverter.FORMAT_PCM_16BIT, 2, 1, shortsToBytes(
+                        (short) 100, (short) 200, (short) -3, (short) -4, (short) 32767, (short) 32767)));
+        // 格式和声道一起转换
+        assertArrayEquals(new short[]{0, 0, -32768, -32768},
+                convertTo16(PcmFormatConverter.FORMAT_PCM_8BIT, 1, 2, new byte[]{(byte) 128, 0}));
+    }
+
+    @Test
+    public void passThroughIgnoresPartialFrame() {
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 2,
+                PcmFormatConverter.FORMAT_PCM_16BIT, 2);
+        assertTrue(converter.isPassThrough());
+        byte[] src = {1, 2, 3, 4, 5, 6, 7};
+        byte[] dst = new byte[8];
+        assertEquals(4, converter.getDstBytes(src.length));
+        assertEquals(4, converter.convert(src, 0, src.length, dst, 2));
+        assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 4, 0, 0}, dst);
+        assertFalse(new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_16BIT, 2).isPassThrough());
+    }
+
+    /**
+     * 回调复用同一个数组时缓存的包装要按本次的偏移和长度读写
+     */
+    @Test
+    public void reusedArraysWithOffsets() {
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_8BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_16BIT, 1);
+        byte[] src = {(byte) 129, (byte) 130, (byte) 131, (byte) 132};
+        byte[] dst = new byte[8];
+        assertEquals(4, converter.convert(src, 1, 2, dst, 4));
+        assertArrayEquals(new short[]{0, 0, 512, 768}, bytesToShorts(dst, 8));
+        assertEquals(6, converter.convert(src, 0, 3, dst, 0));
+        assertArrayEquals(new short[]{256, 512, 768, 768}, bytesToShorts(dst, 8));
+    }
+
+    @Test
+    public void convertToShorts() {
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_FLOAT, 2,
+                PcmFormatConverter.FORMAT_PCM_16BIT, 1);
+        short[] dst = new short[3];
+        assertEquals(2, converter.convertToShorts(floatsToBytes(0.5f, 0f, -0.5f, -1f), 0, 16, dst, 1));
+        assertArrayEquals(new short[]{0, 8192, -24576}, dst);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void convertToShortsNeeds16Bit() {
+        new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1, PcmFormatConverter.FORMAT_PCM_FLOAT, 1)
+                .convertToShorts(new byte[2], 0, 2, new short[1], 0);
+    }
+
+    /**
+     * direct buffer 按小端读写，完成后 position 向后移动，原来的字节序不变
+     */
+    @Test
+    public void byteBuffersKeepOrder() {
+        PcmFormatConverter converter = new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1,
+                PcmFormatConverter.FORMAT_PCM_16BIT, 2);
+        ByteBuffer src = ByteBuffer.allocateDirect(5);
+        src.put(shortsToBytes((short) 0x0102, (short) -2)).put((byte) 9).flip();
+        ByteBuffer dst = ByteBuffer.allocateDirect(10).order(ByteOrder.BIG_ENDIAN);
+        dst.position(1);
+
+        assertEquals(8, converter.convert(src, dst));
+        assertEquals(4, src.position());
+        assertEquals(5, src.limit());
+        assertEquals(9, dst.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, src.order());
+        assertEquals(ByteOrder.BIG_ENDIAN, dst.order());
+
+        byte[] out = new byte[8];
+        dst.position(1);
+        dst.get(out);
+        assertArrayEquals(shortsToBytes((short) 0x0102, (short) 0x0102, (short) -2, (short) -2), out);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void dstTooSmall() {
+        new PcmFormatConverter(PcmFormatConverter.FORMAT_PCM_16BIT, 1, PcmFormatConverter.FORMAT_PCM_16BIT, 2)
+                .convert(new byte[4], 0, 4, new byte[7], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedFormat() {
+        new PcmFormatConverter(12, 1, PcmFormatConverter.FORMAT_PCM_16BIT, 1);
+    }
+
+}
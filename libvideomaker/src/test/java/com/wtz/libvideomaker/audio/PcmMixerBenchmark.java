@@ -0,0 +1,197 @@
+package com.wtz.libvideomaker.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PcmMixer 与原 AudioUtils.linearMix16bitAudioBytes / selfAdapMix16bitAudioBytes 的混音耗时对比，
+ * 在开发机的 JVM 上运行 main
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PcmMixerBenchmark {
+
+    @Param({"2", "4", "8"})
+    public int trackCount;
+
+    // 4096 是 44.1kHz 双声道 16 位一次回调约 23ms 的数据
+    @Param({"1024", "4096", "16384"})
+    public int sizePerTrack;
+
+    private byte[][] mTracks;
+    // 原实现把结果写回第 0 路，给它单独一份输入，每次调用前从 mTracks 恢复，不影响其它用例的输入
+    private byte[][] mOldTracks;
+    private float[] mRatios;
+    private byte[] mOut;
+    private PcmMixer mAverageMixer;
+    private PcmMixer mSoftClipMixer;
+    private PcmMixer mAdaptiveMixer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mTracks = new byte[trackCount][sizePerTrack];
+        mOldTracks = new byte[trackCount][];
+        mRatios = new float[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            random.nextBytes(mTracks[i]);
+            mOldTracks[i] = mTracks[i].clone();
+            mRatios[i] = i == 0 ? 2.0f : 1.0f;
+        }
+        mOut = new byte[sizePerTrack];
+        mAverageMixer = new PcmMixer(trackCount);
+        mAverageMixer.setTrackGains(mRatios);
+        mSoftClipMixer = new PcmMixer(trackCount);
+        mSoftClipMixer.setStrategy(PcmMixer.STRATEGY_SOFT_CLIP);
+        mSoftClipMixer.setTrackGains(mRatios);
+        mAdaptiveMixer = new PcmMixer(trackCount);
+        mAdaptiveMixer.setStrategy(PcmMixer.STRATEGY_ADAPTIVE);
+    }
+
+    private void restoreOldTrack() {
+        System.arraycopy(mTracks[0], 0, mOldTracks[0], 0, sizePerTrack);
+    }
+
+    /**
+     * 只恢复第 0 路输入的拷贝开销，从 old* 的结果中减去它才是原实现本身的耗时
+     */
+    @Benchmark
+    public byte[] restoreBaseline() {
+        restoreOldTrack();
+        return mOldTracks[0];
+    }
+
+    @Benchmark
+    public byte[] oldLinearMix() {
+        restoreOldTrack();
+        return linearMix16bitAudioBytes(mOldTracks, sizePerTrack, mRatios);
+    }
+
+    @Benchmark
+    public byte[] mixerAverage() {
+        mAverageMixer.mix(mTracks, sizePerTrack, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] mixerSoftClip() {
+        mSoftClipMixer.mix(mTracks, sizePerTrack, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] oldAdaptiveMix() {
+        restoreOldTrack();
+        return selfAdapMix16bitAudioBytes(mOldTracks);
+    }
+
+    @Benchmark
+    public byte[] mixerAdaptive() {
+        mAdaptiveMixer.mix(mTracks, sizePerTrack, mOut);
+        return mOut;
+    }
+
+    /**
+     * 原 AudioUtils.linearMix16bitAudioBytes，每次混音都分配 short 二维数组，结果写回第 0 路
+     */
+    private static byte[] linearMix16bitAudioBytes(byte[][] multiTrackAudioBytes, int sizePerTrack,
+                                                   float[] trackRatios) {
+        byte[] mixAudioBytes = multiTrackAudioBytes[0];
+        final int rowSize = multiTrackAudioBytes.length;
+        int columnSize = sizePerTrack / 2;
+        short[][] multiTrackAudioShorts = new short[rowSize][columnSize];
+        for (int row = 0; row < rowSize; ++row) {
+            for (int col = 0; col < columnSize; ++col) {
+                multiTrackAudioShorts[row][col] = (short) ((multiTrackAudioBytes[row][col * 2] & 0xff)
+                        | (multiTrackAudioBytes[row][col * 2 + 1] & 0xff) << 8);
+            }
+        }
+
+        short[] mixAudioShorts = new short[columnSize];
+        int mixVal;
+        int row;
+        int ratioVal;
+        for (int col = 0; col < columnSize; ++col) {
+            mixVal = 0;
+            for (row = 0; row < rowSize; ++row) {
+                ratioVal = (int) (multiTrackAudioShorts[row][col] * trackRatios[row] + 0.5f);
+                if (ratioVal > Short.MAX_VALUE) {
+                    ratioVal = Short.MAX_VALUE;
+                } else if (ratioVal < Short.MIN_VALUE) {
+                    ratioVal = Short.MIN_VALUE;
+                }
+                mixVal += ratioVal;
+            }
+            mixAudioShorts[col] = (short) (mixVal / rowSize);
+        }
+
+        for (row = 0; row < columnSize; ++row) {
+            mixAudioBytes[row * 2] = (byte) (mixAudioShorts[row] & 0x00FF);
+            mixAudioBytes[row * 2 + 1] = (byte) ((mixAudioShorts[row] & 0xFF00) >> 8);
+        }
+        return mixAudioBytes;
+    }
+
+    /**
+     * 原 AudioUtils.selfAdapMix16bitAudioBytes，每次混音都分配 short 二维数组，逐采样调用 Math.pow/signum，结果写回第 0 路
+     */
+    private static byte[] selfAdapMix16bitAudioBytes(byte[][] multiTrackAudioBytes) {
+        byte[] mixAudioBytes = multiTrackAudioBytes[0];
+        final int rowSize = multiTrackAudioBytes.length;
+        int columnSize = mixAudioBytes.length / 2;
+        short[][] multiTrackAudioShorts = new short[rowSize][columnSize];
+        for (int row = 0; row < rowSize; ++row) {
+            for (int col = 0; col < columnSize; ++col) {
+                multiTrackAudioShorts[row][col] = (short) ((multiTrackAudioBytes[row][col * 2] & 0xff)
+                        | (multiTrackAudioBytes[row][col * 2 + 1] & 0xff) << 8);
+            }
+        }
+
+        short[] mixAudioShorts = new short[columnSize];
+        int row;
+        double wValue;
+        double absSumVal;
+        for (int col = 0; col < columnSize; ++col) {
+            wValue = 0;
+            absSumVal = 0;
+            for (row = 0; row < rowSize; ++row) {
+                wValue += Math.pow(multiTrackAudioShorts[row][col], 2)
+                        * Math.signum(multiTrackAudioShorts[row][col]);
+                absSumVal += Math.abs(multiTrackAudioShorts[row][col]);
+            }
+            mixAudioShorts[col] = absSumVal == 0 ? 0 : (short) (wValue / absSumVal);
+        }
+
+        for (row = 0; row < columnSize; ++row) {
+            mixAudioBytes[row * 2] = (byte) (mixAudioShorts[row] & 0x00FF);
+            mixAudioBytes[row * 2 + 1] = (byte) ((mixAudioShorts[row] & 0xFF00) >> 8);
+        }
+        return mixAudioBytes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PcmMixerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmMixerTest {
+
+    /**
+     * 原 AudioUtils.linearMix16bitAudioBytes 的混音计算，作为对照
+     *
+     * @param isRoundFixed false 时与原来完全相同，用 (int) (x + 0.5f) 取整，负数向 0 截断；
+     *                     true 时改用 Math.round
+     */
+    private static byte[] linearMix(byte[][] tracks, int sizePerTrack, float[] ratios, boolean isRoundFixed) {
+        int columnSize = sizePerTrack / 2;
+        byte[] out = new byte[columnSize * 2];
+        for (int col = 0; col < columnSize; ++col) {
+            int mixVal = 0;
+            for (int row = 0; row < tracks.length; ++row) {
+                short sample = (short) ((tracks[row][col * 2] & 0xff) | (tracks[row][col * 2 + 1] & 0xff) << 8);
+                int ratioVal = isRoundFixed ? Math.round(sample * ratios[row]) : (int) (sample * ratios[row] + 0.5f);
+                if (ratioVal > Short.MAX_VALUE) {
+                    ratioVal = Short.MAX_VALUE;
+                } else if (ratioVal < Short.MIN_VALUE) {
+                    ratioVal = Short.MIN_VALUE;
+                }
+                mixVal += ratioVal;
+            }
+            short mixed = (short) (mixVal / tracks.length);
+            out[col * 2] = (byte) (mixed & 0x00FF);
+            out[col * 2 + 1] = (byte) ((mixed & 0xFF00) >> 8);
+        }
+        return out;
+    }
+
+    /**
+     * 第 0 路是全部 65536 个采样值，第 1 路是打乱的同一组值
+     */
+    private static byte[][] allSampleTracks() {
+        short[] values = new short[65536];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (i + Short.MIN_VALUE);
+        }
+        short[] shuffled = values.clone();
+        Random random = new Random(2);
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            short tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+        return new byte[][]{toBytes(values), toBytes(shuffled)};
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+
+    private static short sampleAt(byte[] bytes, int index) {
+        return (short) ((bytes[2 * index] & 0xff) | (bytes[2 * index + 1] << 8));
+    }
+
+    private static byte[] mixAverage(byte[][] tracks, float[] gains) {
+        PcmMixer mixer = new PcmMixer(tracks.length);
+        mixer.setTrackGains(gains);
+        byte[] out = new byte[tracks[0].length];
+        assertEquals(out.length, mixer.mix(tracks, out.length, out));
+        return out;
+    }
+
+    /**
+     * 增益是 1/4096 的整数倍时，与原线性叠加平均（取整改为 Math.round）逐字节一致
+     */
+    @Test
+    public void averageMatchesRoundedLinearMixForQ12Gains() {
+        byte[][] tracks = allSampleTracks();
+        float[][] gainsList = {{2.0f, 1.0f}, {1.0f, 1.0f}, {0.5f, 1.5f}, {0.25f, 3.0f}, {0f, 1.0f}};
+        for (float[] gains : gainsList) {
+            byte[] expected = linearMix(tracks, tracks[0].length, gains, true);
+            assertArrayEquals("gains " + gains[0] + "," + gains[1], expected, mixAverage(tracks, gains));
+        }
+    }
+
+    /**
+     * 与原来的实现只在有负采样时因取整方式不同相差 1，两路都不为负时完全一致
+     */
+    @Test
+    public void averageDiffersFromOldLinearMixOnlyOnNegativeSamples() {
+        byte[][] tracks = allSampleTracks();
+        float[] gains = {2.0f, 1.0f};
+        byte[] expected = linearMix(tracks, tracks[0].length, gains, false);
+        byte[] actual = mixAverage(tracks, gains);
+        int differentCount = 0;
+        for (int i = 0; i < expected.length / 2; i++) {
+            int diff = sampleAt(expected, i) - sampleAt(actual, i);
+            if (sampleAt(tracks[0], i) >= 0 && sampleAt(tracks[1], i) >= 0) {
+                assertEquals("sample " + i, 0, diff);
+            } else {
+                assertTrue("sample " + i + " diff " + diff, diff == 0 || diff == 1);
+            }
+            if (diff != 0) {
+                differentCount++;
+            }
+        }
+        assertTrue(differentCount > 0);
+    }
+
+    /**
+     * 其它增益按 1/4096 量化，满幅时误差不超过 5
+     */
+    @Test
+    public void averageCloseToRoundedLinearMixForOtherGains() {
+        byte[][] tracks = allSampleTracks();
+        float[][] gainsList = {{0.7f, 1.3f}, {0.1f, 2.9f}, {1.0f / 3, 1.0f}};
+        for (float[] gains : gainsList) {
+            byte[] expected = linearMix(tracks, tracks[0].length, gains, true);
+            byte[] actual = mixAverage(tracks, gains);
+            for (int i = 0; i < expected.length / 2; i++) {
+                int diff = Math.abs(sampleAt(expected, i) - sampleAt(actual, i));
+                assertTrue("sample " + i + " diff " + diff, diff <= 5);
+            }
+        }
+    }
+
+    @Test
+    public void outCanBeFirstTrack() {
+        byte[][] tracks = allSampleTracks();
+        float[] gains = {2.0f, 1.0f};
+        byte[] expected = linearMix(tracks, tracks[0].length, gains, true);
+        PcmMixer mixer = new PcmMixer(2);
+        mixer.setTrackGains(gains);
+        mixer.mix(tracks, tracks[0].length, tracks[0]);
+        assertArrayEquals(expected, tracks[0]);
+    }
+
+    @Test
+    public void saturateClamps() {
+        PcmMixer mixer = new PcmMixer(2);
+        mixer.setStrategy(PcmMixer.STRATEGY_SATURATE);
+        byte[][] tracks = {toBytes(new short[]{30000, -30000, 100}), toBytes(new short[]{30000, -30000, -50})};
+        byte[] out = new byte[6];
+        mixer.mix(tracks, 6, out);
+        assertEquals(Short.MAX_VALUE, sampleAt(out, 0));
+        assertEquals(Short.MIN_VALUE, sampleAt(out, 1));
+        assertEquals(50, sampleAt(out, 2));
+    }
+
+    @Test
+    public void softClipIsMonotonicAndBounded() {
+        PcmMixer mixer = new PcmMixer(2);
+        mixer.setStrategy(PcmMixer.STRATEGY_SOFT_CLIP);
+        short[] first = new short[65536];
+        short[] second = new short[65536];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (short) (i + Short.MIN_VALUE);
+            second[i] = first[i];
+        }
+        byte[][] tracks = {toBytes(first), toBytes(second)};
+        byte[] out = new byte[tracks[0].length];
+        mixer.mix(tracks, out.length, out);
+        int last = Integer.MIN_VALUE;
+        for (int i = 0; i < first.length; i++) {
+            int value = sampleAt(out, i);
+            assertTrue("sample " + i, value >= last);
+            last = value;
+            int sum = 2 * first[i];
+            if (Math.abs(sum) <= Short.MAX_VALUE * 3 / 4) {
+                // 拐点以内原样输出
+                assertEquals(sum, value);
+            }
+        }
+    }
+
+    @Test
+    public void adaptiveWeightsBySampleMagnitude() {
+        PcmMixer mixer = new PcmMixer(2);
+        mixer.setStrategy(PcmMixer.STRATEGY_ADAPTIVE);
+        byte[][] tracks = {toBytes(new short[]{1000, 0, -300}), toBytes(new short[]{3000, 0, 100})};
+        byte[] out = new byte[6];
+        mixer.mix(tracks, 6, out);
+        // (1000 * 1000 + 3000 * 3000) / 4000
+        assertEquals(2500, sampleAt(out, 0));
+        assertEquals(0, sampleAt(out, 1));
+        // (-300 * 300 + 100 * 100) / 400
+        assertEquals(-200, sampleAt(out, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trackCountMismatch() {
+        new PcmMixer(2).mix(new byte[][]{new byte[4]}, 4, new byte[4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeGain() {
+        new PcmMixer(1).setTrackGain(0, -1f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nanGain() {
+        new PcmMixer(1).setTrackGain(0, Float.NaN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLargeGain() {
+        new PcmMixer(1).setTrackGain(0, PcmMixer.MAX_TRACK_GAIN);
+    }
+
+    /**
+     * 接近上限的增益乘满幅采样不会溢出回绕，饱和到最大/最小值
+     */
+    @Test
+    public void largestGainSaturates() {
+        PcmMixer mixer = new PcmMixer(1);
+        mixer.setStrategy(PcmMixer.STRATEGY_SATURATE);
+        mixer.setTrackGain(0, Math.nextDown(PcmMixer.MAX_TRACK_GAIN));
+        byte[] track = {0x00, (byte) 0x80, (byte) 0xff, 0x7f, 0x01, 0x00};
+        byte[] out = new byte[6];
+        mixer.mix(new byte[][]{track}, 6, out);
+        assertArrayEquals(new byte[]{0x00, (byte) 0x80, (byte) 0xff, 0x7f, 0x10, 0x00}, out);
+    }
+
+}
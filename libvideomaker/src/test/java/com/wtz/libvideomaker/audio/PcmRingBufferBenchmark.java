@@ -0,0 +1,145 @@
+package com.wtz.libvideomaker.audio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PcmRingBuffer 与原来 LinkedBlockingQueue<Byte> 逐字节传递 PCM 的对比，在开发机的 JVM 上运行 main
+ * <p>
+ * 1. roundTrip*：同一线程写入再读出一次回调的数据，衡量每字节的装箱、加锁开销；
+ * 2. transfer*：生产者、消费者各一个线程，都不阻塞，能写多少写多少、能读多少读多少，
+ * 按消费者实际读到的字节数 bytesRead 比较吞吐量。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class PcmRingBufferBenchmark {
+
+    private static final int CAPACITY = 16384;
+
+    // 4096 是 44.1kHz 双声道 16 位一次回调约 23ms 的数据
+    @Param({"1024", "4096"})
+    public int chunkSize;
+
+    private byte[] mChunk;
+    private PcmRingBuffer mRingBuffer;
+    private LinkedBlockingQueue<Byte> mQueue;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        mChunk = new byte[chunkSize];
+        new Random(1).nextBytes(mChunk);
+        mRingBuffer = new PcmRingBuffer(CAPACITY);
+        mQueue = new LinkedBlockingQueue<>(CAPACITY);
+    }
+
+    @State(Scope.Thread)
+    public static class ReaderState {
+        byte[] dst;
+
+        @Setup
+        public void setup(PcmRingBufferBenchmark benchmark) {
+            dst = new byte[benchmark.chunkSize];
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ReadCounter {
+        public long bytesRead;
+    }
+
+    @Benchmark
+    @Group("roundTripRing")
+    public byte[] roundTripRing(ReaderState reader) {
+        mRingBuffer.write(mChunk, 0, chunkSize);
+        mRingBuffer.read(reader.dst, 0, chunkSize);
+        return reader.dst;
+    }
+
+    @Benchmark
+    @Group("roundTripQueue")
+    public byte[] roundTripQueue(ReaderState reader) {
+        final byte[] chunk = mChunk;
+        for (byte b : chunk) {
+            mQueue.offer(b);
+        }
+        final byte[] dst = reader.dst;
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = mQueue.poll();
+        }
+        return dst;
+    }
+
+    @Benchmark
+    @Group("transferRing")
+    @GroupThreads(1)
+    public int transferRingWrite() {
+        return mRingBuffer.write(mChunk, 0, chunkSize);
+    }
+
+    @Benchmark
+    @Group("transferRing")
+    @GroupThreads(1)
+    public int transferRingRead(ReaderState reader, ReadCounter counter) {
+        int read = mRingBuffer.read(reader.dst, 0, chunkSize);
+        counter.bytesRead += read;
+        return read;
+    }
+
+    @Benchmark
+    @Group("transferQueue")
+    @GroupThreads(1)
+    public int transferQueueWrite() {
+        final byte[] chunk = mChunk;
+        int written = 0;
+        while (written < chunk.length && mQueue.offer(chunk[written])) {
+            written++;
+        }
+        return written;
+    }
+
+    @Benchmark
+    @Group("transferQueue")
+    @GroupThreads(1)
+    public int transferQueueRead(ReaderState reader, ReadCounter counter) {
+        final byte[] dst = reader.dst;
+        int read = 0;
+        Byte b;
+        while (read < dst.length && (b = mQueue.poll()) != null) {
+            dst[read++] = b;
+        }
+        counter.bytesRead += read;
+        return read;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PcmRingBufferBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+    private static byte[] sequence(int start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (start + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new PcmRingBuffer(1).capacity());
+        assertEquals(8, new PcmRingBuffer(5).capacity());
+        assertEquals(4096, new PcmRingBuffer(4096).capacity());
+        assertEquals(8192, new PcmRingBuffer(4097).capacity());
+    }
+
+    /**
+     * 读写跨过数组末尾时分两段拷贝，内容不变
+     */
+    @Test
+    public void wrapAroundKeepsOrder() {
+        PcmRingBuffer buffer = new PcmRingBuffer(16);
+        byte[] out = new byte[16];
+        int written = 0;
+        int read = 0;
+        for (int round = 0; round < 100; round++) {
+            int length = 1 + round % 11;
+            assertEquals(length, buffer.write(sequence(written, length), 0, length));
+            written += length;
+            assertEquals(length, buffer.available());
+            assertEquals(16 - length, buffer.remaining());
+            assertEquals(length, buffer.read(out, 0, length));
+            for (int i = 0; i < length; i++) {
+                assertEquals((byte) (read + i), out[i]);
+            }
+            read += length;
+        }
+        assertEquals(0, buffer.available());
+    }
+
+    @Test
+    public void nonBlockingWriteAndReadArePartial() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        assertEquals(8, buffer.write(sequence(0, 12), 0, 12));
+        assertEquals(0, buffer.write(sequence(0, 1), 0, 1));
+        byte[] out = new byte[12];
+        assertEquals(8, buffer.read(out, 2, 10));
+        assertArrayEquals(sequence(0, 8), Arrays.copyOfRange(out, 2, 10));
+        assertEquals(0, buffer.read(out, 0, 1));
+    }
+
+    @Test
+    public void timedOpsReturnAfterTimeout() throws InterruptedException {
+        PcmRingBuffer buffer = new PcmRingBuffer(4);
+        long start = System.nanoTime();
+        assertEquals(0, buffer.read(new byte[4], 0, 4, 20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(19));
+
+        assertEquals(4, buffer.write(sequence(0, 6), 0, 6, 20, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void clearDropsReadableData() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(sequence(0, 5), 0, 5);
+        buffer.clear();
+        assertEquals(0, buffer.available());
+        assertEquals(8, buffer.remaining());
+        buffer.write(sequence(5, 3), 0, 3);
+        byte[] out = new byte[3];
+        assertEquals(3, buffer.read(out, 0, 3));
+        assertArrayEquals(sequence(5, 3), out);
+    }
+
+    /**
+     * 生产者和消费者各一个线程，用阻塞读写传递 4MB 数据，顺序和内容完全一致
+     */
+    @Test(timeout = 20000)
+    public void producerConsumerTransfersAllBytes() throws Exception {
+        final PcmRingBuffer buffer = new PcmRingBuffer(1024);
+        final int total = 4 * 1024 * 1024;
+        final Throwable[] producerError = new Throwable[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int written = 0;
+                    int chunk = 1;
+                    while (written < total) {
+                        int length = Math.min(chunk, total - written);
+                        buffer.writeFully(sequence(written, length), 0, length);
+                        written += length;
+                        chunk = chunk % 3000 + 7;
+                    }
+                } catch (Throwable e) {
+                    producerError[0] = e;
+                }
+            }
+        });
+        producer.start();
+
+        byte[] out = new byte[2000];
+        int read = 0;
+        int chunk = 5;
+        while (read < total) {
+            int length = Math.min(chunk, total - read);
+            buffer.readFully(out, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (out[i] != (byte) (read + i)) {
+                    throw new AssertionError("byte " + (read + i));
+                }
+            }
+            read += length;
+            chunk = chunk % 1900 + 13;
+        }
+        producer.join();
+        assertNull(producerError[0]);
+        assertEquals(0, buffer.available());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalCapacity() {
+        new PcmRingBuffer(0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfBounds() {
+        new PcmRingBuffer(8).write(new byte[4], 2, 3);
+    }
+
+}
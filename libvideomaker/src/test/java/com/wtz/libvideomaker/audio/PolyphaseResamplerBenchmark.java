@@ -0,0 +1,87 @@
+package com.wtz.libvideomaker.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PolyphaseResampler 的吞吐量，结果是每秒处理的输入采样点个数（每个采样点包含所有声道），
+ * 与采样率相除就是实时倍数，在开发机的 JVM 上运行 main
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PolyphaseResamplerBenchmark {
+
+    // 每次调用送入的采样点个数，约 23ms 的 44.1kHz 数据
+    private static final int FRAMES = 1024;
+
+    @Param({"44100:48000", "48000:44100", "48000:16000", "16000:48000"})
+    public String rates;
+
+    @Param({"2"})
+    public int channels;
+
+    private PolyphaseResampler mResampler;
+    private PolyphaseResampler mByteResampler;
+    private short[] mIn;
+    private short[] mOut;
+    private byte[] mInBytes;
+    private byte[] mOutBytes;
+
+    @Setup
+    public void setup() {
+        String[] parts = rates.split(":");
+        int inputRate = Integer.parseInt(parts[0]);
+        int outputRate = Integer.parseInt(parts[1]);
+        mResampler = new PolyphaseResampler(inputRate, outputRate, channels);
+        mByteResampler = new PolyphaseResampler(inputRate, outputRate, channels);
+
+        Random random = new Random(1);
+        mIn = new short[FRAMES * channels];
+        for (int i = 0; i < mIn.length; i++) {
+            mIn[i] = (short) random.nextInt();
+        }
+        mOut = new short[mResampler.getMaxOutputFrames(FRAMES) * channels];
+        mInBytes = new byte[FRAMES * channels * 2];
+        random.nextBytes(mInBytes);
+        mOutBytes = new byte[mByteResampler.getMaxOutputBytes(mInBytes.length)];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int processShorts() {
+        return mResampler.process(mIn, 0, FRAMES, mOut, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int processBytes() {
+        return mByteResampler.process(mInBytes, 0, mInBytes.length, mOutBytes, 0);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PolyphaseResamplerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
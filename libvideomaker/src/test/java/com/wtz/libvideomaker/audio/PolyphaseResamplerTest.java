@@ -0,0 +1,192 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseResamplerTest {
+
+    private static short[] sine(int rate, double frequency, double amplitude, int frames, int channels) {
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / rate));
+            for (int ch = 0; ch < channels; ch++) {
+                samples[i * channels + ch] = value;
+            }
+        }
+        return samples;
+    }
+
+    private static short[] resample(PolyphaseResampler resampler, short[] in) {
+        int inFrames = in.length / resampler.getChannels();
+        short[] out = new short[resampler.getMaxOutputFrames(inFrames) * resampler.getChannels()];
+        int outFrames = resampler.process(in, 0, inFrames, out, 0);
+        return Arrays.copyOf(out, outFrames * resampler.getChannels());
+    }
+
+    /**
+     * 在 [start, start + length) 上按最小二乘拟合 frequency 的正弦，返回 {拟合幅度, 残差有效值}
+     */
+    private static double[] fitSine(short[] samples, int channel, int channels, int rate, double frequency,
+                                    int start, int length) {
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int i = start; i < start + length; i++) {
+            double s = Math.sin(2 * Math.PI * frequency * i / rate);
+            double c = Math.cos(2 * Math.PI * frequency * i / rate);
+            double y = samples[i * channels + channel];
+            ss += s * s;
+            sc += s * c;
+            cc += c * c;
+            ys += y * s;
+            yc += y * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det;
+        double b = (yc * ss - ys * sc) / det;
+        double residual = 0;
+        for (int i = start; i < start + length; i++) {
+            double s = Math.sin(2 * Math.PI * frequency * i / rate);
+            double c = Math.cos(2 * Math.PI * frequency * i / rate);
+            double e = samples[i * channels + channel] - a * s - b * c;
+            residual += e * e;
+        }
+        return new double[]{Math.hypot(a, b), Math.sqrt(residual / length)};
+    }
+
+    private static double rms(short[] samples, int start, int end) {
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (end - start));
+    }
+
+    private static double decibels(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    @Test
+    public void outputLengthFollowsRatio() {
+        PolyphaseResampler resampler = new PolyphaseResampler(44100, 48000, 2);
+        assertEquals(2, resampler.getChannels());
+        short[] out = resample(resampler, new short[44100 * 2]);
+        assertEquals(48000, out.length / 2, 1);
+
+        resampler = new PolyphaseResampler(48000, 16000, 1);
+        assertEquals(16000, resample(resampler, new short[48000]).length);
+        // 降采样时按倍数增加系数个数
+        assertEquals(PolyphaseResampler.DEFAULT_TAPS_PER_PHASE * 3, resampler.getTapsPerPhase());
+    }
+
+    /**
+     * 44.1kHz 的 1kHz 正弦转成 48kHz，除去基波之外的谐波失真加噪声低于 -75dB，幅度基本不变
+     */
+    @Test
+    public void upsampledSineHasLowDistortion() {
+        short[] out = resample(new PolyphaseResampler(44100, 48000, 2), sine(44100, 1000, 16000, 44100, 2));
+        for (int ch = 0; ch < 2; ch++) {
+            // 跳过滤波器的启动阶段，分析 4800 个采样点，正好 100 个周期
+            double[] fit = fitSine(out, ch, 2, 48000, 1000, 4800, 4800);
+            assertEquals(16000, fit[0], 16000 * 0.01);
+            double thd = decibels(fit[1] / fit[0]);
+            assertTrue("thd " + thd + "dB", thd < -75);
+        }
+    }
+
+    @Test
+    public void downsampledPassbandSineHasLowDistortion() {
+        short[] out = resample(new PolyphaseResampler(48000, 16000, 1), sine(48000, 1000, 16000, 48000, 1));
+        double[] fit = fitSine(out, 0, 1, 16000, 1000, 1600, 8000);
+        assertEquals(16000, fit[0], 16000 * 0.01);
+        double thd = decibels(fit[1] / fit[0]);
+        assertTrue("thd " + thd + "dB", thd < -75);
+    }
+
+    /**
+     * 48kHz -> 16kHz 时 12kHz 超过输出的奈奎斯特频率，不能混叠成 4kHz 留在输出里，衰减达到设计的 70dB 阻带
+     */
+    @Test
+    public void downsamplingRejectsAliasing() {
+        short[] out = resample(new PolyphaseResampler(48000, 16000, 1), sine(48000, 12000, 16000, 48000, 1));
+        double attenuation = decibels(rms(out, 1600, out.length) / (16000 / Math.sqrt(2)));
+        assertTrue("alias " + attenuation + "dB", attenuation < -70);
+    }
+
+    /**
+     * 字节接口按任意大小（包括半个采样点）分块送入，结果与 short 接口一次性处理完全一致
+     */
+    @Test
+    public void chunkedBytesMatchOneShot() {
+        short[] in = sine(22050, 440, 12000, 22050, 2);
+        short[] expected = resample(new PolyphaseResampler(22050, 44100, 2), in);
+
+        byte[] bytes = new byte[in.length * 2];
+        for (int i = 0; i < in.length; i++) {
+            bytes[i * 2] = (byte) in[i];
+            bytes[i * 2 + 1] = (byte) (in[i] >> 8);
+        }
+        PolyphaseResampler resampler = new PolyphaseResampler(22050, 44100, 2);
+        byte[] out = new byte[expected.length * 2 + resampler.getMaxOutputBytes(4096)];
+        int outBytes = 0;
+        int chunk = 1;
+        for (int index = 0; index < bytes.length; ) {
+            int length = Math.min(chunk, bytes.length - index);
+            int max = resampler.getMaxOutputBytes(length);
+            int produced = resampler.process(bytes, index, length, out, outBytes);
+            assertTrue(produced <= max);
+            outBytes += produced;
+            index += length;
+            chunk = chunk % 4001 + 3;
+        }
+
+        short[] actual = new short[outBytes / 2];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = (short) ((out[i * 2] & 0xff) | (out[i * 2 + 1] << 8));
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void ratioCorrectionChangesOutputRate() {
+        PolyphaseResampler resampler = new PolyphaseResampler(48000, 48000, 1);
+        resampler.setRatioCorrection(0.01);
+        assertEquals(48480, resample(resampler, new short[48000]).length, 2);
+
+        resampler.setRatioCorrection(1);
+        assertEquals(PolyphaseResampler.MAX_RATIO_CORRECTION, resampler.getRatioCorrection(), 0);
+
+        // 微调时相邻相位插值，正弦仍然干净
+        resampler = new PolyphaseResampler(44100, 48000, 1);
+        resampler.setRatioCorrection(-0.002);
+        short[] out = resample(resampler, sine(44100, 1000, 16000, 44100, 1));
+        // 实际输出采样率 48000 * (1 - 0.002) = 47904Hz
+        double[] fit = fitSine(out, 0, 1, 47904, 1000, 4800, 4790);
+        double thd = decibels(fit[1] / fit[0]);
+        assertTrue("thd " + thd + "dB", thd < -75);
+    }
+
+    @Test
+    public void resetClearsState() {
+        PolyphaseResampler resampler = new PolyphaseResampler(16000, 48000, 1);
+        short[] in = sine(16000, 500, 10000, 1600, 1);
+        short[] first = resample(resampler, in);
+        resample(resampler, sine(16000, 3000, 20000, 777, 1));
+        resampler.reset();
+        assertArrayEquals(first, resample(resampler, in));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalChannels() {
+        new PolyphaseResampler(44100, 48000, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooComplexRatio() {
+        new PolyphaseResampler(44101, 48000, 1);
+    }
+
+}
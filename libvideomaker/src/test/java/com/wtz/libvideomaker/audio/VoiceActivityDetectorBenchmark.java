@@ -0,0 +1,81 @@
+package com.wtz.libvideomaker.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VoiceActivityDetector 每判断一帧（20ms）数据的耗时，与帧长相除就是占用一个核的比例，在开发机的 JVM 上运行 main
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VoiceActivityDetectorBenchmark {
+
+    // 采样率:声道数
+    @Param({"16000:1", "44100:2", "48000:2"})
+    public String format;
+
+    private VoiceActivityDetector mDetector;
+    private VoiceActivityDetector mMuteDetector;
+    private short[] mFrame;
+    private short[] mMuteFrame;
+
+    @Setup
+    public void setup() {
+        String[] parts = format.split(":");
+        int sampleRate = Integer.parseInt(parts[0]);
+        int channels = Integer.parseInt(parts[1]);
+        mDetector = new VoiceActivityDetector(sampleRate, channels);
+        mMuteDetector = new VoiceActivityDetector(sampleRate, channels);
+        mMuteDetector.setMode(VoiceActivityDetector.MODE_MUTE);
+
+        // 语音帧是底噪上叠加 300Hz 正弦，静音帧只有底噪
+        Random random = new Random(1);
+        mFrame = new short[sampleRate / 50 * channels];
+        mMuteFrame = new short[mFrame.length];
+        for (int i = 0; i < mFrame.length; i++) {
+            int noise = random.nextInt(81) - 40;
+            double tone = 3000 * Math.sin(2 * Math.PI * 300 * (i / channels) / sampleRate);
+            mFrame[i] = (short) (tone + noise);
+            mMuteFrame[i] = (short) noise;
+        }
+    }
+
+    @Benchmark
+    public boolean detect() {
+        return mDetector.detect(mFrame, 0, mFrame.length);
+    }
+
+    /**
+     * 静音帧在 MODE_MUTE 下还要原地清零，第一次之后送入的是数字静音，判断和清零的开销不变
+     */
+    @Benchmark
+    public int gateMute() {
+        return mMuteDetector.gate(mMuteFrame, 0, mMuteFrame.length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(VoiceActivityDetectorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.wtz.libvideomaker.audio;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 50;// 20ms
+
+    // 均匀分布 ±40 的底噪，能量约 533，低于绝对门限
+    private static final int NOISE_AMPLITUDE = 40;
+    // 300Hz 正弦，能量约为底噪的 20 倍，过零率低，只能靠能量判断
+    private static final int SPEECH_AMPLITUDE = 146;
+
+    private final Random mRandom = new Random(1);
+    private double mPhase;
+
+    private short[] nextFrame(int noiseAmplitude, int toneAmplitude) {
+        short[] frame = new short[FRAME_SAMPLES];
+        for (int i = 0; i < frame.length; i++) {
+            double tone = toneAmplitude * Math.sin(mPhase);
+            mPhase += 2 * Math.PI * 300 / SAMPLE_RATE;
+            frame[i] = (short) (tone + mRandom.nextInt(2 * noiseAmplitude + 1) - noiseAmplitude);
+        }
+        return frame;
+    }
+
+    @Test
+    public void defaultModeKeepsSilence() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+        assertEquals(VoiceActivityDetector.MODE_MARK, detector.getMode());
+        for (int i = 0; i < 100; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            assertEquals(frame.length, detector.gate(frame, 0, frame.length));
+        }
+        assertFalse(detector.isLastSpeech());
+    }
+
+    /**
+     * 连续说话 30 秒中间没有停顿，每一帧都要判为语音，噪声底不能追上语音能量
+     */
+    @Test
+    public void longSpeechStaysActive() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+        detector.setMode(VoiceActivityDetector.MODE_DROP);
+        for (int i = 0; i < 100; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            assertEquals(0, detector.gate(frame, 0, frame.length));
+        }
+        for (int i = 0; i < 50 * 30; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, SPEECH_AMPLITUDE);
+            assertEquals("frame " + i, frame.length, detector.gate(frame, 0, frame.length));
+        }
+
+        // 说话结束，拖尾之后回到静音
+        for (int i = 0; i < 20; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            detector.gate(frame, 0, frame.length);
+        }
+        assertFalse(detector.isLastSpeech());
+    }
+
+    @Test
+    public void hangoverKeepsShortPause() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+        for (int i = 0; i < 50; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            detector.detect(frame, 0, frame.length);
+        }
+        for (int i = 0; i < 50; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, SPEECH_AMPLITUDE);
+            assertTrue(detector.detect(frame, 0, frame.length));
+        }
+        // 200ms 的字间停顿在 300ms 拖尾之内
+        for (int i = 0; i < 10; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            assertTrue(detector.detect(frame, 0, frame.length));
+        }
+        for (int i = 0; i < 50; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, SPEECH_AMPLITUDE);
+            assertTrue(detector.detect(frame, 0, frame.length));
+        }
+    }
+
+    /**
+     * 环境噪声持续变大，刚开始会被当成语音，噪声底最终要跟上
+     */
+    @Test
+    public void noiseFloorFollowsLouderNoise() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+        for (int i = 0; i < 100; i++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            detector.detect(frame, 0, frame.length);
+        }
+        short[] frame = nextFrame(NOISE_AMPLITUDE * 4, 0);
+        assertTrue(detector.detect(frame, 0, frame.length));
+        for (int i = 0; i < 50 * 120; i++) {
+            frame = nextFrame(NOISE_AMPLITUDE * 4, 0);
+            detector.detect(frame, 0, frame.length);
+        }
+        assertFalse(detector.isLastSpeech());
+    }
+
+    @Test
+    public void muteModeClearsSilence() {
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 2);
+        detector.setMode(VoiceActivityDetector.MODE_MUTE);
+        short[] stereo = new short[FRAME_SAMPLES * 2];
+        for (int n = 0; n < 20; n++) {
+            short[] frame = nextFrame(NOISE_AMPLITUDE, 0);
+            for (int i = 0; i < frame.length; i++) {
+                stereo[2 * i] = frame[i];
+                stereo[2 * i + 1] = frame[i];
+            }
+            assertEquals(stereo.length, detector.gate(stereo, 0, stereo.length));
+        }
+        for (short sample : stereo) {
+            assertEquals(0, sample);
+        }
+    }
+
+    /**
+     * 读取 src/test/resources/vad 下 16kHz 单声道 16 位小端的 PCM 片段：
+     * silence 是约 -50dBFS 的低通噪声加 50Hz 交流声，帧能量在 1400 到 3400 之间波动；
+     * speech 是合成的一句话，清辅音开头的音节、字间 120-200ms 的停顿，叠加同样的噪声
+     */
+    private static short[] loadFixture(String name) throws IOException {
+        InputStream in = VoiceActivityDetectorTest.class.getResourceAsStream("/vad/" + name);
+        assertNotNull(name, in);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        short[] samples = new short[bytes.size() / 2];
+        ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    /**
+     * 按 20ms 一帧判断，返回判为语音的帧个数，跳过开头 skipFrames 帧不统计
+     */
+    private static int countSpeechFrames(VoiceActivityDetector detector, short[] samples, int skipFrames) {
+        int speechFrames = 0;
+        for (int i = 0, frame = 0; i + FRAME_SAMPLES <= samples.length; i += FRAME_SAMPLES, frame++) {
+            if (detector.detect(samples, i, FRAME_SAMPLES) && frame >= skipFrames) {
+                speechFrames++;
+            }
+        }
+        return speechFrames;
+    }
+
+    /**
+     * 静音、一句话、静音依次送入：语音帧至少 95% 判对，拖尾之外的静音帧误判不超过 2%
+     */
+    @Test
+    public void fixtureAccuracy() throws IOException {
+        short[] silence = loadFixture("silence_16k_mono.pcm");
+        short[] speech = loadFixture("speech_16k_mono.pcm");
+        int silenceFrames = silence.length / FRAME_SAMPLES;
+        int speechFrames = speech.length / FRAME_SAMPLES;
+        int hangoverFrames = 300 / 20;
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+
+        int leadingFalse = countSpeechFrames(detector, silence, 0);
+        int speechTrue = countSpeechFrames(detector, speech, 0);
+        int trailingFalse = countSpeechFrames(detector, silence, hangoverFrames);
+
+        assertTrue("leading silence " + leadingFalse, leadingFalse * 50 <= silenceFrames);
+        assertTrue("speech " + speechTrue + "/" + speechFrames, speechTrue * 100 >= speechFrames * 95);
+        assertTrue("trailing silence " + trailingFalse, trailingFalse * 50 <= silenceFrames - hangoverFrames);
+        assertFalse(detector.isLastSpeech());
+
+        int total = silenceFrames * 2 + speechFrames - hangoverFrames;
+        int correct = silenceFrames - leadingFalse + speechTrue + silenceFrames - hangoverFrames - trailingFalse;
+        assertTrue("accuracy " + correct + "/" + total, correct * 100 >= total * 95);
+    }
+
+    /**
+     * 一开始就说话时第一帧作为噪声底，之后的静音把噪声底立即拉回来，不会一直判为语音
+     */
+    @Test
+    public void fixtureSpeechFirst() throws IOException {
+        short[] silence = loadFixture("silence_16k_mono.pcm");
+        short[] speech = loadFixture("speech_16k_mono.pcm");
+        VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 1);
+        countSpeechFrames(detector, speech, 0);
+        int trailingFalse = countSpeechFrames(detector, silence, 300 / 20);
+        assertTrue("trailing silence " + trailingFalse, trailingFalse * 50 <= silence.length / FRAME_SAMPLES);
+        assertFalse(detector.isLastSpeech());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalMode() {
+        new VoiceActivityDetector(SAMPLE_RATE, 1).setMode(3);
+    }
+
+}
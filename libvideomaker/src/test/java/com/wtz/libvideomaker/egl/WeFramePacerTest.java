@@ -0,0 +1,210 @@
+package com.wtz.libvideomaker.egl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WeFramePacerTest {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * 手动推进的时钟，sleep 按设定多睡或者提前醒来
+     */
+    private static class FakeClock implements WeFramePacer.Clock {
+        long now = 1000 * MS;
+        long oversleepNanos;
+        boolean isWakingEarly;
+        boolean isInterrupting;
+        int sleeps;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            sleeps++;
+            if (isInterrupting) {
+                now += nanos / 2;
+                throw new InterruptedException();
+            }
+            // 提前醒来时只睡一半，至少 1ns，保证循环能结束
+            now += isWakingEarly ? Math.max(1, nanos / 2) : nanos + oversleepNanos;
+        }
+
+        void draw(long nanos) {
+            now += nanos;
+        }
+    }
+
+    /**
+     * 绘制耗时和 sleep 多睡的时间都不累积，帧开始时间始终落在截止时间网格上
+     */
+    @Test
+    public void oversleepDoesNotAccumulate() {
+        FakeClock clock = new FakeClock();
+        clock.oversleepNanos = MS;
+        WeFramePacer pacer = new WeFramePacer(30, clock);
+        long interval = 1000000000L / 30;
+
+        assertTrue(pacer.awaitNextFrame());
+        long first = clock.now;
+        for (int i = 0; i < 300; i++) {
+            clock.draw(10 * MS);
+            assertTrue(pacer.awaitNextFrame());
+        }
+        assertEquals(first + 300 * interval, clock.now);
+
+        WeFramePacer.Stats stats = pacer.getStats();
+        assertEquals(301, stats.frames);
+        assertEquals(0, stats.lateFrames);
+        assertEquals(0, stats.missedDeadlines);
+        assertEquals(300, stats.frameIntervals.getCount());
+        assertEquals(interval / (float) MS, stats.frameIntervals.getMeanMills(), 0.001);
+        assertEquals(10, stats.drawTimes.getMeanMills(), 0.001);
+    }
+
+    @Test
+    public void earlyWakeupSleepsUntilDeadline() {
+        FakeClock clock = new FakeClock();
+        clock.isWakingEarly = true;
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        long start = clock.now;
+        pacer.awaitNextFrame();
+        assertEquals(start + 20 * MS, clock.now);
+        assertTrue(clock.sleeps > 1);
+    }
+
+    /**
+     * 迟到不超过 1/4 帧间隔时立即开始下一帧，之后仍回到原来的网格上
+     */
+    @Test
+    public void slightlyLateFrameKeepsGrid() {
+        FakeClock clock = new FakeClock();
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        pacer.awaitNextFrame();
+        long first = clock.now;
+
+        clock.draw(23 * MS);
+        int sleeps = clock.sleeps;
+        pacer.awaitNextFrame();
+        assertEquals(sleeps, clock.sleeps);
+        assertEquals(first + 23 * MS, clock.now);
+
+        clock.draw(5 * MS);
+        pacer.awaitNextFrame();
+        assertEquals(first + 40 * MS, clock.now);
+        assertEquals(1, pacer.getStats().lateFrames);
+        assertEquals(0, pacer.getStats().missedDeadlines);
+    }
+
+    /**
+     * 迟到太多时放弃错过的截止时间，从当前时间重新对齐，不连续追帧
+     */
+    @Test
+    public void veryLateFrameRealigns() {
+        FakeClock clock = new FakeClock();
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        pacer.awaitNextFrame();
+        long first = clock.now;
+
+        clock.draw(50 * MS);
+        pacer.awaitNextFrame();
+        // 截止时间 first + 20ms 迟到 30ms，错过了它和 first + 40ms 两个
+        assertEquals(first + 50 * MS, clock.now);
+        assertEquals(2, pacer.getStats().missedDeadlines);
+        assertEquals(0, pacer.getStats().lateFrames);
+
+        clock.draw(5 * MS);
+        pacer.awaitNextFrame();
+        assertEquals(first + 70 * MS, clock.now);
+    }
+
+    @Test
+    public void setFpsRealignsNextFrame() {
+        FakeClock clock = new FakeClock();
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        pacer.awaitNextFrame();
+        long first = clock.now;
+
+        clock.draw(3 * MS);
+        pacer.setFps(25);
+        assertEquals(25, pacer.getFps());
+        pacer.awaitNextFrame();
+        assertEquals(first + 43 * MS, clock.now);
+        clock.draw(3 * MS);
+        pacer.awaitNextFrame();
+        assertEquals(first + 83 * MS, clock.now);
+        assertEquals(0, pacer.getStats().missedDeadlines);
+    }
+
+    /**
+     * restart 之后的停顿不计入帧间隔统计
+     */
+    @Test
+    public void restartSkipsPause() {
+        FakeClock clock = new FakeClock();
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        pacer.awaitNextFrame();
+        pacer.awaitNextFrame();
+        pacer.restart();
+        clock.draw(5000 * MS);
+        pacer.awaitNextFrame();
+        pacer.awaitNextFrame();
+
+        WeFramePacer.Stats stats = pacer.getStats();
+        assertEquals(0, stats.missedDeadlines);
+        assertEquals(2, stats.frameIntervals.getCount());
+        assertEquals(20, stats.frameIntervals.getMaxMills(), 0.001);
+        assertEquals(2, stats.drawTimes.getCount());
+
+        pacer.resetStats();
+        assertEquals(0, pacer.getStats().frames);
+        assertEquals(0, pacer.getStats().frameIntervals.getCount());
+    }
+
+    @Test
+    public void interruptReturnsFalse() {
+        FakeClock clock = new FakeClock();
+        WeFramePacer pacer = new WeFramePacer(50, clock);
+        clock.isInterrupting = true;
+        assertFalse(pacer.awaitNextFrame());
+        assertEquals(1, pacer.getStats().frames);
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        WeFramePacer.Histogram histogram = new WeFramePacer.Histogram();
+        assertEquals(0, histogram.getPercentileMills(50), 0);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(MS);
+        }
+        histogram.record(100 * MS);
+        histogram.record(300 * MS);
+
+        assertEquals(100, histogram.getCount());
+        // 1ms 落在 [1, 1.25) 的桶里
+        assertEquals(1.25f, histogram.getPercentileMills(50), 0.0001);
+        assertEquals(1.25f, histogram.getPercentileMills(98), 0.0001);
+        assertEquals(100.25f, histogram.getPercentileMills(99), 0.0001);
+        // 超出 200ms 的计入最后一个桶，按最大值返回
+        assertEquals(300, histogram.getPercentileMills(100), 0.0001);
+        assertEquals(1, histogram.getBucketCounts()[WeFramePacer.Histogram.BUCKET_COUNT]);
+        assertEquals(4.98f, histogram.getMeanMills(), 0.0001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalFps() {
+        new WeFramePacer(0, new FakeClock());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullClock() {
+        new WeFramePacer(30, null);
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.wtz.libvideomaker.push;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBitrateControllerTest {
+
+    private static final int MIN = 200000;
+    private static final int MAX = 2200000;
+
+    @Test
+    public void initialBitrateIsClamped() {
+        assertEquals(MIN, new AdaptiveBitrateController(MIN, MAX, 1).getBitrate());
+        assertEquals(MAX, new AdaptiveBitrateController(MIN, MAX, Integer.MAX_VALUE).getBitrate());
+        assertEquals(1000000, new AdaptiveBitrateController(MIN, MAX, 1000000).getBitrate());
+    }
+
+    /**
+     * 连续 3 个畅通采样才加一个步长，中间有一个不畅通的采样就重新计数
+     */
+    @Test
+    public void increasesAfterClearSamples() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, 1000000);
+        int step = (MAX - MIN) / 20;
+        assertEquals(1000000, controller.onSample(0, 50, 0, 0));
+        assertEquals(1000000, controller.onSample(1000, 50, 125000, 0));
+        assertEquals(1000000, controller.onSample(2000, 500, 250000, 0));
+        assertEquals(1000000, controller.onSample(3000, 50, 375000, 0));
+        assertEquals(1000000, controller.onSample(4000, 50, 500000, 0));
+        assertEquals(1000000 + step, controller.onSample(5000, 50, 625000, 0));
+        assertEquals(1000000, controller.getThroughputBps());
+    }
+
+    /**
+     * 拥塞时乘性降低并且不超过可用带宽，之后保持 2 个采样不调整
+     */
+    @Test
+    public void decreasesToAvailableBandwidthAndHolds() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, 2000000);
+        controller.setReservedBitrate(128000);
+        controller.onSample(0, 100, 0, 0);
+        // 实测吞吐量 1Mbps，视频可用 (1000000 - 128000) * 0.9
+        int bitrate = controller.onSample(1000, 1500, 125000, 0);
+        assertEquals(784800, bitrate);
+        assertEquals(784800, controller.onSample(2000, 3000, 250000, 0));
+        assertEquals(784800, controller.onSample(3000, 3000, 375000, 0));
+        assertEquals((int) (784800 * 0.75f), controller.onSample(4000, 3000, 500000, 0));
+    }
+
+    @Test
+    public void droppedFramesTriggerDecrease() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, 1000000);
+        controller.onSample(0, 100, 0, 5);
+        assertEquals(1000000, controller.onSample(1000, 100, 0, 5));
+        assertEquals(750000, controller.onSample(2000, 100, 0, 6));
+    }
+
+    /**
+     * 延迟超过上限但在下降，码率又没有超过可用带宽，说明积压在消化，不再降低
+     */
+    @Test
+    public void drainingQueueIsNotCongestion() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, 500000);
+        controller.onSample(0, 100, 0, 0);
+        assertEquals(375000, controller.onSample(1000, 1800, 125000, 0));
+        assertEquals(375000, controller.onSample(2000, 1700, 250000, 0));
+        assertEquals(375000, controller.onSample(3000, 1600, 375000, 0));
+        // 保持期过后延迟仍在下降
+        assertEquals(375000, controller.onSample(4000, 1500, 500000, 0));
+        // 延迟不再下降，判为拥塞
+        assertEquals(281250, controller.onSample(5000, 1500, 625000, 0));
+    }
+
+    @Test
+    public void neverLeavesRange() {
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, MIN);
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            controller.onSample(time += 1000, 5000, 0, i);
+        }
+        assertEquals(MIN, controller.getBitrate());
+        for (int i = 0; i < 200; i++) {
+            controller.onSample(time += 1000, 0, 0, 20);
+        }
+        assertEquals(MAX, controller.getBitrate());
+    }
+
+    /**
+     * 闭环模拟：上行带宽 1.2Mbps，码率从最高开始，队列延迟最终被控制住，码率收敛到带宽以下且不过分保守
+     */
+    @Test
+    public void closedLoopConvergesBelowLinkCapacity() {
+        final int link = 1200000;
+        AdaptiveBitrateController controller = new AdaptiveBitrateController(MIN, MAX, MAX);
+        controller.setReservedBitrate(64000);
+        double queueBits = 0;
+        long sentBytes = 0;
+        long bitrateSum = 0;
+        int maxLatency = 0;
+        for (int second = 0; second < 300; second++) {
+            int bitrate = controller.getBitrate();
+            queueBits += bitrate + 64000;
+            double sentBits = Math.min(queueBits, link);
+            queueBits -= sentBits;
+            sentBytes += (long) (sentBits / 8);
+            int latencyMills = (int) (queueBits * 1000 / link);
+            controller.onSample(second * 1000L, latencyMills, sentBytes, 0);
+            if (second >= 60) {
+                bitrateSum += bitrate;
+                maxLatency = Math.max(maxLatency, latencyMills);
+            }
+        }
+        long average = bitrateSum / 240;
+        assertTrue("average " + average, average < link && average > link / 2);
+        assertTrue("latency " + maxLatency, maxLatency < 2000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalRange() {
+        new AdaptiveBitrateController(MAX, MIN, MIN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalThresholds() {
+        new AdaptiveBitrateController(MIN, MAX, MIN).setLatencyThresholds(200, 200);
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.wtz.libvideomaker.renderer.filters;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FilterShaderCompilerTest {
+
+    private static final FilterShaderCompiler.Stage BLUR = new FilterShaderCompiler.Stage("blur",
+            "color = (we_sample(vec2(-1.0, 0.0)) + color + we_sample(vec2(1.0, 0.0))) / 3.0;", true);
+
+    private static final FilterShaderCompiler.Stage SHARPEN = new FilterShaderCompiler.Stage("sharpen",
+            "color = color * 2.0 - we_sample(vec2(0.0, 1.0));", true);
+
+    private static void assertStages(FilterShaderCompiler.Pass pass, FilterShaderCompiler.Stage... stages) {
+        assertEquals(Arrays.asList(stages), pass.getStages());
+    }
+
+    @Test
+    public void emptyStagesIsOneCopyPass() {
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(null, false);
+        assertEquals(1, passes.size());
+        assertTrue(passes.get(0).getStages().isEmpty());
+        assertFalse(passes.get(0).needsTexelSize());
+        String source = passes.get(0).getFragmentSource();
+        assertTrue(source.contains("uniform sampler2D u_Texture;"));
+        assertTrue(source.contains("gl_FragColor = color;"));
+    }
+
+    /**
+     * 逐像素滤镜合并到一次绘制，按顺序调用
+     */
+    @Test
+    public void perPixelStagesAreFused() {
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(Arrays.asList(
+                FilterShaderCompiler.GRAY, FilterShaderCompiler.REVERSE, FilterShaderCompiler.LUMINANCE), false);
+        assertEquals(1, passes.size());
+        assertStages(passes.get(0), FilterShaderCompiler.GRAY, FilterShaderCompiler.REVERSE,
+                FilterShaderCompiler.LUMINANCE);
+
+        String source = passes.get(0).getFragmentSource();
+        int gray = source.indexOf("color = we_stage0_gray(color);");
+        int reverse = source.indexOf("color = we_stage1_reverse(color);");
+        int luminance = source.indexOf("color = we_stage2_luminance(color);");
+        assertTrue(gray > 0 && reverse > gray && luminance > reverse);
+        assertTrue(source.contains("float gray = color.r * 0.2125 + color.g * 0.7154 + color.b * 0.0721;"));
+        assertFalse(source.contains(FilterShaderCompiler.TEXEL_SIZE_UNIFORM));
+    }
+
+    /**
+     * 需要相邻像素的滤镜开始新的绘制，后面的逐像素滤镜合并进去
+     */
+    @Test
+    public void neighbourStageStartsNewPass() {
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(Arrays.asList(
+                FilterShaderCompiler.GRAY, BLUR, FilterShaderCompiler.REVERSE, SHARPEN), false);
+        assertEquals(3, passes.size());
+        assertStages(passes.get(0), FilterShaderCompiler.GRAY);
+        assertStages(passes.get(1), BLUR, FilterShaderCompiler.REVERSE);
+        assertStages(passes.get(2), SHARPEN);
+
+        assertFalse(passes.get(0).needsTexelSize());
+        assertTrue(passes.get(1).needsTexelSize());
+        String source = passes.get(1).getFragmentSource();
+        assertTrue(source.contains("uniform vec2 " + FilterShaderCompiler.TEXEL_SIZE_UNIFORM + ";"));
+        assertTrue(source.contains("vec4 we_sample(vec2 texelOffset)"));
+    }
+
+    @Test
+    public void firstNeighbourStageOnNormalTextureStaysInFirstPass() {
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(
+                Arrays.asList(BLUR, FilterShaderCompiler.GRAY), false);
+        assertEquals(1, passes.size());
+        assertStages(passes.get(0), BLUR, FilterShaderCompiler.GRAY);
+        assertTrue(passes.get(0).needsTexelSize());
+    }
+
+    /**
+     * OES 输入的第一次绘制是相机本身，逐像素滤镜合并进去，需要相邻像素的滤镜从第二次开始
+     */
+    @Test
+    public void oesInputKeepsNeighbourStagesOutOfCameraPass() {
+        List<FilterShaderCompiler.Pass> passes = FilterShaderCompiler.compile(
+                Collections.singletonList(BLUR), true);
+        assertEquals(2, passes.size());
+        assertTrue(passes.get(0).isExternalOesInput());
+        assertTrue(passes.get(0).getStages().isEmpty());
+        assertFalse(passes.get(1).isExternalOesInput());
+        assertStages(passes.get(1), BLUR);
+
+        passes = FilterShaderCompiler.compile(Arrays.asList(FilterShaderCompiler.GRAY, BLUR), true);
+        assertEquals(2, passes.size());
+        assertStages(passes.get(0), FilterShaderCompiler.GRAY);
+        String source = passes.get(0).getFragmentSource();
+        assertTrue(source.startsWith("// Generated by FilterShaderCompiler: gray\n"
+                + "#extension GL_OES_EGL_image_external : require\n"));
+        assertTrue(source.contains("uniform samplerExternalOES u_Texture;"));
+        assertFalse(passes.get(1).getFragmentSource().contains("samplerExternalOES"));
+    }
+
+    @Test
+    public void compileSingleMatchesCompile() {
+        FilterShaderCompiler.Pass pass = FilterShaderCompiler.compileSingle(FilterShaderCompiler.REVERSE);
+        assertFalse(pass.isExternalOesInput());
+        assertStages(pass, FilterShaderCompiler.REVERSE);
+        assertEquals(FilterShaderCompiler.compile(Collections.singletonList(FilterShaderCompiler.REVERSE), false)
+                .get(0).getFragmentSource(), pass.getFragmentSource());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compileSingleRejectsNeighbourStage() {
+        FilterShaderCompiler.compileSingle(BLUR);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalStageName() {
+        new FilterShaderCompiler.Stage("1gray", "", false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullStage() {
+        FilterShaderCompiler.compile(Arrays.asList(FilterShaderCompiler.GRAY, null), false);
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.wtz.libvideomaker.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadExitWaiterTest {
+
+    private boolean mCanPrintLog;
+
+    @Before
+    public void setUp() {
+        // 单元测试中没有 android.util.Log
+        mCanPrintLog = LogUtils.canPrintLog;
+        LogUtils.canPrintLog = false;
+    }
+
+    @After
+    public void tearDown() {
+        LogUtils.canPrintLog = mCanPrintLog;
+    }
+
+    /**
+     * 收到退出请求后先回调 onExited，再睡 lingerMills 才真正结束，模拟退出回调之后的收尾
+     */
+    private static Thread startWorker(final ThreadExitWaiter waiter, final String name,
+                                      final CountDownLatch exitRequest, final long lingerMills) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    exitRequest.await();
+                    waiter.onExited(name);
+                    Thread.sleep(lingerMills);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 同一个对象反复 reset/expect/onExited/await，每一轮都等到所有线程真正结束
+     */
+    @Test
+    public void repeatedCycles() {
+        ThreadExitWaiter waiter = new ThreadExitWaiter("test ");
+        String[] names = {"gl", "video", "audio"};
+        for (int cycle = 0; cycle < 50; cycle++) {
+            waiter.reset();
+            CountDownLatch exitRequest = new CountDownLatch(1);
+            Thread[] threads = new Thread[names.length];
+            for (int i = 0; i < names.length; i++) {
+                threads[i] = startWorker(waiter, names[i], exitRequest, i);
+                waiter.expect(names[i], threads[i]);
+            }
+            exitRequest.countDown();
+            assertTrue(waiter.await(5000));
+
+            for (Thread thread : threads) {
+                assertFalse(thread.isAlive());
+            }
+            Map<String, Long> latencies = waiter.getStopLatencyMills();
+            assertEquals(names.length, latencies.size());
+            for (String name : names) {
+                assertTrue(latencies.get(name) >= 0);
+            }
+        }
+    }
+
+    /**
+     * 有线程没有退出时在超时后返回 false，已退出的线程照常记录耗时
+     */
+    @Test
+    public void timeout() {
+        ThreadExitWaiter waiter = new ThreadExitWaiter("test ");
+        waiter.expect("exited", null);
+        waiter.expect("stuck", null);
+        waiter.onExited("exited");
+
+        long start = System.nanoTime();
+        assertFalse(waiter.await(100));
+        long elapsedMills = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsedMills >= 90);
+        assertTrue(elapsedMills < 2000);
+
+        Map<String, Long> latencies = waiter.getStopLatencyMills();
+        assertTrue(latencies.get("exited") >= 0);
+        assertEquals(-1L, (long) latencies.get("stuck"));
+    }
+
+    /**
+     * 重复的 onExited 只记录第一次的时间，未登记的名字直接忽略
+     */
+    @Test
+    public void duplicateOnExited() throws InterruptedException {
+        ThreadExitWaiter waiter = new ThreadExitWaiter("test ");
+        waiter.expect("gl", null);
+        Thread.sleep(20);
+        waiter.onExited("gl");
+        long latency = waiter.getStopLatencyMills().get("gl");
+        assertTrue(latency >= 20);
+
+        Thread.sleep(50);
+        waiter.onExited("gl");
+        waiter.onExited("unknown");
+        assertEquals(latency, (long) waiter.getStopLatencyMills().get("gl"));
+        assertEquals(1, waiter.getStopLatencyMills().size());
+        assertTrue(waiter.await(0));
+    }
+
+    @Test
+    public void resetClearsEntries() {
+        ThreadExitWaiter waiter = new ThreadExitWaiter("test ");
+        waiter.expect("stuck", null);
+        waiter.reset();
+        assertTrue(waiter.getStopLatencyMills().isEmpty());
+        assertTrue(waiter.await(0));
+    }
+
+    @Test
+    public void interruptReturnsFalse() {
+        ThreadExitWaiter waiter = new ThreadExitWaiter("test ");
+        waiter.expect("stuck", null);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(waiter.await(5000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+}